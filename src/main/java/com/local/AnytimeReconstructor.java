@@ -0,0 +1,282 @@
+package com.local;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Reconstruction that always answers within its deadline.
+ *
+ * It runs a sequence of levels from coarse to fine: few centres on a small grid first,
+ * then the centres doubled and the grid grown by half each level, up to the quality
+ * target. Every finished level replaces the result. A level is only started if the cost
+ * model predicts it can finish, and one that is overtaken by the deadline is abandoned
+ * through the CancellationToken checks in the assembly, solve and Marching Cubes loops,
+ * so the caller gets the last finished level instead of nothing.
+ *
+ * Coarse grids are made accurate with vertex projection (MarchingCubesGenerator).
+ */
+public class AnytimeReconstructor {
+
+    public AnytimeReconstructor() {
+        this(null);
+    }
+
+    /**
+     * @param model cost model deciding whether a level can finish, null to calibrate
+     */
+    public AnytimeReconstructor(ReconstructionPlanner.CostModel model) {
+        m_CostModel = model;
+    }
+
+    /**
+     * The finest level: down sampling step and grid resolution (default 1 and 128).
+     */
+    public void setQualityTarget(int downSamplingStep, int gridResolution) {
+        if (downSamplingStep < 1 || gridResolution < 2) {
+            throw new IllegalArgumentException("Invalid quality target: step " + downSamplingStep
+                    + ", grid " + gridResolution);
+        }
+        m_iTargetStep = downSamplingStep;
+        m_iTargetGrid = gridResolution;
+    }
+
+    /**
+     * set a callback receiving progress of the level being computed, may be null
+     */
+    public void setProgressListener(ProgressListener listener) {
+        m_ProgressListener = listener;
+    }
+
+    /**
+     * @param resourceName .xyz resource name
+     */
+    public Result reconstruct(String resourceName, CancellationToken token) {
+        long start = System.nanoTime();
+        ArrayList<PointBuffer> cloud;
+        // the deadline also bounds loading, normal estimation checks the bound token
+        CancellationToken.Scope scope = token.bind();
+        try {
+            cloud = VertexReader3D.readPointCloudData(resourceName);
+        } catch (CancellationException e) {
+            System.out.println("Anytime: " + e.getMessage() + " No level finished.");
+            Result none = new Result();
+            none.m_bStopped = true;
+            return finish(none, token, start);
+        } finally {
+            scope.close();
+        }
+        if (cloud.isEmpty()) {
+            throw new IllegalArgumentException("Cannot read point cloud: " + resourceName);
+        }
+        return reconstruct(cloud, token, start);
+    }
+
+    /**
+     * @param cloudData positions and normals, as returned by VertexReader3D
+     * @param token deadline and cancellation of this request
+     * @return the finest level finished in time, possibly without mesh if not even the first one was
+     */
+    public Result reconstruct(ArrayList<PointBuffer> cloudData, CancellationToken token) {
+        return reconstruct(cloudData, token, System.nanoTime());
+    }
+
+    private Result reconstruct(ArrayList<PointBuffer> cloudData, CancellationToken token, long start) {
+        int pointCount = cloudData.get(0).size();
+
+        // first level: about START_CONSTRAINTS constraints on a START_GRID grid
+        int step = Math.max(m_iTargetStep, (3 * pointCount + START_CONSTRAINTS - 1) / START_CONSTRAINTS);
+        int grid = Math.min(m_iTargetGrid, START_GRID);
+
+        Result best = new Result();
+        // closed explicitly, the scope itself is not used in the body
+        CancellationToken.Scope scope = token.bind();
+        try {
+            // calibration runs solves as well, so it is bounded by the deadline too
+            ReconstructionPlanner.CostModel model = m_CostModel != null ? m_CostModel
+                    : ReconstructionPlanner.CostModel.calibrated();
+            for (int level = 0; ; level++) {
+                if (token.shouldStop()) {
+                    best.m_bStopped = true;
+                    break;
+                }
+                int numConstraints = 3 * ((pointCount + step - 1) / step);
+                if (best.m_Mesh != null && !ReconstructionPlanner.fitsInHeap(MixedPrecisionSolver.estimateMemory(numConstraints))) {
+                    System.out.printf("Anytime: level %d (step %d, grid %d) does not fit in the heap, stopping%n",
+                            level, step, grid);
+                    best.m_bStopped = true;
+                    break;
+                }
+                double remaining = token.remainingSeconds();
+                double predicted = model.estimateSolveSeconds(numConstraints) + model.estimateMeshSeconds(numConstraints, grid);
+                if (best.m_Mesh != null && predicted > remaining) {
+                    System.out.printf("Anytime: level %d (step %d, grid %d) needs ~%.1f s, %.1f s left, stopping%n",
+                            level, step, grid, predicted, remaining);
+                    best.m_bStopped = true;
+                    break;
+                }
+
+                if (!runLevel(cloudData, step, grid, level, best, start)) break;
+
+                if (step == m_iTargetStep && grid == m_iTargetGrid) {
+                    best.m_bFinal = true;
+                    break;
+                }
+                step = Math.max(m_iTargetStep, step / 2);
+                grid = Math.min(m_iTargetGrid, grid * 3 / 2);
+            }
+        } catch (CancellationException | HeapLimitException e) {
+            // the deadline or cancellation, or a level whose solve does not fit in the heap:
+            // keep the levels that did finish, the failed level is garbage now
+            best.m_bStopped = true;
+            System.out.println("Anytime: " + e.getMessage() + (best.m_iLevels > 0
+                    ? " Returning level " + (best.m_iLevels - 1) + "." : " No level finished."));
+        } finally {
+            scope.close();
+        }
+        return finish(best, token, start);
+    }
+
+    private static Result finish(Result result, CancellationToken token, long start) {
+        result.m_bCancelled = token.isCancelled();
+        result.m_lElapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        return result;
+    }
+
+    /**
+     * Solve and mesh one level, storing it in best when finished.
+     * @return false if the level could not be solved
+     */
+    private boolean runLevel(ArrayList<PointBuffer> cloudData, int step, int grid, int level, Result best, long start) {
+        long levelStart = System.nanoTime();
+        RBFReconstructor rbf = new RBFReconstructor();
+        rbf.setDownSamplingStep(step);
+        rbf.setProgressListener(m_ProgressListener);
+        rbf.computeWeights(cloudData);
+        RBFField field = rbf.getField();
+        if (field == null) {
+            System.err.println("Anytime: level " + level + " could not be solved.");
+            return false;
+        }
+
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(field);
+        mc.setProjectionIterations(PROJECTION_ITERATIONS);
+        mc.setProgressListener(m_ProgressListener);
+        mc.generateMesh(grid, grid, grid);
+        MeshBuffers mesh = MeshPostProcessor.optimize(MeshBuffers.fromPointBuffers(mc.getVertices(), mc.getNormals()));
+
+        best.m_Mesh = mesh;
+        best.m_Field = field;
+        best.m_iDownSamplingStep = step;
+        best.m_iGridResolution = grid;
+        best.m_iLevels = level + 1;
+        System.out.printf("Anytime: level %d done (step %d, grid %d) in %d ms, %d ms since start%n", level, step, grid,
+                (System.nanoTime() - levelStart) / 1_000_000L, (System.nanoTime() - start) / 1_000_000L);
+        return true;
+    }
+
+    /**
+     * Finest finished level of an anytime reconstruction.
+     */
+    public static class Result {
+
+        /**
+         * @return indexed mesh of the last finished level, null if none finished in time
+         */
+        public MeshBuffers getMesh() {
+            return m_Mesh;
+        }
+
+        /**
+         * @return field of the last finished level, null if none finished in time
+         */
+        public RBFField getField() {
+            return m_Field;
+        }
+
+        public int getDownSamplingStep() {
+            return m_iDownSamplingStep;
+        }
+
+        public int getGridResolution() {
+            return m_iGridResolution;
+        }
+
+        public int getLevelsCompleted() {
+            return m_iLevels;
+        }
+
+        /**
+         * @return true if the quality target was reached
+         */
+        public boolean isFinal() {
+            return m_bFinal;
+        }
+
+        /**
+         * @return true if refinement stopped early for the deadline, cancellation or lack of heap
+         */
+        public boolean isStopped() {
+            return m_bStopped;
+        }
+
+        public boolean isCancelled() {
+            return m_bCancelled;
+        }
+
+        public long getElapsedMillis() {
+            return m_lElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d levels, step %d, grid %d, %s, %d ms", m_iLevels, m_iDownSamplingStep,
+                    m_iGridResolution, m_bFinal ? "final" : m_bCancelled ? "cancelled" : "stopped early",
+                    m_lElapsedMillis);
+        }
+
+        private MeshBuffers m_Mesh;
+
+        private RBFField m_Field;
+
+        private int m_iDownSamplingStep;
+
+        private int m_iGridResolution;
+
+        private int m_iLevels = 0;
+
+        private boolean m_bFinal = false;
+
+        private boolean m_bStopped = false;
+
+        private boolean m_bCancelled = false;
+
+        private long m_lElapsedMillis;
+    }
+
+    private final ReconstructionPlanner.CostModel m_CostModel;
+
+    private ProgressListener m_ProgressListener;
+
+    private int m_iTargetStep = 1;
+
+    private int m_iTargetGrid = 128;
+
+    // constraints of the first level, solved in well under a second
+    private static final int START_CONSTRAINTS = 600;
+
+    private static final int START_GRID = 24;
+
+    // vertex projection makes the coarse grids of early levels accurate
+    private static final int PROJECTION_ITERATIONS = 2;
+
+    public static void main(String[] args) {
+        long budget = args.length > 0 ? Long.parseLong(args[0]) : 5000;
+        AnytimeReconstructor anytime = new AnytimeReconstructor();
+        anytime.setQualityTarget(1, 96);
+        // calibrate before the clock starts, it is shared by all later requests
+        ReconstructionPlanner.CostModel.calibrated();
+        Result result = anytime.reconstruct("bunny.xyz", CancellationToken.withTimeout(budget));
+        System.out.println("Budget " + budget + " ms: " + result + ", "
+                + (result.getMesh() != null ? result.getMesh().getIndices().remaining() / 3 + " triangles" : "no mesh"));
+    }
+}
@@ -0,0 +1,147 @@
+package com.local;
+
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * Multithreaded dense LU with partial pivoting for the full (N+4) x (N+4) system.
+ *
+ * Right-looking blocked factorization: a narrow column panel is factored serially, then
+ * the row block of U and the trailing submatrix are updated in parallel on the common
+ * ForkJoinPool. The trailing update walks column tiles, so the panel rows of U stay in
+ * cache while every row below is updated. Works for any non-singular kernel, so it is
+ * the general fallback when the symmetric solver cannot be used.
+ */
+public class BlockedLUSolver implements RBFSolver {
+
+    @Override
+    public double[] solve(DMatrixRMaj matA, double[] polyP, double[] rhs) {
+        int N = matA.numRows;
+        int dim = N + 4;
+
+        DMatrixRMaj full = RBFSolver.buildFullSystem(matA, polyP);
+        double[] b = new double[dim];
+        System.arraycopy(rhs, 0, b, 0, N);
+
+        factorAndSolve(full.data, dim, b, Thread.currentThread());
+        return b;
+    }
+
+    @Override
+    public String getName() {
+        return "blocked parallel LU";
+    }
+
+    /**
+     * Factor the row-major n x n matrix m in place and overwrite b with the solution.
+     */
+    static void factorAndSolve(double[] m, int n, double[] b, Thread caller) {
+        for (int kb = 0; kb < n; kb += BLOCK_SIZE) {
+            ReconstructionJob.checkCancelled(caller);
+            int kEnd = Math.min(kb + BLOCK_SIZE, n);
+
+            // panel: columns kb..kEnd-1, pivot rows are swapped across the whole matrix
+            for (int k = kb; k < kEnd; k++) {
+                int pivot = k;
+                double maxVal = Math.abs(m[k * n + k]);
+                for (int i = k + 1; i < n; i++) {
+                    double val = Math.abs(m[i * n + k]);
+                    if (val > maxVal) {
+                        maxVal = val;
+                        pivot = i;
+                    }
+                }
+                if (maxVal < 1e-300) {
+                    throw new IllegalStateException("Matrix is singular at column " + k + ".");
+                }
+                if (pivot != k) {
+                    swapRows(m, n, k, pivot);
+                    double tmp = b[k]; b[k] = b[pivot]; b[pivot] = tmp;
+                }
+
+                double ukk = m[k * n + k];
+                int rowK = k * n;
+                for (int i = k + 1; i < n; i++) {
+                    int rowI = i * n;
+                    double lik = m[rowI + k] / ukk;
+                    m[rowI + k] = lik;
+                    if (lik == 0.0) continue;
+                    for (int j = k + 1; j < kEnd; j++) {
+                        m[rowI + j] -= lik * m[rowK + j];
+                    }
+                }
+            }
+            if (kEnd == n) break;
+
+            final int kbF = kb, kEndF = kEnd;
+            int numTiles = (n - kEnd + TILE_SIZE - 1) / TILE_SIZE;
+
+            // U12 = L11^-1 A12, independent per column tile
+            IntStream.range(0, numTiles).parallel().forEach(t -> {
+                int j0 = kEndF + t * TILE_SIZE;
+                int j1 = Math.min(j0 + TILE_SIZE, n);
+                for (int k = kbF; k < kEndF; k++) {
+                    int rowK = k * n;
+                    for (int i = k + 1; i < kEndF; i++) {
+                        int rowI = i * n;
+                        double lik = m[rowI + k];
+                        for (int j = j0; j < j1; j++) {
+                            m[rowI + j] -= lik * m[rowK + j];
+                        }
+                    }
+                }
+            });
+
+            // A22 -= L21 U12, rows in parallel, column tiles inside
+            IntStream.range(kEnd, n).parallel().forEach(i -> {
+                int rowI = i * n;
+                for (int j0 = kEndF; j0 < n; j0 += TILE_SIZE) {
+                    int j1 = Math.min(j0 + TILE_SIZE, n);
+                    for (int k = kbF; k < kEndF; k++) {
+                        double lik = m[rowI + k];
+                        if (lik == 0.0) continue;
+                        int rowK = k * n;
+                        for (int j = j0; j < j1; j++) {
+                            m[rowI + j] -= lik * m[rowK + j];
+                        }
+                    }
+                }
+            });
+        }
+
+        // L y = Pb (unit diagonal)
+        for (int i = 0; i < n; i++) {
+            int rowI = i * n;
+            double t = b[i];
+            for (int k = 0; k < i; k++) {
+                t -= m[rowI + k] * b[k];
+            }
+            b[i] = t;
+        }
+        // U x = y
+        for (int i = n - 1; i >= 0; i--) {
+            int rowI = i * n;
+            double t = b[i];
+            for (int k = i + 1; k < n; k++) {
+                t -= m[rowI + k] * b[k];
+            }
+            b[i] = t / m[rowI + i];
+        }
+    }
+
+    private static void swapRows(double[] m, int n, int r1, int r2) {
+        int o1 = r1 * n, o2 = r2 * n;
+        for (int j = 0; j < n; j++) {
+            double tmp = m[o1 + j];
+            m[o1 + j] = m[o2 + j];
+            m[o2 + j] = tmp;
+        }
+    }
+
+    // panel width
+    private static final int BLOCK_SIZE = 64;
+
+    // column tile width of the trailing update
+    private static final int TILE_SIZE = 512;
+}
@@ -0,0 +1,125 @@
+package com.local;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellation flag with an optional deadline.
+ *
+ * A token bound to a thread is honoured by every ReconstructionJob.checkCancelled call made
+ * on behalf of that thread, so the assembly, solve and Marching Cubes loops stop within
+ * one check interval of the deadline without taking the token as a parameter.
+ */
+public class CancellationToken {
+
+    /**
+     * A token without deadline, stopped only by cancel().
+     */
+    public CancellationToken() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    private CancellationToken(long deadlineNanos, CancellationToken parent) {
+        m_lDeadline = deadlineNanos;
+        m_Parent = parent;
+    }
+
+    /**
+     * @param millis time from now until the token expires
+     */
+    public static CancellationToken withTimeout(long millis) {
+        return withTimeout(millis, null);
+    }
+
+    /**
+     * @param millis time from now until the token expires
+     * @param parent token whose cancellation and deadline also stop this one, may be null
+     */
+    public static CancellationToken withTimeout(long millis, CancellationToken parent) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + millis);
+        }
+        return new CancellationToken(System.nanoTime() + millis * 1_000_000L, parent);
+    }
+
+    public void cancel() {
+        m_bCancelled = true;
+    }
+
+    /**
+     * @return true if cancel() was called, regardless of the deadline
+     */
+    public boolean isCancelled() {
+        return m_bCancelled || (m_Parent != null && m_Parent.isCancelled());
+    }
+
+    public boolean isExpired() {
+        return (m_lDeadline != Long.MAX_VALUE && System.nanoTime() - m_lDeadline >= 0)
+                || (m_Parent != null && m_Parent.isExpired());
+    }
+
+    public boolean shouldStop() {
+        return isCancelled() || isExpired();
+    }
+
+    /**
+     * @return seconds until the deadline, 0 once expired, infinity without deadline
+     */
+    public double remainingSeconds() {
+        double parent = m_Parent != null ? m_Parent.remainingSeconds() : Double.POSITIVE_INFINITY;
+        if (m_lDeadline == Long.MAX_VALUE) return parent;
+        return Math.min(parent, Math.max(0L, m_lDeadline - System.nanoTime()) * 1e-9);
+    }
+
+    /**
+     * @throws CancellationException if cancelled or past the deadline
+     */
+    public void throwIfStopped() {
+        if (isCancelled()) {
+            throw new CancellationException("Reconstruction cancelled.");
+        }
+        if (isExpired()) {
+            throw new CancellationException("Reconstruction deadline reached.");
+        }
+    }
+
+    /**
+     * Honour this token in ReconstructionJob.checkCancelled calls of the current thread
+     * until the returned scope is closed. Scopes nest.
+     */
+    public Scope bind() {
+        Thread thread = Thread.currentThread();
+        CancellationToken previous = s_Bound.put(thread, this);
+        return () -> {
+            if (previous != null) {
+                s_Bound.put(thread, previous);
+            } else {
+                s_Bound.remove(thread);
+            }
+        };
+    }
+
+    /**
+     * @return the token bound to a thread, null if none
+     */
+    static CancellationToken forThread(Thread thread) {
+        return s_Bound.get(thread);
+    }
+
+    /**
+     * Binding of a token to a thread, close to unbind.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // System.nanoTime() at which the token expires, Long.MAX_VALUE for none
+    private final long m_lDeadline;
+
+    private final CancellationToken m_Parent;
+
+    private volatile boolean m_bCancelled = false;
+
+    private static final ConcurrentHashMap<Thread, CancellationToken> s_Bound = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,44 @@
+package com.local;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.factory.LinearSolverFactory_DDRM;
+import org.ejml.interfaces.linsol.LinearSolverDense;
+
+/**
+ * Single threaded dense LU solve of the full (N+4) x (N+4) system with EJML.
+ */
+public class DenseLUSolver implements RBFSolver {
+
+    @Override
+    public double[] solve(DMatrixRMaj matA, double[] polyP, double[] rhs) {
+        int N = matA.numRows;
+        int dim = N + 4;
+
+        DMatrixRMaj full = RBFSolver.buildFullSystem(matA, polyP);
+        DMatrixRMaj b = new DMatrixRMaj(dim, 1);
+        System.arraycopy(rhs, 0, b.data, 0, N);
+        DMatrixRMaj x = new DMatrixRMaj(dim, 1);
+
+        LinearSolverDense<DMatrixRMaj> solver = LinearSolverFactory_DDRM.lu(dim);
+        if (!solver.setA(full)) {
+            throw new IllegalStateException("Matrix is singular.");
+        }
+        solver.solve(b, x);
+        return x.data;
+    }
+
+    /**
+     * A, the full system and EJML's copy of it for the decomposition.
+     */
+    @Override
+    public long estimateMemory(int numConstraints) {
+        long dim = numConstraints + 4L;
+        if (dim > MAX_DENSE_ORDER) return Long.MAX_VALUE;
+        return 8L * numConstraints * numConstraints + 16L * dim * dim;
+    }
+
+    @Override
+    public String getName() {
+        return "dense LU";
+    }
+}
@@ -0,0 +1,19 @@
+package com.local;
+
+/**
+ * A solve refused to start because its arrays do not fit in the free heap, see
+ * ReconstructionPlanner.fitsInHeap. Callers that can degrade, e.g. keep a coarser level,
+ * catch this one instead of every IllegalStateException.
+ */
+public class HeapLimitException extends IllegalStateException {
+
+    public HeapLimitException(String message) {
+        super(message);
+    }
+
+    public HeapLimitException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
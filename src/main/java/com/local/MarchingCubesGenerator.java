@@ -1,9 +1,22 @@
 package com.local;
 
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.lwjgl.BufferUtils;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
 public class MarchingCubesGenerator {
 
-    public MarchingCubesGenerator(RBFReconstructor rbf) {
-        m_RBF = rbf;
+    public MarchingCubesGenerator(ScalarField field) {
+        m_Field = field;
         m_MeshVertices = new PointBuffer();
         m_MeshVertices.reserve(20000);
 
@@ -19,6 +32,71 @@ public class MarchingCubesGenerator {
         return m_MeshNormals;
     }
 
+    /**
+     * set the cube grid range, used on all three axes (default [-1.1, 1.1])
+     */
+    public void setBounds(double minCoord, double maxCoord) {
+        m_dMinCoord = minCoord;
+        m_dMaxCoord = maxCoord;
+        m_dBoxMin = null;
+        m_dBoxMax = null;
+    }
+
+    /**
+     * set a box shaped grid range with its own extent per axis, e.g. one tile of a larger grid.
+     * getMinCoord / getMaxCoord keep reporting the cube range.
+     */
+    public void setBounds(double[] min, double[] max) {
+        if (min.length != 3 || max.length != 3 || min[0] >= max[0] || min[1] >= max[1] || min[2] >= max[2]) {
+            throw new IllegalArgumentException("Invalid bounds.");
+        }
+        m_dBoxMin = min.clone();
+        m_dBoxMax = max.clone();
+    }
+
+    public double getMinCoord() {
+        return m_dMinCoord;
+    }
+
+    public double getMaxCoord() {
+        return m_dMaxCoord;
+    }
+
+    /**
+     * set the field value of the extracted surface (default 0)
+     */
+    public void setIsoLevel(double isoLevel) {
+        m_dIsoLevel = isoLevel;
+    }
+
+    public double getIsoLevel() {
+        return m_dIsoLevel;
+    }
+
+    /**
+     * Project every emitted vertex onto the iso-surface of the field with up to this many
+     * Newton steps along the gradient, instead of keeping the linear interpolation between
+     * corner values (default 0, off). Normals then come from the gradient at the projected
+     * point. Not used when polygonizing a SparseFieldGrid.
+     */
+    public void setProjectionIterations(int iterations) {
+        if (iterations < 0) {
+            throw new IllegalArgumentException("Projection iterations must not be negative.");
+        }
+        m_iProjectionIterations = iterations;
+    }
+
+    public int getProjectionIterations() {
+        return m_iProjectionIterations;
+    }
+
+    /**
+     * set a callback receiving "mesh" progress, may be null
+     */
+    public void setProgressListener(ProgressListener listener) {
+        m_ProgressListener = listener;
+    }
+
     /**
      * Generate the mesh using Marching Cubes algorithm
      * @param cubeNumX Number of cubes along X axis
@@ -27,15 +105,19 @@ public class MarchingCubesGenerator {
      */
     public void generateMesh(int cubeNumX, int cubeNumY, int cubeNumZ) {
         m_MeshVertices.clear();
+        m_MeshNormals.clear();
+        m_dGridValues = null;
+        m_lProjectionSteps = 0;
+        m_lProjectionRejected = 0;
 
-        // cube grid ranges
-        double minX = -1.1, maxX = 1.1;
-        double minY = -1.1, maxY = 1.1;
-        double minZ = -1.1, maxZ = 1.1;
+        double minX = boundMin(0), maxX = boundMax(0);
+        double minY = boundMin(1), maxY = boundMax(1);
+        double minZ = boundMin(2), maxZ = boundMax(2);
 
         double stepX = (maxX - minX) / cubeNumX;
         double stepY = (maxY - minY) / cubeNumY;
         double stepZ = (maxZ - minZ) / cubeNumZ;
+        m_dCellSize = Math.max(stepX, Math.max(stepY, stepZ));
 
         System.out.println("MC: Grid " + cubeNumX + "x" + cubeNumY + "x" + cubeNumZ + " generating...");
         long start = System.currentTimeMillis();
@@ -49,8 +131,14 @@ public class MarchingCubesGenerator {
 
         // Traverse all cubes
         for (int i = 0; i < cubeNumX; i++) {
+            ReconstructionJob.checkCancelled();
+            if (m_ProgressListener != null) {
+                m_ProgressListener.onProgress("mesh", (double) i / cubeNumX);
+            }
             double posX = minX + i * stepX;
             for (int j = 0; j < cubeNumY; j++) {
+                // a slab can take seconds on large fields, check per row for deadlines
+                ReconstructionJob.checkCancelled();
                 double posY = minY + j * stepY;
                 for (int k = 0; k < cubeNumZ; k++) {
                     double posZ = minZ + k * stepZ;
@@ -76,47 +164,9 @@ public class MarchingCubesGenerator {
                     fillCorner(cornerCoords, cornerVal, 6, posX + stepX, posY + stepY, posZ + stepZ);
                     fillCorner(cornerCoords, cornerVal, 7, posX, posY + stepY, posZ + stepZ);
 
-                    // 8 bit index where each bit corresponds to a vertex.
-                    int cubeIndex = 0;
-                    if (cornerVal[0] < 0) cubeIndex |= 1;
-                    if (cornerVal[1] < 0) cubeIndex |= 2;
-                    if (cornerVal[2] < 0) cubeIndex |= 4;
-                    if (cornerVal[3] < 0) cubeIndex |= 8;
-                    if (cornerVal[4] < 0) cubeIndex |= 16;
-                    if (cornerVal[5] < 0) cubeIndex |= 32;
-                    if (cornerVal[6] < 0) cubeIndex |= 64;
-                    if (cornerVal[7] < 0) cubeIndex |= 128;
-
-                    // Searching Edge Table
-                    int edgeFlags = MarchingCubeTable.m_EdgeTable[cubeIndex];
+                    int cubeIndex = computeEdgeVertices(cornerCoords, cornerVal, m_dIsoLevel, vertList);
                     // All corners are inside or outside the surface
-                    if (edgeFlags == 0) continue;
-
-                    // find the intersection edges and compute intersection points on the edges
-                    if ((edgeFlags & 1) != 0)
-                        vertInterp(cornerCoords[0], cornerCoords[1], cornerVal[0], cornerVal[1], vertList[0]);
-                    if ((edgeFlags & 2) != 0)
-                        vertInterp(cornerCoords[1], cornerCoords[2], cornerVal[1], cornerVal[2], vertList[1]);
-                    if ((edgeFlags & 4) != 0)
-                        vertInterp(cornerCoords[2], cornerCoords[3], cornerVal[2], cornerVal[3], vertList[2]);
-                    if ((edgeFlags & 8) != 0)
-                        vertInterp(cornerCoords[3], cornerCoords[0], cornerVal[3], cornerVal[0], vertList[3]);
-                    if ((edgeFlags & 16) != 0)
-                        vertInterp(cornerCoords[4], cornerCoords[5], cornerVal[4], cornerVal[5], vertList[4]);
-                    if ((edgeFlags & 32) != 0)
-                        vertInterp(cornerCoords[5], cornerCoords[6], cornerVal[5], cornerVal[6], vertList[5]);
-                    if ((edgeFlags & 64) != 0)
-                        vertInterp(cornerCoords[6], cornerCoords[7], cornerVal[6], cornerVal[7], vertList[6]);
-                    if ((edgeFlags & 128) != 0)
-                        vertInterp(cornerCoords[7], cornerCoords[4], cornerVal[7], cornerVal[4], vertList[7]);
-                    if ((edgeFlags & 256) != 0)
-                        vertInterp(cornerCoords[0], cornerCoords[4], cornerVal[0], cornerVal[4], vertList[8]);
-                    if ((edgeFlags & 512) != 0)
-                        vertInterp(cornerCoords[1], cornerCoords[5], cornerVal[1], cornerVal[5], vertList[9]);
-                    if ((edgeFlags & 1024) != 0)
-                        vertInterp(cornerCoords[2], cornerCoords[6], cornerVal[2], cornerVal[6], vertList[10]);
-                    if ((edgeFlags & 2048) != 0)
-                        vertInterp(cornerCoords[3], cornerCoords[7], cornerVal[3], cornerVal[7], vertList[11]);
+                    if (MarchingCubeTable.m_EdgeTable[cubeIndex] == 0) continue;
 
                     // Create the triangles
                     for (int ii = 0; MarchingCubeTable.m_TriTable[cubeIndex][ii] != -1; ii += 3) {
@@ -131,16 +181,952 @@ public class MarchingCubesGenerator {
                 }
             }
         }
+        if (m_ProgressListener != null) {
+            m_ProgressListener.onProgress("mesh", 1.0);
+        }
+        System.out.println("MC Done. Vertices: " + m_MeshVertices.size());
+        if (m_iProjectionIterations > 0) {
+            System.out.println("Projected vertices: " + m_lProjectionSteps + " Newton steps, "
+                    + m_lProjectionRejected + " kept at the interpolated position");
+        }
+        System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Extract several level sets of the field from one sampling of the grid, e.g. offset shells
+     * at -d, 0 and +d for thickening or clearance checks.
+     *
+     * The grid is swept slab by slab along Z as in generateMeshStreaming, keeping the node values
+     * of four adjacent Z-planes: the slab's two planes and one on each side for the normals. Each
+     * plane is evaluated once, rows in parallel; every iso-value is then polygonized from the
+     * stored values, the Y rows of all iso-values in parallel. Normals are central differences of
+     * the sampled grid interpolated along the cut edge, so no iso-value goes back to the field:
+     * K shells cost one sampling plus K table passes instead of K generateMesh runs.
+     * Those normals are smoothed at the grid scale and can differ from getGradient in thin features.
+     * The generator's own mesh buffers and iso-level are left untouched, and vertices are not
+     * projected (see setProjectionIterations).
+     * @param isoLevels field values of the extracted surfaces
+     * @return one triangle soup per iso-value, in the order of isoLevels
+     */
+    public List<MeshBuffers> generateMeshes(int cubeNumX, int cubeNumY, int cubeNumZ, double[] isoLevels) {
+        if (cubeNumX < 1 || cubeNumY < 1 || cubeNumZ < 1) {
+            throw new IllegalArgumentException("Cube counts must be positive.");
+        }
+        if (isoLevels.length == 0) {
+            throw new IllegalArgumentException("No iso-levels given.");
+        }
+        int planeNodes = planeNodes(cubeNumX, cubeNumY);
+        double[] min = {boundMin(0), boundMin(1), boundMin(2)};
+        double[] step = {(boundMax(0) - min[0]) / cubeNumX, (boundMax(1) - min[1]) / cubeNumY,
+                (boundMax(2) - min[2]) / cubeNumZ};
+        Thread owner = Thread.currentThread();
+
+        System.out.println("MC: Grid " + cubeNumX + "x" + cubeNumY + "x" + cubeNumZ + ", "
+                + isoLevels.length + " iso-levels generating...");
+        long start = System.currentTimeMillis();
+        long sampling = 0;
+
+        // Z-planes k-1 .. k+2 around slab k, indexed [j*(cubeNumX+1) + i]; null outside the grid
+        double[][] planes = new double[4][];
+        for (int p = 1; p < 4 && p - 1 <= cubeNumZ; p++) {
+            planes[p] = new double[planeNodes];
+            samplePlane(planes[p], cubeNumX, cubeNumY, min[0], min[1], min[2] + (p - 1) * step[2], step[0], step[1]);
+        }
+        sampling += System.currentTimeMillis() - start;
+
+        int numLevels = isoLevels.length;
+        FloatArrayList[] levelVertices = new FloatArrayList[numLevels];
+        FloatArrayList[] levelNormals = new FloatArrayList[numLevels];
+        for (int l = 0; l < numLevels; l++) {
+            levelVertices[l] = new FloatArrayList();
+            levelNormals[l] = new FloatArrayList();
+        }
+        // one task per iso-level and Y row of the slab; rows are appended in order afterwards
+        FloatArrayList[] rowVertices = new FloatArrayList[numLevels * cubeNumY];
+        FloatArrayList[] rowNormals = new FloatArrayList[numLevels * cubeNumY];
+
+        for (int k = 0; k < cubeNumZ; k++) {
+            ReconstructionJob.checkCancelled();
+            int slab = k;
+            IntStream.range(0, numLevels * cubeNumY).parallel().forEach(task -> {
+                ReconstructionJob.checkCancelled(owner);
+                FloatArrayList vertices = new FloatArrayList();
+                FloatArrayList normals = new FloatArrayList();
+                polygonizeRow(planes, cubeNumX, cubeNumY, min, step, isoLevels[task / cubeNumY], task % cubeNumY, slab,
+                        vertices, normals);
+                rowVertices[task] = vertices;
+                rowNormals[task] = normals;
+            });
+            for (int task = 0; task < rowVertices.length; task++) {
+                levelVertices[task / cubeNumY].addAll(rowVertices[task]);
+                levelNormals[task / cubeNumY].addAll(rowNormals[task]);
+            }
+
+            // shift the window by one plane and sample the next one into the dropped array
+            long sampleStart = System.currentTimeMillis();
+            double[] reuse = planes[0];
+            planes[0] = planes[1];
+            planes[1] = planes[2];
+            planes[2] = planes[3];
+            planes[3] = null;
+            if (k + 3 <= cubeNumZ) {
+                planes[3] = reuse != null ? reuse : new double[planeNodes];
+                samplePlane(planes[3], cubeNumX, cubeNumY, min[0], min[1], min[2] + (k + 3) * step[2], step[0], step[1]);
+            }
+            sampling += System.currentTimeMillis() - sampleStart;
+        }
+
+        List<MeshBuffers> meshes = new ArrayList<>(numLevels);
+        for (int l = 0; l < numLevels; l++) {
+            int floats = levelVertices[l].size();
+            FloatBuffer vertexBuffer = BufferUtils.createFloatBuffer(floats);
+            FloatBuffer normalBuffer = BufferUtils.createFloatBuffer(floats);
+            vertexBuffer.put(levelVertices[l].elements(), 0, floats).flip();
+            normalBuffer.put(levelNormals[l].elements(), 0, floats).flip();
+            // release the level as soon as it is copied
+            levelVertices[l] = null;
+            levelNormals[l] = null;
+            meshes.add(new MeshBuffers(vertexBuffer, normalBuffer, floats / 3));
+            System.out.println("MC: iso-level " + isoLevels[l] + ": " + floats / 9 + " triangles");
+        }
+        System.out.println("MC Done. Sampling " + sampling + "ms, extraction "
+                + (System.currentTimeMillis() - start - sampling) + "ms");
+        return meshes;
+    }
+
+    /**
+     * Marching Cubes over the cubes of row j in slab k, from the sampled planes k-1 .. k+2.
+     * Edge normals come from computeEdgeVertices run on the corner gradients: it interpolates
+     * any per-corner vector with the same parameter as the crossing point.
+     */
+    private void polygonizeRow(double[][] planes, int cubeNumX, int cubeNumY, double[] min, double[] step,
+                               double isoLevel, int j, int k, FloatArrayList vertices, FloatArrayList normals) {
+        double[] cornerVal = new double[8];
+        double[][] cornerCoords = new double[8][3];
+        double[][] cornerGradients = new double[8][3];
+        double[][] vertList = new double[12][3];
+        double[][] gradientList = new double[12][3];
+        int rowLength = cubeNumX + 1;
+        double posY = min[1] + j * step[1];
+        double posZ = min[2] + k * step[2];
+
+        for (int i = 0; i < cubeNumX; i++) {
+            double posX = min[0] + i * step[0];
+            int idx = j * rowLength + i;
+
+            // same corner numbering as generateMeshStreaming, plane 1 is the lower and plane 2 the upper Z-plane
+            setCorner(cornerCoords, cornerVal, 0, posX, posY, posZ, planes[1][idx]);
+            setCorner(cornerCoords, cornerVal, 1, posX + step[0], posY, posZ, planes[1][idx + 1]);
+            setCorner(cornerCoords, cornerVal, 2, posX + step[0], posY, posZ + step[2], planes[2][idx + 1]);
+            setCorner(cornerCoords, cornerVal, 3, posX, posY, posZ + step[2], planes[2][idx]);
+            setCorner(cornerCoords, cornerVal, 4, posX, posY + step[1], posZ, planes[1][idx + rowLength]);
+            setCorner(cornerCoords, cornerVal, 5, posX + step[0], posY + step[1], posZ, planes[1][idx + rowLength + 1]);
+            setCorner(cornerCoords, cornerVal, 6, posX + step[0], posY + step[1], posZ + step[2], planes[2][idx + rowLength + 1]);
+            setCorner(cornerCoords, cornerVal, 7, posX, posY + step[1], posZ + step[2], planes[2][idx + rowLength]);
+
+            int cubeIndex = computeEdgeVertices(cornerCoords, cornerVal, isoLevel, vertList);
+            if (MarchingCubeTable.m_EdgeTable[cubeIndex] == 0) continue;
+
+            nodeGradient(planes, 1, cubeNumX, cubeNumY, step, i, j, cornerGradients[0]);
+            nodeGradient(planes, 1, cubeNumX, cubeNumY, step, i + 1, j, cornerGradients[1]);
+            nodeGradient(planes, 2, cubeNumX, cubeNumY, step, i + 1, j, cornerGradients[2]);
+            nodeGradient(planes, 2, cubeNumX, cubeNumY, step, i, j, cornerGradients[3]);
+            nodeGradient(planes, 1, cubeNumX, cubeNumY, step, i, j + 1, cornerGradients[4]);
+            nodeGradient(planes, 1, cubeNumX, cubeNumY, step, i + 1, j + 1, cornerGradients[5]);
+            nodeGradient(planes, 2, cubeNumX, cubeNumY, step, i + 1, j + 1, cornerGradients[6]);
+            nodeGradient(planes, 2, cubeNumX, cubeNumY, step, i, j + 1, cornerGradients[7]);
+            computeEdgeVertices(cornerGradients, cornerVal, isoLevel, gradientList);
+
+            int[] triangles = MarchingCubeTable.m_TriTable[cubeIndex];
+            for (int t = 0; triangles[t] != -1; t++) {
+                double[] v = vertList[triangles[t]];
+                double[] g = gradientList[triangles[t]];
+                vertices.add((float) v[0]); vertices.add((float) v[1]); vertices.add((float) v[2]);
+                double len = Math.sqrt(g[0] * g[0] + g[1] * g[1] + g[2] * g[2]);
+                // same orientation as getGradient
+                if (len < 1e-9) {
+                    normals.add(0.0f); normals.add(1.0f); normals.add(0.0f);
+                } else {
+                    normals.add((float) (-g[0] / len)); normals.add((float) (-g[1] / len)); normals.add((float) (-g[2] / len));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gradient of the sampled grid at node (i, j) of planes[p]: central differences, one-sided on
+     * the grid faces, where the neighbouring plane is null along Z.
+     */
+    private static void nodeGradient(double[][] planes, int p, int cubeNumX, int cubeNumY, double[] step,
+                                     int i, int j, double[] out) {
+        int rowLength = cubeNumX + 1;
+        int idx = j * rowLength + i;
+        double[] plane = planes[p];
+        int lo = i > 0 ? idx - 1 : idx;
+        int hi = i < cubeNumX ? idx + 1 : idx;
+        out[0] = (plane[hi] - plane[lo]) / ((hi - lo) * step[0]);
+        lo = j > 0 ? idx - rowLength : idx;
+        hi = j < cubeNumY ? idx + rowLength : idx;
+        out[1] = (plane[hi] - plane[lo]) / ((hi - lo) / rowLength * step[1]);
+        double[] below = planes[p - 1] != null ? planes[p - 1] : plane;
+        double[] above = planes[p + 1] != null ? planes[p + 1] : plane;
+        int span = (below != plane ? 1 : 0) + (above != plane ? 1 : 0);
+        out[2] = (above[idx] - below[idx]) / (span * step[2]);
+    }
+
+    /**
+     * Number of nodes in one Z-plane of the grid, checked against the array limit.
+     */
+    private static int planeNodes(int cubeNumX, int cubeNumY) {
+        long nodes = (long) (cubeNumX + 1) * (cubeNumY + 1);
+        if (nodes > MAX_PLANE_NODES) {
+            throw new IllegalArgumentException("A grid plane of " + (cubeNumX + 1) + "x" + (cubeNumY + 1)
+                    + " nodes exceeds the array limit of " + MAX_PLANE_NODES + ", use fewer cubes along X or Y.");
+        }
+        return (int) nodes;
+    }
+
+    private double boundMin(int axis) {
+        return m_dBoxMin != null ? m_dBoxMin[axis] : m_dMinCoord;
+    }
+
+    private double boundMax(int axis) {
+        return m_dBoxMax != null ? m_dBoxMax[axis] : m_dMaxCoord;
+    }
+
+    /**
+     * Polygonize a pre-sampled sparse grid directly, without evaluating the source field.
+     * Only cubes whose eight corners lie in allocated leaf blocks are visited, never tile values,
+     * and normals are taken from the gradient of the trilinear grid. The iso-level must lie inside
+     * the grid's band.
+     * @param grid sampled narrow band field
+     */
+    public void generateMesh(SparseFieldGrid grid) {
+        m_MeshVertices.clear();
+        m_MeshNormals.clear();
+        m_dGridValues = null;
+
+        int nodesX = grid.getNodeCount(0);
+        int nodesY = grid.getNodeCount(1);
+        int nodesZ = grid.getNodeCount(2);
+        int leafDim = SparseFieldGrid.LEAF_DIM;
+
+        System.out.println("MC: Sparse grid " + (nodesX - 1) + "x" + (nodesY - 1) + "x" + (nodesZ - 1)
+                + " with " + grid.getLeafCount() + " leaves generating...");
+        long start = System.currentTimeMillis();
+
+        double[] cornerVal = new double[8];
+        double[][] cornerCoords = new double[8][3];
+        double[][] vertList = new double[12][3];
+
+        int[] cornerOffsets = {0,0,0, 1,0,0, 1,0,1, 0,0,1, 0,1,0, 1,1,0, 1,1,1, 0,1,1};
+
+        int numBlocks = grid.getBlockCount();
+        for (int block = 0; block < numBlocks; block++) {
+            if (block % 64 == 0) {
+                ReconstructionJob.checkCancelled();
+                if (m_ProgressListener != null) {
+                    m_ProgressListener.onProgress("mesh", (double) block / numBlocks);
+                }
+            }
+            if (!grid.isBlockAllocated(block)) continue;
+
+            int[] origin = grid.getBlockOrigin(block);
+            int endX = Math.min(origin[0] + leafDim, nodesX - 1);
+            int endY = Math.min(origin[1] + leafDim, nodesY - 1);
+            int endZ = Math.min(origin[2] + leafDim, nodesZ - 1);
+
+            for (int i = origin[0]; i < endX; i++) {
+                for (int j = origin[1]; j < endY; j++) {
+                    for (int k = origin[2]; k < endZ; k++) {
+                        // a cube on the last node of the block reaches into the next one
+                        boolean lastNode = i == origin[0] + leafDim - 1 || j == origin[1] + leafDim - 1
+                                || k == origin[2] + leafDim - 1;
+                        if (lastNode && !cornersSampled(grid, i, j, k, cornerOffsets)) continue;
+                        for (int c = 0; c < 8; c++) {
+                            int ni = i + cornerOffsets[c * 3];
+                            int nj = j + cornerOffsets[c * 3 + 1];
+                            int nk = k + cornerOffsets[c * 3 + 2];
+                            setCorner(cornerCoords, cornerVal, c, grid.getNodeCoord(0, ni), grid.getNodeCoord(1, nj),
+                                    grid.getNodeCoord(2, nk), grid.getNodeValue(ni, nj, nk));
+                        }
+
+                        int cubeIndex = computeEdgeVertices(cornerCoords, cornerVal, m_dIsoLevel, vertList);
+                        if (MarchingCubeTable.m_EdgeTable[cubeIndex] == 0) continue;
+
+                        for (int ii = 0; MarchingCubeTable.m_TriTable[cubeIndex][ii] != -1; ii += 3) {
+                            pushBackVertAndNormals(grid, vertList[MarchingCubeTable.m_TriTable[cubeIndex][ii]]);
+                            pushBackVertAndNormals(grid, vertList[MarchingCubeTable.m_TriTable[cubeIndex][ii+1]]);
+                            pushBackVertAndNormals(grid, vertList[MarchingCubeTable.m_TriTable[cubeIndex][ii+2]]);
+                        }
+                    }
+                }
+            }
+        }
+        if (m_ProgressListener != null) {
+            m_ProgressListener.onProgress("mesh", 1.0);
+        }
         System.out.println("MC Done. Vertices: " + m_MeshVertices.size());
         System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
     }
 
+    /**
+     * @return true if no corner of the cube at base node (i, j, k) falls back to a tile value
+     */
+    private static boolean cornersSampled(SparseFieldGrid grid, int i, int j, int k, int[] cornerOffsets) {
+        for (int c = 0; c < 8; c++) {
+            if (!grid.isNodeSampled(i + cornerOffsets[c * 3], j + cornerOffsets[c * 3 + 1], k + cornerOffsets[c * 3 + 2])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #generateMesh(int, int, int)}, but keeps the sampled grid and the triangles of
+     * every block of BLOCK_CELLS^3 cubes, so that {@link #updateField} can re-mesh only the
+     * blocks a change of the field reaches. The vertex and normal buffers hold the blocks one
+     * after the other.
+     */
+    public void generateMeshIncremental(int cubeNumX, int cubeNumY, int cubeNumZ) {
+        if (cubeNumX < 1 || cubeNumY < 1 || cubeNumZ < 1) {
+            throw new IllegalArgumentException("Cube counts must be positive.");
+        }
+        m_lProjectionSteps = 0;
+        m_lProjectionRejected = 0;
+        m_iGridCells = new int[] {cubeNumX, cubeNumY, cubeNumZ};
+        m_dGridMin = new double[3];
+        m_dGridStep = new double[3];
+        m_iBlocks = new int[3];
+        for (int a = 0; a < 3; a++) {
+            m_dGridMin[a] = boundMin(a);
+            m_dGridStep[a] = (boundMax(a) - boundMin(a)) / m_iGridCells[a];
+            m_iBlocks[a] = (m_iGridCells[a] + BLOCK_CELLS - 1) / BLOCK_CELLS;
+        }
+        m_dCellSize = Math.max(m_dGridStep[0], Math.max(m_dGridStep[1], m_dGridStep[2]));
+        m_dGridValues = new double[(cubeNumX + 1) * (cubeNumY + 1) * (cubeNumZ + 1)];
+        int numBlocks = m_iBlocks[0] * m_iBlocks[1] * m_iBlocks[2];
+        m_dBlockVertices = new double[numBlocks][];
+        m_dBlockNormals = new double[numBlocks][];
+        m_iBlockStart = new int[numBlocks + 1];
+        m_dBlockMinValue = new double[numBlocks];
+        m_dBlockStaleness = new double[numBlocks];
+
+        System.out.println("MC (incremental): Grid " + cubeNumX + "x" + cubeNumY + "x" + cubeNumZ + ", "
+                + numBlocks + " blocks generating...");
+        long start = System.currentTimeMillis();
+
+        boolean[] all = new boolean[numBlocks];
+        Arrays.fill(all, true);
+        boolean built = false;
+        try {
+            sampleBlocks(all);
+            polygonizeBlocks(all, m_dBlockVertices, m_dBlockNormals, m_dBlockMinValue);
+            built = true;
+        } finally {
+            if (!built) {
+                // cancelled: the previous mesh stays, updateField needs a new incremental mesh
+                m_dGridValues = null;
+            }
+        }
+
+        m_MeshVertices.clear();
+        m_MeshNormals.clear();
+        patchBuffers(all);
+        m_iLastDirtyBlocks = numBlocks;
+        m_iLastRemeshedBlocks = numBlocks;
+        System.out.println("MC (incremental) Done. Vertices: " + m_MeshVertices.size());
+        System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Switch to a changed field and re-mesh only where it moved the surface.
+     *
+     * The change of the field is sampled at the corners and the centre of every block, for
+     * two RBFFields through RBFField.Delta at the cost of one field evaluation per sample.
+     * A block is re-sampled when it contains a centre of only one of two RBFFields, i.e. an
+     * edited constraint that moved further than the tolerance, or when the change exceeds
+     * the tolerance and the block either has triangles or holds a node whose sign may have
+     * flipped. The phi(r) = r kernel has global support, so an edit moves the field a
+     * little everywhere; the tolerance decides how much of that is followed. Blocks next to
+     * a re-sampled one are re-polygonized from the stored grid too, so the mesh stays closed
+     * across block faces. The vertex and normal buffers are patched in place from the first
+     * block whose vertex count changed. A cancelled update changes nothing: the mesh, the
+     * stored grid and the field stay those of the previous call.
+     * @return number of re-sampled blocks
+     * @throws IllegalStateException if generateMeshIncremental was not called
+     */
+    public int updateField(ScalarField field) {
+        if (m_dGridValues == null) {
+            throw new IllegalStateException("No incremental mesh, call generateMeshIncremental first.");
+        }
+        long start = System.currentTimeMillis();
+        ScalarField previous = m_Field;
+        m_lProjectionSteps = 0;
+        m_lProjectionRejected = 0;
+
+        int numBlocks = m_dBlockVertices.length;
+        double tolerance = m_dIncrementalTolerance * m_dCellSize;
+        double[] change = new double[numBlocks];
+        boolean[] edited = new boolean[numBlocks];
+        if (previous != field) {
+            ScalarField delta;
+            if (previous instanceof RBFField && field instanceof RBFField) {
+                RBFField.Delta rbfDelta = new RBFField.Delta((RBFField) field, (RBFField) previous);
+                delta = rbfDelta::evaluate;
+                // the change peaks around edited constraints, between the samples; centres that
+                // only drifted by less than the tolerance are left to the sampled change
+                double[] moved = rbfDelta.getMovedCenters(tolerance);
+                for (int m = 0; m < moved.length; m += 3) {
+                    int b = blockAt(moved[m], moved[m + 1], moved[m + 2]);
+                    if (b >= 0) edited[b] = true;
+                }
+            } else {
+                delta = (x, y, z) -> field.evaluate(x, y, z) - previous.evaluate(x, y, z);
+            }
+            sampleChange(delta, change);
+        }
+
+        boolean[] dirty = new boolean[numBlocks];
+        double[] staleness = new double[numBlocks];
+        int dirtyCount = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            // stored values differ about this much from the new field
+            double stale = m_dBlockStaleness[b] + change[b];
+            boolean signsKept = m_dBlockMinValue[b] > stale;
+            if (edited[b] || (stale > tolerance && (m_dBlockVertices[b].length > 0 || !signsKept))) {
+                dirty[b] = true;
+                dirtyCount++;
+            } else {
+                staleness[b] = stale;
+            }
+        }
+
+        // re-sampled blocks and their neighbours share nodes whose values changed
+        boolean[] remesh = dirty.clone();
+        int remeshCount = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            if (!dirty[b]) continue;
+            int bi = b / (m_iBlocks[1] * m_iBlocks[2]), bj = (b / m_iBlocks[2]) % m_iBlocks[1], bk = b % m_iBlocks[2];
+            for (int di = -1; di <= 1; di++) {
+                for (int dj = -1; dj <= 1; dj++) {
+                    for (int dk = -1; dk <= 1; dk++) {
+                        int ni = bi + di, nj = bj + dj, nk = bk + dk;
+                        if (ni < 0 || nj < 0 || nk < 0 || ni >= m_iBlocks[0] || nj >= m_iBlocks[1] || nk >= m_iBlocks[2]) continue;
+                        remesh[(ni * m_iBlocks[1] + nj) * m_iBlocks[2] + nk] = true;
+                    }
+                }
+            }
+        }
+        for (boolean r : remesh) if (r) remeshCount++;
+
+        // nothing is kept until the loops ran to the end: the nodes about to be re-sampled are
+        // saved, and the blocks are polygonized into scratch arrays
+        double[][] savedValues = new double[numBlocks][];
+        for (int b = 0; b < numBlocks; b++) {
+            if (dirty[b]) savedValues[b] = copyBlockValues(b);
+        }
+        double[][] vertices = new double[numBlocks][];
+        double[][] normals = new double[numBlocks][];
+        double[] minValues = new double[numBlocks];
+        boolean applied = false;
+        m_Field = field;
+        try {
+            sampleBlocks(dirty);
+            polygonizeBlocks(remesh, vertices, normals, minValues);
+            applied = true;
+        } finally {
+            if (!applied) {
+                for (int b = 0; b < numBlocks; b++) {
+                    if (savedValues[b] != null) restoreBlockValues(b, savedValues[b]);
+                }
+                m_Field = previous;
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            m_dBlockStaleness[b] = staleness[b];
+            if (!remesh[b]) continue;
+            m_dBlockVertices[b] = vertices[b];
+            m_dBlockNormals[b] = normals[b];
+            m_dBlockMinValue[b] = minValues[b];
+        }
+        patchBuffers(remesh);
+        m_iLastDirtyBlocks = dirtyCount;
+        m_iLastRemeshedBlocks = remeshCount;
+        System.out.println("MC (incremental): " + dirtyCount + " of " + numBlocks + " blocks re-sampled, "
+                + remeshCount + " re-meshed in " + (System.currentTimeMillis() - start) + "ms");
+        return dirtyCount;
+    }
+
+    /**
+     * @return blocks re-sampled by the last generateMeshIncremental or updateField call
+     */
+    public int getLastDirtyBlocks() {
+        return m_iLastDirtyBlocks;
+    }
+
+    /**
+     * @return blocks polygonized by the last generateMeshIncremental or updateField call
+     */
+    public int getLastRemeshedBlocks() {
+        return m_iLastRemeshedBlocks;
+    }
+
+    /**
+     * @param cells largest change of the field, in cell sizes, that may leave a block's
+     *              triangles in place (default 0.1). RBF fields are close to the signed
+     *              distance near the surface, so this is about how far the kept surface may lag.
+     */
+    public void setIncrementalTolerance(double cells) {
+        if (!(cells >= 0.0)) {
+            throw new IllegalArgumentException("Tolerance must not be negative: " + cells);
+        }
+        m_dIncrementalTolerance = cells;
+    }
+
+    /**
+     * Largest |delta| over the 8 corners and the centre of every block.
+     */
+    private void sampleChange(ScalarField delta, double[] change) {
+        int[] nb = m_iBlocks;
+        // corners of all blocks form a lattice of (blocks + 1)^3 nodes
+        double[] corners = new double[(nb[0] + 1) * (nb[1] + 1) * (nb[2] + 1)];
+        IntStream.range(0, corners.length).parallel().forEach(q -> {
+            int i = q / ((nb[1] + 1) * (nb[2] + 1)), j = (q / (nb[2] + 1)) % (nb[1] + 1), k = q % (nb[2] + 1);
+            corners[q] = Math.abs(delta.evaluate(latticeCoord(0, i), latticeCoord(1, j), latticeCoord(2, k)));
+        });
+        IntStream.range(0, change.length).parallel().forEach(b -> {
+            int bi = b / (nb[1] * nb[2]), bj = (b / nb[2]) % nb[1], bk = b % nb[2];
+            double max = Math.abs(delta.evaluate(0.5 * (latticeCoord(0, bi) + latticeCoord(0, bi + 1)),
+                    0.5 * (latticeCoord(1, bj) + latticeCoord(1, bj + 1)), 0.5 * (latticeCoord(2, bk) + latticeCoord(2, bk + 1))));
+            for (int c = 0; c < 8; c++) {
+                int q = ((bi + (c & 1)) * (nb[1] + 1) + bj + ((c >> 1) & 1)) * (nb[2] + 1) + bk + ((c >> 2) & 1);
+                max = Math.max(max, corners[q]);
+            }
+            change[b] = max;
+        });
+    }
+
+    /**
+     * @return coordinate of the n-th block boundary along an axis
+     */
+    private double latticeCoord(int axis, int n) {
+        return m_dGridMin[axis] + Math.min(n * BLOCK_CELLS, m_iGridCells[axis]) * m_dGridStep[axis];
+    }
+
+    /**
+     * Evaluate the field on the nodes of the flagged blocks, blocks in parallel. A node shared
+     * with other blocks is sampled by the block that has it as its lower corner, or by every
+     * flagged block containing it if that one is not flagged.
+     */
+    private void sampleBlocks(boolean[] blocks) {
+        int[] cells = m_iGridCells;
+        IntStream.range(0, blocks.length).filter(b -> blocks[b]).parallel().forEach(b -> {
+            int[] lo = new int[3];
+            int[] hi = new int[3];
+            blockRange(b, lo, hi);
+            for (int i = lo[0]; i <= hi[0]; i++) {
+                for (int j = lo[1]; j <= hi[1]; j++) {
+                    for (int k = lo[2]; k <= hi[2]; k++) {
+                        int owner = blockOf(i, j, k);
+                        if (owner != b && blocks[owner]) continue;
+                        m_dGridValues[(i * (cells[1] + 1) + j) * (cells[2] + 1) + k] = m_Field.evaluate(
+                                m_dGridMin[0] + i * m_dGridStep[0], m_dGridMin[1] + j * m_dGridStep[1],
+                                m_dGridMin[2] + k * m_dGridStep[2]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stored grid values of the nodes of a block, see blockRange.
+     */
+    private double[] copyBlockValues(int b) {
+        int[] lo = new int[3];
+        int[] hi = new int[3];
+        blockRange(b, lo, hi);
+        double[] values = new double[(hi[0] - lo[0] + 1) * (hi[1] - lo[1] + 1) * (hi[2] - lo[2] + 1)];
+        int n = 0;
+        for (int i = lo[0]; i <= hi[0]; i++) {
+            for (int j = lo[1]; j <= hi[1]; j++) {
+                for (int k = lo[2]; k <= hi[2]; k++) {
+                    values[n++] = m_dGridValues[(i * (m_iGridCells[1] + 1) + j) * (m_iGridCells[2] + 1) + k];
+                }
+            }
+        }
+        return values;
+    }
+
+    private void restoreBlockValues(int b, double[] values) {
+        int[] lo = new int[3];
+        int[] hi = new int[3];
+        blockRange(b, lo, hi);
+        int n = 0;
+        for (int i = lo[0]; i <= hi[0]; i++) {
+            for (int j = lo[1]; j <= hi[1]; j++) {
+                for (int k = lo[2]; k <= hi[2]; k++) {
+                    m_dGridValues[(i * (m_iGridCells[1] + 1) + j) * (m_iGridCells[2] + 1) + k] = values[n++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Run Marching Cubes over the flagged blocks from the stored grid values. The results go
+     * to the given arrays, indexed by block; the stored block triangles are only read, for
+     * normals that can be reused.
+     */
+    private void polygonizeBlocks(boolean[] blocks, double[][] blockVertices, double[][] blockNormals,
+                                  double[] blockMinValues) {
+        int[] cells = m_iGridCells;
+        double[] cornerVal = new double[8];
+        double[][] cornerCoords = new double[8][3];
+        double[][] vertList = new double[12][3];
+        double[] projected = new double[3];
+        int[] cornerOffsets = {0,0,0, 1,0,0, 1,0,1, 0,0,1, 0,1,0, 1,1,0, 1,1,1, 0,1,1};
+        int[] lo = new int[3];
+        int[] hi = new int[3];
+        DoubleArrayList vertices = new DoubleArrayList();
+        DoubleArrayList normals = new DoubleArrayList();
+
+        for (int b = 0; b < blocks.length; b++) {
+            if (!blocks[b]) continue;
+            ReconstructionJob.checkCancelled();
+            blockRange(b, lo, hi);
+            vertices.clear();
+            normals.clear();
+            // cubes whose nodes kept their values give the same vertices, reuse their normals
+            double[] oldVertices = m_dBlockVertices[b];
+            double[] oldNormals = m_dBlockNormals[b];
+            Long2IntOpenHashMap previous = new Long2IntOpenHashMap();
+            previous.defaultReturnValue(-1);
+            if (oldVertices != null && m_iProjectionIterations == 0) {
+                for (int v = 0; v < oldVertices.length; v += 3) {
+                    previous.putIfAbsent(positionKey(oldVertices[v], oldVertices[v + 1], oldVertices[v + 2]), v);
+                }
+            }
+            double minValue = Double.POSITIVE_INFINITY;
+            for (int i = lo[0]; i < hi[0]; i++) {
+                for (int j = lo[1]; j < hi[1]; j++) {
+                    for (int k = lo[2]; k < hi[2]; k++) {
+                        for (int c = 0; c < 8; c++) {
+                            int ni = i + cornerOffsets[c * 3];
+                            int nj = j + cornerOffsets[c * 3 + 1];
+                            int nk = k + cornerOffsets[c * 3 + 2];
+                            double value = m_dGridValues[(ni * (cells[1] + 1) + nj) * (cells[2] + 1) + nk];
+                            minValue = Math.min(minValue, Math.abs(value - m_dIsoLevel));
+                            setCorner(cornerCoords, cornerVal, c, m_dGridMin[0] + ni * m_dGridStep[0],
+                                    m_dGridMin[1] + nj * m_dGridStep[1], m_dGridMin[2] + nk * m_dGridStep[2], value);
+                        }
+
+                        int cubeIndex = computeEdgeVertices(cornerCoords, cornerVal, m_dIsoLevel, vertList);
+                        if (MarchingCubeTable.m_EdgeTable[cubeIndex] == 0) continue;
+
+                        for (int ii = 0; MarchingCubeTable.m_TriTable[cubeIndex][ii] != -1; ii++) {
+                            double[] coords = vertList[MarchingCubeTable.m_TriTable[cubeIndex][ii]];
+                            int reuse = previous.get(positionKey(coords[0], coords[1], coords[2]));
+                            if (reuse >= 0 && oldVertices[reuse] == coords[0] && oldVertices[reuse + 1] == coords[1]
+                                    && oldVertices[reuse + 2] == coords[2]) {
+                                vertices.add(coords[0]); vertices.add(coords[1]); vertices.add(coords[2]);
+                                normals.add(oldNormals[reuse]); normals.add(oldNormals[reuse + 1]); normals.add(oldNormals[reuse + 2]);
+                                continue;
+                            }
+                            double[] normal = m_iProjectionIterations > 0
+                                    ? projectVertex(coords, projected) : getGradient(coords[0], coords[1], coords[2]);
+                            if (m_iProjectionIterations > 0) {
+                                coords = projected;
+                            }
+                            vertices.add(coords[0]); vertices.add(coords[1]); vertices.add(coords[2]);
+                            normals.add(normal[0]); normals.add(normal[1]); normals.add(normal[2]);
+                        }
+                    }
+                }
+            }
+            blockVertices[b] = vertices.toDoubleArray();
+            blockNormals[b] = normals.toDoubleArray();
+            blockMinValues[b] = minValue;
+        }
+    }
+
+    /**
+     * Write the flagged blocks into the vertex and normal buffers: in place while the vertex
+     * counts are unchanged, from the first changed block on every block moves.
+     */
+    private void patchBuffers(boolean[] blocks) {
+        int numBlocks = blocks.length;
+        int first = numBlocks;
+        for (int b = 0; b < numBlocks; b++) {
+            if (m_dBlockVertices[b].length / 3 != m_iBlockStart[b + 1] - m_iBlockStart[b]) {
+                first = b;
+                break;
+            }
+        }
+        for (int b = first; b < numBlocks; b++) {
+            m_iBlockStart[b + 1] = m_iBlockStart[b] + m_dBlockVertices[b].length / 3;
+        }
+        m_MeshVertices.resize(m_iBlockStart[numBlocks]);
+        m_MeshNormals.resize(m_iBlockStart[numBlocks]);
+        for (int b = 0; b < numBlocks; b++) {
+            if (!blocks[b] && b < first) continue;
+            double[] v = m_dBlockVertices[b];
+            double[] n = m_dBlockNormals[b];
+            int base = m_iBlockStart[b];
+            for (int p = 0; p < v.length / 3; p++) {
+                for (int c = 0; c < 3; c++) {
+                    m_MeshVertices.set(base + p, c, v[p * 3 + c]);
+                    m_MeshNormals.set(base + p, c, n[p * 3 + c]);
+                }
+            }
+        }
+    }
+
+    private static long positionKey(double x, double y, double z) {
+        long h = Double.doubleToLongBits(x);
+        h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(y);
+        return h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(z);
+    }
+
+    /**
+     * Node index range of a block, the upper end is included.
+     */
+    private void blockRange(int b, int[] lo, int[] hi) {
+        int[] bidx = {b / (m_iBlocks[1] * m_iBlocks[2]), (b / m_iBlocks[2]) % m_iBlocks[1], b % m_iBlocks[2]};
+        for (int a = 0; a < 3; a++) {
+            lo[a] = bidx[a] * BLOCK_CELLS;
+            hi[a] = Math.min(lo[a] + BLOCK_CELLS, m_iGridCells[a]);
+        }
+    }
+
+    /**
+     * @return the block containing a point, -1 outside the grid
+     */
+    private int blockAt(double x, double y, double z) {
+        double[] p = {x, y, z};
+        int[] n = new int[3];
+        for (int a = 0; a < 3; a++) {
+            double u = (p[a] - m_dGridMin[a]) / m_dGridStep[a];
+            if (!(u >= 0.0 && u <= m_iGridCells[a])) return -1;
+            n[a] = (int) u;
+        }
+        return blockOf(n[0], n[1], n[2]);
+    }
+
+    /**
+     * @return the block having node (i, j, k) as its lower corner, the last block for the upper grid end
+     */
+    private int blockOf(int i, int j, int k) {
+        int bi = Math.min(i / BLOCK_CELLS, m_iBlocks[0] - 1);
+        int bj = Math.min(j / BLOCK_CELLS, m_iBlocks[1] - 1);
+        int bk = Math.min(k / BLOCK_CELLS, m_iBlocks[2] - 1);
+        return (bi * m_iBlocks[1] + bj) * m_iBlocks[2] + bk;
+    }
+
+    /**
+     * Streaming variant of {@link #generateMesh(int, int, int)} for grids whose mesh does not fit in memory.
+     * The grid is swept slab by slab along Z, keeping only the field values of two adjacent Z-planes.
+     * Triangles are collected into a fixed size batch and handed to the sink whenever it is full,
+     * so memory use is independent of the mesh size. The internal mesh buffers are left untouched.
+     * @param cubeNumX Number of cubes along X axis
+     * @param cubeNumY Number of cubes along Y axis
+     * @param cubeNumZ Number of cubes along Z axis
+     * @param sink receiver of finished triangle batches
+     * @param batchTriangles maximum number of triangles buffered before flushing to the sink
+     * @return total number of triangles emitted
+     */
+    public long generateMeshStreaming(int cubeNumX, int cubeNumY, int cubeNumZ,
+                                      TriangleSink sink, int batchTriangles) throws IOException {
+        if (batchTriangles <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+
+        double minX = boundMin(0), maxX = boundMax(0);
+        double minY = boundMin(1), maxY = boundMax(1);
+        double minZ = boundMin(2), maxZ = boundMax(2);
+
+        double stepX = (maxX - minX) / cubeNumX;
+        double stepY = (maxY - minY) / cubeNumY;
+        double stepZ = (maxZ - minZ) / cubeNumZ;
+        m_dCellSize = Math.max(stepX, Math.max(stepY, stepZ));
+        m_lProjectionSteps = 0;
+        m_lProjectionRejected = 0;
+
+        System.out.println("MC (streaming): Grid " + cubeNumX + "x" + cubeNumY + "x" + cubeNumZ + " generating...");
+        long start = System.currentTimeMillis();
+
+        // field values of the lower and upper Z-plane of the current slab, indexed [j*(cubeNumX+1) + i]
+        int rowLength = cubeNumX + 1;
+        double[] lowerPlane = new double[planeNodes(cubeNumX, cubeNumY)];
+        double[] upperPlane = new double[lowerPlane.length];
+        samplePlane(lowerPlane, cubeNumX, cubeNumY, minX, minY, minZ, stepX, stepY);
+
+        // bounded triangle batch, reused for every flush
+        float[] batchVertices = new float[batchTriangles * 9];
+        float[] batchNormals = new float[batchTriangles * 9];
+        int batchCount = 0;
+        long totalTriangles = 0;
+
+        double[] cornerVal = new double[8];
+        double[][] cornerCoords = new double[8][3];
+        double[][] vertList = new double[12][3];
+        double[] projected = new double[3];
+
+        for (int k = 0; k < cubeNumZ; k++) {
+            ReconstructionJob.checkCancelled();
+            if (m_ProgressListener != null) {
+                m_ProgressListener.onProgress("mesh", (double) k / cubeNumZ);
+            }
+            double posZ = minZ + k * stepZ;
+            samplePlane(upperPlane, cubeNumX, cubeNumY, minX, minY, posZ + stepZ, stepX, stepY);
+
+            for (int j = 0; j < cubeNumY; j++) {
+                double posY = minY + j * stepY;
+                for (int i = 0; i < cubeNumX; i++) {
+                    double posX = minX + i * stepX;
+                    int idx = j * rowLength + i;
+
+                    // same corner numbering as generateMesh, values come from the cached planes
+                    setCorner(cornerCoords, cornerVal, 0, posX, posY, posZ, lowerPlane[idx]);
+                    setCorner(cornerCoords, cornerVal, 1, posX + stepX, posY, posZ, lowerPlane[idx + 1]);
+                    setCorner(cornerCoords, cornerVal, 2, posX + stepX, posY, posZ + stepZ, upperPlane[idx + 1]);
+                    setCorner(cornerCoords, cornerVal, 3, posX, posY, posZ + stepZ, upperPlane[idx]);
+                    setCorner(cornerCoords, cornerVal, 4, posX, posY + stepY, posZ, lowerPlane[idx + rowLength]);
+                    setCorner(cornerCoords, cornerVal, 5, posX + stepX, posY + stepY, posZ, lowerPlane[idx + rowLength + 1]);
+                    setCorner(cornerCoords, cornerVal, 6, posX + stepX, posY + stepY, posZ + stepZ, upperPlane[idx + rowLength + 1]);
+                    setCorner(cornerCoords, cornerVal, 7, posX, posY + stepY, posZ + stepZ, upperPlane[idx + rowLength]);
+
+                    int cubeIndex = computeEdgeVertices(cornerCoords, cornerVal, m_dIsoLevel, vertList);
+                    if (MarchingCubeTable.m_EdgeTable[cubeIndex] == 0) continue;
+
+                    for (int ii = 0; MarchingCubeTable.m_TriTable[cubeIndex][ii] != -1; ii += 3) {
+                        for (int v = 0; v < 3; v++) {
+                            double[] coords = vertList[MarchingCubeTable.m_TriTable[cubeIndex][ii + v]];
+                            double[] normal = m_iProjectionIterations > 0
+                                    ? projectVertex(coords, projected) : getGradient(coords[0], coords[1], coords[2]);
+                            if (m_iProjectionIterations > 0) {
+                                coords = projected;
+                            }
+                            int offset = batchCount * 9 + v * 3;
+                            batchVertices[offset] = (float) coords[0];
+                            batchVertices[offset + 1] = (float) coords[1];
+                            batchVertices[offset + 2] = (float) coords[2];
+                            batchNormals[offset] = (float) normal[0];
+                            batchNormals[offset + 1] = (float) normal[1];
+                            batchNormals[offset + 2] = (float) normal[2];
+                        }
+                        batchCount++;
+
+                        if (batchCount == batchTriangles) {
+                            sink.accept(batchVertices, batchNormals, batchCount);
+                            totalTriangles += batchCount;
+                            batchCount = 0;
+                        }
+                    }
+                }
+            }
+
+            // the upper plane becomes the lower plane of the next slab
+            double[] tmp = lowerPlane;
+            lowerPlane = upperPlane;
+            upperPlane = tmp;
+        }
+
+        if (batchCount > 0) {
+            sink.accept(batchVertices, batchNormals, batchCount);
+            totalTriangles += batchCount;
+        }
+        if (m_ProgressListener != null) {
+            m_ProgressListener.onProgress("mesh", 1.0);
+        }
+
+        System.out.println("MC (streaming) Done. Triangles: " + totalTriangles);
+        if (m_iProjectionIterations > 0) {
+            System.out.println("Projected vertices: " + m_lProjectionSteps + " Newton steps, "
+                    + m_lProjectionRejected + " kept at the interpolated position");
+        }
+        System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
+        return totalTriangles;
+    }
+
+    /**
+     * Evaluate the field on one Z-plane of grid nodes, rows in parallel.
+     */
+    private void samplePlane(double[] plane, int cubeNumX, int cubeNumY,
+                             double minX, double minY, double posZ, double stepX, double stepY) {
+        int rowLength = cubeNumX + 1;
+        IntStream.rangeClosed(0, cubeNumY).parallel().forEach(j -> {
+            double posY = minY + j * stepY;
+            for (int i = 0; i <= cubeNumX; i++) {
+                plane[j * rowLength + i] = m_Field.evaluate(minX + i * stepX, posY, posZ);
+            }
+        });
+    }
+
+    private void setCorner(double[][] inOutCornerCoords, double[] inOutCornerVal, int idx,
+                           double coordX, double coordY, double coordZ, double val) {
+        inOutCornerCoords[idx][0] = coordX; inOutCornerCoords[idx][1] = coordY; inOutCornerCoords[idx][2] = coordZ;
+        inOutCornerVal[idx] = val;
+    }
+
+    /**
+     * Classify the cube corners and interpolate the surface crossing on every intersected edge.
+     * @param cornerCoords coordinates of the 8 corners
+     * @param cornerVal field values at the 8 corners
+     * @param isoLevel field value of the surface
+     * @param vertList output intersection points, indexed by edge
+     * @return 8 bit cube index for the lookup tables
+     */
+    private int computeEdgeVertices(double[][] cornerCoords, double[] cornerVal, double isoLevel, double[][] vertList) {
+        // 8 bit index where each bit corresponds to a vertex.
+        int cubeIndex = 0;
+        if (cornerVal[0] < isoLevel) cubeIndex |= 1;
+        if (cornerVal[1] < isoLevel) cubeIndex |= 2;
+        if (cornerVal[2] < isoLevel) cubeIndex |= 4;
+        if (cornerVal[3] < isoLevel) cubeIndex |= 8;
+        if (cornerVal[4] < isoLevel) cubeIndex |= 16;
+        if (cornerVal[5] < isoLevel) cubeIndex |= 32;
+        if (cornerVal[6] < isoLevel) cubeIndex |= 64;
+        if (cornerVal[7] < isoLevel) cubeIndex |= 128;
+
+        // Searching Edge Table
+        int edgeFlags = MarchingCubeTable.m_EdgeTable[cubeIndex];
+        if (edgeFlags == 0) return cubeIndex;
+
+        // find the intersection edges and compute intersection points on the edges
+        if ((edgeFlags & 1) != 0)
+            vertInterp(cornerCoords[0], cornerCoords[1], cornerVal[0], cornerVal[1], isoLevel, vertList[0]);
+        if ((edgeFlags & 2) != 0)
+            vertInterp(cornerCoords[1], cornerCoords[2], cornerVal[1], cornerVal[2], isoLevel, vertList[1]);
+        if ((edgeFlags & 4) != 0)
+            vertInterp(cornerCoords[2], cornerCoords[3], cornerVal[2], cornerVal[3], isoLevel, vertList[2]);
+        if ((edgeFlags & 8) != 0)
+            vertInterp(cornerCoords[3], cornerCoords[0], cornerVal[3], cornerVal[0], isoLevel, vertList[3]);
+        if ((edgeFlags & 16) != 0)
+            vertInterp(cornerCoords[4], cornerCoords[5], cornerVal[4], cornerVal[5], isoLevel, vertList[4]);
+        if ((edgeFlags & 32) != 0)
+            vertInterp(cornerCoords[5], cornerCoords[6], cornerVal[5], cornerVal[6], isoLevel, vertList[5]);
+        if ((edgeFlags & 64) != 0)
+            vertInterp(cornerCoords[6], cornerCoords[7], cornerVal[6], cornerVal[7], isoLevel, vertList[6]);
+        if ((edgeFlags & 128) != 0)
+            vertInterp(cornerCoords[7], cornerCoords[4], cornerVal[7], cornerVal[4], isoLevel, vertList[7]);
+        if ((edgeFlags & 256) != 0)
+            vertInterp(cornerCoords[0], cornerCoords[4], cornerVal[0], cornerVal[4], isoLevel, vertList[8]);
+        if ((edgeFlags & 512) != 0)
+            vertInterp(cornerCoords[1], cornerCoords[5], cornerVal[1], cornerVal[5], isoLevel, vertList[9]);
+        if ((edgeFlags & 1024) != 0)
+            vertInterp(cornerCoords[2], cornerCoords[6], cornerVal[2], cornerVal[6], isoLevel, vertList[10]);
+        if ((edgeFlags & 2048) != 0)
+            vertInterp(cornerCoords[3], cornerCoords[7], cornerVal[3], cornerVal[7], isoLevel, vertList[11]);
+
+        return cubeIndex;
+    }
+
     /**
      * Fill in the corner coordinates and RBF values at the corners of the cube
      */
     private void fillCorner(double[][] inOutCornerCoords, double[] inOutCornerVal, int idx, double coordX, double coordY, double coordZ) {
         inOutCornerCoords[idx][0] = coordX; inOutCornerCoords[idx][1] = coordY; inOutCornerCoords[idx][2] = coordZ;
-        inOutCornerVal[idx] = m_RBF.evaluate(coordX, coordY, coordZ);
+        inOutCornerVal[idx] = m_Field.evaluate(coordX, coordY, coordZ);
     }
 
     /**
@@ -149,28 +1135,35 @@ public class MarchingCubesGenerator {
      * @param coordsB coordinate of second edge point
      * @param valA RBF value at first edge point
      * @param valB RBF value at second edge point
+     * @param isoLevel field value of the surface
      * @param interpCoords output coordinate of the intersection point
+     * @return interpolation parameter, 0 at the first edge point and 1 at the second
      */
-    // isolevel = 0: point on RBF surface equal to 0
-    private void vertInterp(double[] coordsA, double[] coordsB, double valA, double valB, double[] interpCoords) {
+    private double vertInterp(double[] coordsA, double[] coordsB, double valA, double valB, double isoLevel,
+                              double[] interpCoords) {
         // avoid division by zero
         if (Math.abs(valA - valB) < 1e-6) {
             interpCoords[0] = coordsA[0]; interpCoords[1] = coordsA[1]; interpCoords[2] = coordsA[2];
-            return;
+            return 0.0;
         }
         
-        double mu = (0.0 - valA) / (valB - valA);
+        double mu = (isoLevel - valA) / (valB - valA);
         interpCoords[0] = coordsA[0] + mu * (coordsB[0] - coordsA[0]);
         interpCoords[1] = coordsA[1] + mu * (coordsB[1] - coordsA[1]);
         interpCoords[2] = coordsA[2] + mu * (coordsB[2] - coordsA[2]);
+        return mu;
     }
 
     private double[] getGradient(double x, double y, double z) {
+        return getGradient(m_Field, x, y, z);
+    }
+
+    private double[] getGradient(ScalarField field, double x, double y, double z) {
         double delta = 0.01;
         // partial derivatives
-        double dx = m_RBF.evaluate(x + delta, y, z) - m_RBF.evaluate(x - delta, y, z);
-        double dy = m_RBF.evaluate(x, y + delta, z) - m_RBF.evaluate(x, y - delta, z);
-        double dz = m_RBF.evaluate(x, y, z + delta) - m_RBF.evaluate(x, y, z - delta);
+        double dx = field.evaluate(x + delta, y, z) - field.evaluate(x - delta, y, z);
+        double dy = field.evaluate(x, y + delta, z) - field.evaluate(x, y - delta, z);
+        double dz = field.evaluate(x, y, z + delta) - field.evaluate(x, y, z - delta);
 
         double len = Math.sqrt(dx*dx + dy*dy + dz*dz);
         if (len < 1e-9) return new double[]{0, 1, 0};
@@ -178,16 +1171,130 @@ public class MarchingCubesGenerator {
     }
 
     private void pushBackVertAndNormals(double[] coords) {
+        if (m_iProjectionIterations > 0) {
+            double[] projected = new double[3];
+            double[] normal = projectVertex(coords, projected);
+            m_MeshVertices.pushBack(projected[0], projected[1], projected[2]);
+            m_MeshNormals.pushBack(normal[0], normal[1], normal[2]);
+            return;
+        }
+        pushBackVertAndNormals(m_Field, coords);
+    }
+
+    /**
+     * Newton iteration x <- x - (f(x) - iso) grad f / |grad f|^2 from an interpolated vertex.
+     * Steps are limited to half a cell, and a vertex that would leave its cell neighbourhood
+     * (another sheet of the surface, or a flat gradient) keeps the interpolated position.
+     * @param out receives the projected position
+     * @return unit normal at the result, same orientation as getGradient
+     */
+    private double[] projectVertex(double[] coords, double[] out) {
+        double[] grad = new double[3];
+        double x = coords[0], y = coords[1], z = coords[2];
+        double maxStep = 0.5 * m_dCellSize;
+        double f = m_Field.evaluateWithGradient(x, y, z, grad) - m_dIsoLevel;
+        for (int it = 0; it < m_iProjectionIterations; it++) {
+            double g2 = grad[0] * grad[0] + grad[1] * grad[1] + grad[2] * grad[2];
+            if (g2 < 1e-18) break;
+            // |f| / |grad f| estimates the distance to the surface
+            double dist = Math.abs(f) / Math.sqrt(g2);
+            if (dist <= PROJECTION_TOLERANCE * m_dCellSize) break;
+            double t = f / g2;
+            if (dist > maxStep) t *= maxStep / dist;
+            x -= t * grad[0];
+            y -= t * grad[1];
+            z -= t * grad[2];
+            f = m_Field.evaluateWithGradient(x, y, z, grad) - m_dIsoLevel;
+            m_lProjectionSteps++;
+        }
+
+        double mx = x - coords[0], my = y - coords[1], mz = z - coords[2];
+        double gl = Math.sqrt(grad[0] * grad[0] + grad[1] * grad[1] + grad[2] * grad[2]);
+        if (mx * mx + my * my + mz * mz > m_dCellSize * m_dCellSize || gl < 1e-9) {
+            m_lProjectionRejected++;
+            out[0] = coords[0]; out[1] = coords[1]; out[2] = coords[2];
+            return getGradient(coords[0], coords[1], coords[2]);
+        }
+        out[0] = x; out[1] = y; out[2] = z;
+        return new double[]{-grad[0] / gl, -grad[1] / gl, -grad[2] / gl};
+    }
+
+    private void pushBackVertAndNormals(ScalarField field, double[] coords) {
         m_MeshVertices.pushBack(coords[0], coords[1], coords[2]);
-        // compute normals using RBF gradients
-        double[] normalComponents = getGradient(coords[0], coords[1], coords[2]);
+        // compute normals using field gradients
+        double[] normalComponents = getGradient(field, coords[0], coords[1], coords[2]);
         m_MeshNormals.pushBack(normalComponents[0], normalComponents[1], normalComponents[2]);
     }
     
-    private RBFReconstructor m_RBF;
+    private ScalarField m_Field;
     
     private PointBuffer m_MeshVertices; 
 
     private PointBuffer m_MeshNormals;
 
+    private ProgressListener m_ProgressListener;
+
+    private double m_dIsoLevel = 0.0;
+
+    // cube grid ranges, normalized point clouds lie in [-1, 1]
+    private double m_dMinCoord = -1.1;
+
+    private double m_dMaxCoord = 1.1;
+
+    // per axis range set by setBounds(double[], double[]), null for the cube range
+    private double[] m_dBoxMin;
+
+    private double[] m_dBoxMax;
+
+    private int m_iProjectionIterations = 0;
+
+    // largest cube edge of the current grid, bounds the projection
+    private double m_dCellSize = 1.0;
+
+    // statistics of the last generate call
+    private long m_lProjectionSteps;
+
+    private long m_lProjectionRejected;
+
+    // projection stops below this distance estimate, relative to the cell size
+    private static final double PROJECTION_TOLERANCE = 1e-6;
+
+    // incremental mode, set by generateMeshIncremental: node values indexed (i * (ny + 1) + j) * (nz + 1) + k
+    private double[] m_dGridValues;
+
+    private int[] m_iGridCells;
+
+    private double[] m_dGridMin;
+
+    private double[] m_dGridStep;
+
+    // blocks per axis
+    private int[] m_iBlocks;
+
+    // triangle soup of every block, block index (bi * by + bj) * bz + bk
+    private double[][] m_dBlockVertices;
+
+    private double[][] m_dBlockNormals;
+
+    // first vertex of every block in the mesh buffers, plus the total
+    private int[] m_iBlockStart;
+
+    // smallest |value - iso| on the block's stored nodes
+    private double[] m_dBlockMinValue;
+
+    // bound of |stored - current field| on the block's nodes, summed over skipped updates
+    private double[] m_dBlockStaleness;
+
+    private double m_dIncrementalTolerance = 0.1;
+
+    private int m_iLastDirtyBlocks;
+
+    private int m_iLastRemeshedBlocks;
+
+    // cubes per block edge in incremental mode
+    static final int BLOCK_CELLS = 8;
+
+    // largest node count of one Z-plane, kept below the VM array limit
+    private static final int MAX_PLANE_NODES = Integer.MAX_VALUE - 8;
+
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package com.local;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Render-ready float buffers produced off the GL thread.
+ * The buffers are direct and flipped, so they can be passed to glBufferData as they are.
+ */
+public class MeshBuffers {
+
+    public MeshBuffers(FloatBuffer vertices, FloatBuffer normals, int vertexCount) {
+        this(vertices, normals, null, vertexCount);
+    }
+
+    /**
+     * @param indices triangle indices, or null for an unindexed triangle soup
+     */
+    public MeshBuffers(FloatBuffer vertices, FloatBuffer normals, IntBuffer indices, int vertexCount) {
+        m_Vertices = vertices;
+        m_Normals = normals;
+        m_Indices = indices;
+        m_iVertexCount = vertexCount;
+    }
+
+    /**
+     * Convert double precision point buffers into float buffers for upload.
+     * @param vertices vertex positions
+     * @param normals vertex normals, may be null (e.g. for point clouds)
+     */
+    public static MeshBuffers fromPointBuffers(PointBuffer vertices, PointBuffer normals) {
+        int vertexCount = vertices.size();
+
+        FloatBuffer vertBuffer = toFloatBuffer(vertices);
+        FloatBuffer normalsBuffer = null;
+        if (normals != null) {
+            normalsBuffer = toFloatBuffer(normals);
+        }
+        return new MeshBuffers(vertBuffer, normalsBuffer, vertexCount);
+    }
+
+    private static FloatBuffer toFloatBuffer(PointBuffer points) {
+        int count = points.size();
+        FloatBuffer buffer = BufferUtils.createFloatBuffer(count * 3);
+        for (int i = 0; i < count; i++) {
+            buffer.put((float) points.get(i, 0));
+            buffer.put((float) points.get(i, 1));
+            buffer.put((float) points.get(i, 2));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public FloatBuffer getVertices() {
+        return m_Vertices;
+    }
+
+    /**
+     * @return normals buffer, or null if the mesh carries no normals
+     */
+    public FloatBuffer getNormals() {
+        return m_Normals;
+    }
+
+    /**
+     * @return index buffer, or null if vertices are drawn as a plain triangle list
+     */
+    public IntBuffer getIndices() {
+        return m_Indices;
+    }
+
+    public int getVertexCount() {
+        return m_iVertexCount;
+    }
+
+    private final FloatBuffer m_Vertices;
+
+    private final FloatBuffer m_Normals;
+
+    private final IntBuffer m_Indices;
+
+    private final int m_iVertexCount;
+}
@@ -0,0 +1,179 @@
+package com.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent cache of generated meshes, stored next to the RBF weights in RBF_Cache.
+ *
+ * A cache file is keyed by everything the mesh depends on: the weight hash, the grid
+ * dimensions, the grid bounds and the iso-level. Files are written in native byte order
+ * and memory-mapped on load, so the mapped buffers can be handed to glBufferData directly.
+ */
+public class MeshCache {
+
+    /**
+     * Build the cache key of a Marching Cubes mesh.
+     */
+    public static String buildKey(long weightsHash, int cubeNumX, int cubeNumY, int cubeNumZ,
+                                  double minCoord, double maxCoord, double isoLevel) {
+        long hash = weightsHash;
+        hash = mix(hash, cubeNumX);
+        hash = mix(hash, cubeNumY);
+        hash = mix(hash, cubeNumZ);
+        hash = mix(hash, Double.doubleToLongBits(minCoord));
+        hash = mix(hash, Double.doubleToLongBits(maxCoord));
+        hash = mix(hash, Double.doubleToLongBits(isoLevel));
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * Build the cache key of a Marching Cubes mesh from the weights file it was solved into:
+     * its name (resource, down sampling step, smoothing), size and modification time. Unlike
+     * the weights hash this is known before the point cloud or the weights are read.
+     * @return the key, null if the weights file does not exist
+     */
+    public static String buildKey(Path weightsFile, int cubeNumX, int cubeNumY, int cubeNumZ,
+                                  double minCoord, double maxCoord, double isoLevel) {
+        long hash = 0xcbf29ce484222325L;
+        try {
+            hash = mix(hash, weightsFile.getFileName().toString().hashCode());
+            hash = mix(hash, Files.size(weightsFile));
+            hash = mix(hash, Files.getLastModifiedTime(weightsFile).toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+        return buildKey(hash, cubeNumX, cubeNumY, cubeNumZ, minCoord, maxCoord, isoLevel);
+    }
+
+    private static long mix(long hash, long value) {
+        for (int b = 0; b < 8; b++) {
+            hash ^= (value >>> (8 * b)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * get local cache file path of a mesh
+     */
+    public static Path getCacheFilePath(String resourceName, String key) {
+        return Paths.get("RBF_Cache", resourceName + "_" + key + ".rbfmesh");
+    }
+
+    /**
+     * Memory-map a cached mesh.
+     * @return the mapped mesh, or null if there is no valid cache file
+     */
+    public static MeshBuffers load(Path filePath) {
+        if (!Files.exists(filePath)) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.order(ByteOrder.nativeOrder());
+
+            // a file written on a machine with another byte order reads a swapped magic number
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                System.err.println("Mesh cache mismatch, regenerating: " + filePath);
+                return null;
+            }
+            int vertexCount = in.getInt();
+            int indexCount = in.getInt();
+            boolean hasNormals = in.getInt() != 0;
+
+            int offset = HEADER_SIZE;
+            FloatBuffer vertices = section(in, offset, 12 * vertexCount).asFloatBuffer();
+            offset += 12 * vertexCount;
+            FloatBuffer normals = null;
+            if (hasNormals) {
+                normals = section(in, offset, 12 * vertexCount).asFloatBuffer();
+                offset += 12 * vertexCount;
+            }
+            IntBuffer indices = null;
+            if (indexCount > 0) {
+                indices = section(in, offset, 4 * indexCount).asIntBuffer();
+            }
+
+            System.out.println("Mesh loaded from local cache: " + filePath.toAbsolutePath()
+                    + " (" + (System.currentTimeMillis() - start) + "ms)");
+            return new MeshBuffers(vertices, normals, indices, vertexCount);
+
+        } catch (IOException e) {
+            System.err.println("Error loading mesh cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save a mesh to the cache.
+     */
+    public static void save(Path filePath, MeshBuffers mesh) {
+        int vertexCount = mesh.getVertexCount();
+        boolean hasNormals = mesh.getNormals() != null;
+        int indexCount = mesh.getIndices() != null ? mesh.getIndices().remaining() : 0;
+
+        long fileSize = HEADER_SIZE + 12L * vertexCount * (hasNormals ? 2 : 1) + 4L * indexCount;
+
+        try {
+            if (filePath.getParent() != null && !Files.exists(filePath.getParent())) {
+                Files.createDirectories(filePath.getParent());
+            }
+
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                out.order(ByteOrder.nativeOrder());
+
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(vertexCount);
+                out.putInt(indexCount);
+                out.putInt(hasNormals ? 1 : 0);
+
+                // duplicates keep the positions of the caller's buffers untouched
+                out.asFloatBuffer().put(mesh.getVertices().duplicate());
+                out.position(out.position() + 12 * vertexCount);
+                if (hasNormals) {
+                    out.asFloatBuffer().put(mesh.getNormals().duplicate());
+                    out.position(out.position() + 12 * vertexCount);
+                }
+                if (indexCount > 0) {
+                    out.asIntBuffer().put(mesh.getIndices().duplicate());
+                }
+                out.force();
+            }
+            System.out.println("Mesh saved to local cache: " + filePath.toAbsolutePath());
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to save mesh cache file.");
+        }
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static final int MAGIC = 0x524d4331; // "RMC1"
+
+    // 2: meshes are stored indexed and in vertex cache order
+    private static final int VERSION = 2;
+
+    // magic, version, vertex count, index count, normals flag
+    private static final int HEADER_SIZE = 4 * 5;
+}
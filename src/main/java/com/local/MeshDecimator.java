@@ -0,0 +1,635 @@
+package com.local;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.lwjgl.BufferUtils;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Quadric error metric simplification (Garland and Heckbert) of Marching Cubes meshes.
+ *
+ * Collapses run in rounds so the expensive parts are parallel: every round evaluates all
+ * edges at once (optimal position, cost, link condition and normal flip test), then a
+ * greedy pass in order of cost picks collapses whose neighbourhoods do not overlap, and
+ * those are applied together. Rounds repeat until the target triangle count or the error
+ * bound is reached.
+ *
+ * The error of a vertex is the root mean square distance to the planes of the triangles
+ * merged into it, in the units of the mesh. With a field set, the final vertices are
+ * moved back onto its zero level by a Newton step along the gradient.
+ */
+public class MeshDecimator {
+
+    /**
+     * @param triangles stop once the mesh has at most this many triangles, 0 for no limit
+     */
+    public void setTargetTriangles(int triangles) {
+        m_iTargetTriangles = triangles;
+    }
+
+    /**
+     * @param maxError largest allowed collapse error, in mesh units
+     */
+    public void setMaxError(double maxError) {
+        m_dMaxError = maxError;
+    }
+
+    /**
+     * @param field field whose zero level the result is snapped to, null to keep the quadric positions
+     */
+    public void setField(ScalarField field) {
+        m_Field = field;
+    }
+
+    /**
+     * Simplify a mesh. A triangle soup is welded first (see MeshPostProcessor).
+     * @return indexed mesh with normals, in vertex cache order
+     */
+    public MeshBuffers decimate(MeshBuffers mesh) {
+        MeshBuffers indexed = MeshPostProcessor.optimize(mesh);
+        if (indexed.getIndices() == null || indexed.getNormals() == null) {
+            return indexed;
+        }
+        long start = System.currentTimeMillis();
+
+        int V = indexed.getVertexCount();
+        m_Pos = toDoubles(indexed.getVertices(), V * 3);
+        m_Nrm = toDoubles(indexed.getNormals(), V * 3);
+        IntBuffer ib = indexed.getIndices().duplicate();
+        m_Tris = new int[ib.remaining()];
+        ib.get(m_Tris);
+        m_iNumTris = m_Tris.length / 3;
+        int inputTris = m_iNumTris;
+
+        m_Quadrics = new double[V * QUADRIC_SIZE];
+        m_Remap = new int[V];
+        m_Stamp = new int[V];
+        for (int v = 0; v < V; v++) {
+            m_Remap[v] = v;
+        }
+        buildAdjacency(V);
+        initQuadrics(V);
+
+        double maxCost = m_dMaxError * m_dMaxError;
+        int round = 0;
+        while (m_iNumTris > m_iTargetTriangles) {
+            ReconstructionJob.checkCancelled();
+            round++;
+            int collapsed = collapseRound(V, maxCost, round);
+            if (collapsed == 0) break;
+            buildAdjacency(V);
+        }
+
+        if (m_Field != null) {
+            snapToField(V);
+        }
+        MeshBuffers result = buildResult(V);
+        System.out.println("Decimated " + inputTris + " -> " + m_iNumTris + " triangles in " + round
+                + " rounds, " + (System.currentTimeMillis() - start) + "ms");
+        return MeshPostProcessor.reorder(result);
+    }
+
+    /**
+     * Area weighted plane quadrics of the faces, plus perpendicular planes along open
+     * boundaries so the border of a clipped surface does not shrink.
+     */
+    private void initQuadrics(int V) {
+        double[] pos = m_Pos;
+        int[] tris = m_Tris;
+        double[] faceK = new double[m_iNumTris * QUADRIC_SIZE];
+        IntStream.range(0, m_iNumTris).parallel().forEach(t -> {
+            int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+            double[] n = new double[3];
+            double area2 = faceNormal(pos, a, b, c, n);
+            if (area2 <= 0.0) return;
+            double d = -(n[0] * pos[a * 3] + n[1] * pos[a * 3 + 1] + n[2] * pos[a * 3 + 2]);
+            addPlane(faceK, t * QUADRIC_SIZE, n[0], n[1], n[2], d, 0.5 * area2);
+        });
+        // gather per vertex, no two threads write the same vertex
+        IntStream.range(0, V).parallel().forEach(v -> {
+            for (int s = m_AdjStart[v]; s < m_AdjStart[v + 1]; s++) {
+                int t = m_Adj[s];
+                for (int q = 0; q < QUADRIC_SIZE; q++) {
+                    m_Quadrics[v * QUADRIC_SIZE + q] += faceK[t * QUADRIC_SIZE + q];
+                }
+            }
+        });
+
+        // boundary edges: used by exactly one triangle
+        long[] edges = collectEdges();
+        int boundary = 0;
+        for (int e = 0; e < edges.length; ) {
+            int end = e;
+            while (end < edges.length && edges[end] == edges[e]) end++;
+            if (end - e == 1) {
+                int u = (int) (edges[e] >>> 32), v = (int) edges[e];
+                addBoundaryPlane(u, v);
+                boundary++;
+            }
+            e = end;
+        }
+        if (boundary > 0) {
+            System.out.println("Decimation keeps " + boundary + " boundary edges in place");
+        }
+    }
+
+    /**
+     * Plane through the boundary edge (u, v), perpendicular to its triangle.
+     */
+    private void addBoundaryPlane(int u, int v) {
+        int t = findTriangle(u, v);
+        if (t < 0) return;
+        double[] pos = m_Pos;
+        double[] n = new double[3];
+        double area2 = faceNormal(pos, m_Tris[t * 3], m_Tris[t * 3 + 1], m_Tris[t * 3 + 2], n);
+        if (area2 <= 0.0) return;
+        double ex = pos[v * 3] - pos[u * 3], ey = pos[v * 3 + 1] - pos[u * 3 + 1], ez = pos[v * 3 + 2] - pos[u * 3 + 2];
+        double len2 = ex * ex + ey * ey + ez * ez;
+        double px = ey * n[2] - ez * n[1], py = ez * n[0] - ex * n[2], pz = ex * n[1] - ey * n[0];
+        double pl = Math.sqrt(px * px + py * py + pz * pz);
+        if (pl <= 0.0) return;
+        px /= pl; py /= pl; pz /= pl;
+        double d = -(px * pos[u * 3] + py * pos[u * 3 + 1] + pz * pos[u * 3 + 2]);
+        double weight = BOUNDARY_WEIGHT * len2;
+        addPlane(m_Quadrics, u * QUADRIC_SIZE, px, py, pz, d, weight);
+        addPlane(m_Quadrics, v * QUADRIC_SIZE, px, py, pz, d, weight);
+    }
+
+    /**
+     * One round of independent collapses.
+     * @return number of collapses applied
+     */
+    private int collapseRound(int V, double maxCost, int round) {
+        long[] edges = collectEdges();
+        // unique interior edges only, non-manifold and boundary edges stay
+        int numEdges = 0;
+        for (int e = 0; e < edges.length; ) {
+            int end = e;
+            while (end < edges.length && edges[end] == edges[e]) end++;
+            if (end - e == 2) {
+                edges[numEdges++] = edges[e];
+            }
+            e = end;
+        }
+        final long[] cand = edges;
+        double[] cost = new double[numEdges];
+        double[] target = new double[numEdges * 3];
+        int numChunks = (numEdges + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int numEdgesF = numEdges;
+        Thread caller = Thread.currentThread();
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            ReconstructionJob.checkCancelled(caller);
+            int[] ring = new int[RING_CAPACITY];
+            double[] p = new double[3];
+            int end = Math.min(numEdgesF, (chunk + 1) * CHUNK_SIZE);
+            for (int e = chunk * CHUNK_SIZE; e < end; e++) {
+                int u = (int) (cand[e] >>> 32), v = (int) cand[e];
+                double c = evaluateCollapse(u, v, p, ring);
+                cost[e] = c;
+                target[e * 3] = p[0];
+                target[e * 3 + 1] = p[1];
+                target[e * 3 + 2] = p[2];
+            }
+        });
+
+        int[] order = new int[numEdges];
+        int numValid = 0;
+        for (int e = 0; e < numEdges; e++) {
+            if (cost[e] <= maxCost) order[numValid++] = e;
+        }
+        IntArrays.parallelQuickSort(order, 0, numValid, (a, b) -> Double.compare(cost[a], cost[b]));
+
+        // greedy independent set: the stars of two collapses never share a vertex
+        int needed = m_iNumTris - m_iTargetTriangles;
+        int collapsed = 0;
+        for (int s = 0; s < numValid && needed > 0; s++) {
+            int e = order[s];
+            int u = (int) (cand[e] >>> 32), v = (int) cand[e];
+            if (isStarTouched(u, round) || isStarTouched(v, round)) continue;
+            markStar(u, round);
+            markStar(v, round);
+
+            m_Pos[u * 3] = target[e * 3];
+            m_Pos[u * 3 + 1] = target[e * 3 + 1];
+            m_Pos[u * 3 + 2] = target[e * 3 + 2];
+            for (int q = 0; q < QUADRIC_SIZE; q++) {
+                m_Quadrics[u * QUADRIC_SIZE + q] += m_Quadrics[v * QUADRIC_SIZE + q];
+            }
+            double nx = m_Nrm[u * 3] + m_Nrm[v * 3], ny = m_Nrm[u * 3 + 1] + m_Nrm[v * 3 + 1], nz = m_Nrm[u * 3 + 2] + m_Nrm[v * 3 + 2];
+            double nl = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (nl > 0.0) {
+                m_Nrm[u * 3] = nx / nl;
+                m_Nrm[u * 3 + 1] = ny / nl;
+                m_Nrm[u * 3 + 2] = nz / nl;
+            }
+            m_Remap[v] = u;
+            collapsed++;
+            // an interior collapse removes the two triangles of the edge
+            needed -= 2;
+        }
+        if (collapsed == 0) return 0;
+
+        // rewrite triangles and drop the collapsed ones
+        int out = 0;
+        for (int t = 0; t < m_iNumTris; t++) {
+            int a = m_Remap[m_Tris[t * 3]], b = m_Remap[m_Tris[t * 3 + 1]], c = m_Remap[m_Tris[t * 3 + 2]];
+            if (a == b || b == c || a == c) continue;
+            m_Tris[out * 3] = a;
+            m_Tris[out * 3 + 1] = b;
+            m_Tris[out * 3 + 2] = c;
+            out++;
+        }
+        m_iNumTris = out;
+        return collapsed;
+    }
+
+    /**
+     * Optimal position and cost of collapsing v into u.
+     * @return cost, or +infinity if the collapse would make the mesh non-manifold or flip a triangle
+     */
+    private double evaluateCollapse(int u, int v, double[] p, int[] ring) {
+        // link condition: an interior edge has exactly two common neighbours
+        int ringSize = collectRing(u, ring, 0);
+        if (ringSize < 0) return Double.POSITIVE_INFINITY;
+        int common = 0;
+        for (int s = m_AdjStart[v]; s < m_AdjStart[v + 1]; s++) {
+            int t = m_Adj[s];
+            for (int k = 0; k < 3; k++) {
+                int w = m_Tris[t * 3 + k];
+                if (w == u || w == v) continue;
+                for (int r = 0; r < ringSize; r++) {
+                    if (ring[r] == w) {
+                        common++;
+                        // count each neighbour once
+                        ring[r] = -1;
+                        break;
+                    }
+                }
+            }
+        }
+        if (common != 2) return Double.POSITIVE_INFINITY;
+
+        // Q = Qu + Qv
+        double[] q = new double[QUADRIC_SIZE];
+        for (int k = 0; k < QUADRIC_SIZE; k++) {
+            q[k] = m_Quadrics[u * QUADRIC_SIZE + k] + m_Quadrics[v * QUADRIC_SIZE + k];
+        }
+        if (!solveOptimal(q, p)) {
+            // singular quadric: best of the endpoints and the midpoint
+            double best = Double.POSITIVE_INFINITY;
+            double bx = 0, by = 0, bz = 0;
+            for (int k = 0; k < 3; k++) {
+                double w = k * 0.5;
+                double x = m_Pos[u * 3] * (1 - w) + m_Pos[v * 3] * w;
+                double y = m_Pos[u * 3 + 1] * (1 - w) + m_Pos[v * 3 + 1] * w;
+                double z = m_Pos[u * 3 + 2] * (1 - w) + m_Pos[v * 3 + 2] * w;
+                double c = evaluateQuadric(q, x, y, z);
+                if (c < best) {
+                    best = c; bx = x; by = y; bz = z;
+                }
+            }
+            p[0] = bx; p[1] = by; p[2] = bz;
+        }
+
+        if (flips(u, v, p) || flips(v, u, p)) return Double.POSITIVE_INFINITY;
+
+        double area = q[QUADRIC_SIZE - 1];
+        double cost = evaluateQuadric(q, p[0], p[1], p[2]);
+        return area > 0.0 ? Math.max(0.0, cost / area) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Collect the neighbours of u into ring starting at offset.
+     * @return number of entries, -1 if the ring does not fit
+     */
+    private int collectRing(int u, int[] ring, int offset) {
+        int size = offset;
+        for (int s = m_AdjStart[u]; s < m_AdjStart[u + 1]; s++) {
+            int t = m_Adj[s];
+            for (int k = 0; k < 3; k++) {
+                int w = m_Tris[t * 3 + k];
+                if (w == u) continue;
+                boolean seen = false;
+                for (int r = offset; r < size; r++) {
+                    if (ring[r] == w) {
+                        seen = true;
+                        break;
+                    }
+                }
+                if (seen) continue;
+                if (size == ring.length) return -1;
+                ring[size++] = w;
+            }
+        }
+        return size - offset;
+    }
+
+    /**
+     * Does moving u to p turn any triangle of u that does not contain v by more than ~78 degrees?
+     */
+    private boolean flips(int u, int v, double[] p) {
+        double[] pos = m_Pos;
+        for (int s = m_AdjStart[u]; s < m_AdjStart[u + 1]; s++) {
+            int t = m_Adj[s];
+            int a = m_Tris[t * 3], b = m_Tris[t * 3 + 1], c = m_Tris[t * 3 + 2];
+            if (a == v || b == v || c == v) continue;
+            // rotate so that u comes first, keeping the winding
+            int o1, o2;
+            if (a == u) { o1 = b; o2 = c; }
+            else if (b == u) { o1 = c; o2 = a; }
+            else { o1 = a; o2 = b; }
+
+            double e1x = pos[o1 * 3] - pos[u * 3], e1y = pos[o1 * 3 + 1] - pos[u * 3 + 1], e1z = pos[o1 * 3 + 2] - pos[u * 3 + 2];
+            double e2x = pos[o2 * 3] - pos[u * 3], e2y = pos[o2 * 3 + 1] - pos[u * 3 + 1], e2z = pos[o2 * 3 + 2] - pos[u * 3 + 2];
+            double n0x = e1y * e2z - e1z * e2y, n0y = e1z * e2x - e1x * e2z, n0z = e1x * e2y - e1y * e2x;
+
+            double f1x = pos[o1 * 3] - p[0], f1y = pos[o1 * 3 + 1] - p[1], f1z = pos[o1 * 3 + 2] - p[2];
+            double f2x = pos[o2 * 3] - p[0], f2y = pos[o2 * 3 + 1] - p[1], f2z = pos[o2 * 3 + 2] - p[2];
+            double n1x = f1y * f2z - f1z * f2y, n1y = f1z * f2x - f1x * f2z, n1z = f1x * f2y - f1y * f2x;
+
+            double dot = n0x * n1x + n0y * n1y + n0z * n1z;
+            double l0 = Math.sqrt(n0x * n0x + n0y * n0y + n0z * n0z);
+            double l1 = Math.sqrt(n1x * n1x + n1y * n1y + n1z * n1z);
+            if (l1 <= 1e-30 || dot < MIN_NORMAL_COS * l0 * l1) return true;
+        }
+        return false;
+    }
+
+    private boolean isStarTouched(int u, int round) {
+        if (m_Stamp[u] == round) return true;
+        for (int s = m_AdjStart[u]; s < m_AdjStart[u + 1]; s++) {
+            int t = m_Adj[s];
+            for (int k = 0; k < 3; k++) {
+                if (m_Stamp[m_Tris[t * 3 + k]] == round) return true;
+            }
+        }
+        return false;
+    }
+
+    private void markStar(int u, int round) {
+        m_Stamp[u] = round;
+        for (int s = m_AdjStart[u]; s < m_AdjStart[u + 1]; s++) {
+            int t = m_Adj[s];
+            for (int k = 0; k < 3; k++) {
+                m_Stamp[m_Tris[t * 3 + k]] = round;
+            }
+        }
+    }
+
+    /**
+     * Sorted (min << 32 | max) keys of all triangle sides, duplicates kept.
+     */
+    private long[] collectEdges() {
+        long[] edges = new long[m_iNumTris * 3];
+        int[] tris = m_Tris;
+        IntStream.range(0, m_iNumTris).parallel().forEach(t -> {
+            for (int k = 0; k < 3; k++) {
+                int a = tris[t * 3 + k], b = tris[t * 3 + (k + 1) % 3];
+                edges[t * 3 + k] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+            }
+        });
+        Arrays.parallelSort(edges);
+        return edges;
+    }
+
+    private int findTriangle(int u, int v) {
+        for (int s = m_AdjStart[u]; s < m_AdjStart[u + 1]; s++) {
+            int t = m_Adj[s];
+            if (m_Tris[t * 3] == v || m_Tris[t * 3 + 1] == v || m_Tris[t * 3 + 2] == v) return t;
+        }
+        return -1;
+    }
+
+    /**
+     * vertex -> triangle lists of the live triangles
+     */
+    private void buildAdjacency(int V) {
+        m_AdjStart = new int[V + 1];
+        for (int i = 0; i < m_iNumTris * 3; i++) {
+            m_AdjStart[m_Tris[i] + 1]++;
+        }
+        for (int v = 0; v < V; v++) {
+            m_AdjStart[v + 1] += m_AdjStart[v];
+        }
+        m_Adj = new int[m_iNumTris * 3];
+        int[] fill = new int[V];
+        for (int i = 0; i < m_iNumTris * 3; i++) {
+            int v = m_Tris[i];
+            m_Adj[m_AdjStart[v] + fill[v]++] = i / 3;
+        }
+    }
+
+    /**
+     * One Newton step x <- x - f(x) grad f / |grad f|^2 per vertex; the normal becomes the gradient direction.
+     */
+    private void snapToField(int V) {
+        boolean[] used = new boolean[V];
+        for (int i = 0; i < m_iNumTris * 3; i++) {
+            used[m_Tris[i]] = true;
+        }
+        ScalarField field = m_Field;
+        double[] pos = m_Pos;
+        double[] nrm = m_Nrm;
+        Thread caller = Thread.currentThread();
+        IntStream.range(0, V).parallel().forEach(v -> {
+            if (!used[v]) return;
+            if (v % 256 == 0) {
+                ReconstructionJob.checkCancelled(caller);
+            }
+            double x = pos[v * 3], y = pos[v * 3 + 1], z = pos[v * 3 + 2];
+            double f = field.evaluate(x, y, z);
+            double h = GRADIENT_STEP;
+            double gx = (field.evaluate(x + h, y, z) - field.evaluate(x - h, y, z)) / (2 * h);
+            double gy = (field.evaluate(x, y + h, z) - field.evaluate(x, y - h, z)) / (2 * h);
+            double gz = (field.evaluate(x, y, z + h) - field.evaluate(x, y, z - h)) / (2 * h);
+            double g2 = gx * gx + gy * gy + gz * gz;
+            if (g2 <= 1e-24) return;
+            double step = f / g2;
+            // never move further than the error bound allows
+            double len = Math.abs(step) * Math.sqrt(g2);
+            if (len > m_dMaxError) step *= m_dMaxError / len;
+            pos[v * 3] = x - step * gx;
+            pos[v * 3 + 1] = y - step * gy;
+            pos[v * 3 + 2] = z - step * gz;
+            double gl = Math.sqrt(g2);
+            // keep the orientation of the Marching Cubes normals
+            double sign = gx * nrm[v * 3] + gy * nrm[v * 3 + 1] + gz * nrm[v * 3 + 2] < 0.0 ? -1.0 : 1.0;
+            nrm[v * 3] = sign * gx / gl;
+            nrm[v * 3 + 1] = sign * gy / gl;
+            nrm[v * 3 + 2] = sign * gz / gl;
+        });
+    }
+
+    private MeshBuffers buildResult(int V) {
+        int[] newIndex = new int[V];
+        Arrays.fill(newIndex, -1);
+        int count = 0;
+        for (int i = 0; i < m_iNumTris * 3; i++) {
+            int v = m_Tris[i];
+            if (newIndex[v] < 0) newIndex[v] = count++;
+        }
+        FloatBuffer vertices = BufferUtils.createFloatBuffer(count * 3);
+        FloatBuffer normals = BufferUtils.createFloatBuffer(count * 3);
+        float[] vp = new float[count * 3];
+        float[] vn = new float[count * 3];
+        for (int v = 0; v < V; v++) {
+            int r = newIndex[v];
+            if (r < 0) continue;
+            for (int c = 0; c < 3; c++) {
+                vp[r * 3 + c] = (float) m_Pos[v * 3 + c];
+                vn[r * 3 + c] = (float) m_Nrm[v * 3 + c];
+            }
+        }
+        vertices.put(vp).flip();
+        normals.put(vn).flip();
+        IntBuffer indices = BufferUtils.createIntBuffer(m_iNumTris * 3);
+        for (int i = 0; i < m_iNumTris * 3; i++) {
+            indices.put(newIndex[m_Tris[i]]);
+        }
+        indices.flip();
+        return new MeshBuffers(vertices, normals, indices, count);
+    }
+
+    /**
+     * Unit normal of triangle (a, b, c) into n.
+     * @return twice the area
+     */
+    private static double faceNormal(double[] pos, int a, int b, int c, double[] n) {
+        double ux = pos[b * 3] - pos[a * 3], uy = pos[b * 3 + 1] - pos[a * 3 + 1], uz = pos[b * 3 + 2] - pos[a * 3 + 2];
+        double vx = pos[c * 3] - pos[a * 3], vy = pos[c * 3 + 1] - pos[a * 3 + 1], vz = pos[c * 3 + 2] - pos[a * 3 + 2];
+        double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (len <= 0.0) return 0.0;
+        n[0] = nx / len; n[1] = ny / len; n[2] = nz / len;
+        return len;
+    }
+
+    /**
+     * Add w (n^T x + d)^2 to the quadric at offset. Layout: a00 a01 a02 a11 a12 a22 b0 b1 b2 c, weight.
+     */
+    private static void addPlane(double[] k, int o, double nx, double ny, double nz, double d, double w) {
+        k[o] += w * nx * nx;
+        k[o + 1] += w * nx * ny;
+        k[o + 2] += w * nx * nz;
+        k[o + 3] += w * ny * ny;
+        k[o + 4] += w * ny * nz;
+        k[o + 5] += w * nz * nz;
+        k[o + 6] += w * nx * d;
+        k[o + 7] += w * ny * d;
+        k[o + 8] += w * nz * d;
+        k[o + 9] += w * d * d;
+        k[o + 10] += w;
+    }
+
+    private static double evaluateQuadric(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + q[3] * y * y + 2 * q[4] * y * z + q[5] * z * z
+                + 2 * (q[6] * x + q[7] * y + q[8] * z) + q[9];
+    }
+
+    /**
+     * Minimize the quadric: A p = -b by Cramer's rule.
+     * @return false if A is close to singular (flat or cylindrical neighbourhood)
+     */
+    private static boolean solveOptimal(double[] q, double[] p) {
+        double a00 = q[0], a01 = q[1], a02 = q[2], a11 = q[3], a12 = q[4], a22 = q[5];
+        double c00 = a11 * a22 - a12 * a12;
+        double c01 = a02 * a12 - a01 * a22;
+        double c02 = a01 * a12 - a02 * a11;
+        double det = a00 * c00 + a01 * c01 + a02 * c02;
+        double scale = a00 + a11 + a22;
+        if (!(Math.abs(det) > SINGULAR_EPS * scale * scale * scale)) return false;
+        double c11 = a00 * a22 - a02 * a02;
+        double c12 = a01 * a02 - a00 * a12;
+        double c22 = a00 * a11 - a01 * a01;
+        double b0 = -q[6], b1 = -q[7], b2 = -q[8];
+        p[0] = (c00 * b0 + c01 * b1 + c02 * b2) / det;
+        p[1] = (c01 * b0 + c11 * b1 + c12 * b2) / det;
+        p[2] = (c02 * b0 + c12 * b1 + c22 * b2) / det;
+        return true;
+    }
+
+    private static double[] toDoubles(FloatBuffer buffer, int count) {
+        FloatBuffer src = buffer.duplicate();
+        double[] out = new double[count];
+        for (int i = 0; i < count; i++) {
+            out[i] = src.get(i);
+        }
+        return out;
+    }
+
+    private int m_iTargetTriangles = 0;
+
+    private double m_dMaxError = Double.POSITIVE_INFINITY;
+
+    private ScalarField m_Field;
+
+    // working state of one decimate call
+    private double[] m_Pos;
+
+    private double[] m_Nrm;
+
+    private int[] m_Tris;
+
+    private int m_iNumTris;
+
+    private double[] m_Quadrics;
+
+    private int[] m_Remap;
+
+    private int[] m_Stamp;
+
+    private int[] m_AdjStart;
+
+    private int[] m_Adj;
+
+    // doubles per quadric: 6 matrix, 3 linear, 1 constant, accumulated area
+    private static final int QUADRIC_SIZE = 11;
+
+    // weight of the boundary planes relative to the squared edge length
+    private static final double BOUNDARY_WEIGHT = 100.0;
+
+    // cos of the largest normal rotation a collapse may cause
+    private static final double MIN_NORMAL_COS = 0.2;
+
+    // relative determinant below which the optimal position is not trusted
+    private static final double SINGULAR_EPS = 1e-9;
+
+    // neighbours kept while checking the link condition
+    private static final int RING_CAPACITY = 64;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    // central difference step of the snapping gradient
+    private static final double GRADIENT_STEP = 1e-4;
+
+    public static void main(String[] args) {
+        String resourceName = "bunny.xyz";
+        RBFReconstructor rbf = new RBFReconstructor();
+        rbf.setDownSamplingStep(5);
+        rbf.computeWeights(resourceName);
+
+        int res = 128;
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(rbf);
+        mc.generateMesh(res, res, res);
+        MeshBuffers mesh = MeshBuffers.fromPointBuffers(mc.getVertices(), mc.getNormals());
+
+        MeshDecimator decimator = new MeshDecimator();
+        decimator.setTargetTriangles(mesh.getVertexCount() / 3 / 10);
+        decimator.setMaxError((mc.getMaxCoord() - mc.getMinCoord()) / res * 0.5);
+        decimator.setField(rbf);
+        MeshBuffers result = decimator.decimate(mesh);
+
+        // distance proxy: |f| at the vertices
+        FloatBuffer v = result.getVertices();
+        double maxF = 0.0;
+        for (int i = 0; i < result.getVertexCount(); i++) {
+            maxF = Math.max(maxF, Math.abs(rbf.evaluate(v.get(i * 3), v.get(i * 3 + 1), v.get(i * 3 + 2))));
+        }
+        System.out.println("Triangles: " + mesh.getVertexCount() / 3 + " -> " + result.getIndices().remaining() / 3
+                + ", max |f| at vertices: " + maxF);
+    }
+}
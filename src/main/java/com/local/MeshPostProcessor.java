@@ -0,0 +1,169 @@
+package com.local;
+
+import static org.lwjgl.util.meshoptimizer.MeshOptimizer.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.meshoptimizer.MeshoptVertexCacheStatistics;
+
+/**
+ * Turns the triangle soup produced by Marching Cubes into an indexed mesh laid out for
+ * the GPU, with meshoptimizer:
+ *
+ * 1. weld: vertices shared by neighbouring cubes are merged (positions on a 2^21 grid),
+ * 2. vertex cache: triangles are reordered for the post-transform cache,
+ * 3. overdraw: triangle clusters are reordered so fewer pixels are shaded twice,
+ * 4. vertex fetch: vertices are renumbered in order of first use.
+ *
+ * Runs on the worker thread, so nothing here touches OpenGL.
+ */
+public class MeshPostProcessor {
+
+    /**
+     * @param soup unindexed triangle list with normals
+     * @return indexed mesh, or the input if it is already indexed or empty
+     */
+    public static MeshBuffers optimize(MeshBuffers soup) {
+        if (soup.getIndices() != null || soup.getVertexCount() < 3 || soup.getNormals() == null) {
+            return soup;
+        }
+        long start = System.currentTimeMillis();
+        int soupCount = soup.getVertexCount() - soup.getVertexCount() % 3;
+        FloatBuffer soupPos = copy(soup.getVertices(), soupCount * 3);
+        FloatBuffer soupNrm = copy(soup.getNormals(), soupCount * 3);
+
+        // 1. weld: the remap compares vertices bit for bit, so it is given the quantized
+        // positions, interpolation along a shared edge differs in the last bits between cubes.
+        // The remap of a soup is its index buffer.
+        IntBuffer indices = BufferUtils.createIntBuffer(soupCount);
+        int vertexCount = (int) meshopt_generateVertexRemap(indices, null, soupCount, weldKeys(soupPos, soupCount),
+                soupCount, 3 * Integer.BYTES);
+        FloatBuffer pos = remap(soupPos, soupCount, vertexCount, indices);
+        FloatBuffer nrm = remap(soupNrm, soupCount, vertexCount, indices);
+        indices = removeDegenerate(indices);
+        ReconstructionJob.checkCancelled();
+        return reorder(indices, pos, nrm, vertexCount, soupCount, start);
+    }
+
+    /**
+     * Vertex cache, overdraw and fetch order for a mesh that is already indexed, e.g. after
+     * decimation.
+     */
+    public static MeshBuffers reorder(MeshBuffers indexed) {
+        if (indexed.getIndices() == null || indexed.getNormals() == null) {
+            return indexed;
+        }
+        long start = System.currentTimeMillis();
+        int vertexCount = indexed.getVertexCount();
+        FloatBuffer pos = copy(indexed.getVertices(), vertexCount * 3);
+        FloatBuffer nrm = copy(indexed.getNormals(), vertexCount * 3);
+        IntBuffer source = indexed.getIndices().duplicate();
+        IntBuffer indices = BufferUtils.createIntBuffer(source.remaining());
+        indices.put(source).flip();
+        return reorder(indices, pos, nrm, vertexCount, vertexCount, start);
+    }
+
+    private static MeshBuffers reorder(IntBuffer indices, FloatBuffer pos, FloatBuffer nrm, int vertexCount, int inputCount,
+                                       long start) {
+        double acmrBefore = acmr(indices, vertexCount);
+
+        // 2. + 3. vertex cache order, then clusters reordered for overdraw, both in place
+        meshopt_optimizeVertexCache(indices, indices, vertexCount);
+        meshopt_optimizeOverdraw(indices, indices, pos, vertexCount, 3 * Float.BYTES, OVERDRAW_THRESHOLD);
+        ReconstructionJob.checkCancelled();
+
+        // 4. vertex fetch order, as a remap so positions and normals stay separate streams
+        IntBuffer fetch = BufferUtils.createIntBuffer(vertexCount);
+        int next = (int) meshopt_optimizeVertexFetchRemap(fetch, indices);
+        meshopt_remapIndexBuffer(indices, indices, indices.remaining(), fetch);
+        FloatBuffer vertBuffer = remap(pos, vertexCount, next, fetch);
+        FloatBuffer normBuffer = remap(nrm, vertexCount, next, fetch);
+
+        System.out.printf("Mesh optimized in %dms: %d -> %d vertices, ACMR %.3f -> %.3f%n",
+                System.currentTimeMillis() - start, inputCount, next, acmrBefore, acmr(indices, next));
+        return new MeshBuffers(vertBuffer, normBuffer, indices, next);
+    }
+
+    /**
+     * Average cache miss ratio (misses per triangle) of a FIFO cache, as on most GPUs.
+     */
+    private static double acmr(IntBuffer indices, int vertexCount) {
+        if (indices.remaining() == 0) return 0.0;
+        MeshoptVertexCacheStatistics stats = meshopt_analyzeVertexCache(indices, vertexCount, CACHE_SIZE, 0, 0,
+                MeshoptVertexCacheStatistics.create());
+        return stats.acmr();
+    }
+
+    /**
+     * Quantize positions to a 2^21 grid over the bounding box, 3 ints per vertex.
+     */
+    private static ByteBuffer weldKeys(FloatBuffer pos, int count) {
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 3; c++) {
+                min[c] = Math.min(min[c], pos.get(i * 3 + c));
+                max[c] = Math.max(max[c], pos.get(i * 3 + c));
+            }
+        }
+        ByteBuffer keys = BufferUtils.createByteBuffer(count * 3 * Integer.BYTES);
+        IntBuffer q = keys.asIntBuffer();
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 3; c++) {
+                double range = Math.max(max[c] - min[c], 1e-30);
+                q.put(i * 3 + c, (int) Math.round((pos.get(i * 3 + c) - min[c]) / range * WELD_GRID_MAX));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Drop triangles that collapsed to a line or point when welding.
+     */
+    private static IntBuffer removeDegenerate(IntBuffer indices) {
+        int out = 0;
+        for (int t = 0; t + 2 < indices.limit(); t += 3) {
+            int a = indices.get(t), b = indices.get(t + 1), c = indices.get(t + 2);
+            if (a == b || b == c || a == c) continue;
+            indices.put(out++, a);
+            indices.put(out++, b);
+            indices.put(out++, c);
+        }
+        indices.limit(out);
+        return indices;
+    }
+
+    /**
+     * Move xyz triples to their remapped slots, dropping vertices that map to ~0.
+     */
+    private static FloatBuffer remap(FloatBuffer source, int count, int unique, IntBuffer remap) {
+        FloatBuffer destination = BufferUtils.createFloatBuffer(unique * 3);
+        meshopt_remapVertexBuffer(MemoryUtil.memByteBuffer(destination), MemoryUtil.memByteBuffer(source), count,
+                3 * Float.BYTES, remap);
+        return destination;
+    }
+
+    /**
+     * Direct copy of the first floats of a buffer, the input may be a heap buffer.
+     */
+    private static FloatBuffer copy(FloatBuffer source, int floats) {
+        FloatBuffer duplicate = source.duplicate();
+        duplicate.limit(duplicate.position() + floats);
+        FloatBuffer copy = BufferUtils.createFloatBuffer(floats);
+        copy.put(duplicate).flip();
+        return copy;
+    }
+
+    // FIFO cache size of the ACMR statistics
+    private static final int CACHE_SIZE = 16;
+
+    // overdraw reordering may raise the ACMR by at most this factor
+    private static final float OVERDRAW_THRESHOLD = 1.05f;
+
+    // largest quantized coordinate of the weld grid, 21 bits per axis
+    private static final long WELD_GRID_MAX = (1L << 21) - 1;
+}
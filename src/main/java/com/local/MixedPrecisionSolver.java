@@ -0,0 +1,558 @@
+package com.local;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Mixed precision variant of {@link SaddlePointSolver}. The kernel matrix is assembled,
+ * projected and Cholesky factored in float, stored as the rows of its lower triangle
+ * (row i holds i + 1 entries), a quarter of the memory of the dense double N x N block,
+ * and double accuracy is recovered by iterative refinement:
+ *
+ *      r = b - K x      (double, matrix-free: kernel values are recomputed from the centres)
+ *      x = x + K~^-1 r  (float factors, double accumulation)
+ *
+ * where K is the full saddle point matrix and K~ its float factorization. Refinement
+ * converges as long as cond(S) * 2^-24 stays well below one; otherwise an
+ * IllegalStateException asks the caller to fall back to a double solver.
+ */
+public class MixedPrecisionSolver {
+
+    /**
+     * @param kernel radial function phi(r)
+     */
+    public MixedPrecisionSolver(DoubleUnaryOperator kernel) {
+        m_Kernel = kernel;
+    }
+
+    /**
+     * @param steps maximum number of refinement steps after the first float solve
+     */
+    public void setMaxRefinementSteps(int steps) {
+        m_iMaxRefinementSteps = steps;
+    }
+
+    /**
+     * @param tolerance relative residual ||b - K x|| / ||f|| at which refinement stops
+     */
+    public void setTolerance(double tolerance) {
+        m_dTolerance = tolerance;
+    }
+
+    public int getLastRefinementSteps() {
+        return m_iLastSteps;
+    }
+
+    public double getLastResidual() {
+        return m_dLastResidual;
+    }
+
+    /**
+     * Peak heap use of solve in bytes: the float lower triangle rows plus O(N) vectors.
+     * @return Long.MAX_VALUE above MAX_CONSTRAINTS, which solve rejects
+     */
+    public static long estimateMemory(int numConstraints) {
+        if (numConstraints > MAX_CONSTRAINTS) return Long.MAX_VALUE;
+        long n = numConstraints;
+        return 2L * n * (n + 1) + ROW_HEADER_BYTES * n + 8L * 32 * n;
+    }
+
+    /**
+     * Solve the saddle point system with kernel block A_ij = phi(||x_i - x_j||) - lambda delta_ij.
+     * @param coords centres, row-major N x 3
+     * @param polyP polynomial block, row-major N x 4
+     * @param rhs right-hand side f, length N (not modified)
+     * @param lambda smoothing subtracted from the diagonal
+     * @return solution [w; c], length N + 4
+     * @throws IllegalStateException if the float factorization fails or refinement does not converge
+     */
+    public double[] solve(double[] coords, double[] polyP, double[] rhs, double lambda) {
+        int N = rhs.length;
+        int P = SaddlePointSolver.NUM_POLY;
+        if (N <= P) {
+            throw new IllegalArgumentException("Need more than " + P + " constraints.");
+        }
+        if (N > MAX_CONSTRAINTS) {
+            throw new IllegalArgumentException("Too many constraints for the mixed precision solver: " + N
+                    + ", at most " + MAX_CONSTRAINTS + ".");
+        }
+        Thread caller = Thread.currentThread();
+
+        // float kernel block, lower triangle rows
+        float[][] a = new float[N][];
+        IntStream.range(0, N).parallel().forEach(i -> {
+            if (i % 256 == 0) {
+                ReconstructionJob.checkCancelled(caller);
+            }
+            double xi = coords[i*3], yi = coords[i*3+1], zi = coords[i*3+2];
+            float[] row = new float[i + 1];
+            for (int j = 0; j <= i; j++) {
+                double dx = xi - coords[j*3];
+                double dy = yi - coords[j*3+1];
+                double dz = zi - coords[j*3+2];
+                row[j] = (float) m_Kernel.applyAsDouble(Math.sqrt(dx*dx + dy*dy + dz*dz));
+            }
+            row[i] -= (float) lambda;
+            a[i] = row;
+        });
+
+        // P = QR in double, A <- Q^T A Q in float
+        double[][] vs = new double[P][];
+        double[] taus = new double[P];
+        double[][] R = new double[P][P];
+        SaddlePointSolver.householderQR(polyP.clone(), N, vs, taus, R);
+        double[] work = new double[N];
+        for (int c = 0; c < P; c++) {
+            applyReflectorBothSides(a, N, vs[c], taus[c], work);
+        }
+        ReconstructionJob.checkCancelled(caller);
+
+        // S = -(Q2^T A Q2) = L L^T
+        IntStream.range(P, N).parallel().forEach(i -> {
+            float[] row = a[i];
+            for (int j = P; j <= i; j++) {
+                row[j] = -row[j];
+            }
+        });
+        choleskyLowerInPlace(a, N, P, caller);
+
+        Factorization fact = new Factorization(a, N, vs, taus, R);
+        m_LastFactorization = fact;
+        m_bLastWarm = false;
+
+        double normF = 0.0;
+        for (double f : rhs) {
+            normF += f * f;
+        }
+        normF = Math.sqrt(normF);
+        if (normF == 0.0) {
+            return new double[N + P];
+        }
+
+        double[] x = fact.solve(rhs, new double[P]);
+        double[] r1 = new double[N];
+        double[] r2 = new double[P];
+        double residual = residual(coords, polyP, rhs, lambda, x, r1, r2) / normF;
+        System.out.println("Mixed precision: initial relative residual " + residual);
+
+        int step = 0;
+        while (residual > m_dTolerance && step < m_iMaxRefinementSteps) {
+            ReconstructionJob.checkCancelled(caller);
+            double[] dx = fact.solve(r1, r2);
+            double[] xNew = new double[x.length];
+            for (int i = 0; i < x.length; i++) {
+                xNew[i] = x[i] + dx[i];
+            }
+            double next = residual(coords, polyP, rhs, lambda, xNew, r1, r2) / normF;
+            step++;
+            System.out.println("Mixed precision: refinement step " + step + ", relative residual " + next);
+            if (!(next < residual)) {
+                if (residual > STAGNATION_LIMIT) {
+                    throw new IllegalStateException("Iterative refinement stagnated at residual " + residual + ".");
+                }
+                // rounding floor reached, keep the previous iterate
+                break;
+            }
+            x = xNew;
+            residual = next;
+        }
+
+        m_iLastSteps = step;
+        m_dLastResidual = residual;
+        return x;
+    }
+
+    /**
+     * Solve a system close to the one of the previous solve on this solver, e.g. the next
+     * frame of a sequence: refinement starts from an initial guess, typically the previous
+     * solution, and runs on the previous factorization instead of factoring again. That
+     * costs a few O(N^2) refinement steps instead of the O(N^3) factorization. If the
+     * previous factors are too far off to contract the residual quickly (by half per step
+     * on average), or the constraint count changed, the system is factored as in solve and
+     * the new factors are kept.
+     * @param initialGuess start of the refinement, length N + 4, may be null
+     */
+    public double[] solveWarm(double[] coords, double[] polyP, double[] rhs, double lambda, double[] initialGuess) {
+        int N = rhs.length;
+        int P = SaddlePointSolver.NUM_POLY;
+        Factorization fact = m_LastFactorization;
+        if (fact != null && fact.m_iN == N && initialGuess != null && initialGuess.length == N + P) {
+            double[] x = refineWarm(fact, coords, polyP, rhs, lambda, initialGuess);
+            if (x != null) {
+                m_bLastWarm = true;
+                return x;
+            }
+            System.out.println("Mixed precision: previous factorization too far off, factoring again.");
+        }
+        return solve(coords, polyP, rhs, lambda);
+    }
+
+    /**
+     * @return the refined solution, or null if the old factors do not contract the residual fast enough
+     */
+    private double[] refineWarm(Factorization fact, double[] coords, double[] polyP, double[] rhs, double lambda,
+                                double[] initialGuess) {
+        int N = rhs.length;
+        int P = SaddlePointSolver.NUM_POLY;
+        Thread caller = Thread.currentThread();
+        double normF = 0.0;
+        for (double f : rhs) {
+            normF += f * f;
+        }
+        normF = Math.sqrt(normF);
+        if (normF == 0.0) {
+            return new double[N + P];
+        }
+
+        double[] x = initialGuess.clone();
+        double[] r1 = new double[N];
+        double[] r2 = new double[P];
+        double residual = residual(coords, polyP, rhs, lambda, x, r1, r2) / normF;
+        System.out.println("Mixed precision (warm): initial relative residual " + residual);
+        double initial = residual;
+
+        int step = 0;
+        while (residual > m_dTolerance) {
+            if (step == m_iMaxWarmSteps) {
+                if (residual > STAGNATION_LIMIT) return null;
+                break;
+            }
+            ReconstructionJob.checkCancelled(caller);
+            double[] dx = fact.solve(r1, r2);
+            double[] xNew = new double[x.length];
+            for (int i = 0; i < x.length; i++) {
+                xNew[i] = x[i] + dx[i];
+            }
+            double next = residual(coords, polyP, rhs, lambda, xNew, r1, r2) / normF;
+            step++;
+            if (!(next < residual)) {
+                if (residual > STAGNATION_LIMIT) return null;
+                // rounding floor reached, keep the previous iterate
+                break;
+            }
+            // single steps may contract slowly while the error is spread over many modes,
+            // judge the average rate once a few steps are done
+            if (step >= WARM_GRACE_STEPS && next > STAGNATION_LIMIT && next > initial * Math.pow(MAX_WARM_CONTRACTION, step)) {
+                return null;
+            }
+            x = xNew;
+            residual = next;
+        }
+        System.out.println("Mixed precision (warm): " + step + " refinement steps, relative residual " + residual);
+        m_iLastSteps = step;
+        m_dLastResidual = residual;
+        return x;
+    }
+
+    /**
+     * @param steps maximum number of refinement steps solveWarm spends on the previous factorization
+     */
+    public void setMaxWarmSteps(int steps) {
+        m_iMaxWarmSteps = steps;
+    }
+
+    /**
+     * @return true if the last solve reused the previous factorization
+     */
+    public boolean isLastWarm() {
+        return m_bLastWarm;
+    }
+
+    /**
+     * Double precision residual of the full system, computed without storing the matrix.
+     * Writes r1 = f - (A - lambda I) w - P c and r2 = -P^T w, returns ||[r1; r2]||.
+     */
+    private double residual(double[] coords, double[] polyP, double[] rhs, double lambda,
+                            double[] x, double[] r1, double[] r2) {
+        int N = rhs.length;
+        int P = SaddlePointSolver.NUM_POLY;
+        Thread caller = Thread.currentThread();
+
+        IntStream.range(0, N).parallel().forEach(i -> {
+            if (i % 256 == 0) {
+                ReconstructionJob.checkCancelled(caller);
+            }
+            double xi = coords[i*3], yi = coords[i*3+1], zi = coords[i*3+2];
+            double sum = -lambda * x[i];
+            for (int j = 0; j < N; j++) {
+                double dx = xi - coords[j*3];
+                double dy = yi - coords[j*3+1];
+                double dz = zi - coords[j*3+2];
+                sum += m_Kernel.applyAsDouble(Math.sqrt(dx*dx + dy*dy + dz*dz)) * x[j];
+            }
+            for (int k = 0; k < P; k++) {
+                sum += polyP[i * P + k] * x[N + k];
+            }
+            r1[i] = rhs[i] - sum;
+        });
+
+        double norm = 0.0;
+        for (int i = 0; i < N; i++) {
+            norm += r1[i] * r1[i];
+        }
+        for (int k = 0; k < P; k++) {
+            double sum = 0.0;
+            for (int i = 0; i < N; i++) {
+                sum += polyP[i * P + k] * x[i];
+            }
+            r2[k] = -sum;
+            norm += sum * sum;
+        }
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Float null space factorization, applied with double accumulation to any right-hand side.
+     */
+    private static class Factorization {
+
+        Factorization(float[][] a, int N, double[][] vs, double[] taus, double[][] R) {
+            m_A = a;
+            m_iN = N;
+            m_Vs = vs;
+            m_Taus = taus;
+            m_R = R;
+        }
+
+        /**
+         * Solve | A  P | |w|   |b1|
+         *       | P^T 0| |c| = |b2|  with w = Q [u; y]:
+         * R^T u = b2, S y = B u - h2, R c = h1 - C u - B^T y,
+         * where h = Q^T b1, B = Q2^T A Q1 and C = Q1^T A Q1.
+         */
+        double[] solve(double[] b1, double[] b2) {
+            int N = m_iN;
+            int P = SaddlePointSolver.NUM_POLY;
+            int n = N - P;
+            float[][] a = m_A;
+
+            double[] h = b1.clone();
+            for (int c = 0; c < P; c++) {
+                SaddlePointSolver.applyReflector(h, m_Vs[c], m_Taus[c], c);
+            }
+
+            // R^T u = b2
+            double[] u = new double[P];
+            for (int r = 0; r < P; r++) {
+                double sum = b2[r];
+                for (int k = 0; k < r; k++) {
+                    sum -= m_R[k][r] * u[k];
+                }
+                u[r] = sum / m_R[r][r];
+            }
+
+            // S y = B u - h2
+            double[] y = new double[n];
+            for (int k = 0; k < n; k++) {
+                float[] row = a[P + k];
+                double sum = -h[P + k];
+                for (int r = 0; r < P; r++) {
+                    sum += row[r] * u[r];
+                }
+                y[k] = sum;
+            }
+            solveLowerInPlace(a, P, y);
+
+            // R c = h1 - C u - B^T y
+            double[] g = new double[P];
+            for (int r = 0; r < P; r++) {
+                double sum = h[r];
+                for (int k = 0; k < P; k++) {
+                    float crk = r >= k ? a[r][k] : a[k][r];
+                    sum -= crk * u[k];
+                }
+                g[r] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                float[] row = a[P + k];
+                double yk = y[k];
+                for (int r = 0; r < P; r++) {
+                    g[r] -= row[r] * yk;
+                }
+            }
+
+            double[] x = new double[N + P];
+            System.arraycopy(u, 0, x, 0, P);
+            System.arraycopy(y, 0, x, P, n);
+            for (int c = P - 1; c >= 0; c--) {
+                SaddlePointSolver.applyReflector(x, m_Vs[c], m_Taus[c], c);
+            }
+            for (int r = P - 1; r >= 0; r--) {
+                double sum = g[r];
+                for (int k = r + 1; k < P; k++) {
+                    sum -= m_R[r][k] * x[N + k];
+                }
+                x[N + r] = sum / m_R[r][r];
+            }
+            return x;
+        }
+
+        private final float[][] m_A;
+
+        final int m_iN;
+
+        private final double[][] m_Vs;
+
+        private final double[] m_Taus;
+
+        private final double[][] m_R;
+    }
+
+    /**
+     * A <- H A H on the float lower triangle, p = tau A v accumulated in double.
+     */
+    private static void applyReflectorBothSides(float[][] a, int N, double[] v, double tau, double[] work) {
+        double[] pv = work;
+        Arrays.fill(pv, 0.0);
+        for (int i = 0; i < N; i++) {
+            float[] row = a[i];
+            double vi = v[i];
+            double sum = 0.0;
+            for (int j = 0; j < i; j++) {
+                double aij = row[j];
+                sum += aij * v[j];
+                pv[j] += aij * vi;
+            }
+            pv[i] += sum + row[i] * vi;
+        }
+        double vp = 0.0;
+        for (int i = 0; i < N; i++) {
+            pv[i] *= tau;
+            vp += v[i] * pv[i];
+        }
+        double K = 0.5 * tau * vp;
+        double[] u = new double[N];
+        for (int i = 0; i < N; i++) {
+            u[i] = pv[i] - K * v[i];
+        }
+
+        IntStream.range(0, N).parallel().forEach(i -> {
+            float[] row = a[i];
+            double vi = v[i];
+            double ui = u[i];
+            for (int j = 0; j <= i; j++) {
+                row[j] -= (float) (vi * u[j] + ui * v[j]);
+            }
+        });
+    }
+
+    /**
+     * Float copy of SaddlePointSolver.choleskyLowerInPlace on lower triangle rows.
+     */
+    private static void choleskyLowerInPlace(float[][] a, int N, int offset, Thread caller) {
+        int n = N - offset;
+        for (int kb = 0; kb < n; kb += BLOCK_SIZE) {
+            ReconstructionJob.checkCancelled(caller);
+            int kEnd = Math.min(kb + BLOCK_SIZE, n);
+
+            // diagonal block
+            for (int k = kb; k < kEnd; k++) {
+                float[] rowK = a[offset + k];
+                float s = rowK[offset + k];
+                for (int q = kb; q < k; q++) {
+                    s -= rowK[offset + q] * rowK[offset + q];
+                }
+                if (!(s > 0.0f)) {
+                    throw new IllegalStateException("Projected matrix is not definite in float precision at pivot " + k + ".");
+                }
+                float lkk = (float) Math.sqrt(s);
+                rowK[offset + k] = lkk;
+                for (int i = k + 1; i < kEnd; i++) {
+                    float[] rowI = a[offset + i];
+                    float t = rowI[offset + k];
+                    for (int q = kb; q < k; q++) {
+                        t -= rowI[offset + q] * rowK[offset + q];
+                    }
+                    rowI[offset + k] = t / lkk;
+                }
+            }
+            if (kEnd == n) break;
+
+            final int kbF = kb, kEndF = kEnd;
+            // panel below the diagonal block
+            IntStream.range(kEnd, n).parallel().forEach(i -> {
+                float[] rowI = a[offset + i];
+                for (int k = kbF; k < kEndF; k++) {
+                    float[] rowK = a[offset + k];
+                    float t = rowI[offset + k];
+                    for (int q = kbF; q < k; q++) {
+                        t -= rowI[offset + q] * rowK[offset + q];
+                    }
+                    rowI[offset + k] = t / rowK[offset + k];
+                }
+            });
+
+            // trailing update
+            IntStream.range(kEnd, n).parallel().forEach(i -> {
+                float[] rowI = a[offset + i];
+                for (int j = kEndF; j <= i; j++) {
+                    float[] rowJ = a[offset + j];
+                    float t = 0.0f;
+                    for (int q = kbF; q < kEndF; q++) {
+                        t += rowI[offset + q] * rowJ[offset + q];
+                    }
+                    rowI[offset + j] -= t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Solve L L^T y = b in place with the float factor, accumulating in double
+     */
+    private static void solveLowerInPlace(float[][] a, int offset, double[] b) {
+        int n = b.length;
+        for (int i = 0; i < n; i++) {
+            float[] rowI = a[offset + i];
+            double t = b[i];
+            for (int k = 0; k < i; k++) {
+                t -= rowI[offset + k] * b[k];
+            }
+            b[i] = t / rowI[offset + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            float[] rowI = a[offset + i];
+            b[i] /= rowI[offset + i];
+            double yi = b[i];
+            for (int k = 0; k < i; k++) {
+                b[k] -= rowI[offset + k] * yi;
+            }
+        }
+    }
+
+    private final DoubleUnaryOperator m_Kernel;
+
+    private int m_iMaxRefinementSteps = 10;
+
+    private double m_dTolerance = 1e-12;
+
+    private int m_iLastSteps;
+
+    private double m_dLastResidual;
+
+    // factors of the last solve, reused by solveWarm
+    private Factorization m_LastFactorization;
+
+    private boolean m_bLastWarm;
+
+    private int m_iMaxWarmSteps = 30;
+
+    // a residual that stops improving above this is treated as divergence, not rounding
+    private static final double STAGNATION_LIMIT = 1e-6;
+
+    // solveWarm gives up on the previous factors if the residual shrinks by less than this factor per step on average
+    private static final double MAX_WARM_CONTRACTION = 0.5;
+
+    // steps before the average contraction is checked
+    private static final int WARM_GRACE_STEPS = 3;
+
+    // column block width of the Cholesky factorization
+    private static final int BLOCK_SIZE = 64;
+
+    // object header and length of every row array
+    private static final long ROW_HEADER_BYTES = 16;
+
+    // the polynomial block is indexed i * 4 + k in one array
+    static final int MAX_CONSTRAINTS = (Integer.MAX_VALUE - 8) / SaddlePointSolver.NUM_POLY;
+}
@@ -0,0 +1,408 @@
+package com.local;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+
+/**
+ * Normal estimation for point clouds without normals.
+ *
+ * 1. k nearest neighbours of every point from a uniform grid, in parallel.
+ * 2. The normal is the eigenvector of the smallest eigenvalue of the neighbourhood
+ *    covariance, found with a closed form 3x3 solver that allocates nothing.
+ * 3. Signs are made consistent by walking a minimum spanning tree of the kNN graph with
+ *    edge weight 1 - |n_i . n_j| (Hoppe et al.). The sign of each tree is then chosen so
+ *    that most of its normals point away from the centroid.
+ */
+public class NormalEstimator {
+
+    /**
+     * @param points positions
+     * @param k number of neighbours per point
+     * @return unit normals, consistently oriented within each connected part of the kNN graph
+     */
+    public static PointBuffer estimateNormals(PointBuffer points, int k) {
+        int n = points.size();
+        PointBuffer normals = new PointBuffer(n);
+        if (n == 0) return normals;
+        if (k < 2) {
+            throw new IllegalArgumentException("Need at least 2 neighbours, got " + k);
+        }
+        k = Math.min(k, n - 1);
+        if (k < 2) {
+            normals.setM_Data(new double[n * 3]);
+            return normals;
+        }
+
+        long start = System.currentTimeMillis();
+        double[] coords = points.getRawArray();
+        int[] neighbours = findNeighbours(coords, n, k);
+        System.out.println("kNN search finished in " + (System.currentTimeMillis() - start) + "ms");
+
+        double[] nrm = new double[n * 3];
+        final int kF = k;
+        IntStream.range(0, n).parallel().forEach(i -> fitNormal(coords, neighbours, i, kF, nrm));
+
+        orient(coords, nrm, neighbours, n, k);
+        normals.setM_Data(nrm);
+        System.out.println("Normals estimated for " + n + " points in " + (System.currentTimeMillis() - start) + "ms");
+        return normals;
+    }
+
+    /**
+     * @return row-major n x k neighbour indices, self excluded, nearest first
+     */
+    private static int[] findNeighbours(double[] coords, int n, int k) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, coords[i*3]);     maxX = Math.max(maxX, coords[i*3]);
+            minY = Math.min(minY, coords[i*3+1]);   maxY = Math.max(maxY, coords[i*3+1]);
+            minZ = Math.min(minZ, coords[i*3+2]);   maxZ = Math.max(maxZ, coords[i*3+2]);
+        }
+        double maxSpan = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        double span = maxSpan > 0.0 ? maxSpan : 1.0;
+
+        // scanned surfaces occupy about res^2 cells, aim for a few points per cell
+        int res = Math.max(1, Math.min((int) Math.ceil(Math.sqrt(n / (double) POINTS_PER_CELL)), MAX_GRID_RES));
+        double cellSize = span / res * (1.0 + 1e-9);
+
+        // counting sort of the points into cells
+        int[] cellOf = new int[n];
+        int[] cellStart = new int[res * res * res + 1];
+        for (int i = 0; i < n; i++) {
+            int cx = clampCell((coords[i*3] - minX) / cellSize, res);
+            int cy = clampCell((coords[i*3+1] - minY) / cellSize, res);
+            int cz = clampCell((coords[i*3+2] - minZ) / cellSize, res);
+            int c = (cx * res + cy) * res + cz;
+            cellOf[i] = c;
+            cellStart[c + 1]++;
+        }
+        for (int c = 0; c < res * res * res; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        // cellPoints[s] is the point at sorted position s, sorted holds the positions in
+        // that order, so a cell scan reads contiguous memory
+        int[] cellPoints = new int[n];
+        for (int i = 0; i < n; i++) {
+            cellPoints[cellStart[cellOf[i]]++] = i;
+        }
+        for (int c = res * res * res; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+        double[] sorted = new double[n * 3];
+        for (int s = 0; s < n; s++) {
+            System.arraycopy(coords, cellPoints[s] * 3, sorted, s * 3, 3);
+        }
+
+        int[] neighbours = new int[n * k];
+        final double x0 = minX, y0 = minY, z0 = minZ;
+        int numChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Thread caller = Thread.currentThread();
+        // queries in cell order, so neighbouring queries scan the same cells
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            ReconstructionJob.checkCancelled(caller);
+            // scratch per chunk, nothing is allocated per point
+            double[] bestDist = new double[k];
+            int[] bestIdx = new int[k];
+            int end = Math.min(n, (chunk + 1) * CHUNK_SIZE);
+            for (int qs = chunk * CHUNK_SIZE; qs < end; qs++) {
+                int i = cellPoints[qs];
+                double px = sorted[qs*3], py = sorted[qs*3+1], pz = sorted[qs*3+2];
+                int hx = clampCell((px - x0) / cellSize, res);
+                int hy = clampCell((py - y0) / cellSize, res);
+                int hz = clampCell((pz - z0) / cellSize, res);
+                int count = 0;
+
+                for (int ring = 0; ring < res; ring++) {
+                    for (int cx = Math.max(0, hx - ring); cx <= Math.min(res - 1, hx + ring); cx++) {
+                        for (int cy = Math.max(0, hy - ring); cy <= Math.min(res - 1, hy + ring); cy++) {
+                            boolean xyShell = Math.abs(cx - hx) == ring || Math.abs(cy - hy) == ring;
+                            // inside the shell only the two z caps are new
+                            int czStep = xyShell ? 1 : Math.max(1, 2 * ring);
+                            for (int cz = hz - ring; cz <= hz + ring; cz += czStep) {
+                                if (cz < 0 || cz >= res) continue;
+                                int c = (cx * res + cy) * res + cz;
+                                for (int s = cellStart[c]; s < cellStart[c + 1]; s++) {
+                                    if (s == qs) continue;
+                                    double dx = sorted[s*3] - px;
+                                    double dy = sorted[s*3+1] - py;
+                                    double dz = sorted[s*3+2] - pz;
+                                    double d = dx*dx + dy*dy + dz*dz;
+                                    if (count < k) {
+                                        count = insertSorted(bestDist, bestIdx, count, d, s);
+                                    } else if (d < bestDist[k - 1]) {
+                                        insertSorted(bestDist, bestIdx, k - 1, d, s);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    // every unvisited cell is at least ring * cellSize away
+                    double reach = ring * cellSize;
+                    if (count == k && bestDist[k - 1] <= reach * reach) break;
+                }
+                for (int q = 0; q < k; q++) {
+                    neighbours[i * k + q] = cellPoints[bestIdx[q]];
+                }
+            }
+        });
+        return neighbours;
+    }
+
+    /**
+     * Insert (d, j) into the first count entries kept sorted by distance.
+     * @return new count
+     */
+    private static int insertSorted(double[] dist, int[] idx, int count, double d, int j) {
+        int pos = count;
+        while (pos > 0 && dist[pos - 1] > d) {
+            dist[pos] = dist[pos - 1];
+            idx[pos] = idx[pos - 1];
+            pos--;
+        }
+        dist[pos] = d;
+        idx[pos] = j;
+        return count + 1;
+    }
+
+    private static int clampCell(double v, int res) {
+        int c = (int) v;
+        return c < 0 ? 0 : (c >= res ? res - 1 : c);
+    }
+
+    /**
+     * PCA normal of point i and its k neighbours, written to nrm[i*3..i*3+2].
+     */
+    private static void fitNormal(double[] coords, int[] neighbours, int i, int k, double[] nrm) {
+        double cx = coords[i*3], cy = coords[i*3+1], cz = coords[i*3+2];
+        for (int q = 0; q < k; q++) {
+            int j = neighbours[i * k + q];
+            cx += coords[j*3];
+            cy += coords[j*3+1];
+            cz += coords[j*3+2];
+        }
+        double inv = 1.0 / (k + 1);
+        cx *= inv; cy *= inv; cz *= inv;
+
+        double xx = 0, xy = 0, xz = 0, yy = 0, yz = 0, zz = 0;
+        for (int q = -1; q < k; q++) {
+            int j = q < 0 ? i : neighbours[i * k + q];
+            double dx = coords[j*3] - cx;
+            double dy = coords[j*3+1] - cy;
+            double dz = coords[j*3+2] - cz;
+            xx += dx*dx; xy += dx*dy; xz += dx*dz;
+            yy += dy*dy; yz += dy*dz; zz += dz*dz;
+        }
+        smallestEigenvector(xx, xy, xz, yy, yz, zz, nrm, i * 3);
+    }
+
+    /**
+     * Unit eigenvector of the smallest eigenvalue of a symmetric 3x3 matrix, closed form:
+     * the eigenvalue from the trigonometric solution of the characteristic polynomial, the
+     * vector as the longest cross product of two rows of (A - lambda I).
+     * Falls back to (0, 0, 1) for an isotropic matrix.
+     */
+    static void smallestEigenvector(double a00, double a01, double a02, double a11, double a12, double a22,
+                                    double[] out, int offset) {
+        // scale for numerical range
+        double scale = Math.max(Math.max(Math.abs(a00), Math.abs(a01)), Math.max(Math.max(Math.abs(a02), Math.abs(a11)),
+                Math.max(Math.abs(a12), Math.abs(a22))));
+        if (scale <= 0.0) {
+            out[offset] = 0.0; out[offset + 1] = 0.0; out[offset + 2] = 1.0;
+            return;
+        }
+        double s = 1.0 / scale;
+        a00 *= s; a01 *= s; a02 *= s; a11 *= s; a12 *= s; a22 *= s;
+
+        double q = (a00 + a11 + a22) / 3.0;
+        double b00 = a00 - q, b11 = a11 - q, b22 = a22 - q;
+        double p2 = b00*b00 + b11*b11 + b22*b22 + 2.0 * (a01*a01 + a02*a02 + a12*a12);
+        double p = Math.sqrt(p2 / 6.0);
+        if (p < 1e-15) {
+            out[offset] = 0.0; out[offset + 1] = 0.0; out[offset + 2] = 1.0;
+            return;
+        }
+        // det(B / p) / 2 = cos(3 phi)
+        double ip = 1.0 / p;
+        double c00 = b00 * ip, c11 = b11 * ip, c22 = b22 * ip;
+        double c01 = a01 * ip, c02 = a02 * ip, c12 = a12 * ip;
+        double r = 0.5 * (c00 * (c11*c22 - c12*c12) - c01 * (c01*c22 - c12*c02) + c02 * (c01*c12 - c11*c02));
+        r = Math.max(-1.0, Math.min(1.0, r));
+        double phi = Math.acos(r) / 3.0;
+        // smallest root
+        double lambda = q + 2.0 * p * Math.cos(phi + 2.0 * Math.PI / 3.0);
+
+        double m00 = a00 - lambda, m11 = a11 - lambda, m22 = a22 - lambda;
+        // cross products of the rows (m00,a01,a02), (a01,m11,a12), (a02,a12,m22)
+        double x0 = a01*a12 - a02*m11, y0 = a02*a01 - m00*a12, z0 = m00*m11 - a01*a01;
+        double x1 = a01*m22 - a02*a12, y1 = a02*a02 - m00*m22, z1 = m00*a12 - a01*a02;
+        double x2 = m11*m22 - a12*a12, y2 = a12*a02 - a01*m22, z2 = a01*a12 - m11*a02;
+        double l0 = x0*x0 + y0*y0 + z0*z0;
+        double l1 = x1*x1 + y1*y1 + z1*z1;
+        double l2 = x2*x2 + y2*y2 + z2*z2;
+
+        double vx, vy, vz, len;
+        if (l0 >= l1 && l0 >= l2) {
+            vx = x0; vy = y0; vz = z0; len = l0;
+        } else if (l1 >= l2) {
+            vx = x1; vy = y1; vz = z1; len = l1;
+        } else {
+            vx = x2; vy = y2; vz = z2; len = l2;
+        }
+        if (len < 1e-30) {
+            out[offset] = 0.0; out[offset + 1] = 0.0; out[offset + 2] = 1.0;
+            return;
+        }
+        double il = 1.0 / Math.sqrt(len);
+        out[offset] = vx * il;
+        out[offset + 1] = vy * il;
+        out[offset + 2] = vz * il;
+    }
+
+    /**
+     * Flip normals along a minimum spanning tree of the kNN graph (Prim, lazy heap).
+     * Heap entries pack the float bits of the edge weight above the target index, which
+     * keeps the queue primitive; non-negative float bits sort like the floats themselves.
+     */
+    private static void orient(double[] coords, double[] nrm, int[] neighbours, int n, int k) {
+        // a sparser graph than the PCA neighbourhood keeps the tree from jumping across thin parts
+        int degree = Math.min(k, ORIENTATION_DEGREE);
+
+        double gx = 0, gy = 0, gz = 0;
+        for (int i = 0; i < n; i++) {
+            gx += coords[i*3]; gy += coords[i*3+1]; gz += coords[i*3+2];
+        }
+        gx /= n; gy /= n; gz /= n;
+
+        // reverse edges, so the graph is symmetric
+        int[] revStart = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            for (int q = 0; q < degree; q++) {
+                revStart[neighbours[i * k + q] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            revStart[i + 1] += revStart[i];
+        }
+        int[] revEdges = new int[n * degree];
+        int[] fill = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int q = 0; q < degree; q++) {
+                int j = neighbours[i * k + q];
+                revEdges[revStart[j] + fill[j]++] = i;
+            }
+        }
+
+        boolean[] visited = new boolean[n];
+        int[] parent = new int[n];
+        float[] key = new float[n];
+        Arrays.fill(key, Float.POSITIVE_INFINITY);
+        LongHeapPriorityQueue heap = new LongHeapPriorityQueue();
+        int numComponents = 0;
+
+        int[] visitOrder = new int[n];
+        int numVisited = 0;
+        for (int seed = 0; seed < n; seed++) {
+            if (visited[seed]) continue;
+            numComponents++;
+            int componentStart = numVisited;
+            parent[seed] = -1;
+            heap.enqueue(seed & 0xffffffffL);
+
+            while (!heap.isEmpty()) {
+                long entry = heap.dequeueLong();
+                int i = (int) entry;
+                if (visited[i]) continue;
+                visited[i] = true;
+                visitOrder[numVisited++] = i;
+                int from = parent[i];
+                if (from >= 0 && dotNormals(nrm, i, from) < 0.0) {
+                    flip(nrm, i);
+                }
+                for (int q = 0; q < degree; q++) {
+                    relax(nrm, neighbours[i * k + q], i, visited, parent, key, heap);
+                }
+                for (int e = revStart[i]; e < revStart[i + 1]; e++) {
+                    relax(nrm, revEdges[e], i, visited, parent, key, heap);
+                }
+            }
+
+            // the tree only fixes relative signs; most normals of a closed scan point away
+            // from the centroid, which is more robust than trusting the seed alone
+            double vote = 0.0;
+            for (int v = componentStart; v < numVisited; v++) {
+                int i = visitOrder[v];
+                double dot = nrm[i*3] * (coords[i*3] - gx) + nrm[i*3+1] * (coords[i*3+1] - gy)
+                        + nrm[i*3+2] * (coords[i*3+2] - gz);
+                vote += Math.signum(dot);
+            }
+            if (vote < 0.0) {
+                for (int v = componentStart; v < numVisited; v++) {
+                    flip(nrm, visitOrder[v]);
+                }
+            }
+        }
+        if (numComponents > 1) {
+            System.out.println("Normal orientation: kNN graph has " + numComponents + " components, each oriented separately");
+        }
+    }
+
+    private static void relax(double[] nrm, int j, int i, boolean[] visited, int[] parent, float[] key,
+                              LongHeapPriorityQueue heap) {
+        if (visited[j]) return;
+        float w = (float) Math.max(0.0, 1.0 - Math.abs(dotNormals(nrm, i, j)));
+        if (w < key[j]) {
+            key[j] = w;
+            parent[j] = i;
+            heap.enqueue(((long) Float.floatToIntBits(w) << 32) | (j & 0xffffffffL));
+        }
+    }
+
+    private static double dotNormals(double[] nrm, int i, int j) {
+        return nrm[i*3] * nrm[j*3] + nrm[i*3+1] * nrm[j*3+1] + nrm[i*3+2] * nrm[j*3+2];
+    }
+
+    private static void flip(double[] nrm, int i) {
+        nrm[i*3] = -nrm[i*3];
+        nrm[i*3+1] = -nrm[i*3+1];
+        nrm[i*3+2] = -nrm[i*3+2];
+    }
+
+    // default neighbourhood size
+    public static final int DEFAULT_K = 16;
+
+    // neighbours per point used as edges of the orientation graph
+    private static final int ORIENTATION_DEGREE = 8;
+
+    // points per occupied grid cell the kNN grid aims for
+    private static final int POINTS_PER_CELL = 4;
+
+    private static final int MAX_GRID_RES = 256;
+
+    // points per parallel task of the kNN search
+    private static final int CHUNK_SIZE = 1024;
+
+    public static void main(String[] args) {
+        // compare estimated normals against the ones stored in the file
+        String resourceName = "bunny.xyz";
+        var cloudData = VertexReader3D.readPointCloudData(resourceName);
+        PointBuffer points = cloudData.get(0);
+        PointBuffer reference = cloudData.get(1);
+
+        PointBuffer normals = estimateNormals(points, DEFAULT_K);
+
+        int flipped = 0;
+        double sumAngle = 0.0;
+        for (int i = 0; i < points.size(); i++) {
+            double dot = normals.get(i, 0) * reference.get(i, 0) + normals.get(i, 1) * reference.get(i, 1)
+                    + normals.get(i, 2) * reference.get(i, 2);
+            if (dot < 0.0) flipped++;
+            sumAngle += Math.toDegrees(Math.acos(Math.min(1.0, Math.abs(dot))));
+        }
+        System.out.printf("Mean angle to file normals: %.2f deg, opposite orientation: %d of %d%n",
+                sumAngle / points.size(), flipped, points.size());
+    }
+}
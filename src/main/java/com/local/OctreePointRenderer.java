@@ -0,0 +1,221 @@
+package com.local;
+
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+/**
+ * Draws a PointOctree with a bounded amount of work per frame.
+ *
+ * Each frame selects nodes coarse to fine up to a point budget. Selected nodes that are
+ * not on the GPU are read from disk by a background thread; finished reads are uploaded
+ * with a byte limit per frame. Until a node arrives its ancestors, which are always
+ * selected too, cover its region. Node VBOs live in an LRU cache with a byte budget.
+ * Must be created, used and released on the GL thread.
+ */
+public class OctreePointRenderer {
+
+    /**
+     * @param pointBudget most points drawn per frame
+     * @param gpuBudgetBytes size of the node VBO cache
+     */
+    public OctreePointRenderer(PointOctree octree, long pointBudget, long gpuBudgetBytes) {
+        m_Octree = octree;
+        m_lPointBudget = pointBudget;
+        m_lGpuBudget = gpuBudgetBytes;
+        m_Loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "octree-loader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        m_iVao = GL30.glGenVertexArrays();
+        GL30.glBindVertexArray(m_iVao);
+        GL20.glEnableVertexAttribArray(0);
+    }
+
+    /**
+     * Select, stream and draw. The shader program must be bound.
+     * @param pixelsPerUnit screen pixels per model unit of the current view
+     */
+    public void draw(double pixelsPerUnit) {
+        m_lSelectedPoints = m_Octree.selectNodes(pixelsPerUnit, MIN_SPACING_PIXELS, m_lPointBudget, m_Selection);
+        m_SelectedSet.clear();
+        m_SelectedSet.addAll(m_Selection);
+
+        uploadFinished();
+        requestMissing();
+
+        GL30.glBindVertexArray(m_iVao);
+        long drawn = 0;
+        for (int i = 0; i < m_Selection.size(); i++) {
+            int node = m_Selection.getInt(i);
+            // touching moves the node to the recently used end of the LRU
+            Integer vbo = m_Resident.get(node);
+            if (vbo == null) continue;
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+            GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 0, 0);
+            GL11.glPointSize(pointSize(node, pixelsPerUnit));
+            GL11.glDrawArrays(GL11.GL_POINTS, 0, m_Octree.getNodePointCount(node));
+            drawn += m_Octree.getNodePointCount(node);
+        }
+        m_lDrawnPoints = drawn;
+
+        evict();
+    }
+
+    /**
+     * Nodes drawn at their own density get points as large as their spacing, so coarse
+     * levels close up; where the children are drawn too the normal size is used.
+     */
+    private float pointSize(int node, double pixelsPerUnit) {
+        if (m_Octree.isLeaf(node)) return POINT_SIZE;
+        for (int c = 0; c < 8; c++) {
+            int child = m_Octree.getChild(node, c);
+            if (child >= 0 && m_SelectedSet.contains(child) && m_Resident.containsKey(child)) return POINT_SIZE;
+        }
+        double spacing = m_Octree.getSpacing(node) * pixelsPerUnit;
+        return (float) Math.max(POINT_SIZE, Math.min(MAX_POINT_SIZE, spacing));
+    }
+
+    private void uploadFinished() {
+        long uploaded = 0;
+        Iterator<Int2ObjectOpenHashMap.Entry<ReconstructionJob<FloatBuffer>>> it = m_Pending.int2ObjectEntrySet().iterator();
+        while (it.hasNext() && uploaded < MAX_UPLOAD_BYTES_PER_FRAME) {
+            Int2ObjectOpenHashMap.Entry<ReconstructionJob<FloatBuffer>> entry = it.next();
+            ReconstructionJob<FloatBuffer> job = entry.getValue();
+            if (!job.isDone()) continue;
+            it.remove();
+            FloatBuffer points = job.poll();
+            if (points == null) {
+                if (!job.isCancelled()) {
+                    System.err.println("Failed to read octree node " + entry.getIntKey() + ": " + job.getError());
+                }
+                continue;
+            }
+            int vbo = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, points, GL15.GL_STATIC_DRAW);
+            m_Resident.put(entry.getIntKey(), vbo);
+            long bytes = points.remaining() * 4L;
+            m_lResidentBytes += bytes;
+            uploaded += bytes;
+        }
+    }
+
+    private void requestMissing() {
+        // loads of nodes that left the selection are no longer worth waiting for
+        IntArrayList stale = new IntArrayList();
+        for (int node : m_Pending.keySet()) {
+            if (!m_SelectedSet.contains(node)) stale.add(node);
+        }
+        // without interrupt: an interrupted read would close the octree's shared file channel
+        for (int node : stale) {
+            m_Pending.remove(node).cancel(false);
+        }
+        // selection order is coarse to fine, so parents are requested first
+        for (int i = 0; i < m_Selection.size() && m_Pending.size() < MAX_PENDING_LOADS; i++) {
+            int node = m_Selection.getInt(i);
+            if (m_Resident.containsKey(node) || m_Pending.containsKey(node)) continue;
+            m_Pending.put(node, new ReconstructionJob<>("octree node " + node, () -> m_Octree.readNode(node), m_Loader));
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, Integer>> it = m_Resident.entrySet().iterator();
+        while (m_lResidentBytes > m_lGpuBudget && it.hasNext()) {
+            Map.Entry<Integer, Integer> eldest = it.next();
+            // everything after this was used in the current frame
+            if (m_SelectedSet.contains((int) eldest.getKey())) break;
+            GL15.glDeleteBuffers(eldest.getValue());
+            m_lResidentBytes -= m_Octree.getNodePointCount(eldest.getKey()) * 12L;
+            it.remove();
+        }
+    }
+
+    /**
+     * Points within the current selection, whether uploaded yet or not.
+     */
+    public long getSelectedPoints() {
+        return m_lSelectedPoints;
+    }
+
+    public long getDrawnPoints() {
+        return m_lDrawnPoints;
+    }
+
+    public long getResidentBytes() {
+        return m_lResidentBytes;
+    }
+
+    public PointOctree getOctree() {
+        return m_Octree;
+    }
+
+    /**
+     * Cancel pending reads and free all GL objects. The octree stays open.
+     */
+    public void release() {
+        for (ReconstructionJob<FloatBuffer> job : m_Pending.values()) {
+            job.cancel(false);
+        }
+        m_Pending.clear();
+        m_Loader.shutdown();
+        for (int vbo : m_Resident.values()) {
+            GL15.glDeleteBuffers(vbo);
+        }
+        m_Resident.clear();
+        m_lResidentBytes = 0;
+        GL30.glDeleteVertexArrays(m_iVao);
+    }
+
+    private final PointOctree m_Octree;
+
+    private final long m_lPointBudget;
+
+    private final long m_lGpuBudget;
+
+    private final ExecutorService m_Loader;
+
+    private final int m_iVao;
+
+    // node -> VBO, access ordered: iteration starts at the least recently drawn node
+    private final LinkedHashMap<Integer, Integer> m_Resident = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long m_lResidentBytes = 0;
+
+    private final Int2ObjectOpenHashMap<ReconstructionJob<FloatBuffer>> m_Pending = new Int2ObjectOpenHashMap<>();
+
+    private final IntArrayList m_Selection = new IntArrayList();
+
+    private final IntOpenHashSet m_SelectedSet = new IntOpenHashSet();
+
+    private long m_lSelectedPoints = 0;
+
+    private long m_lDrawnPoints = 0;
+
+    // stop refining once neighbouring points are this close on screen
+    private static final double MIN_SPACING_PIXELS = 1.0;
+
+    // point size at full density, as before the octree
+    private static final float POINT_SIZE = 3.0f;
+
+    private static final float MAX_POINT_SIZE = 8.0f;
+
+    // bounds the glBufferData work of one frame
+    private static final long MAX_UPLOAD_BYTES_PER_FRAME = 8L << 20;
+
+    private static final int MAX_PENDING_LOADS = 16;
+}
@@ -0,0 +1,477 @@
+package com.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.stream.Stream;
+
+/**
+ * Reconstruction of point clouds that do not fit in the heap.
+ *
+ * The input is read three times as a stream: once for the bounding box, then to bin the
+ * normalized points into one file per spatial tile (points within the overlap of a tile go
+ * to every tile they touch), and finally tile by tile. Each tile is solved and polygonized
+ * with TileWorker in this process and its triangles are written to a TriangleSink before
+ * the next tile is read, so the heap holds one tile's points and field at a time.
+ *
+ * Tiles are visited x fastest, then y, then z. The grid nodes on a cut plane belong to the
+ * tile below it, which is always visited first; every tile stores the field values of the
+ * nodes it owns on its upper faces and meshes with the stored values on its whole boundary,
+ * so neighbouring tiles meet without cracks as in TiledReconstructor.
+ *
+ * Only clouds with normals are accepted: normals estimated tile by tile would not be
+ * oriented consistently across tiles.
+ */
+public class OutOfCoreReconstructor {
+
+    /**
+     * @param tilesPerAxis tiles along each axis, the heap needed per tile shrinks with its cube
+     */
+    public void setTilesPerAxis(int tilesPerAxis) {
+        if (tilesPerAxis < 1) {
+            throw new IllegalArgumentException("Tiles per axis must be at least 1: " + tilesPerAxis);
+        }
+        m_iTilesPerAxis = tilesPerAxis;
+    }
+
+    /**
+     * @param overlap points up to this fraction of the tile width beyond its core box are used
+     */
+    public void setOverlap(double overlap) {
+        if (overlap < 0.0 || overlap > 1.0) {
+            throw new IllegalArgumentException("Overlap must be in [0, 1]: " + overlap);
+        }
+        m_dOverlap = overlap;
+    }
+
+    /**
+     * @param step smallest down sampling step, tiles too dense for the heap get a larger one
+     */
+    public void setDownSamplingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Down sampling step must be at least 1: " + step);
+        }
+        m_iDownSamplingStep = step;
+    }
+
+    /**
+     * @param directory where the tile files are written, null for a temporary directory
+     */
+    public void setWorkDirectory(Path directory) {
+        m_WorkDirectory = directory;
+    }
+
+    /**
+     * @param input "x y z nx ny nz" file
+     * @param gridResolution Marching Cubes cells along each axis of the whole grid
+     * @param sink receives the triangles tile by tile, in normalized coordinates
+     * @return number of triangles written
+     */
+    public long reconstruct(Path input, int gridResolution, TriangleSink sink) throws IOException {
+        if (!Files.isRegularFile(input)) {
+            throw new IllegalArgumentException("Cannot read point cloud: " + input);
+        }
+        return reconstruct(() -> Files.newInputStream(input), input.getFileName().toString(), gridResolution, sink);
+    }
+
+    /**
+     * @param resourceName .xyz resource name with normals
+     */
+    public long reconstructResource(String resourceName, int gridResolution, TriangleSink sink) throws IOException {
+        if (OutOfCoreReconstructor.class.getClassLoader().getResource(resourceName) == null) {
+            throw new IllegalArgumentException("Cannot read point cloud: " + resourceName);
+        }
+        return reconstruct(() -> OutOfCoreReconstructor.class.getClassLoader().getResourceAsStream(resourceName),
+                resourceName, gridResolution, sink);
+    }
+
+    private long reconstruct(InputOpener input, String name, int gridResolution, TriangleSink sink) throws IOException {
+        if (gridResolution < m_iTilesPerAxis) {
+            throw new IllegalArgumentException("Grid resolution " + gridResolution + " is smaller than the tile count.");
+        }
+        long start = System.currentTimeMillis();
+        ReconstructionPlanner.resetPeakHeap();
+        m_lTriangleCount = 0;
+
+        double[] transform = scanBounds(input, name);
+        System.out.printf("Out-of-core: %d points, scale %.6g, center (%.6g, %.6g, %.6g)%n",
+                m_lPointCount, transform[3], transform[0], transform[1], transform[2]);
+
+        double cell = (MAX_COORD - MIN_COORD) / gridResolution;
+        int[] cuts = new int[m_iTilesPerAxis + 1];
+        for (int t = 0; t <= m_iTilesPerAxis; t++) {
+            cuts[t] = (int) Math.round((double) gridResolution * t / m_iTilesPerAxis);
+        }
+
+        boolean temporary = m_WorkDirectory == null;
+        Path directory = temporary ? Files.createTempDirectory("rbf-tiles") : Files.createDirectories(m_WorkDirectory);
+        try {
+            long[] counts = bin(input, transform, cuts, cell, directory);
+            long binned = System.currentTimeMillis();
+            System.out.println("Out-of-core: binned into " + directory + " in " + (binned - start) + "ms");
+
+            meshTiles(counts, cuts, cell, gridResolution, directory, sink);
+        } finally {
+            if (temporary) {
+                deleteTree(directory);
+            }
+        }
+
+        m_lPeakHeapBytes = ReconstructionPlanner.peakHeap();
+        System.out.printf("Out-of-core reconstruction finished in %dms: %d triangles, peak heap %.1f MB%n",
+                System.currentTimeMillis() - start, m_lTriangleCount, m_lPeakHeapBytes / (1024.0 * 1024.0));
+        return m_lTriangleCount;
+    }
+
+    /**
+     * First pass: count the points and find the bounding box.
+     * @return the normalization of VertexReader3D for the box
+     */
+    private double[] scanBounds(InputOpener input, String name) throws IOException {
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] point = new double[6];
+        long count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input.open()), 1 << 16)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (!parse(line, point)) continue;
+                if (Double.isNaN(point[3])) {
+                    throw new IllegalArgumentException(name + ":" + lineNumber
+                            + ": out-of-core reconstruction needs a normal on every line.");
+                }
+                for (int c = 0; c < 3; c++) {
+                    if (point[c] < min[c]) min[c] = point[c];
+                    if (point[c] > max[c]) max[c] = point[c];
+                }
+                count++;
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Point cloud is empty: " + name);
+        }
+        m_lPointCount = count;
+        return VertexReader3D.normalization(min, max);
+    }
+
+    /**
+     * Second pass: write every normalized point to the files of all tiles whose core box,
+     * grown by the overlap, contains it. With more tiles than MAX_OPEN_FILES the input is
+     * read once per group of tiles.
+     * @return points per tile
+     */
+    private long[] bin(InputOpener input, double[] transform, int[] cuts, double cell, Path directory)
+            throws IOException {
+        int tpa = m_iTilesPerAxis;
+        int tileCount = tpa * tpa * tpa;
+        // grown core box bounds per axis and tile index
+        double[][] lo = new double[3][tpa];
+        double[][] hi = new double[3][tpa];
+        for (int i = 0; i < tpa; i++) {
+            double width = (cuts[i + 1] - cuts[i]) * cell;
+            for (int a = 0; a < 3; a++) {
+                lo[a][i] = MIN_COORD + cuts[i] * cell - width * m_dOverlap;
+                hi[a][i] = MIN_COORD + cuts[i + 1] * cell + width * m_dOverlap;
+            }
+        }
+
+        long[] counts = new long[tileCount];
+        double[] point = new double[6];
+        int[] first = new int[3];
+        int[] last = new int[3];
+        for (int group = 0; group < tileCount; group += MAX_OPEN_FILES) {
+            int groupEnd = Math.min(tileCount, group + MAX_OPEN_FILES);
+            DataOutputStream[] outs = new DataOutputStream[groupEnd - group];
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input.open()), 1 << 16)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!parse(line, point)) continue;
+                    normalize(point, transform);
+                    for (int a = 0; a < 3; a++) {
+                        first[a] = tpa;
+                        last[a] = -1;
+                        for (int i = 0; i < tpa; i++) {
+                            if (point[a] >= lo[a][i] && point[a] <= hi[a][i]) {
+                                first[a] = Math.min(first[a], i);
+                                last[a] = i;
+                            }
+                        }
+                    }
+                    for (int z = first[2]; z <= last[2]; z++) {
+                        for (int y = first[1]; y <= last[1]; y++) {
+                            for (int x = first[0]; x <= last[0]; x++) {
+                                int t = x + tpa * (y + tpa * z);
+                                if (t < group || t >= groupEnd) continue;
+                                DataOutputStream out = outs[t - group];
+                                if (out == null) {
+                                    out = new DataOutputStream(new BufferedOutputStream(
+                                            Files.newOutputStream(tileFile(directory, t)), TILE_BUFFER_BYTES));
+                                    outs[t - group] = out;
+                                }
+                                for (int c = 0; c < 6; c++) out.writeFloat((float) point[c]);
+                                counts[t]++;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                for (DataOutputStream out : outs) {
+                    if (out != null) out.close();
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Third pass: solve and polygonize the tiles one at a time.
+     */
+    private void meshTiles(long[] counts, int[] cuts, double cell, int gridResolution, Path directory,
+                           TriangleSink sink) throws IOException {
+        int tpa = m_iTilesPerAxis;
+        int nodes = gridResolution + 1;
+        // node values of the interior cut planes per axis, written by their owners
+        float[][][] planes = new float[3][tpa][];
+        for (int a = 0; a < 3; a++) {
+            for (int c = 1; c < tpa; c++) {
+                planes[a][c] = new float[nodes * nodes];
+                Arrays.fill(planes[a][c], Float.NaN);
+            }
+        }
+
+        int meshed = 0;
+        for (int t = 0; t < counts.length; t++) {
+            int[] idx = {t % tpa, (t / tpa) % tpa, t / (tpa * tpa)};
+            if (idx[0] == 0 && idx[1] == 0 && idx[2] > 1) {
+                // no later tile has a lower face on this z cut any more
+                planes[2][idx[2] - 1] = null;
+            }
+            // a tile without points has no surface near it
+            if (counts[t] < MIN_TILE_POINTS) continue;
+            if (counts[t] > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Tile " + t + " has " + counts[t] + " points, use more tiles.");
+            }
+
+            TileWorker.TileRequest request = new TileWorker.TileRequest();
+            request.m_iTileId = t;
+            request.m_iStep = m_iDownSamplingStep;
+            for (int a = 0; a < 3; a++) {
+                request.m_iCells[a] = cuts[idx[a] + 1] - cuts[idx[a]];
+                request.m_dMin[a] = MIN_COORD + cuts[idx[a]] * cell;
+                request.m_dMax[a] = MIN_COORD + cuts[idx[a] + 1] * cell;
+            }
+            request.m_dKeepDistance = Math.max(KEEP_CELLS * cell,
+                    (request.m_dMax[0] - request.m_dMin[0]) * m_dOverlap * 0.5);
+            readTile(tileFile(directory, t), (int) counts[t], request);
+
+            // dense tiles are down sampled further until their solve fits in the heap
+            ReconstructionPlanner planner = new ReconstructionPlanner();
+            // the kernel matrix is one array, it has to fit in the old generation next to the young one
+            planner.setHeapBudget(Math.min(ReconstructionPlanner.availableHeap(),
+                    (long) (Runtime.getRuntime().maxMemory() * MATRIX_HEAP_FRACTION)));
+            planner.setQualityTarget(m_iDownSamplingStep, request.m_iCells[0]);
+            planner.setQualityLimits(MAX_TILE_STEP, request.m_iCells[0]);
+            ReconstructionPlanner.Plan plan = planner.plan((int) counts[t]);
+            if (!plan.isFeasible()) {
+                throw new IllegalStateException("Tile " + t + " with " + counts[t] + " points does not fit: "
+                        + plan.getReason() + ". Use more tiles.");
+            }
+            request.m_Plan = plan;
+            request.m_iStep = plan.getDownSamplingStep();
+            if (request.m_iStep != m_iDownSamplingStep) {
+                System.out.println("Out-of-core: tile " + t + " planned as " + plan);
+            }
+
+            TileWorker.SolvedTile tile = TileWorker.solve(request);
+            storeOwnedNodes(tile.m_Field, idx, cuts, cell, nodes, planes);
+
+            float[][][] faces = new float[3][2][];
+            for (int a = 0; a < 3; a++) {
+                if (idx[a] > 0) faces[a][0] = facesOf(planes[a][idx[a]], a, idx, cuts, nodes);
+                if (idx[a] < tpa - 1) faces[a][1] = facesOf(planes[a][idx[a] + 1], a, idx, cuts, nodes);
+            }
+            TileWorker.TileResult result = TileWorker.mesh(tile, faces);
+            sink.accept(result.m_fPositions, result.m_fNormals, result.m_iVertexCount / 3);
+            m_lTriangleCount += result.m_iVertexCount / 3;
+            meshed++;
+            System.out.println("Out-of-core: tile " + t + " of " + counts.length + ", " + counts[t] + " points, "
+                    + result.m_iVertexCount / 3 + " triangles in " + (tile.m_lMillis + result.m_lMillis) + "ms");
+        }
+        System.out.println("Out-of-core: meshed " + meshed + " non-empty tiles of " + tpa + "^3");
+    }
+
+    /**
+     * Evaluate the field on the nodes of the tile's upper faces that it owns: a node on a cut
+     * plane belongs to the tile below the plane, so along the other axes the tile owns the
+     * nodes above its lower cut, up to and including its upper cut.
+     */
+    private void storeOwnedNodes(RBFField field, int[] idx, int[] cuts, double cell, int nodes, float[][][] planes) {
+        int tpa = m_iTilesPerAxis;
+        double[] p = new double[3];
+        for (int a = 0; a < 3; a++) {
+            if (idx[a] == tpa - 1) continue;
+            int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+            float[] plane = planes[a][idx[a] + 1];
+            p[a] = MIN_COORD + cuts[idx[a] + 1] * cell;
+            int bFirst = cuts[idx[b]] + (idx[b] > 0 ? 1 : 0);
+            int cFirst = cuts[idx[c]] + (idx[c] > 0 ? 1 : 0);
+            for (int i = bFirst; i <= cuts[idx[b] + 1]; i++) {
+                p[b] = MIN_COORD + i * cell;
+                for (int j = cFirst; j <= cuts[idx[c] + 1]; j++) {
+                    p[c] = MIN_COORD + j * cell;
+                    plane[i * nodes + j] = (float) field.evaluate(p[0], p[1], p[2]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the tile's part of a cut plane, b-major as TileWorker.mesh expects
+     */
+    private static float[] facesOf(float[] plane, int a, int[] idx, int[] cuts, int nodes) {
+        int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+        int bCount = cuts[idx[b] + 1] - cuts[idx[b]] + 1;
+        int cCount = cuts[idx[c] + 1] - cuts[idx[c]] + 1;
+        float[] face = new float[bCount * cCount];
+        for (int i = 0; i < bCount; i++) {
+            System.arraycopy(plane, (cuts[idx[b]] + i) * nodes + cuts[idx[c]], face, i * cCount, cCount);
+        }
+        return face;
+    }
+
+    private static void readTile(Path file, int count, TileWorker.TileRequest request) throws IOException {
+        request.m_Points = new PointBuffer(count);
+        request.m_Normals = new PointBuffer(count);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < 3; c++) request.m_Points.set(i, c, in.readFloat());
+                for (int c = 0; c < 3; c++) request.m_Normals.set(i, c, in.readFloat());
+            }
+        }
+    }
+
+    /**
+     * Parse "x y z [nx ny nz]" into point, the normal is NaN if missing.
+     * @return false for lines without a point
+     */
+    private static boolean parse(String line, double[] point) {
+        StringTokenizer st = new StringTokenizer(line);
+        int tokens = st.countTokens();
+        if (tokens < 3) return false;
+        for (int c = 0; c < 3; c++) point[c] = Double.parseDouble(st.nextToken());
+        if (tokens >= 6) {
+            for (int c = 3; c < 6; c++) point[c] = Double.parseDouble(st.nextToken());
+        } else {
+            point[3] = point[4] = point[5] = Double.NaN;
+        }
+        return true;
+    }
+
+    /**
+     * Apply the VertexReader3D normalization to the position and make the normal unit length.
+     */
+    private static void normalize(double[] point, double[] transform) {
+        for (int c = 0; c < 3; c++) point[c] = (point[c] - transform[c]) * transform[3];
+        double length = Math.sqrt(point[3] * point[3] + point[4] * point[4] + point[5] * point[5]);
+        if (length > 1e-12) {
+            for (int c = 3; c < 6; c++) point[c] /= length;
+        }
+    }
+
+    private static Path tileFile(Path directory, int tile) {
+        return directory.resolve("tile-" + tile + ".bin");
+    }
+
+    private static void deleteTree(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((p, q) -> q.getNameCount() - p.getNameCount()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    System.err.println("Cannot delete " + p + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Cannot delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    public long getPointCount() {
+        return m_lPointCount;
+    }
+
+    /**
+     * @return peak heap usage of the last reconstruction, summed over the heap pools
+     */
+    public long getPeakHeapBytes() {
+        return m_lPeakHeapBytes;
+    }
+
+    @FunctionalInterface
+    private interface InputOpener {
+        InputStream open() throws IOException;
+    }
+
+    private int m_iTilesPerAxis = 4;
+
+    private double m_dOverlap = 0.15;
+
+    private int m_iDownSamplingStep = 1;
+
+    private Path m_WorkDirectory = null;
+
+    // statistics of the last reconstruction
+    private long m_lPointCount = 0;
+
+    private long m_lTriangleCount = 0;
+
+    private long m_lPeakHeapBytes = 0;
+
+    // grid range of MarchingCubesGenerator for normalized clouds
+    private static final double MIN_COORD = -1.1;
+
+    private static final double MAX_COORD = 1.1;
+
+    // fewer points cannot describe a surface patch
+    private static final int MIN_TILE_POINTS = 16;
+
+    // triangles are kept up to this many cells away from the tile's points, at least
+    private static final double KEEP_CELLS = 2.0;
+
+    // largest down sampling step a dense tile may be given
+    private static final int MAX_TILE_STEP = 64;
+
+    // share of the maximum heap a tile's solve is planned for
+    private static final double MATRIX_HEAP_FRACTION = 0.5;
+
+    // tile files written at the same time while binning
+    private static final int MAX_OPEN_FILES = 256;
+
+    private static final int TILE_BUFFER_BYTES = 1 << 14;
+
+    public static void main(String[] args) throws IOException {
+        OutOfCoreReconstructor reconstructor = new OutOfCoreReconstructor();
+        reconstructor.setTilesPerAxis(args.length > 1 ? Integer.parseInt(args[1]) : 2);
+        reconstructor.setDownSamplingStep(args.length > 2 ? Integer.parseInt(args[2]) : 4);
+        int grid = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        try (StlTriangleSink sink = new StlTriangleSink(Path.of("out_of_core.stl"))) {
+            if (args.length > 0) {
+                reconstructor.reconstruct(Path.of(args[0]), grid, sink);
+            } else {
+                reconstructor.reconstructResource("bunny.xyz", grid, sink);
+            }
+            System.out.println("Triangles written: " + sink.getTriangleCount());
+        }
+    }
+}
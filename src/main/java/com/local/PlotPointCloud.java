@@ -2,24 +2,28 @@ package com.local;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
-import org.lwjgl.opengl.GL30;
 import com.local.PointBuffer;
 import com.local.VertexReader3D;
 
 public class PlotPointCloud {
 
-    // Draw a triangle with vertices in NDC
     public void show(String resourceName) {
+        show(new String[]{resourceName});
+    }
+
+    /**
+     * Open a window that loads the given point clouds in the background.
+     * Keys 1-9 switch between them.
+     */
+    public void show(String[] resourceNames) {
 
         // Create GL context and GLFW window
         GLFWErrorCallback errorCallback = GLFWErrorCallback.createPrint(System.err);
@@ -62,34 +66,66 @@ public class PlotPointCloud {
         GL20.glLinkProgram(program);
         GL20.glUseProgram(program);
       
-        var cloudData = VertexReader3D.readPointCloudData(resourceName);
-        var vertexBuffer = cloudData.get(0);
-        int pointCount = vertexBuffer.size();
-        float[] vert_coords = new float[pointCount*3];
-        for (int i = 0; i < pointCount*3; i++) {
-            vert_coords[i] = (float) vertexBuffer.getRawArray()[i];
-        }
-        FloatBuffer fbo = BufferUtils.createFloatBuffer(vert_coords.length);
-        fbo.put(vert_coords);
-        fbo.flip();
-      
-        int vbo = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, fbo, GL15.GL_STATIC_DRAW);
+        // Loading runs on a worker thread, the loop below only polls for finished buffers
+        ReconstructionService service = new ReconstructionService(1);
+        HashMap<String, PointOctree> loadedClouds = new HashMap<>();
+        m_iRequestedModel = 0;
+        int currentModel = -1;
+        ReconstructionJob<PointOctree> job = null;
+        OctreePointRenderer renderer = null;
+
+        // keys 1-9 switch between the given point clouds
+        GLFW.glfwSetKeyCallback(window, (win, key, scancode, action, mods) -> {
+            if (action == GLFW.GLFW_PRESS && key >= GLFW.GLFW_KEY_1 && key <= GLFW.GLFW_KEY_9) {
+                int idx = key - GLFW.GLFW_KEY_1;
+                if (idx < resourceNames.length) {
+                    m_iRequestedModel = idx;
+                }
+            }
+        });
       
-        int vao = GL30.glGenVertexArrays();
-        GL30.glBindVertexArray(vao);
-        GL20.glEnableVertexAttribArray(0);
-        GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 0, 0);
-        
         int locAngle = GL20.glGetUniformLocation(program, "angle");
+        int[] width = new int[1];
+        int[] height = new int[1];
+        double lastTitleUpdate = 0.0;
       
         // Loop and render
         while (!GLFW.glfwWindowShouldClose(window)) {
             GLFW.glfwPollEvents();
+
+            // start loading when another cloud is selected
+            if (m_iRequestedModel != currentModel) {
+                currentModel = m_iRequestedModel;
+                String name = resourceNames[currentModel];
+                if (job != null) {
+                    job.cancel();
+                    job = null;
+                }
+                if (renderer != null) {
+                    renderer.release();
+                    renderer = null;
+                }
+                if (loadedClouds.containsKey(name)) {
+                    renderer = new OctreePointRenderer(loadedClouds.get(name), POINT_BUDGET, GPU_BUDGET_BYTES);
+                } else {
+                    job = service.submitLoadOctree(name, null);
+                }
+                GLFW.glfwSetWindowTitle(window, name);
+            }
+
+            // poll the running job, start drawing once the octree is open
+            if (job != null && job.isDone()) {
+                PointOctree cloud = job.poll();
+                if (cloud != null) {
+                    loadedClouds.put(resourceNames[currentModel], cloud);
+                    renderer = new OctreePointRenderer(cloud, POINT_BUDGET, GPU_BUDGET_BYTES);
+                } else {
+                    System.err.println("Failed to load " + resourceNames[currentModel] + ": " + job.getError());
+                }
+                job = null;
+            }
             
             GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
-            GL30.glBindVertexArray(vao);
             
             double time = GLFW.glfwGetTime(); 
             // compute current angle
@@ -97,16 +133,35 @@ public class PlotPointCloud {
             // pass angle to shader
             GL20.glUniform1f(locAngle, currentAngle);
 
-            GL11.glPointSize(3.0f); 
-            GL11.glDrawArrays(GL11.GL_POINTS, 0, pointCount);
+            if (renderer != null) {
+                GLFW.glfwGetFramebufferSize(window, width, height);
+                GL11.glViewport(0, 0, width[0], height[0]);
+                // the vertex shader scales the model by 0.7 into clip space [-1, 1]
+                renderer.draw(VIEW_SCALE * 0.5 * Math.min(width[0], height[0]));
+
+                if (time - lastTitleUpdate > 1.0) {
+                    lastTitleUpdate = time;
+                    GLFW.glfwSetWindowTitle(window, resourceNames[currentModel] + " - " + renderer.getDrawnPoints()
+                            + " / " + renderer.getOctree().getPointCount() + " points, "
+                            + renderer.getResidentBytes() / (1024 * 1024) + " MB on GPU");
+                }
+            }
             
             GLFW.glfwSwapBuffers(window);
         }
       
       
         // free resources
-        GL15.glDeleteBuffers(vbo);
-        GL30.glDeleteVertexArrays(vao);
+        if (job != null) {
+            job.cancel();
+        }
+        service.shutdown();
+        if (renderer != null) {
+            renderer.release();
+        }
+        for (PointOctree cloud : loadedClouds.values()) {
+            cloud.close();
+        }
         GLFW.glfwDestroyWindow(window);
         GLFW.glfwTerminate();
         GLFW.glfwSetErrorCallback(null).free();
@@ -124,7 +179,18 @@ public class PlotPointCloud {
         return shader;
     }
 
+    // cloud selected with the number keys, written by the GLFW key callback
+    private int m_iRequestedModel = 0;
+
+    // most points drawn per frame, keeps the frame time bounded for any cloud size
+    private static final long POINT_BUDGET = 4_000_000;
+
+    private static final long GPU_BUDGET_BYTES = 256L << 20;
+
+    // model scale of pointCloud_vertShader.glsl
+    private static final double VIEW_SCALE = 0.7;
+
     public static void main(String[] args) {
-        new PlotPointCloud().show("bunny.xyz");
+        new PlotPointCloud().show(new String[]{"bunny.xyz", "armadillo.xyz", "2torus.xyz"});
     }
 }
\ No newline at end of file
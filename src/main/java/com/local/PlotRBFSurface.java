@@ -2,10 +2,9 @@ package com.local;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
@@ -22,8 +21,15 @@ import com.local.MarchingCubesGenerator;
 
 public class PlotRBFSurface {
 
-    // Draw a triangle with vertices in NDC
     public void show(String resourceName) {
+        show(new String[]{resourceName});
+    }
+
+    /**
+     * Open a window that reconstructs the given models in the background.
+     * Keys 1-9 switch between them, finished meshes are kept for the session.
+     */
+    public void show(String[] resourceNames) {
 
         // Create GL context and GLFW window
         GLFWErrorCallback errorCallback = GLFWErrorCallback.createPrint(System.err);
@@ -72,51 +78,39 @@ public class PlotRBFSurface {
         GL20.glLinkProgram(program);
         GL20.glUseProgram(program);
       
-        // var cloudData = VertexReader3D.readPointCloudData(resourceName);
-        
-        // RFV surface reconstruction
-        RBFReconstructor rbf = new RBFReconstructor();
-        rbf.setDownSamplingStep(3);
-        rbf.computeWeights(resourceName);
-
-        // Marching Cubes mesh generation
-        MarchingCubesGenerator mc = new MarchingCubesGenerator(rbf);
-        mc.generateMesh(60, 60, 60);
-        var meshVerts = mc.getVertices();
-        var meshNormals = mc.getNormals();
-        int vertexCount = meshVerts.size();
-        if (vertexCount == 0) {
-            System.err.println("No surface generated!");
-            return;
-        }
-
-        FloatBuffer vertBuffer = BufferUtils.createFloatBuffer(vertexCount * 3);
-        FloatBuffer normalsBuffer = BufferUtils.createFloatBuffer(vertexCount * 3);
-        for(int i=0; i<vertexCount; i++) {
-             vertBuffer.put((float)meshVerts.get(i, 0));
-             vertBuffer.put((float)meshVerts.get(i, 1));
-             vertBuffer.put((float)meshVerts.get(i, 2));
-             normalsBuffer.put((float)meshNormals.get(i, 0));
-             normalsBuffer.put((float)meshNormals.get(i, 1));
-             normalsBuffer.put((float)meshNormals.get(i, 2));
-        }
-        vertBuffer.flip();
-        normalsBuffer.flip();
+        // Reconstruction runs on worker threads, the loop below only polls for finished buffers
+        ReconstructionService service = new ReconstructionService();
+        HashMap<String, QuantizedMesh> loadedMeshes = new HashMap<>();
+        m_iRequestedModel = 0;
+        int currentModel = -1;
+        ReconstructionJob<QuantizedMesh> job = null;
+
+        // keys 1-9 switch between the given models
+        GLFW.glfwSetKeyCallback(window, (win, key, scancode, action, mods) -> {
+            if (action == GLFW.GLFW_PRESS && key >= GLFW.GLFW_KEY_1 && key <= GLFW.GLFW_KEY_9) {
+                int idx = key - GLFW.GLFW_KEY_1;
+                if (idx < resourceNames.length) {
+                    m_iRequestedModel = idx;
+                }
+            }
+        });
 
         int vao = GL30.glGenVertexArrays();
         GL30.glBindVertexArray(vao);
       
-        int vboPos = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboPos);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertBuffer, GL15.GL_STATIC_DRAW);
-        GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 0, 0);
+        // one interleaved buffer of quantized vertices, see QuantizedMesh
+        int vbo = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+        GL20.glVertexAttribPointer(0, 3, GL11.GL_SHORT, true, QuantizedMesh.VERTEX_STRIDE, 0);
         GL20.glEnableVertexAttribArray(0);
-      
-        int vboNorm = GL15.glGenBuffers();
-        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboNorm);
-        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, normalsBuffer, GL15.GL_STATIC_DRAW);
-        GL20.glVertexAttribPointer(1, 3, GL11.GL_FLOAT, false, 0, 0);
+        GL20.glVertexAttribPointer(1, 2, GL11.GL_SHORT, true, QuantizedMesh.VERTEX_STRIDE, QuantizedMesh.NORMAL_OFFSET);
         GL20.glEnableVertexAttribArray(1);
+
+        // the element buffer binding is part of the VAO state
+        int ebo = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, ebo);
+
+        int indexCount = 0;
         
         // Set background color
         GL11.glClearColor(.9f, .9f, .9f, 1.0f);
@@ -125,10 +119,49 @@ public class PlotRBFSurface {
         // GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_LINE);
 
         int locAngle = GL20.glGetUniformLocation(program, "angle");
+        int locScale = GL20.glGetUniformLocation(program, "positionScale");
+        int locOffset = GL20.glGetUniformLocation(program, "positionOffset");
       
         // Loop and render
         while (!GLFW.glfwWindowShouldClose(window)) {
             GLFW.glfwPollEvents();
+
+            // start a new reconstruction when another model is selected
+            if (m_iRequestedModel != currentModel) {
+                currentModel = m_iRequestedModel;
+                String name = resourceNames[currentModel];
+                if (job != null) {
+                    job.cancel();
+                    job = null;
+                }
+                if (loadedMeshes.containsKey(name)) {
+                    indexCount = uploadMesh(loadedMeshes.get(name), vao, vbo, ebo, locScale, locOffset);
+                } else {
+                    indexCount = 0;
+                    m_sProgress = "load 0%";
+                    job = service.submitReconstructQuantized(name, 3, 60,
+                            (stage, fraction) -> m_sProgress = stage + " " + (int) (fraction * 100) + "%");
+                }
+                GLFW.glfwSetWindowTitle(window, name);
+            }
+
+            // poll the running job, upload once its buffers are ready
+            if (job != null) {
+                String name = resourceNames[currentModel];
+                if (job.isDone()) {
+                    QuantizedMesh mesh = job.poll();
+                    if (mesh != null && mesh.getIndexCount() > 0) {
+                        loadedMeshes.put(name, mesh);
+                        indexCount = uploadMesh(mesh, vao, vbo, ebo, locScale, locOffset);
+                    } else {
+                        System.err.println("No surface generated for " + name + ": " + job.getError());
+                    }
+                    job = null;
+                    GLFW.glfwSetWindowTitle(window, name);
+                } else {
+                    GLFW.glfwSetWindowTitle(window, name + " - " + m_sProgress);
+                }
+            }
             
             GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
             GL30.glBindVertexArray(vao);
@@ -140,21 +173,48 @@ public class PlotRBFSurface {
             GL20.glUniform1f(locAngle, currentAngle);
 
             // Draw the reconstructed triangle mesh
-            GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, vertexCount);
+            if (indexCount > 0) {
+                GL11.glDrawElements(GL11.GL_TRIANGLES, indexCount, GL11.GL_UNSIGNED_INT, 0);
+            }
             
             GLFW.glfwSwapBuffers(window);
         }
       
       
         // free resources
-        GL15.glDeleteBuffers(vboPos);
-        // GL15.glDeleteBuffers(vboNorm);
+        if (job != null) {
+            job.cancel();
+        }
+        service.shutdown();
+        GL15.glDeleteBuffers(vbo);
+        GL15.glDeleteBuffers(ebo);
         GL30.glDeleteVertexArrays(vao);
         GLFW.glfwDestroyWindow(window);
         GLFW.glfwTerminate();
         GLFW.glfwSetErrorCallback(null).free();
     }
 
+    /**
+     * Upload finished buffers into the existing VBO and EBO and set the dequantization uniforms.
+     * @return number of indices to draw
+     */
+    private int uploadMesh(QuantizedMesh mesh, int vao, int vbo, int ebo, int locScale, int locOffset) {
+        GL30.glBindVertexArray(vao);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, mesh.getVertices(), GL15.GL_STATIC_DRAW);
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, ebo);
+        GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndices(), GL15.GL_STATIC_DRAW);
+
+        float[] scale = mesh.getPositionScale();
+        float[] offset = mesh.getPositionOffset();
+        GL20.glUniform3f(locScale, scale[0], scale[1], scale[2]);
+        GL20.glUniform3f(locOffset, offset[0], offset[1], offset[2]);
+
+        System.out.println("Uploaded " + mesh.getUploadSize() / 1024 + " KB, float triangle soup: "
+                + 24L * mesh.getIndexCount() / 1024 + " KB");
+        return mesh.getIndexCount();
+    }
+
     private String loadResourceShader(String shaderPath) {
         String shader = "";
         try{
@@ -167,7 +227,13 @@ public class PlotRBFSurface {
         return shader;
     }
 
+    // model selected with the number keys, written by the GLFW key callback
+    private int m_iRequestedModel = 0;
+
+    // latest progress message, written by the worker thread
+    private volatile String m_sProgress = "";
+
     public static void main(String[] args) {
-        new PlotRBFSurface().show("bunny.xyz");
+        new PlotRBFSurface().show(new String[]{"bunny.xyz", "armadillo.xyz", "2torus.xyz"});
     }
 }
\ No newline at end of file
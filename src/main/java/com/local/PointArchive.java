@@ -0,0 +1,575 @@
+package com.local;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.lz4.LZ4;
+import org.lwjgl.util.lz4.LZ4HC;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Compressed point cloud archive with random access by region, a compact replacement for
+ * .xyz text files.
+ *
+ * Points are split into chunks of at most CHUNK_POINTS by recursive median splits along the
+ * longest axis, so every chunk covers a compact box. Coordinates are quantized to QUANT_BITS
+ * bits over the largest extent of the cloud. Inside a chunk the points are sorted in Morton
+ * order and stored as zig-zag deltas from the previous point, split into byte planes so that
+ * the mostly zero high bytes form long runs; normals are octahedral snorm16 pairs. Chunks are
+ * compressed with LZ4 HC, which costs time once when writing and decodes at plain LZ4 speed.
+ *
+ * Only the header and the chunk index with the quantized bounds of every chunk are read on
+ * open. A region query reads and decompresses just the chunks whose box intersects it, in
+ * parallel, and keeps the points inside the box.
+ *
+ * File layout (little endian): header, compressed chunks, chunk index.
+ */
+public class PointArchive {
+
+    private PointArchive(Path file, FileChannel channel, long pointCount, boolean hasNormals, double[] min,
+                         double step, int[] counts, int[] bounds, long[] offsets, int[] compressedSizes) {
+        m_File = file;
+        m_Channel = channel;
+        m_lPointCount = pointCount;
+        m_bHasNormals = hasNormals;
+        m_dMin = min;
+        m_dStep = step;
+        m_iCounts = counts;
+        m_iBounds = bounds;
+        m_lOffsets = offsets;
+        m_iCompressedSizes = compressedSizes;
+    }
+
+    /**
+     * Write an archive of a point cloud in its own coordinates.
+     * @param normals one normal per vertex, or null for a cloud without normals
+     */
+    public static void write(PointBuffer vertices, PointBuffer normals, Path file) throws IOException {
+        int n = vertices.size();
+        if (normals != null && normals.size() != n) {
+            throw new IllegalArgumentException("Normal count " + normals.size() + " does not match point count " + n);
+        }
+        long start = System.currentTimeMillis();
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) {
+                min[c] = Math.min(min[c], vertices.get(i, c));
+                max[c] = Math.max(max[c], vertices.get(i, c));
+            }
+        }
+        double extent = 0.0;
+        for (int c = 0; c < 3; c++) {
+            if (n == 0) min[c] = 0.0;
+            extent = Math.max(extent, max[c] - min[c]);
+        }
+        double step = extent > 0.0 ? extent / QUANT_MAX : 1.0;
+
+        int[] q = new int[n * 3];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) {
+                q[i * 3 + c] = (int) Math.round((vertices.get(i, c) - min[c]) / step);
+            }
+        }
+        short[] octahedral = null;
+        if (normals != null) {
+            octahedral = new short[n * 2];
+            for (int i = 0; i < n; i++) {
+                QuantizedMesh.encodeOctahedral(normals.get(i, 0), normals.get(i, 1), normals.get(i, 2), octahedral, i * 2);
+            }
+        }
+
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[i] = i;
+        }
+        IntArrayList chunkStarts = new IntArrayList();
+        split(q, index, 0, n, chunkStarts);
+        chunkStarts.add(n);
+        int chunkCount = chunkStarts.size() - 1;
+
+        // chunks compress independently, the file is written in chunk order afterwards
+        int[] bounds = new int[chunkCount * 6];
+        byte[][] compressed = new byte[chunkCount][];
+        short[] normalCodes = octahedral;
+        Thread owner = Thread.currentThread();
+        IntStream.range(0, chunkCount).parallel().forEach(ch -> {
+            ReconstructionJob.checkCancelled(owner);
+            compressed[ch] = encodeChunk(q, normalCodes, index, chunkStarts.getInt(ch), chunkStarts.getInt(ch + 1),
+                    bounds, ch * 6);
+        });
+
+        long[] offsets = new long[chunkCount];
+        long position = HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int ch = 0; ch < chunkCount; ch++) {
+                offsets[ch] = position;
+                writeFully(out, ByteBuffer.wrap(compressed[ch]), position);
+                position += compressed[ch].length;
+            }
+
+            ByteBuffer table = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int ch = 0; ch < chunkCount; ch++) {
+                table.putInt(chunkStarts.getInt(ch + 1) - chunkStarts.getInt(ch));
+                for (int c = 0; c < 6; c++) {
+                    table.putInt(bounds[ch * 6 + c]);
+                }
+                table.putLong(offsets[ch]);
+                table.putInt(compressed[ch].length);
+            }
+            table.flip();
+            writeFully(out, table, position);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(n).putInt(chunkCount).putInt(normals != null ? 1 : 0);
+            header.putDouble(min[0]).putDouble(min[1]).putDouble(min[2]).putDouble(step).putLong(position);
+            header.flip();
+            writeFully(out, header, 0);
+        }
+        long size = position + (long) chunkCount * INDEX_ENTRY_SIZE;
+        System.out.println("Archive written in " + (System.currentTimeMillis() - start) + "ms: " + n + " points, "
+                + chunkCount + " chunks, " + size / 1024 + "KB (" + String.format("%.2f", n > 0 ? size / (double) n : 0.0)
+                + " bytes/point) -> " + file.toAbsolutePath());
+    }
+
+    /**
+     * Split index[lo, hi) at the median of the longest axis of its box until every part holds
+     * at most CHUNK_POINTS points.
+     * @param chunkStarts receives the first index position of every chunk, in order
+     */
+    private static void split(int[] q, int[] index, int lo, int hi, IntArrayList chunkStarts) {
+        if (hi - lo <= CHUNK_POINTS) {
+            if (hi > lo) chunkStarts.add(lo);
+            return;
+        }
+        int[] boxMin = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] boxMax = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int i = lo; i < hi; i++) {
+            for (int c = 0; c < 3; c++) {
+                boxMin[c] = Math.min(boxMin[c], q[index[i] * 3 + c]);
+                boxMax[c] = Math.max(boxMax[c], q[index[i] * 3 + c]);
+            }
+        }
+        int axis = 0;
+        for (int c = 1; c < 3; c++) {
+            if (boxMax[c] - boxMin[c] > boxMax[axis] - boxMin[axis]) axis = c;
+        }
+        int a = axis;
+        IntArrays.quickSort(index, lo, hi, (u, v) -> Integer.compare(q[u * 3 + a], q[v * 3 + a]));
+        int mid = (lo + hi) >>> 1;
+        split(q, index, lo, mid, chunkStarts);
+        split(q, index, mid, hi, chunkStarts);
+    }
+
+    /**
+     * Sort one chunk in Morton order, delta encode it into byte planes and compress it.
+     * @param bounds receives the quantized min xyz and max xyz of the chunk at offset
+     */
+    private static byte[] encodeChunk(int[] q, short[] octahedral, int[] index, int lo, int hi, int[] bounds, int offset) {
+        int count = hi - lo;
+        for (int c = 0; c < 3; c++) {
+            bounds[offset + c] = Integer.MAX_VALUE;
+            bounds[offset + 3 + c] = Integer.MIN_VALUE;
+        }
+        for (int i = lo; i < hi; i++) {
+            for (int c = 0; c < 3; c++) {
+                bounds[offset + c] = Math.min(bounds[offset + c], q[index[i] * 3 + c]);
+                bounds[offset + 3 + c] = Math.max(bounds[offset + 3 + c], q[index[i] * 3 + c]);
+            }
+        }
+        long[] keys = new long[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            int p = index[lo + i];
+            keys[i] = morton(q[p * 3] - bounds[offset], q[p * 3 + 1] - bounds[offset + 1], q[p * 3 + 2] - bounds[offset + 2]);
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, (u, v) -> Long.compare(keys[u], keys[v]));
+
+        ByteBuffer raw = BufferUtils.createByteBuffer(rawSize(count, octahedral != null));
+        int[] previous = {bounds[offset], bounds[offset + 1], bounds[offset + 2]};
+        for (int i = 0; i < count; i++) {
+            int p = index[lo + order[i]];
+            for (int c = 0; c < 3; c++) {
+                int delta = q[p * 3 + c] - previous[c];
+                previous[c] = q[p * 3 + c];
+                int zigzag = (delta << 1) ^ (delta >> 31);
+                for (int b = 0; b < 4; b++) {
+                    raw.put((c * 4 + b) * count + i, (byte) (zigzag >>> (8 * b)));
+                }
+            }
+            if (octahedral != null) {
+                for (int c = 0; c < 2; c++) {
+                    short code = octahedral[p * 2 + c];
+                    raw.put((12 + c * 2) * count + i, (byte) code);
+                    raw.put((13 + c * 2) * count + i, (byte) (code >>> 8));
+                }
+            }
+        }
+
+        ByteBuffer packed = BufferUtils.createByteBuffer(LZ4.LZ4_compressBound(raw.capacity()));
+        int size = LZ4HC.LZ4_compress_HC(raw, packed, LZ4HC.LZ4HC_CLEVEL_DEFAULT);
+        if (size <= 0) {
+            throw new IllegalStateException("LZ4 compression of a chunk failed.");
+        }
+        byte[] out = new byte[size];
+        packed.get(0, out);
+        return out;
+    }
+
+    private static int rawSize(int count, boolean hasNormals) {
+        return count * (hasNormals ? 16 : 12);
+    }
+
+    /**
+     * Interleave the low 21 bits of x, y and z.
+     */
+    private static long morton(int x, int y, int z) {
+        return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+    }
+
+    private static long spread(int v) {
+        long x = v & 0x1fffffL;
+        x = (x | x << 32) & 0x1f00000000ffffL;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    /**
+     * Open an archive, reading only the header and the chunk index.
+     */
+    public static PointArchive open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a point archive: " + file);
+            }
+            long pointCount = header.getLong();
+            int chunkCount = header.getInt();
+            boolean hasNormals = header.getInt() != 0;
+            double[] min = {header.getDouble(), header.getDouble(), header.getDouble()};
+            double step = header.getDouble();
+            long tableOffset = header.getLong();
+
+            ByteBuffer table = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, table, tableOffset);
+            table.flip();
+            int[] counts = new int[chunkCount];
+            int[] bounds = new int[chunkCount * 6];
+            long[] offsets = new long[chunkCount];
+            int[] compressedSizes = new int[chunkCount];
+            for (int ch = 0; ch < chunkCount; ch++) {
+                counts[ch] = table.getInt();
+                for (int c = 0; c < 6; c++) {
+                    bounds[ch * 6 + c] = table.getInt();
+                }
+                offsets[ch] = table.getLong();
+                compressedSizes[ch] = table.getInt();
+            }
+            return new PointArchive(file, channel, pointCount, hasNormals, min, step, counts, bounds, offsets,
+                    compressedSizes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the points inside an axis aligned box, bounds included, in archive coordinates.
+     * Safe to call from several threads.
+     * @param boxMin lower corner, null together with boxMax for the whole cloud
+     * @return vertex and normal buffer; normals are all 0 if the archive has none
+     */
+    public ArrayList<PointBuffer> read(double[] boxMin, double[] boxMax) throws IOException {
+        if ((boxMin == null) != (boxMax == null)) {
+            throw new IllegalArgumentException("Give both box corners or neither.");
+        }
+        double[] lo = boxMin != null ? boxMin : new double[] {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] hi = boxMax != null ? boxMax : new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+
+        IntArrayList selected = new IntArrayList();
+        long compressedBytes = 0;
+        for (int ch = 0; ch < m_iCounts.length; ch++) {
+            boolean intersects = true;
+            for (int c = 0; c < 3 && intersects; c++) {
+                intersects = coordinate(c, m_iBounds[ch * 6 + c]) <= hi[c] && coordinate(c, m_iBounds[ch * 6 + 3 + c]) >= lo[c];
+            }
+            if (intersects) {
+                selected.add(ch);
+                compressedBytes += m_iCompressedSizes[ch];
+            }
+        }
+
+        // per chunk: xyz followed by the normals of the points inside the box
+        double[][] decoded = new double[selected.size()][];
+        Thread owner = Thread.currentThread();
+        try {
+            IntStream.range(0, selected.size()).parallel().forEach(s -> {
+                ReconstructionJob.checkCancelled(owner);
+                try {
+                    decoded[s] = decodeChunk(selected.getInt(s), lo, hi);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        int total = 0;
+        for (double[] d : decoded) {
+            total += d.length / 6;
+        }
+        PointBuffer vertices = new PointBuffer(total);
+        PointBuffer normals = new PointBuffer(total);
+        int p = 0;
+        for (double[] d : decoded) {
+            int count = d.length / 6;
+            for (int i = 0; i < count; i++, p++) {
+                for (int c = 0; c < 3; c++) {
+                    vertices.set(p, c, d[i * 3 + c]);
+                    normals.set(p, c, d[(count + i) * 3 + c]);
+                }
+            }
+        }
+        m_iLastChunksRead = selected.size();
+        m_lLastBytesRead = compressedBytes;
+
+        ArrayList<PointBuffer> result = new ArrayList<>();
+        result.add(vertices);
+        result.add(normals);
+        return result;
+    }
+
+    /**
+     * Read, decompress and decode one chunk, keeping the points inside [lo, hi].
+     */
+    private double[] decodeChunk(int ch, double[] lo, double[] hi) throws IOException {
+        int count = m_iCounts[ch];
+        ByteBuffer packed = BufferUtils.createByteBuffer(m_iCompressedSizes[ch]);
+        readFully(m_Channel, packed, m_lOffsets[ch]);
+        packed.flip();
+        int rawSize = rawSize(count, m_bHasNormals);
+        ByteBuffer raw = BufferUtils.createByteBuffer(rawSize);
+        if (LZ4.LZ4_decompress_safe(packed, raw) != rawSize) {
+            throw new IOException("Corrupt chunk " + ch + " in " + m_File);
+        }
+
+        double[] vertices = new double[count * 3];
+        double[] normals = new double[count * 3];
+        double[] normal = new double[3];
+        int[] position = {m_iBounds[ch * 6], m_iBounds[ch * 6 + 1], m_iBounds[ch * 6 + 2]};
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            boolean inside = true;
+            for (int c = 0; c < 3; c++) {
+                int zigzag = 0;
+                for (int b = 0; b < 4; b++) {
+                    zigzag |= (raw.get((c * 4 + b) * count + i) & 0xff) << (8 * b);
+                }
+                position[c] += (zigzag >>> 1) ^ -(zigzag & 1);
+                double v = coordinate(c, position[c]);
+                vertices[kept * 3 + c] = v;
+                inside &= v >= lo[c] && v <= hi[c];
+            }
+            if (!inside) continue;
+            if (m_bHasNormals) {
+                short u = (short) ((raw.get(12 * count + i) & 0xff) | (raw.get(13 * count + i) << 8));
+                short v = (short) ((raw.get(14 * count + i) & 0xff) | (raw.get(15 * count + i) << 8));
+                QuantizedMesh.decodeOctahedral(u, v, normal);
+                normals[kept * 3] = normal[0];
+                normals[kept * 3 + 1] = normal[1];
+                normals[kept * 3 + 2] = normal[2];
+            }
+            kept++;
+        }
+        double[] out = new double[kept * 6];
+        System.arraycopy(vertices, 0, out, 0, kept * 3);
+        System.arraycopy(normals, 0, out, kept * 3, kept * 3);
+        return out;
+    }
+
+    private double coordinate(int axis, int quantized) {
+        return m_dMin[axis] + quantized * m_dStep;
+    }
+
+    public long getPointCount() {
+        return m_lPointCount;
+    }
+
+    public int getChunkCount() {
+        return m_iCounts.length;
+    }
+
+    public boolean hasNormals() {
+        return m_bHasNormals;
+    }
+
+    /**
+     * @return largest coordinate error introduced by the quantization
+     */
+    public double getPrecision() {
+        return 0.5 * m_dStep;
+    }
+
+    /**
+     * @return chunks decompressed by the last read
+     */
+    public int getLastChunksRead() {
+        return m_iLastChunksRead;
+    }
+
+    /**
+     * @return compressed bytes read by the last read
+     */
+    public long getLastBytesRead() {
+        return m_lLastBytesRead;
+    }
+
+    public Path getFile() {
+        return m_File;
+    }
+
+    public void close() {
+        try {
+            m_Channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing archive: " + e.getMessage());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of point archive.");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private final Path m_File;
+
+    // positional reads only, shared by the decoding threads
+    private final FileChannel m_Channel;
+
+    private final long m_lPointCount;
+
+    private final boolean m_bHasNormals;
+
+    // coordinate of quantized 0 per axis, and the quantization step shared by all axes
+    private final double[] m_dMin;
+
+    private final double m_dStep;
+
+    // per chunk: point count, quantized min xyz and max xyz, file offset, compressed size
+    private final int[] m_iCounts;
+
+    private final int[] m_iBounds;
+
+    private final long[] m_lOffsets;
+
+    private final int[] m_iCompressedSizes;
+
+    // statistics of the last read
+    private volatile int m_iLastChunksRead;
+
+    private volatile long m_lLastBytesRead;
+
+    // at most this many points per chunk, about 64KB before compression
+    public static final int CHUNK_POINTS = 4096;
+
+    // bits per quantized coordinate over the largest extent of the cloud
+    private static final int QUANT_BITS = 20;
+
+    private static final int QUANT_MAX = (1 << QUANT_BITS) - 1;
+
+    private static final int MAGIC = 0x50414331; // "PAC1"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 * 8 + 8;
+
+    private static final int INDEX_ENTRY_SIZE = 4 + 6 * 4 + 8 + 4;
+
+    /**
+     * args: input .xyz file (default the bunny.xyz resource), output archive
+     */
+    public static void main(String[] args) throws IOException, URISyntaxException {
+        Path input;
+        if (args.length > 0) {
+            input = Paths.get(args[0]);
+        } else {
+            URL url = PointArchive.class.getClassLoader().getResource("bunny.xyz");
+            if (url == null) {
+                throw new IllegalArgumentException("Resource not found: bunny.xyz");
+            }
+            input = Paths.get(url.toURI());
+        }
+        Path output = Paths.get(args.length > 1 ? args[1] : "RBF_Cache/" + input.getFileName() + ".pac");
+
+        long start = System.currentTimeMillis();
+        ArrayList<PointBuffer> cloud = VertexReader3D.readPointCloudData(input, null);
+        long parseMillis = System.currentTimeMillis() - start;
+        PointBuffer points = cloud.get(0);
+        write(points, cloud.get(1), output);
+
+        PointArchive archive = open(output);
+        try {
+            start = System.currentTimeMillis();
+            PointBuffer all = archive.read(null, null).get(0);
+            System.out.printf("Text: %d KB parsed in %d ms; archive: %d KB read in %d ms, %d points, precision %.2e%n",
+                    Files.size(input) / 1024, parseMillis, Files.size(output) / 1024,
+                    System.currentTimeMillis() - start, all.size(), archive.getPrecision());
+
+            // one octant of the bounding box
+            double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            for (int i = 0; i < points.size(); i++) {
+                for (int c = 0; c < 3; c++) {
+                    min[c] = Math.min(min[c], points.get(i, c));
+                    max[c] = Math.max(max[c], points.get(i, c));
+                }
+            }
+            double[] mid = {0.5 * (min[0] + max[0]), 0.5 * (min[1] + max[1]), 0.5 * (min[2] + max[2])};
+            start = System.currentTimeMillis();
+            PointBuffer octant = archive.read(min, mid).get(0);
+            System.out.printf("Octant: %d points from %d of %d chunks (%d KB) in %d ms%n", octant.size(),
+                    archive.getLastChunksRead(), archive.getChunkCount(), archive.getLastBytesRead() / 1024,
+                    System.currentTimeMillis() - start);
+        } finally {
+            archive.close();
+        }
+    }
+}
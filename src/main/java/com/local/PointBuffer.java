@@ -62,6 +62,13 @@ public class PointBuffer {
         m_Data.clear();
     }
 
+    /**
+     * grow or truncate to numPoints points, new points are 0
+     */
+    public void resize(int numPoints) {
+        m_Data.size(numPoints*3);
+    }
+
     public void reserve(int numPoints) {
         m_Data.ensureCapacity(numPoints*3);
     }
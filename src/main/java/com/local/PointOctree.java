@@ -0,0 +1,902 @@
+package com.local;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.StringTokenizer;
+
+import org.lwjgl.BufferUtils;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Level of detail octree of a point cloud, kept on disk in RBF_Cache.
+ *
+ * Every inner node stores a representative subset of its points, at most one per cell of
+ * a SAMPLE_GRID^3 grid over the node (the point closest to the cell centre); the rest
+ * goes to the children. Drawing a node together with all its selected ancestors gives
+ * the cloud at the spacing of that node. Only the node table lives on the heap, point
+ * data is read per node on demand, and the build streams the cloud through bucket files,
+ * so the cloud size is bounded by the disk.
+ *
+ * File layout (native byte order): header, point data of all nodes in depth first order
+ * as float xyz, node table.
+ */
+public class PointOctree {
+
+    private PointOctree(Path file, FileChannel channel, long pointCount, float[] bounds, int[] levels,
+                        int[] counts, long[] offsets, int[] children) {
+        m_File = file;
+        m_Channel = channel;
+        m_lPointCount = pointCount;
+        m_fBounds = bounds;
+        m_iLevels = levels;
+        m_iCounts = counts;
+        m_lOffsets = offsets;
+        m_iChildren = children;
+    }
+
+    /**
+     * Open the cached octree of a resource, or build it from the .xyz file. The cache is
+     * rebuilt when the size or modification time of the resource changes. The text is
+     * streamed, so building needs no more heap than a cached open.
+     */
+    public static PointOctree loadOrBuild(String resourceName) throws IOException {
+        URL url = PointOctree.class.getClassLoader().getResource(resourceName);
+        if (url == null) {
+            throw new IllegalArgumentException("Resource not found: " + resourceName);
+        }
+        long stamp = resourceStamp(url);
+        Path file = Paths.get("RBF_Cache", resourceName + ".octree");
+        PointOctree cached = open(file, stamp);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        Path points = file.resolveSibling(file.getFileName() + ".points");
+        try {
+            long n = convertPoints(url, points);
+            return build(points, n, file, stamp);
+        } finally {
+            Files.deleteIfExists(points);
+        }
+    }
+
+    /**
+     * Build the octree file of n points and open it.
+     * @param points float xyz per point in native byte order, read in batches and not modified
+     * @param stamp identifies the source, checked by open
+     */
+    public static PointOctree build(Path points, long n, Path file, long stamp) throws IOException {
+        long start = System.currentTimeMillis();
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Builder builder = new Builder(out, file);
+            float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            builder.scanBounds(points, min, max);
+            float half = 0.0f;
+            for (int c = 0; c < 3; c++) {
+                half = Math.max(half, 0.5f * (max[c] - min[c]));
+            }
+            // points on the upper faces must still fall into the last cell
+            half = half * 1.0001f + 1e-6f;
+
+            if (n > 0) {
+                builder.build(points, n, 0.5f * (min[0] + max[0]), 0.5f * (min[1] + max[1]), 0.5f * (min[2] + max[2]),
+                        half, 0);
+            }
+            builder.flush();
+
+            // node table after the point data, then the header that points to it
+            int nodeCount = builder.m_Levels.size();
+            long tableOffset = HEADER_SIZE + builder.m_lWritten * 12L;
+            ByteBuffer table = ByteBuffer.allocate(nodeCount * NODE_SIZE).order(ByteOrder.nativeOrder());
+            for (int node = 0; node < nodeCount; node++) {
+                for (int c = 0; c < 4; c++) {
+                    table.putFloat(builder.m_Bounds.getFloat(node * 4 + c));
+                }
+                table.putInt(builder.m_Levels.getInt(node));
+                table.putInt(builder.m_Counts.getInt(node));
+                table.putLong(builder.m_Offsets.getLong(node));
+                for (int c = 0; c < 8; c++) {
+                    table.putInt(builder.m_Children.getInt(node * 8 + c));
+                }
+            }
+            table.flip();
+            writeFully(out, table, tableOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putLong(stamp).putLong(n).putInt(nodeCount).putLong(tableOffset);
+            header.flip();
+            writeFully(out, header, 0);
+            out.force(false);
+
+            System.out.println("Octree built in " + (System.currentTimeMillis() - start) + "ms: " + n + " points, "
+                    + nodeCount + " nodes, depth " + builder.m_iMaxLevel + " -> " + file.toAbsolutePath());
+        }
+        PointOctree tree = open(file, stamp);
+        if (tree == null) {
+            throw new IOException("Could not reopen octree file " + file);
+        }
+        return tree;
+    }
+
+    /**
+     * Write the positions of an .xyz file to a point file as build reads it, normalized as
+     * VertexReader3D.readPointCloudData does. Two passes over the text: the bounding box,
+     * then the points.
+     * @return number of points
+     */
+    private static long convertPoints(URL url, Path points) throws IOException {
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] point = new double[3];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()), 1 << 16)) {
+            long count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!parse(line, point)) continue;
+                for (int c = 0; c < 3; c++) {
+                    if (point[c] < min[c]) min[c] = point[c];
+                    if (point[c] > max[c]) max[c] = point[c];
+                }
+                if (++count % CANCEL_CHECK_LINES == 0) ReconstructionJob.checkCancelled();
+            }
+        }
+        double[] transform = VertexReader3D.normalization(min, max);
+
+        long count = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()), 1 << 16);
+             FileChannel out = FileChannel.open(points, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!parse(line, point)) continue;
+                if (buffer.remaining() < 12) {
+                    append(out, buffer);
+                }
+                for (int c = 0; c < 3; c++) {
+                    buffer.putFloat((float) ((point[c] - transform[c]) * transform[3]));
+                }
+                if (++count % CANCEL_CHECK_LINES == 0) ReconstructionJob.checkCancelled();
+            }
+            append(out, buffer);
+        }
+        System.out.println("Octree input: " + count + " points streamed to " + points);
+        return count;
+    }
+
+    /**
+     * Parse the position of an "x y z [nx ny nz]" line.
+     * @return false for lines without a point
+     */
+    private static boolean parse(String line, double[] point) {
+        StringTokenizer st = new StringTokenizer(line);
+        if (st.countTokens() < 3) return false;
+        for (int c = 0; c < 3; c++) point[c] = Double.parseDouble(st.nextToken());
+        return true;
+    }
+
+    /**
+     * Open an octree file, reading only the node table.
+     * @return null if the file is missing or does not match the stamp
+     */
+    public static PointOctree open(Path file, long stamp) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != stamp) {
+                System.err.println("Octree cache mismatch, rebuilding: " + file);
+                channel.close();
+                return null;
+            }
+            long pointCount = header.getLong();
+            int nodeCount = header.getInt();
+            long tableOffset = header.getLong();
+
+            ByteBuffer table = ByteBuffer.allocate(nodeCount * NODE_SIZE).order(ByteOrder.nativeOrder());
+            readFully(channel, table, tableOffset);
+            table.flip();
+            float[] bounds = new float[nodeCount * 4];
+            int[] levels = new int[nodeCount];
+            int[] counts = new int[nodeCount];
+            long[] offsets = new long[nodeCount];
+            int[] children = new int[nodeCount * 8];
+            for (int node = 0; node < nodeCount; node++) {
+                for (int c = 0; c < 4; c++) {
+                    bounds[node * 4 + c] = table.getFloat();
+                }
+                levels[node] = table.getInt();
+                counts[node] = table.getInt();
+                offsets[node] = table.getLong();
+                for (int c = 0; c < 8; c++) {
+                    children[node * 8 + c] = table.getInt();
+                }
+            }
+            System.out.println("Octree opened: " + file.toAbsolutePath() + " (" + pointCount + " points, "
+                    + nodeCount + " nodes)");
+            return new PointOctree(file, channel, pointCount, bounds, levels, counts, offsets, children);
+
+        } catch (IOException e) {
+            System.err.println("Error opening octree: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read the points of one node from disk. Safe to call from several threads.
+     * An interrupt during a read closes the shared channel; the interrupted read fails, and
+     * other reads reopen the channel and retry, so the octree stays usable.
+     * @return direct float buffer, xyz per point, ready for glBufferData
+     */
+    public FloatBuffer readNode(int node) throws IOException {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(m_iCounts[node] * 12);
+        long position = HEADER_SIZE + m_lOffsets[node] * 12L;
+        try {
+            readFully(m_Channel, buffer, position);
+        } catch (ClosedChannelException e) {
+            if (m_bClosed || Thread.currentThread().isInterrupted()) throw e;
+            buffer.clear();
+            readFully(reopenChannel(), buffer, position);
+        }
+        buffer.flip();
+        return buffer.asFloatBuffer();
+    }
+
+    private synchronized FileChannel reopenChannel() throws IOException {
+        if (m_bClosed) {
+            throw new ClosedChannelException();
+        }
+        if (!m_Channel.isOpen()) {
+            m_Channel = FileChannel.open(m_File, StandardOpenOption.READ);
+        }
+        return m_Channel;
+    }
+
+    /**
+     * Choose the nodes to draw, coarse to fine, until the point budget is used up or the
+     * point spacing on screen falls below minSpacingPixels. Ancestors of a selected node
+     * are always selected before it.
+     * @param pixelsPerUnit screen pixels per model unit
+     * @param out receives the selected nodes, parents first
+     * @return number of points in the selection
+     */
+    public long selectNodes(double pixelsPerUnit, double minSpacingPixels, long pointBudget, IntArrayList out) {
+        out.clear();
+        if (m_iLevels.length == 0) return 0;
+        IntHeapPriorityQueue queue = new IntHeapPriorityQueue((a, b) -> {
+            int c = Integer.compare(m_iLevels[a], m_iLevels[b]);
+            return c != 0 ? c : Integer.compare(m_iCounts[b], m_iCounts[a]);
+        });
+        queue.enqueue(0);
+        long total = 0;
+        while (!queue.isEmpty()) {
+            int node = queue.dequeueInt();
+            if (total + m_iCounts[node] > pointBudget && !out.isEmpty()) break;
+            out.add(node);
+            total += m_iCounts[node];
+            if (getSpacing(node) * pixelsPerUnit <= minSpacingPixels) continue;
+            for (int c = 0; c < 8; c++) {
+                int child = m_iChildren[node * 8 + c];
+                if (child >= 0) queue.enqueue(child);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return distance between the representative points of a node
+     */
+    public double getSpacing(int node) {
+        return 2.0 * m_fBounds[node * 4 + 3] / SAMPLE_GRID;
+    }
+
+    public boolean isLeaf(int node) {
+        for (int c = 0; c < 8; c++) {
+            if (m_iChildren[node * 8 + c] >= 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return child c (0..7) of a node, -1 if empty
+     */
+    public int getChild(int node, int c) {
+        return m_iChildren[node * 8 + c];
+    }
+
+    public int getNodeCount() {
+        return m_iLevels.length;
+    }
+
+    public int getNodePointCount(int node) {
+        return m_iCounts[node];
+    }
+
+    public int getNodeLevel(int node) {
+        return m_iLevels[node];
+    }
+
+    public long getPointCount() {
+        return m_lPointCount;
+    }
+
+    public Path getFile() {
+        return m_File;
+    }
+
+    public synchronized void close() {
+        m_bClosed = true;
+        try {
+            m_Channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Size and modification time of a resource, so a changed .xyz file invalidates the cache.
+     */
+    private static long resourceStamp(URL url) throws IOException {
+        long size;
+        long modified;
+        if ("file".equals(url.getProtocol())) {
+            try {
+                Path path = Paths.get(url.toURI());
+                size = Files.size(path);
+                modified = Files.getLastModifiedTime(path).toMillis();
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        } else {
+            URLConnection connection = url.openConnection();
+            size = connection.getContentLengthLong();
+            modified = connection.getLastModified();
+            // only opened so that the connection is released again
+            connection.getInputStream().close();
+        }
+        return size * 0x9E3779B97F4A7C15L ^ modified;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of octree file.");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Write the filled part of a buffer at the channel's position and clear it.
+     */
+    private static void append(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Depth first construction, writing point data as nodes are finished. Nodes of up to
+     * IN_CORE_POINTS points are built in memory; larger ones are streamed from their point
+     * file twice, once to pick the representatives and once to write them and bin the rest
+     * into one bucket file per octant. The subtrees are then built one bucket at a time, so
+     * the heap holds at most IN_CORE_POINTS points however large the cloud is.
+     */
+    private static class Builder {
+
+        Builder(FileChannel out, Path file) {
+            m_Out = out;
+            m_File = file;
+            int cells = SAMPLE_GRID * SAMPLE_GRID * SAMPLE_GRID;
+            m_CellBest = new int[cells];
+            m_CellOrdinal = new long[cells];
+            m_CellDist = new float[cells];
+            m_CellStamp = new int[cells];
+            m_WriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            m_ReadBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            m_BucketBuffers = new ByteBuffer[8];
+            for (int o = 0; o < 8; o++) {
+                m_BucketBuffers[o] = ByteBuffer.allocateDirect(BUCKET_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            }
+            m_lFilePosition = HEADER_SIZE;
+        }
+
+        /**
+         * Bounding box of the points of a point file.
+         */
+        void scanBounds(Path points, float[] min, float[] max) throws IOException {
+            try (FileChannel in = FileChannel.open(points, StandardOpenOption.READ)) {
+                long first = 0;
+                for (int batch; (batch = readBatch(in, first)) > 0; first += batch) {
+                    for (int i = 0; i < batch * 3; i++) {
+                        float v = m_ReadBuffer.getFloat(i * 4);
+                        int c = i % 3;
+                        min[c] = Math.min(min[c], v);
+                        max[c] = Math.max(max[c], v);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Build the node of the count points of a point file inside the cube (cx, cy, cz) +- half.
+         * @return node index
+         */
+        int build(Path points, long count, float cx, float cy, float cz, float half, int level) throws IOException {
+            if (count <= IN_CORE_POINTS) {
+                load(points, (int) count);
+                return build(0, (int) count, cx, cy, cz, half, level);
+            }
+            ReconstructionJob.checkCancelled();
+            int node = addNode(cx, cy, cz, half, level);
+            if (level >= MAX_LEVEL) {
+                try (FileChannel in = FileChannel.open(points, StandardOpenOption.READ)) {
+                    long first = 0;
+                    for (int batch; (batch = readBatch(in, first)) > 0; first += batch) {
+                        for (int i = 0; i < batch; i++) {
+                            writePoint(m_ReadBuffer.getFloat(i * 12), m_ReadBuffer.getFloat(i * 12 + 4),
+                                    m_ReadBuffer.getFloat(i * 12 + 8));
+                        }
+                    }
+                }
+                m_Counts.set(node, Math.toIntExact(count));
+                return node;
+            }
+
+            // first pass: representative per grid cell, identified by its position in the file
+            float x0 = cx - half, y0 = cy - half, z0 = cz - half;
+            float cellSize = 2.0f * half / SAMPLE_GRID;
+            int stamp = ++m_iStamp;
+            try (FileChannel in = FileChannel.open(points, StandardOpenOption.READ)) {
+                long first = 0;
+                for (int batch; (batch = readBatch(in, first)) > 0; first += batch) {
+                    ReconstructionJob.checkCancelled();
+                    for (int i = 0; i < batch; i++) {
+                        float fx = (m_ReadBuffer.getFloat(i * 12) - x0) / cellSize;
+                        float fy = (m_ReadBuffer.getFloat(i * 12 + 4) - y0) / cellSize;
+                        float fz = (m_ReadBuffer.getFloat(i * 12 + 8) - z0) / cellSize;
+                        int cell = cellIndex(fx, fy, fz);
+                        float dx = fx - (float) Math.floor(fx) - 0.5f;
+                        float dy = fy - (float) Math.floor(fy) - 0.5f;
+                        float dz = fz - (float) Math.floor(fz) - 0.5f;
+                        float d = dx * dx + dy * dy + dz * dz;
+                        if (m_CellStamp[cell] != stamp || d < m_CellDist[cell]) {
+                            m_CellStamp[cell] = stamp;
+                            m_CellDist[cell] = d;
+                            m_CellOrdinal[cell] = first + i;
+                        }
+                    }
+                }
+            }
+
+            // second pass: write the representatives, bin the rest by octant; the order of
+            // the input is kept, so the result is the same as building in memory
+            Path[] buckets = new Path[8];
+            long[] octantCount = new long[8];
+            try {
+                FileChannel[] bucketOut = new FileChannel[8];
+                int selected = 0;
+                try (FileChannel in = FileChannel.open(points, StandardOpenOption.READ)) {
+                    long first = 0;
+                    for (int batch; (batch = readBatch(in, first)) > 0; first += batch) {
+                        ReconstructionJob.checkCancelled();
+                        for (int i = 0; i < batch; i++) {
+                            float x = m_ReadBuffer.getFloat(i * 12);
+                            float y = m_ReadBuffer.getFloat(i * 12 + 4);
+                            float z = m_ReadBuffer.getFloat(i * 12 + 8);
+                            int cell = cellIndex((x - x0) / cellSize, (y - y0) / cellSize, (z - z0) / cellSize);
+                            if (m_CellStamp[cell] == stamp && m_CellOrdinal[cell] == first + i) {
+                                writePoint(x, y, z);
+                                selected++;
+                                continue;
+                            }
+                            int o = octant(x, y, z, cx, cy, cz);
+                            if (bucketOut[o] == null) {
+                                buckets[o] = m_File.resolveSibling(m_File.getFileName() + ".bucket" + (level + 1) + "-" + o);
+                                bucketOut[o] = FileChannel.open(buckets[o], StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                            }
+                            ByteBuffer buffer = m_BucketBuffers[o];
+                            if (buffer.remaining() < 12) {
+                                append(bucketOut[o], buffer);
+                            }
+                            buffer.putFloat(x).putFloat(y).putFloat(z);
+                            octantCount[o]++;
+                        }
+                    }
+                    for (int o = 0; o < 8; o++) {
+                        if (bucketOut[o] != null) append(bucketOut[o], m_BucketBuffers[o]);
+                    }
+                } finally {
+                    for (int o = 0; o < 8; o++) {
+                        m_BucketBuffers[o].clear();
+                        if (bucketOut[o] != null) bucketOut[o].close();
+                    }
+                }
+                m_Counts.set(node, selected);
+
+                float q = 0.5f * half;
+                for (int o = 0; o < 8; o++) {
+                    if (octantCount[o] == 0) continue;
+                    int child = build(buckets[o], octantCount[o],
+                            cx + ((o & 1) != 0 ? q : -q), cy + ((o & 2) != 0 ? q : -q), cz + ((o & 4) != 0 ? q : -q),
+                            q, level + 1);
+                    m_Children.set(node * 8 + o, child);
+                    Files.delete(buckets[o]);
+                    buckets[o] = null;
+                }
+            } finally {
+                for (Path bucket : buckets) {
+                    if (bucket != null) Files.deleteIfExists(bucket);
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Build the node of the points m_Index[lo, hi) inside the cube (cx, cy, cz) +- half.
+         * @return node index
+         */
+        private int build(int lo, int hi, float cx, float cy, float cz, float half, int level) throws IOException {
+            ReconstructionJob.checkCancelled();
+            int node = addNode(cx, cy, cz, half, level);
+
+            int count = hi - lo;
+            if (count <= LEAF_CAPACITY || level >= MAX_LEVEL) {
+                for (int i = lo; i < hi; i++) {
+                    writePoint(m_Index[i]);
+                }
+                m_Counts.set(node, count);
+                return node;
+            }
+
+            // representative per grid cell: the point closest to the cell centre
+            float x0 = cx - half, y0 = cy - half, z0 = cz - half;
+            float cellSize = 2.0f * half / SAMPLE_GRID;
+            int stamp = ++m_iStamp;
+            for (int i = lo; i < hi; i++) {
+                int p = m_Index[i];
+                float fx = (m_Xyz[p * 3] - x0) / cellSize;
+                float fy = (m_Xyz[p * 3 + 1] - y0) / cellSize;
+                float fz = (m_Xyz[p * 3 + 2] - z0) / cellSize;
+                int cell = cellIndex(fx, fy, fz);
+                float dx = fx - (float) Math.floor(fx) - 0.5f;
+                float dy = fy - (float) Math.floor(fy) - 0.5f;
+                float dz = fz - (float) Math.floor(fz) - 0.5f;
+                float d = dx * dx + dy * dy + dz * dz;
+                if (m_CellStamp[cell] != stamp || d < m_CellDist[cell]) {
+                    m_CellStamp[cell] = stamp;
+                    m_CellDist[cell] = d;
+                    m_CellBest[cell] = p;
+                }
+            }
+
+            // write the representatives, bucket the rest by octant
+            int[] octantCount = new int[8];
+            int selected = 0;
+            for (int i = lo; i < hi; i++) {
+                int p = m_Index[i];
+                if (isRepresentative(p, x0, y0, z0, cellSize)) {
+                    writePoint(p);
+                    selected++;
+                } else {
+                    octantCount[octant(p, cx, cy, cz)]++;
+                }
+            }
+            m_Counts.set(node, selected);
+
+            int[] octantStart = new int[9];
+            octantStart[0] = lo;
+            for (int o = 0; o < 8; o++) {
+                octantStart[o + 1] = octantStart[o] + octantCount[o];
+            }
+            int[] fill = new int[8];
+            for (int i = lo; i < hi; i++) {
+                int p = m_Index[i];
+                if (isRepresentative(p, x0, y0, z0, cellSize)) continue;
+                int o = octant(p, cx, cy, cz);
+                m_Scratch[octantStart[o] + fill[o]++] = p;
+            }
+            int rest = octantStart[8] - lo;
+            System.arraycopy(m_Scratch, lo, m_Index, lo, rest);
+
+            float q = 0.5f * half;
+            for (int o = 0; o < 8; o++) {
+                if (octantCount[o] == 0) continue;
+                int child = build(octantStart[o], octantStart[o + 1],
+                        cx + ((o & 1) != 0 ? q : -q), cy + ((o & 2) != 0 ? q : -q), cz + ((o & 4) != 0 ? q : -q),
+                        q, level + 1);
+                m_Children.set(node * 8 + o, child);
+            }
+            return node;
+        }
+
+        private int addNode(float cx, float cy, float cz, float half, int level) {
+            int node = m_Levels.size();
+            m_Bounds.add(cx);
+            m_Bounds.add(cy);
+            m_Bounds.add(cz);
+            m_Bounds.add(half);
+            m_Levels.add(level);
+            m_Offsets.add(m_lWritten);
+            m_Counts.add(0);
+            for (int c = 0; c < 8; c++) {
+                m_Children.add(-1);
+            }
+            m_iMaxLevel = Math.max(m_iMaxLevel, level);
+            return node;
+        }
+
+        /**
+         * Read a point file into m_Xyz, the arrays are kept for the next bucket.
+         */
+        private void load(Path points, int n) throws IOException {
+            if (m_Index == null || m_Index.length < n) {
+                m_Xyz = new float[n * 3];
+                m_Index = new int[n];
+                m_Scratch = new int[n];
+            }
+            try (FileChannel in = FileChannel.open(points, StandardOpenOption.READ)) {
+                int first = 0;
+                for (int batch; first < n && (batch = readBatch(in, first)) > 0; first += batch) {
+                    m_ReadBuffer.asFloatBuffer().get(m_Xyz, first * 3, Math.min(batch, n - first) * 3);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                m_Index[i] = i;
+            }
+        }
+
+        /**
+         * Fill m_ReadBuffer with the points from index first on.
+         * @return number of points read, less than a full buffer only at the end of the file
+         */
+        private int readBatch(FileChannel in, long first) throws IOException {
+            m_ReadBuffer.clear();
+            long position = first * 12L;
+            while (m_ReadBuffer.hasRemaining()) {
+                int read = in.read(m_ReadBuffer, position);
+                if (read < 0) break;
+                position += read;
+            }
+            m_ReadBuffer.flip();
+            return m_ReadBuffer.remaining() / 12;
+        }
+
+        private boolean isRepresentative(int p, float x0, float y0, float z0, float cellSize) {
+            int cell = cellIndex((m_Xyz[p * 3] - x0) / cellSize, (m_Xyz[p * 3 + 1] - y0) / cellSize,
+                    (m_Xyz[p * 3 + 2] - z0) / cellSize);
+            return m_CellStamp[cell] == m_iStamp && m_CellBest[cell] == p;
+        }
+
+        private int octant(int p, float cx, float cy, float cz) {
+            return octant(m_Xyz[p * 3], m_Xyz[p * 3 + 1], m_Xyz[p * 3 + 2], cx, cy, cz);
+        }
+
+        private static int octant(float x, float y, float z, float cx, float cy, float cz) {
+            return (x >= cx ? 1 : 0) | (y >= cy ? 2 : 0) | (z >= cz ? 4 : 0);
+        }
+
+        private static int cellIndex(float fx, float fy, float fz) {
+            int ix = Math.min(SAMPLE_GRID - 1, Math.max(0, (int) fx));
+            int iy = Math.min(SAMPLE_GRID - 1, Math.max(0, (int) fy));
+            int iz = Math.min(SAMPLE_GRID - 1, Math.max(0, (int) fz));
+            return (ix * SAMPLE_GRID + iy) * SAMPLE_GRID + iz;
+        }
+
+        private void writePoint(int p) throws IOException {
+            writePoint(m_Xyz[p * 3], m_Xyz[p * 3 + 1], m_Xyz[p * 3 + 2]);
+        }
+
+        private void writePoint(float x, float y, float z) throws IOException {
+            if (m_WriteBuffer.remaining() < 12) {
+                flush();
+            }
+            m_WriteBuffer.putFloat(x);
+            m_WriteBuffer.putFloat(y);
+            m_WriteBuffer.putFloat(z);
+            m_lWritten++;
+        }
+
+        void flush() throws IOException {
+            m_WriteBuffer.flip();
+            int bytes = m_WriteBuffer.remaining();
+            writeFully(m_Out, m_WriteBuffer, m_lFilePosition);
+            m_lFilePosition += bytes;
+            m_WriteBuffer.clear();
+        }
+
+        private final FileChannel m_Out;
+
+        // the octree file, bucket files are created next to it
+        private final Path m_File;
+
+        // points of the bucket built in memory, grown to the largest one
+        private float[] m_Xyz;
+
+        private int[] m_Index;
+
+        private int[] m_Scratch;
+
+        private final int[] m_CellBest;
+
+        // the same for streamed nodes, position of the point in its file
+        private final long[] m_CellOrdinal;
+
+        private final float[] m_CellDist;
+
+        private final int[] m_CellStamp;
+
+        private int m_iStamp = 0;
+
+        private final ByteBuffer m_WriteBuffer;
+
+        private final ByteBuffer m_ReadBuffer;
+
+        // one per octant, only used while a streamed node bins its points
+        private final ByteBuffer[] m_BucketBuffers;
+
+        private long m_lFilePosition;
+
+        private long m_lWritten = 0;
+
+        private int m_iMaxLevel = 0;
+
+        private final FloatArrayList m_Bounds = new FloatArrayList();
+
+        private final IntArrayList m_Levels = new IntArrayList();
+
+        private final IntArrayList m_Counts = new IntArrayList();
+
+        private final LongArrayList m_Offsets = new LongArrayList();
+
+        private final IntArrayList m_Children = new IntArrayList();
+    }
+
+    private final Path m_File;
+
+    // replaced by reopenChannel after an interrupted read closed it
+    private volatile FileChannel m_Channel;
+
+    private volatile boolean m_bClosed;
+
+    private final long m_lPointCount;
+
+    // cx, cy, cz, half size per node
+    private final float[] m_fBounds;
+
+    private final int[] m_iLevels;
+
+    // points stored in the node itself
+    private final int[] m_iCounts;
+
+    // first point of the node in the data section
+    private final long[] m_lOffsets;
+
+    // 8 per node, octant bits x=1 y=2 z=4, -1 if empty
+    private final int[] m_iChildren;
+
+    // representatives per node are picked on a SAMPLE_GRID^3 grid
+    public static final int SAMPLE_GRID = 32;
+
+    // nodes with at most this many points are not split
+    private static final int LEAF_CAPACITY = 8192;
+
+    // guards against endless splitting of duplicate points
+    private static final int MAX_LEVEL = 20;
+
+    private static final int MAGIC = 0x504f4331; // "POC1"
+
+    private static final int VERSION = 1;
+
+    // magic, version, source stamp, point count, node count, node table offset
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 8;
+
+    // bounds, level, count, offset, children
+    private static final int NODE_SIZE = 4 * 4 + 4 + 4 + 8 + 8 * 4;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    // nodes with more points are split through bucket files instead of in memory
+    private static final int IN_CORE_POINTS = 1 << 21;
+
+    private static final int BUCKET_BUFFER_SIZE = 1 << 18;
+
+    private static final int CANCEL_CHECK_LINES = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        // synthetic scan: noisy sphere and torus, far larger than the bundled clouds
+        long n = args.length > 0 ? Long.parseLong(args[0]) : 5_000_000;
+        java.util.Random random = new java.util.Random(42);
+        Path input = Paths.get("RBF_Cache", "synthetic.points");
+        Files.createDirectories(input.getParent());
+        try (FileChannel out = FileChannel.open(input, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            for (long i = 0; i < n; i++) {
+                if (buffer.remaining() < 12) {
+                    append(out, buffer);
+                }
+                double u = random.nextDouble() * 2 * Math.PI, v = random.nextDouble() * 2 * Math.PI;
+                if (i % 2 == 0) {
+                    double z = random.nextDouble() * 2 - 1, r = Math.sqrt(1 - z * z);
+                    buffer.putFloat((float) (0.5 * r * Math.cos(u) - 0.4));
+                    buffer.putFloat((float) (0.5 * r * Math.sin(u)));
+                    buffer.putFloat((float) (0.5 * z));
+                } else {
+                    buffer.putFloat((float) ((0.4 + 0.15 * Math.cos(v)) * Math.cos(u) + 0.5));
+                    buffer.putFloat((float) (0.15 * Math.sin(v)));
+                    buffer.putFloat((float) ((0.4 + 0.15 * Math.cos(v)) * Math.sin(u)));
+                }
+            }
+            append(out, buffer);
+        }
+        PointOctree tree;
+        try {
+            tree = build(input, n, Paths.get("RBF_Cache", "synthetic.octree"), n);
+        } finally {
+            Files.deleteIfExists(input);
+        }
+
+        IntArrayList selection = new IntArrayList();
+        for (long budget : new long[]{100_000, 1_000_000, 3_000_000}) {
+            long start = System.nanoTime();
+            long points = tree.selectNodes(0.7 * 800 / 2, 1.0, budget, selection);
+            long selectUs = (System.nanoTime() - start) / 1000;
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int node : selection) {
+                bytes += tree.readNode(node).remaining() * 4L;
+            }
+            System.out.println("Budget " + budget + ": " + selection.size() + " nodes, " + points + " points, select "
+                    + selectUs + "us, read " + bytes / 1024 + "KB in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        tree.close();
+    }
+}
@@ -0,0 +1,16 @@
+package com.local;
+
+/**
+ * Callback used by long running reconstruction stages to report their progress.
+ * It is invoked on the worker thread doing the work, so implementations must not
+ * touch OpenGL state directly.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * @param stage name of the running stage ("load", "solve", "mesh", ...)
+     * @param fraction progress of that stage in [0, 1]
+     */
+    void onProgress(String stage, double fraction);
+}
@@ -0,0 +1,194 @@
+package com.local;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Compact GPU vertex format, 12 bytes per vertex instead of 24, interleaved:
+ *
+ *      bytes 0..5   position, 3 x snorm16 relative to the mesh bounds
+ *      bytes 6..7   padding, keeps the normal 4-byte aligned
+ *      bytes 8..11  normal, 2 x snorm16 octahedral encoding
+ *
+ * The vertex shader restores the position as p * positionScale + positionOffset and
+ * decodes the normal from the octahedron. Together with indexing this cuts the upload of
+ * a Marching Cubes mesh to about a quarter of the float triangle soup.
+ */
+public class QuantizedMesh {
+
+    private QuantizedMesh(ByteBuffer vertices, IntBuffer indices, int vertexCount, float[] scale, float[] offset) {
+        m_Vertices = vertices;
+        m_Indices = indices;
+        m_iVertexCount = vertexCount;
+        m_fPositionScale = scale;
+        m_fPositionOffset = offset;
+    }
+
+    /**
+     * Quantize a mesh with normals. An unindexed mesh gets the trivial index buffer.
+     */
+    public static QuantizedMesh fromMeshBuffers(MeshBuffers mesh) {
+        int vertexCount = mesh.getVertexCount();
+        FloatBuffer pos = mesh.getVertices().duplicate();
+        FloatBuffer nrm = mesh.getNormals() != null ? mesh.getNormals().duplicate() : null;
+
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < vertexCount; i++) {
+            for (int c = 0; c < 3; c++) {
+                float v = pos.get(i * 3 + c);
+                min[c] = Math.min(min[c], v);
+                max[c] = Math.max(max[c], v);
+            }
+        }
+        float[] offset = new float[3];
+        float[] scale = new float[3];
+        for (int c = 0; c < 3; c++) {
+            offset[c] = vertexCount > 0 ? 0.5f * (min[c] + max[c]) : 0.0f;
+            float half = vertexCount > 0 ? 0.5f * (max[c] - min[c]) : 0.0f;
+            scale[c] = half > 0.0f ? half : 1.0f;
+        }
+
+        ByteBuffer vertices = BufferUtils.createByteBuffer(vertexCount * VERTEX_STRIDE);
+        for (int i = 0; i < vertexCount; i++) {
+            for (int c = 0; c < 3; c++) {
+                vertices.putShort(toSnorm16((pos.get(i * 3 + c) - offset[c]) / scale[c]));
+            }
+            vertices.putShort((short) 0);
+            if (nrm != null) {
+                putOctahedral(vertices, nrm.get(i * 3), nrm.get(i * 3 + 1), nrm.get(i * 3 + 2));
+            } else {
+                vertices.putInt(0);
+            }
+        }
+        vertices.flip();
+
+        IntBuffer indices;
+        if (mesh.getIndices() != null) {
+            IntBuffer source = mesh.getIndices().duplicate();
+            indices = BufferUtils.createIntBuffer(source.remaining());
+            indices.put(source).flip();
+        } else {
+            indices = BufferUtils.createIntBuffer(vertexCount);
+            for (int i = 0; i < vertexCount; i++) {
+                indices.put(i);
+            }
+            indices.flip();
+        }
+        return new QuantizedMesh(vertices, indices, vertexCount, scale, offset);
+    }
+
+    /**
+     * Octahedral encoding: project onto |x|+|y|+|z| = 1 and fold the lower half over the diagonals.
+     */
+    private static void putOctahedral(ByteBuffer out, float nx, float ny, float nz) {
+        short[] code = new short[2];
+        encodeOctahedral(nx, ny, nz, code, 0);
+        out.putShort(code[0]);
+        out.putShort(code[1]);
+    }
+
+    /**
+     * Octahedral snorm16 pair of a normal, written to out[offset] and out[offset + 1].
+     */
+    static void encodeOctahedral(double nx, double ny, double nz, short[] out, int offset) {
+        double l1 = Math.abs(nx) + Math.abs(ny) + Math.abs(nz);
+        if (l1 <= 0.0) {
+            out[offset] = 0;
+            out[offset + 1] = 0;
+            return;
+        }
+        double x = nx / l1;
+        double y = ny / l1;
+        if (nz < 0.0) {
+            double fx = (1.0 - Math.abs(y)) * (x >= 0.0 ? 1.0 : -1.0);
+            double fy = (1.0 - Math.abs(x)) * (y >= 0.0 ? 1.0 : -1.0);
+            x = fx;
+            y = fy;
+        }
+        out[offset] = toSnorm16((float) x);
+        out[offset + 1] = toSnorm16((float) y);
+    }
+
+    /**
+     * Unit normal of an octahedral snorm16 pair, the inverse of encodeOctahedral.
+     */
+    static void decodeOctahedral(short u, short v, double[] normal) {
+        double x = Math.max(-1.0, u / 32767.0);
+        double y = Math.max(-1.0, v / 32767.0);
+        double z = 1.0 - Math.abs(x) - Math.abs(y);
+        if (z < 0.0) {
+            double fx = (1.0 - Math.abs(y)) * (x >= 0.0 ? 1.0 : -1.0);
+            double fy = (1.0 - Math.abs(x)) * (y >= 0.0 ? 1.0 : -1.0);
+            x = fx;
+            y = fy;
+        }
+        double len = Math.sqrt(x * x + y * y + z * z);
+        normal[0] = x / len;
+        normal[1] = y / len;
+        normal[2] = z / len;
+    }
+
+    private static short toSnorm16(float v) {
+        return (short) Math.round(Math.max(-1.0f, Math.min(1.0f, v)) * 32767.0f);
+    }
+
+    /**
+     * @return interleaved vertex data, VERTEX_STRIDE bytes per vertex, ready for glBufferData
+     */
+    public ByteBuffer getVertices() {
+        return m_Vertices;
+    }
+
+    public IntBuffer getIndices() {
+        return m_Indices;
+    }
+
+    public int getIndexCount() {
+        return m_Indices.remaining();
+    }
+
+    public int getVertexCount() {
+        return m_iVertexCount;
+    }
+
+    /**
+     * @return half extent of the bounds per axis, multiplied onto the snorm16 positions
+     */
+    public float[] getPositionScale() {
+        return m_fPositionScale;
+    }
+
+    /**
+     * @return centre of the bounds, added after scaling
+     */
+    public float[] getPositionOffset() {
+        return m_fPositionOffset;
+    }
+
+    /**
+     * @return bytes sent to the GPU, vertices plus indices
+     */
+    public long getUploadSize() {
+        return (long) m_Vertices.remaining() + 4L * m_Indices.remaining();
+    }
+
+    // bytes per vertex
+    public static final int VERTEX_STRIDE = 12;
+
+    // byte offset of the normal inside a vertex
+    public static final int NORMAL_OFFSET = 8;
+
+    private final ByteBuffer m_Vertices;
+
+    private final IntBuffer m_Indices;
+
+    private final int m_iVertexCount;
+
+    private final float[] m_fPositionScale;
+
+    private final float[] m_fPositionOffset;
+}
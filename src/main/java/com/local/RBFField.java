@@ -0,0 +1,321 @@
+package com.local;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+/**
+ * Immutable snapshot of a solved RBF field: f(x) = sum w_i |x - c_i| + c0 + c1 x + c2 y + c3 z.
+ *
+ * Centres and weights are copied into flat primitive arrays when the snapshot is made and
+ * never change afterwards, so a snapshot can be handed to any number of threads without
+ * locking. RBFReconstructor publishes a new snapshot after every solve; readers holding the
+ * old one keep evaluating it undisturbed.
+ */
+public final class RBFField implements ScalarField {
+
+    /**
+     * @param centers x, y, z of the centres, at least 3 * (solution.length - 4) values
+     * @param solution N kernel weights followed by the 4 polynomial coefficients
+     */
+    RBFField(double[] centers, double[] solution, int downSamplingStep, double smoothing) {
+        int n = solution.length - 4;
+        if (n < 0 || centers.length < 3 * n) {
+            throw new IllegalArgumentException("Field needs 3 coordinates per weight: " + centers.length
+                    + " coordinates for " + n + " weights.");
+        }
+        m_dCenters = Arrays.copyOf(centers, 3 * n);
+        m_dWeights = Arrays.copyOf(solution, n);
+        m_dC0 = solution[n];
+        m_dC1 = solution[n + 1];
+        m_dC2 = solution[n + 2];
+        m_dC3 = solution[n + 3];
+        m_iDownSamplingStep = downSamplingStep;
+        m_dSmoothing = smoothing;
+        m_lWeightsHash = hash(solution);
+        double sum = 0.0;
+        for (double w : m_dWeights) {
+            sum += Math.abs(w);
+        }
+        m_dLipschitz = sum + Math.sqrt(m_dC1*m_dC1 + m_dC2*m_dC2 + m_dC3*m_dC3);
+    }
+
+    @Override
+    public double evaluate(double x, double y, double z) {
+        double[] c = m_dCenters;
+        double[] w = m_dWeights;
+        double sum = 0.0;
+        for (int i = 0, k = 0; i < w.length; i++, k += 3) {
+            double dx = x - c[k];
+            double dy = y - c[k + 1];
+            double dz = z - c[k + 2];
+            sum += w[i] * Math.sqrt(dx*dx + dy*dy + dz*dz);
+        }
+        return sum + m_dC0 + m_dC1*x + m_dC2*y + m_dC3*z;
+    }
+
+    /**
+     * Value and exact gradient in a single pass over the centres,
+     * grad phi(|x - c|) = (x - c) / r for phi(r) = r.
+     */
+    @Override
+    public double evaluateWithGradient(double x, double y, double z, double[] gradient) {
+        double[] c = m_dCenters;
+        double[] w = m_dWeights;
+        double sum = 0.0;
+        double gx = 0.0, gy = 0.0, gz = 0.0;
+        for (int i = 0, k = 0; i < w.length; i++, k += 3) {
+            double dx = x - c[k];
+            double dy = y - c[k + 1];
+            double dz = z - c[k + 2];
+            double r = Math.sqrt(dx*dx + dy*dy + dz*dz);
+            sum += w[i] * r;
+            // the kernel is not differentiable at its centre, take 0 there
+            if (r > 0.0) {
+                double s = w[i] / r;
+                gx += s * dx; gy += s * dy; gz += s * dz;
+            }
+        }
+        gradient[0] = gx + m_dC1; gradient[1] = gy + m_dC2; gradient[2] = gz + m_dC3;
+        return sum + m_dC0 + m_dC1*x + m_dC2*y + m_dC3*z;
+    }
+
+    /**
+     * Global Lipschitz constant: every kernel term has a unit gradient, so
+     * |grad f| <= sum |w_i| + |(c1, c2, c3)| everywhere. Valid but loose, the weights of
+     * nearby centres largely cancel; see evaluateWithTaylorBound for a local bound.
+     */
+    public double getLipschitzBound() {
+        return m_dLipschitz;
+    }
+
+    /**
+     * Values and gradients of count points, plus per point a constant A of the second order
+     * bound |f(x + h) - f(x) - g . h| <= A |h|^2 (g the gradient at x), for conservative
+     * sphere tracing.
+     *
+     * A = sum |w_i| / |x - c_i|: the unit vectors u_i = (x - c_i) / |x - c_i| satisfy
+     * |u_i(y) - u_i(x)| <= 2 |y - x| / |x - c_i|, so the gradient moves by at most 2 A s at
+     * distance s, which integrates to A |h|^2. Unlike the global bound this adapts to the
+     * weights around x: near the surface steps come close to |f| / |g . d|.
+     * The centres are the outer loop, so a packet of points shares every centre load and
+     * the inner loop over the points vectorizes.
+     * @param gradients x, y, z of the gradient per point, 3 * count values
+     */
+    public void evaluateWithTaylorBound(double[] x, double[] y, double[] z, int count,
+                                        double[] values, double[] gradients, double[] bounds) {
+        double[] c = m_dCenters;
+        double[] w = m_dWeights;
+        double[] gx = new double[count], gy = new double[count], gz = new double[count];
+        for (int p = 0; p < count; p++) {
+            values[p] = m_dC0 + m_dC1*x[p] + m_dC2*y[p] + m_dC3*z[p];
+            bounds[p] = 0.0;
+        }
+        for (int i = 0, k = 0; i < w.length; i++, k += 3) {
+            double cx = c[k], cy = c[k + 1], cz = c[k + 2], wi = w[i], ai = Math.abs(wi);
+            for (int p = 0; p < count; p++) {
+                double dx = x[p] - cx;
+                double dy = y[p] - cy;
+                double dz = z[p] - cz;
+                double r = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                values[p] += wi * r;
+                // on a centre the gradient term vanishes with dx = dy = dz = 0 and the bound
+                // becomes huge, branch free so the loop vectorizes
+                double inv = 1.0 / Math.max(r, Double.MIN_NORMAL);
+                double s = wi * inv;
+                gx[p] += s * dx; gy[p] += s * dy; gz[p] += s * dz;
+                bounds[p] += ai * inv;
+            }
+        }
+        for (int p = 0; p < count; p++) {
+            gradients[3 * p] = gx[p] + m_dC1;
+            gradients[3 * p + 1] = gy[p] + m_dC2;
+            gradients[3 * p + 2] = gz[p] + m_dC3;
+        }
+    }
+
+    public int getNumCenters() {
+        return m_dWeights.length;
+    }
+
+    public int getDownSamplingStep() {
+        return m_iDownSamplingStep;
+    }
+
+    public double getSmoothing() {
+        return m_dSmoothing;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the weights and polynomial coefficients, keys caches derived from this field
+     */
+    public long getWeightsHash() {
+        return m_lWeightsHash;
+    }
+
+    /**
+     * @return bytes held by the arrays of this snapshot
+     */
+    public long getMemoryBytes() {
+        return 8L * (m_dCenters.length + m_dWeights.length);
+    }
+
+    /**
+     * Difference newer - older of two fields, to measure how far a re-solve moved the field.
+     * Centres present in both fields are merged, so evaluating the difference costs about as
+     * much as evaluating one field.
+     */
+    static final class Delta {
+
+        Delta(RBFField newer, RBFField older) {
+            Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+            index.defaultReturnValue(-1);
+            DoubleArrayList centers = new DoubleArrayList(older.m_dCenters.length);
+            DoubleArrayList weights = new DoubleArrayList(older.m_dWeights.length);
+            for (int i = 0; i < older.m_dWeights.length; i++) {
+                index.putIfAbsent(centerKey(older.m_dCenters, i), i);
+                for (int c = 0; c < 3; c++) centers.add(older.m_dCenters[3 * i + c]);
+                weights.add(-older.m_dWeights[i]);
+            }
+            boolean[] matched = new boolean[older.m_dWeights.length];
+            IntArrayList newerOnly = new IntArrayList();
+            for (int i = 0; i < newer.m_dWeights.length; i++) {
+                int j = index.get(centerKey(newer.m_dCenters, i));
+                if (j >= 0 && !matched[j] && older.m_dCenters[3 * j] == newer.m_dCenters[3 * i]
+                        && older.m_dCenters[3 * j + 1] == newer.m_dCenters[3 * i + 1]
+                        && older.m_dCenters[3 * j + 2] == newer.m_dCenters[3 * i + 2]) {
+                    weights.set(j, weights.getDouble(j) + newer.m_dWeights[i]);
+                    matched[j] = true;
+                } else {
+                    for (int c = 0; c < 3; c++) centers.add(newer.m_dCenters[3 * i + c]);
+                    weights.add(newer.m_dWeights[i]);
+                    newerOnly.add(i);
+                }
+            }
+            IntArrayList olderOnly = new IntArrayList();
+            for (int j = 0; j < matched.length; j++) {
+                if (!matched[j]) olderOnly.add(j);
+            }
+            m_iNewerOnly = newerOnly.toIntArray();
+            m_iOlderOnly = olderOnly.toIntArray();
+            m_dNewerCenters = newer.m_dCenters;
+            m_dOlderCenters = older.m_dCenters;
+            m_bSameCount = newer.m_dWeights.length == older.m_dWeights.length;
+            m_dCenters = centers.toDoubleArray();
+            m_dWeights = weights.toDoubleArray();
+            m_dC0 = newer.m_dC0 - older.m_dC0;
+            m_dC1 = newer.m_dC1 - older.m_dC1;
+            m_dC2 = newer.m_dC2 - older.m_dC2;
+            m_dC3 = newer.m_dC3 - older.m_dC3;
+        }
+
+        /**
+         * @return newer(x, y, z) - older(x, y, z), one pass over the merged centres
+         */
+        double evaluate(double x, double y, double z) {
+            double[] c = m_dCenters;
+            double[] w = m_dWeights;
+            double sum = 0.0;
+            for (int i = 0, k = 0; i < w.length; i++, k += 3) {
+                double dx = x - c[k];
+                double dy = y - c[k + 1];
+                double dz = z - c[k + 2];
+                sum += w[i] * Math.sqrt(dx*dx + dy*dy + dz*dz);
+            }
+            return sum + m_dC0 + m_dC1*x + m_dC2*y + m_dC3*z;
+        }
+
+        /**
+         * @return x, y, z of the centres found in only one of the fields, where the
+         * constraints were edited
+         */
+        double[] getMovedCenters() {
+            return getMovedCenters(0.0);
+        }
+
+        /**
+         * Centres found in only one of the fields, ignoring small displacements: if both
+         * fields have the same number of centres, e.g. two frames of a sequence whose points
+         * drift a little, a centre that kept its index and moved at most minDisplacement is
+         * not reported.
+         * @return x, y, z of the centres moved further than minDisplacement, old and new positions
+         */
+        double[] getMovedCenters(double minDisplacement) {
+            DoubleArrayList moved = new DoubleArrayList();
+            boolean[] small = new boolean[m_dOlderCenters.length / 3];
+            double limit = minDisplacement * minDisplacement;
+            for (int i : m_iNewerOnly) {
+                if (m_bSameCount && limit > 0.0) {
+                    double dx = m_dNewerCenters[3 * i] - m_dOlderCenters[3 * i];
+                    double dy = m_dNewerCenters[3 * i + 1] - m_dOlderCenters[3 * i + 1];
+                    double dz = m_dNewerCenters[3 * i + 2] - m_dOlderCenters[3 * i + 2];
+                    if (dx*dx + dy*dy + dz*dz <= limit) {
+                        small[i] = true;
+                        continue;
+                    }
+                }
+                for (int c = 0; c < 3; c++) moved.add(m_dNewerCenters[3 * i + c]);
+            }
+            for (int j : m_iOlderOnly) {
+                if (small[j]) continue;
+                for (int c = 0; c < 3; c++) moved.add(m_dOlderCenters[3 * j + c]);
+            }
+            return moved.toDoubleArray();
+        }
+
+        private static long centerKey(double[] centers, int i) {
+            long h = Double.doubleToLongBits(centers[3 * i]);
+            h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(centers[3 * i + 1]);
+            return h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(centers[3 * i + 2]);
+        }
+
+        // merged centres of both fields and their weight differences
+        private final double[] m_dCenters;
+
+        private final double[] m_dWeights;
+
+        private final double m_dC0, m_dC1, m_dC2, m_dC3;
+
+        // indices of the centres without an exact match in the other field
+        private final int[] m_iNewerOnly;
+
+        private final int[] m_iOlderOnly;
+
+        private final double[] m_dNewerCenters;
+
+        private final double[] m_dOlderCenters;
+
+        private final boolean m_bSameCount;
+    }
+
+    private static long hash(double[] solution) {
+        long hash = 0xcbf29ce484222325L;
+        for (double value : solution) {
+            long bits = Double.doubleToLongBits(value);
+            for (int b = 0; b < 8; b++) {
+                hash ^= (bits >>> (8 * b)) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    // x, y, z per centre
+    private final double[] m_dCenters;
+
+    private final double[] m_dWeights;
+
+    // linear polynomial c0 + c1 x + c2 y + c3 z
+    private final double m_dC0, m_dC1, m_dC2, m_dC3;
+
+    private final int m_iDownSamplingStep;
+
+    private final double m_dSmoothing;
+
+    private final long m_lWeightsHash;
+
+    // sum |w_i| + |(c1, c2, c3)|
+    private final double m_dLipschitz;
+}
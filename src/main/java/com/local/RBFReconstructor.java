@@ -1,5 +1,6 @@
 package com.local;
 
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.simple.SimpleMatrix;
 
 import java.io.BufferedInputStream;
@@ -14,41 +15,42 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.stream.IntStream;
 
 import com.local.VertexReader3D;
 import com.local.PointBuffer;
 
 
-public class RBFReconstructor {
+public class RBFReconstructor implements ScalarField {
 
+    /**
+     * Evaluate the currently published field. A running re-solve does not affect the result,
+     * the old field is evaluated until the new one is complete.
+     */
+    @Override
     public double evaluate(double x, double y, double z) {
-        if (m_Weights == null) return 0.0;
-        
-        int N = m_ConstraintPoints.size();
-        double sum = 0.0;
+        RBFField field = m_Field;
+        return field != null ? field.evaluate(x, y, z) : 0.0;
+    }
 
-        // phi
-        for (int i = 0; i < N; i++) {
-            double w = m_Weights.get(i, 0);
-            
-            // compute distance r
-            double dx = x - m_ConstraintPoints.get(i, 0);
-            double dy = y - m_ConstraintPoints.get(i, 1);
-            double dz = z - m_ConstraintPoints.get(i, 2);
-            double r = Math.sqrt(dx*dx + dy*dy + dz*dz);
-            
-            sum += w * phi(r);
+    @Override
+    public double evaluateWithGradient(double x, double y, double z, double[] gradient) {
+        RBFField field = m_Field;
+        if (field == null) {
+            gradient[0] = 0.0; gradient[1] = 0.0; gradient[2] = 0.0;
+            return 0.0;
         }
+        return field.evaluateWithGradient(x, y, z, gradient);
+    }
 
-        // polynomial terms
-        double c0 = m_Weights.get(N + 0, 0);
-        double c1 = m_Weights.get(N + 1, 0);
-        double c2 = m_Weights.get(N + 2, 0);
-        double c3 = m_Weights.get(N + 3, 0);
-
-        sum += c0 + c1*x + c2*y + c3*z;
-
-        return sum;
+    /**
+     * @return immutable snapshot of the last solved field, null before the first solve.
+     * Meshing or evaluating many points against one snapshot keeps them consistent
+     * even if this reconstructor is solved again meanwhile.
+     */
+    public RBFField getField() {
+        return m_Field;
     }
 
     public void computeWeights(ArrayList<PointBuffer> cloudData) {
@@ -64,7 +66,9 @@ public class RBFReconstructor {
 
     public void computeWeights(String resourceName) {
         // Load point cloud data
+        reportProgress("load", 0.0);
         var cloudData = VertexReader3D.readPointCloudData(resourceName);
+        reportProgress("load", 1.0);
 
         var vertexBuffer = cloudData.get(0);
         var normalBuffer = cloudData.get(1);
@@ -72,8 +76,8 @@ public class RBFReconstructor {
         // Generate constraints
         generateConstraints(vertexBuffer, normalBuffer);
 
-        boolean readWeights = 
-        loadWeightsFromFile(resourceName + "_downSamplingStep" + m_iDownSamplingStep + ".rbfweights");
+        String weightsFile = getWeightsFileName(resourceName);
+        boolean readWeights = loadWeightsFromFile(weightsFile);
 
         if (readWeights) {
             System.out.println("RBF Weights loaded from file.");
@@ -82,19 +86,155 @@ public class RBFReconstructor {
         // Compute RBF Weights
         BuildRBFMatrixAndSolve();
         // Save weights to file
-        saveWeightsToFile(resourceName + "_downSamplingStep" + m_iDownSamplingStep + ".rbfweights");
+        saveWeightsToFile(weightsFile);
         System.out.println("RBF Weights computed and saved to file.");
     }
 
+    /**
+     * Try every smoothing value on the same constraints and keep the one with the lowest
+     * generalized cross validation score. The projected system is decomposed only once,
+     * see RegularizationSweep.
+     * @param lambdas candidate smoothing values, all non-negative
+     * @return the chosen smoothing value, also stored as the current smoothing
+     */
+    public double computeWeightsWithSweep(ArrayList<PointBuffer> cloudData, double[] lambdas) {
+        if (lambdas == null || lambdas.length == 0) {
+            throw new IllegalArgumentException("At least one smoothing value is required.");
+        }
+        generateConstraints(cloudData.get(0), cloudData.get(1));
+
+        long start = System.currentTimeMillis();
+        RegularizationSweep sweep = new RegularizationSweep(assembleKernelMatrix(0.0), assemblePolynomialBlock(), m_dFuncValues);
+        reportProgress("solve", 0.5);
+
+        double bestLambda = lambdas[0];
+        double bestScore = Double.POSITIVE_INFINITY;
+        System.out.println("lambda          GCV");
+        for (double lambda : lambdas) {
+            double score = sweep.gcv(lambda);
+            System.out.printf("%-15.6g %.6g%n", lambda, score);
+            if (score < bestScore) {
+                bestScore = score;
+                bestLambda = lambda;
+            }
+        }
+
+        double[] solution = sweep.solve(bestLambda);
+        m_dSmoothing = bestLambda;
+        publish(solution);
+        System.out.println("Sweep finished in " + (System.currentTimeMillis() - start) + "ms, best lambda: " + bestLambda);
+        reportProgress("solve", 1.0);
+        return bestLambda;
+    }
+
+    /**
+     * @return number of centres of the last computeWeights call
+     */
+    public int getNumConstraints() {
+        return m_ConstraintPoints != null ? m_ConstraintPoints.size() : 0;
+    }
+
     public SimpleMatrix getM_Weights() {
         return m_Weights;
     }
 
+    /**
+     * 64 bit FNV-1a hash of the weight values, used to key caches derived from this field
+     * @return hash of the weights, 0 if no weights are computed
+     */
+    public long getWeightsHash() {
+        RBFField field = m_Field;
+        return field != null ? field.getWeightsHash() : 0L;
+    }
+
     public void setDownSamplingStep(int step) {
         m_iDownSamplingStep = step;
         System.out.println("Down-sampling step set to: " + m_iDownSamplingStep);
     }
 
+    /**
+     * set the smoothing parameter lambda, the kernel block becomes A - lambda I
+     * (phi(r) = r is conditionally negative definite, so this is +lambda I on -r).
+     * 0 interpolates the constraints exactly.
+     */
+    public void setSmoothing(double lambda) {
+        if (lambda < 0.0) {
+            throw new IllegalArgumentException("Smoothing must be non-negative: " + lambda);
+        }
+        m_dSmoothing = lambda;
+    }
+
+    public double getSmoothing() {
+        return m_dSmoothing;
+    }
+
+    /**
+     * assemble and factor in float, then refine to double accuracy. Halves the memory of
+     * the kernel matrix; falls back to the double solvers if refinement does not converge.
+     */
+    public void setMixedPrecision(boolean mixedPrecision) {
+        m_bMixedPrecision = mixedPrecision;
+    }
+
+    /**
+     * keep the float factorization between solves and start each solve from the previous
+     * weights, for sequences of similar clouds with the same number of constraints (see
+     * MixedPrecisionSolver.solveWarm). Implies the mixed precision path and holds N^2 floats
+     * between solves.
+     */
+    public void setWarmStart(boolean warmStart) {
+        m_bWarmStart = warmStart;
+        if (!warmStart) {
+            m_WarmSolver = null;
+        }
+    }
+
+    /**
+     * @return true if the last solve refined on the factorization of the solve before
+     */
+    public boolean isLastSolveWarm() {
+        return m_bLastSolveWarm;
+    }
+
+    /**
+     * set the linear solver backend, null selects one by problem size (see RBFSolver.select)
+     */
+    public void setSolver(RBFSolver solver) {
+        m_Solver = solver;
+    }
+
+    /**
+     * set a callback receiving "load" and "solve" progress, may be null
+     */
+    public void setProgressListener(ProgressListener listener) {
+        m_ProgressListener = listener;
+    }
+
+    private void reportProgress(String stage, double fraction) {
+        if (m_ProgressListener != null) {
+            m_ProgressListener.onProgress(stage, fraction);
+        }
+    }
+
+    /**
+     * @return weights cache file of a resource for the current down sampling step and smoothing,
+     * which may not exist yet
+     */
+    public Path getWeightsCachePath(String resourceName) {
+        return getCacheFilePath(getWeightsFileName(resourceName));
+    }
+
+    /**
+     * weights cache file name, smoothed weights get their own file
+     */
+    private String getWeightsFileName(String resourceName) {
+        String name = resourceName + "_downSamplingStep" + m_iDownSamplingStep;
+        if (m_dSmoothing != 0.0) {
+            name += "_smoothing" + m_dSmoothing;
+        }
+        return name + ".rbfweights";
+    }
+
     /**
      * get local cache file path
      */
@@ -173,12 +313,11 @@ public class RBFReconstructor {
             }
 
             // load weights
-            m_Weights = new SimpleMatrix(rows, cols);
-            for (int r = 0; r < rows; r++) {
-                for (int c = 0; c < cols; c++) {
-                    m_Weights.set(r, c, in.readDouble());
-                }
+            double[] solution = new double[rows * cols];
+            for (int i = 0; i < solution.length; i++) {
+                solution[i] = in.readDouble();
             }
+            publish(solution);
 
             System.out.println("Load finished in " + (System.currentTimeMillis() - start) + "ms");
             return true;
@@ -241,23 +380,16 @@ public class RBFReconstructor {
         System.out.println("Constraints generated. Total: " + m_iNumConstraints);
     }
     
-    // compute RBF weights
+    /**
+     * Assemble the kernel matrix straight into a raw DMatrixRMaj array and solve with the
+     * configured RBFSolver, or one chosen by problem size. Only the lower triangle of the
+     * N x N block A is computed, rows are filled in parallel. If the solver fails, the
+     * matrix is assembled again and handed to the general fallback solver.
+     * @throws HeapLimitException if no solver fits in the heap, the previous field is kept
+     * @throws IllegalStateException if all solvers fail, the previous field is kept
+     */
     private void BuildRBFMatrixAndSolve() {
         int N = m_ConstraintPoints.size();
-        int dim = N + 4;
-
-        /*
-        Ax=b: mat_Phi mat_X = mat_B
-        Solve for mat_X
-        */
-        
-        // coefficient matrix
-        SimpleMatrix mat_Phi = new SimpleMatrix(dim, dim);
-
-        // right-hand side vector
-        SimpleMatrix mat_B = new SimpleMatrix(dim, 1);
-
-        System.out.println("Filling Coefficient Matrix...");
 
         /*
             mat_Phi = | A    P |
@@ -266,67 +398,166 @@ public class RBFReconstructor {
             p(pointX_i) = l_0 + l_1*x_i + l_2*y_i + l_3*z_i
             Therefore, P_i = [1, x_i, y_i, z_i].
          */
-        for (int i=0; i<N; i++) {
-            mat_B.set(i, 0, m_dFuncValues[i]); 
-
-            // fill in matrix A_ij
-            for (int j=i; j<N; j++) {
-                double r = distance(i, j, m_ConstraintPoints); 
-                double val = phi(r); // phi(r) = r
+        double[] polyP = assemblePolynomialBlock();
+        RBFSolver solver = m_Solver != null ? m_Solver : RBFSolver.select(N);
+
+        // check the heap before allocating N^2 doubles, instead of an OutOfMemoryError mid-solve
+        boolean doubleFits = ReconstructionPlanner.fitsInHeap(solver.estimateMemory(N));
+        if (!doubleFits && !m_bMixedPrecision) {
+            if (!ReconstructionPlanner.fitsInHeap(MixedPrecisionSolver.estimateMemory(N))) {
+                throw new HeapLimitException(String.format(
+                        "Not enough heap for %d constraints: %s needs %d MB, %d MB available. "
+                        + "Use a larger down sampling step (see ReconstructionPlanner).",
+                        N, solver.getName(), solver.estimateMemory(N) >> 20, ReconstructionPlanner.availableHeap() >> 20));
+            }
+            System.out.println("Not enough heap for " + solver.getName() + ", using mixed precision.");
+        }
 
-                mat_Phi.set(i, j, val);
+        m_bLastSolveWarm = false;
+        if (m_bMixedPrecision || m_bWarmStart || !doubleFits) {
+            double[] solution = solveMixedPrecision(polyP);
+            if (solution != null) {
+                publish(solution);
+                reportProgress("solve", 1.0);
+                return;
+            }
+            if (!doubleFits) {
+                throw new HeapLimitException("Mixed precision solve failed and the double precision solve does not fit in the heap.");
+            }
+        }
 
-                // matrix A_ij is symmetric
-                if (i != j) {
-                    mat_Phi.set(j, i, val);
-                }
+        double[] solution;
+        try {
+            solution = solveWith(solver, polyP);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (IllegalStateException e) {
+            RBFSolver fallback = RBFSolver.fallback();
+            if (!ReconstructionPlanner.fitsInHeap(fallback.estimateMemory(N))) {
+                throw new HeapLimitException("Solver '" + solver.getName() + "' failed (" + e.getMessage()
+                        + ") and the fallback " + fallback.getName() + " does not fit in the heap.", e);
+            }
+            System.err.println("Solver '" + solver.getName() + "' failed (" + e.getMessage()
+                    + "), falling back to " + fallback.getName() + ".");
+            try {
+                solution = solveWith(fallback, polyP);
+            } catch (CancellationException e2) {
+                throw e2;
+            } catch (IllegalStateException e2) {
+                throw new IllegalStateException("Solution failed! Matrix might be singular.", e2);
             }
+        }
+        publish(solution);
+        reportProgress("solve", 1.0);
+    }
 
-            // fill in matrix P
-            double xi = m_ConstraintPoints.get(i, 0);
-            double yi = m_ConstraintPoints.get(i, 1);
-            double zi = m_ConstraintPoints.get(i, 2);
+    /**
+     * Store the solution of the current constraints and publish it as a new field snapshot.
+     */
+    private void publish(double[] solution) {
+        m_Weights = SimpleMatrix.wrap(new DMatrixRMaj(solution.length, 1, true, solution));
+        m_Field = new RBFField(m_ConstraintPoints.getRawArray(), solution, m_iDownSamplingStep, m_dSmoothing);
+    }
 
-            // p(x_vector) = l_0 + l_1*x_i + l_2*y_i + l_3*z_i, P_i = [1, x_i, y_i, z_i]
-            mat_Phi.set(i, N + 0, 1.0);
-            mat_Phi.set(i, N + 1, xi);
-            mat_Phi.set(i, N + 2, yi);
-            mat_Phi.set(i, N + 3, zi);
-        }
+    private double[] solveWith(RBFSolver solver, double[] polyP) {
+        DMatrixRMaj matA = assembleKernelMatrix(m_dSmoothing);
 
-        for (int i=N; i<dim; i++) {
-            mat_B.set(i, 0, 0.0); 
+        System.out.println("Solving linear system with " + solver.getName() + "...");
+        reportProgress("solve", 0.5);
+        long start = System.currentTimeMillis();
+        double[] solution = solver.solve(matA, polyP, m_dFuncValues);
+        System.out.println("Solve finished in " + (System.currentTimeMillis() - start) + "ms");
+        return solution;
+    }
 
-            // Matrix P^T
-            for (int j=0; j<N; j++) {
-                mat_Phi.set(i, j, mat_Phi.get(j, i));
+    /**
+     * Float assembly and factorization with double precision refinement.
+     * @return the solution, or null if refinement did not converge
+     */
+    private double[] solveMixedPrecision(double[] polyP) {
+        System.out.println("Solving linear system in mixed precision...");
+        reportProgress("solve", 0.0);
+        long start = System.currentTimeMillis();
+        MixedPrecisionSolver solver;
+        if (m_bWarmStart) {
+            if (m_WarmSolver == null) {
+                m_WarmSolver = new MixedPrecisionSolver(this::phi);
             }
-            // Fill in 0s for bottom-right 4x4
-            for (int j=N; j<dim; j++) {
-                mat_Phi.set(i, j, 0.0);
+            solver = m_WarmSolver;
+        } else {
+            solver = new MixedPrecisionSolver(this::phi);
+        }
+        try {
+            double[] solution;
+            if (m_bWarmStart) {
+                double[] previous = m_Weights != null ? m_Weights.getDDRM().data : null;
+                solution = solver.solveWarm(m_ConstraintPoints.getRawArray(), polyP, m_dFuncValues, m_dSmoothing, previous);
+                m_bLastSolveWarm = solver.isLastWarm();
+            } else {
+                solution = solver.solve(m_ConstraintPoints.getRawArray(), polyP, m_dFuncValues, m_dSmoothing);
             }
+            System.out.println("Solve finished in " + (System.currentTimeMillis() - start) + "ms after "
+                    + solver.getLastRefinementSteps() + (m_bLastSolveWarm ? " warm" : "") + " refinement steps");
+            return solution;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (IllegalStateException e) {
+            System.err.println("Mixed precision solve failed (" + e.getMessage() + "), using double precision.");
+            m_WarmSolver = null;
+            return null;
         }
+    }
+
+    /**
+     * Fill the lower triangle of A_ij = phi(||x_i - x_j||) - lambda delta_ij into a raw
+     * DMatrixRMaj, rows in parallel.
+     */
+    private DMatrixRMaj assembleKernelMatrix(double lambda) {
+        int N = m_ConstraintPoints.size();
+        Thread caller = Thread.currentThread();
 
-        System.out.println("Coefficient Matrix shaped. Size: " + dim + " x " + dim);
+        System.out.println("Filling Coefficient Matrix...");
+        reportProgress("solve", 0.0);
 
-        System.out.println("Solving linear system...");
+        // positions in a flat array, so the parallel fill does not go through PointBuffer
+        double[] coords = m_ConstraintPoints.getRawArray();
 
-        // Solve for weights
-        try {
-            m_Weights = mat_Phi.solve(mat_B);
-        } catch (Exception e) {
-            System.err.println("Solution failed! Matrix might be singular.");
-            e.printStackTrace();
-        }
+        DMatrixRMaj matA = new DMatrixRMaj(N, N);
+        double[] a = matA.data;
+        IntStream.range(0, N).parallel().forEach(i -> {
+            if (i % 256 == 0) {
+                ReconstructionJob.checkCancelled(caller);
+            }
+            double xi = coords[i*3], yi = coords[i*3+1], zi = coords[i*3+2];
+            int row = i * N;
+            for (int j = 0; j <= i; j++) {
+                double dx = xi - coords[j*3];
+                double dy = yi - coords[j*3+1];
+                double dz = zi - coords[j*3+2];
+                a[row + j] = phi(Math.sqrt(dx*dx + dy*dy + dz*dz));
+            }
+            a[row + i] -= lambda;
+        });
+
+        System.out.println("Coefficient Matrix shaped. Size: " + N + " x " + N + " (+4 polynomial terms)");
+        return matA;
     }
 
-    private double distance(int pointAIndex, int pointBIndex, PointBuffer points) {
-        double dx = points.get(pointAIndex, 0) - points.get(pointBIndex, 0);
-        double dy = points.get(pointAIndex, 1) - points.get(pointBIndex, 1);
-        double dz = points.get(pointAIndex, 2) - points.get(pointBIndex, 2);
-        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    /**
+     * P_i = [1, x_i, y_i, z_i], row-major N x 4
+     */
+    private double[] assemblePolynomialBlock() {
+        int N = m_ConstraintPoints.size();
+        double[] polyP = new double[N * 4];
+        for (int i = 0; i < N; i++) {
+            polyP[i*4] = 1.0;
+            polyP[i*4+1] = m_ConstraintPoints.get(i, 0);
+            polyP[i*4+2] = m_ConstraintPoints.get(i, 1);
+            polyP[i*4+3] = m_ConstraintPoints.get(i, 2);
+        }
+        return polyP;
     }
-    
+
     private double phi(double r) {
         return r;
     }
@@ -343,8 +574,27 @@ public class RBFReconstructor {
     // RBF surface function weights
     private SimpleMatrix m_Weights;
 
+    // snapshot of the last solve, replaced as a whole so readers never see a half updated field
+    private volatile RBFField m_Field;
+
     private int m_iDownSamplingStep = 1;
 
+    private ProgressListener m_ProgressListener;
+
+    private RBFSolver m_Solver;
+
+    // smoothing parameter lambda, 0 for exact interpolation
+    private double m_dSmoothing = 0.0;
+
+    private boolean m_bMixedPrecision = false;
+
+    private boolean m_bWarmStart = false;
+
+    // keeps the factorization of the previous solve while warm starts are on
+    private MixedPrecisionSolver m_WarmSolver;
+
+    private boolean m_bLastSolveWarm;
+
     public static void main(String[] args) {
 
         // Load point cloud data
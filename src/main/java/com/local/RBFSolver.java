@@ -0,0 +1,87 @@
+package com.local;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * Strategy for solving the RBF interpolation system
+ *
+ *      | A    P | |w|   |f|
+ *      | P^T  0 | |c| = |0|
+ *
+ * All solvers receive the same input: the N x N kernel block A with its lower triangle
+ * filled, the row-major N x 4 polynomial block P and the right-hand side f.
+ * A solver is free to overwrite A.
+ */
+public interface RBFSolver {
+
+    /**
+     * @param matA N x N kernel matrix, lower triangle (j <= i) filled, may be overwritten
+     * @param polyP polynomial block, row-major N x 4
+     * @param rhs right-hand side f, length N (not modified)
+     * @return solution [w; c], length N + 4
+     * @throws IllegalStateException if the system cannot be solved by this solver
+     */
+    double[] solve(DMatrixRMaj matA, double[] polyP, double[] rhs);
+
+    String getName();
+
+    /**
+     * Peak heap use of a solve in bytes, including the N x N kernel block handed in.
+     * The default assumes one extra copy of the full system.
+     * @param numConstraints N
+     * @return Long.MAX_VALUE if a matrix would exceed the array limit, see MAX_DENSE_ORDER
+     */
+    default long estimateMemory(int numConstraints) {
+        long dim = numConstraints + 4L;
+        if (dim > MAX_DENSE_ORDER) return Long.MAX_VALUE;
+        return 8L * numConstraints * numConstraints + 8L * dim * dim;
+    }
+
+    /**
+     * Choose a backend by problem size. Small systems use EJML's LU, where threading does
+     * not pay off. Larger ones use the symmetric saddle point solver, which runs on all cores.
+     * @param numConstraints N
+     */
+    static RBFSolver select(int numConstraints) {
+        if (numConstraints < SMALL_PROBLEM_SIZE) {
+            return new DenseLUSolver();
+        }
+        return new SaddlePointSolver();
+    }
+
+    /**
+     * General solver used when the selected one fails (e.g. not definite).
+     */
+    static RBFSolver fallback() {
+        return new BlockedLUSolver();
+    }
+
+    /**
+     * Expand the lower triangle of A and P into the full (N+4) x (N+4) row-major system matrix.
+     */
+    static DMatrixRMaj buildFullSystem(DMatrixRMaj matA, double[] polyP) {
+        int N = matA.numRows;
+        int dim = N + 4;
+        double[] a = matA.data;
+        DMatrixRMaj full = new DMatrixRMaj(dim, dim);
+        double[] m = full.data;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j <= i; j++) {
+                double val = a[i * N + j];
+                m[i * dim + j] = val;
+                m[j * dim + i] = val;
+            }
+            for (int c = 0; c < 4; c++) {
+                m[i * dim + N + c] = polyP[i * 4 + c];
+                m[(N + c) * dim + i] = polyP[i * 4 + c];
+            }
+        }
+        return full;
+    }
+
+    // below this many constraints the single threaded EJML LU is the fastest choice
+    int SMALL_PROBLEM_SIZE = 1000;
+
+    // largest n whose n x n DMatrixRMaj still fits in one Java array
+    int MAX_DENSE_ORDER = 46340;
+}
@@ -0,0 +1,139 @@
+package com.local;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A cancellable background job returned by {@link ReconstructionService}.
+ * Cancelling interrupts the worker thread; long loops in RBFReconstructor and
+ * MarchingCubesGenerator call {@link #checkCancelled()} to stop early.
+ */
+public class ReconstructionJob<T> {
+
+    ReconstructionJob(String name, Callable<T> task, Executor executor) {
+        m_Name = name;
+        m_Future = new CompletableFuture<>();
+        executor.execute(() -> run(task));
+    }
+
+    private void run(Callable<T> task) {
+        synchronized (this) {
+            if (m_bCancelled) {
+                return;
+            }
+            m_Runner = Thread.currentThread();
+        }
+
+        try {
+            m_Future.complete(task.call());
+        } catch (Throwable e) {
+            m_Future.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                m_Runner = null;
+                // do not leak a late interrupt into the next task of the pool thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Cancel the job. The future completes with a CancellationException.
+     */
+    public void cancel() {
+        cancel(true);
+    }
+
+    /**
+     * @param interrupt false to let a running task finish undisturbed, e.g. a read on a shared
+     *                  channel that an interrupt would close; its result is dropped. A task
+     *                  that has not started yet never runs either way.
+     */
+    public void cancel(boolean interrupt) {
+        synchronized (this) {
+            m_bCancelled = true;
+            if (interrupt && m_Runner != null) {
+                m_Runner.interrupt();
+            }
+        }
+        m_Future.cancel(false);
+    }
+
+    public String getName() {
+        return m_Name;
+    }
+
+    public boolean isDone() {
+        return m_Future.isDone();
+    }
+
+    public boolean isCancelled() {
+        return m_bCancelled;
+    }
+
+    /**
+     * Non-blocking poll, meant to be called once per frame from the render loop.
+     * @return the result if the job finished successfully, otherwise null
+     */
+    public T poll() {
+        if (!m_Future.isDone() || m_Future.isCompletedExceptionally()) {
+            return null;
+        }
+        return m_Future.join();
+    }
+
+    /**
+     * @return the failure cause if the job failed or was cancelled, otherwise null
+     */
+    public Throwable getError() {
+        if (!m_Future.isCompletedExceptionally()) {
+            return null;
+        }
+        try {
+            m_Future.join();
+        } catch (CancellationException e) {
+            return e;
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause() : e;
+        }
+        return null;
+    }
+
+    public CompletableFuture<T> getFuture() {
+        return m_Future;
+    }
+
+    /**
+     * Throw a CancellationException if the current worker thread has been cancelled, or
+     * the CancellationToken bound to it is cancelled or past its deadline.
+     * Call this from inside long running loops.
+     */
+    public static void checkCancelled() {
+        checkCancelled(Thread.currentThread());
+    }
+
+    /**
+     * Variant for parallel loops: pool threads are never interrupted themselves,
+     * so they check the thread that owns the job instead.
+     * @param owner thread that started the parallel work
+     */
+    public static void checkCancelled(Thread owner) {
+        if (owner.isInterrupted()) {
+            throw new CancellationException("Reconstruction job cancelled.");
+        }
+        CancellationToken token = CancellationToken.forThread(owner);
+        if (token != null) {
+            token.throwIfStopped();
+        }
+    }
+
+    private final String m_Name;
+
+    private final CompletableFuture<T> m_Future;
+
+    private Thread m_Runner;
+
+    private volatile boolean m_bCancelled = false;
+}
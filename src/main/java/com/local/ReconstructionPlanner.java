@@ -0,0 +1,529 @@
+package com.local;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * Chooses down sampling step, grid resolution and solver for a point cloud before any
+ * large allocation happens, so an oversized request is degraded or refused up front
+ * instead of failing with an OutOfMemoryError in the middle of the solve.
+ *
+ * The cost model counts bytes exactly from the matrix sizes (see RBFSolver.estimateMemory)
+ * and predicts time from per-operation costs measured once on this machine:
+ *
+ *      assembly      c_asm  * N^2 / 2
+ *      solve         c_solv * N^3 / 3      per solver
+ *      Marching Cubes c_eval * N * (8 r^3 + 100 r^2)   field evaluations of a r^3 grid
+ *
+ * Plans are searched in order of quality: the requested step first, then coarser steps;
+ * for each step the requested grid first, then smaller grids. The first plan that fits
+ * both budgets wins, using the fastest solver that fits.
+ */
+public class ReconstructionPlanner {
+
+    /**
+     * @param bytes heap the reconstruction may use (default: free heap at planning time)
+     */
+    public void setHeapBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Heap budget must be positive: " + bytes);
+        }
+        m_lHeapBudget = bytes;
+    }
+
+    /**
+     * @param seconds wall time the solve and Marching Cubes may take (default: unlimited)
+     */
+    public void setTimeBudget(double seconds) {
+        if (!(seconds > 0.0)) {
+            throw new IllegalArgumentException("Time budget must be positive: " + seconds);
+        }
+        m_dTimeBudget = seconds;
+    }
+
+    /**
+     * The best configuration wanted, plans never exceed it.
+     * @param downSamplingStep smallest step (1 uses every point)
+     * @param gridResolution largest Marching Cubes resolution
+     */
+    public void setQualityTarget(int downSamplingStep, int gridResolution) {
+        if (downSamplingStep < 1 || gridResolution < 1) {
+            throw new IllegalArgumentException("Step and grid resolution must be positive.");
+        }
+        m_iTargetStep = downSamplingStep;
+        m_iTargetGrid = gridResolution;
+    }
+
+    /**
+     * How far plans may degrade before the planner refuses.
+     */
+    public void setQualityLimits(int maxDownSamplingStep, int minGridResolution) {
+        if (maxDownSamplingStep < 1 || minGridResolution < 1) {
+            throw new IllegalArgumentException("Step and grid resolution must be positive.");
+        }
+        m_iMaxStep = maxDownSamplingStep;
+        m_iMinGrid = minGridResolution;
+    }
+
+    /**
+     * Use a fixed cost model instead of calibrating on this machine.
+     */
+    public void setCostModel(CostModel model) {
+        m_CostModel = model;
+    }
+
+    /**
+     * @param pointCount number of points in the cloud
+     * @return the best plan within the budgets, or an infeasible plan saying why
+     */
+    public Plan plan(int pointCount) {
+        if (pointCount <= 0) {
+            throw new IllegalArgumentException("Point count must be positive: " + pointCount);
+        }
+        CostModel model = m_CostModel != null ? m_CostModel : CostModel.calibrated();
+        long heap = m_lHeapBudget > 0 ? m_lHeapBudget : availableHeap();
+        long usable = (long) (heap * HEAP_SAFETY);
+
+        Plan cheapest = null;
+        for (int step = m_iTargetStep; step <= Math.max(m_iTargetStep, m_iMaxStep); step++) {
+            int numConstraints = 3 * ((pointCount + step - 1) / step);
+            for (int grid : gridCandidates()) {
+                Plan best = null;
+                for (int option = 0; option < NUM_OPTIONS; option++) {
+                    Plan candidate = estimate(model, option, pointCount, step, numConstraints, grid);
+                    if (cheapest == null || candidate.m_lBytes < cheapest.m_lBytes) {
+                        cheapest = candidate;
+                    }
+                    if (candidate.m_lBytes > usable || candidate.m_dSeconds > m_dTimeBudget) continue;
+                    if (best == null || candidate.m_dSeconds < best.m_dSeconds) {
+                        best = candidate;
+                    }
+                }
+                if (best != null) {
+                    best.m_bFeasible = true;
+                    best.m_sReason = step == m_iTargetStep && grid == m_iTargetGrid ? "quality target met"
+                            : "degraded to fit " + (usable >> 20) + " MB"
+                              + (Double.isInfinite(m_dTimeBudget) ? "" : String.format(" / %.1f s", m_dTimeBudget));
+                    return best;
+                }
+            }
+        }
+        // nothing fits, report the smallest configuration that was considered
+        cheapest.m_bFeasible = false;
+        if (cheapest.m_lBytes == Long.MAX_VALUE) {
+            cheapest.m_sReason = cheapest.m_iNumConstraints + " constraints exceed the array limit of every solver";
+            return cheapest;
+        }
+        cheapest.m_sReason = String.format("needs at least %d MB / %.1f s, budget is %d MB / %.1f s",
+                cheapest.m_lBytes >> 20, cheapest.m_dSeconds, usable >> 20, m_dTimeBudget);
+        return cheapest;
+    }
+
+    /**
+     * Target grid first, then 3/4 of it at a time, down to the minimum.
+     */
+    private int[] gridCandidates() {
+        ArrayList<Integer> grids = new ArrayList<>();
+        int grid = m_iTargetGrid;
+        while (grid > m_iMinGrid) {
+            grids.add(grid);
+            grid = grid * 3 / 4;
+        }
+        grids.add(Math.min(m_iTargetGrid, m_iMinGrid));
+        return grids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Plan estimate(CostModel model, int option, int pointCount, int step, int numConstraints, int grid) {
+        double n = numConstraints;
+        long bytes;
+        double solveSeconds;
+        switch (option) {
+            case OPTION_MIXED:
+                bytes = MixedPrecisionSolver.estimateMemory(numConstraints);
+                solveSeconds = model.m_dMixedPerFlop * n * n * n / 3;
+                break;
+            case OPTION_LU:
+                bytes = new DenseLUSolver().estimateMemory(numConstraints);
+                solveSeconds = model.m_dLuPerFlop * n * n * n / 3;
+                break;
+            default:
+                bytes = new SaddlePointSolver().estimateMemory(numConstraints);
+                solveSeconds = model.m_dCholeskyPerFlop * n * n * n / 3;
+                break;
+        }
+        double assemblySeconds = model.m_dAssemblyPerEntry * n * n / 2;
+        double r = grid;
+        double meshSeconds = model.estimateMeshSeconds(numConstraints, grid);
+
+        // input cloud and constraints, plus the soup Marching Cubes collects; a solver that
+        // cannot allocate its arrays at all stays at Long.MAX_VALUE and never fits
+        if (bytes != Long.MAX_VALUE) {
+            bytes += (long) pointCount * CLOUD_BYTES_PER_POINT + (long) (MESH_BYTES_PER_CELL_AREA * r * r);
+        }
+
+        Plan plan = new Plan();
+        plan.m_iDownSamplingStep = step;
+        plan.m_iGridResolution = grid;
+        plan.m_iNumConstraints = numConstraints;
+        plan.m_iOption = option;
+        plan.m_lBytes = bytes;
+        plan.m_dSeconds = assemblySeconds + solveSeconds + meshSeconds;
+        return plan;
+    }
+
+    /**
+     * Heap that can still be allocated: the maximum heap minus what is in use now.
+     */
+    public static long availableHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    /**
+     * Can an allocation of this size be made safely right now? Collects garbage before
+     * answering no, and keeps the same headroom as the plans.
+     */
+    public static boolean fitsInHeap(long bytes) {
+        if (bytes <= availableHeap() * HEAP_SAFETY) return true;
+        System.gc();
+        return bytes <= availableHeap() * HEAP_SAFETY;
+    }
+
+    /**
+     * Heap of a solve as RBFReconstructor runs it without a plan: the solver selected by
+     * size if it fits the budget, mixed precision otherwise, plus cloud and constraints.
+     * @return Long.MAX_VALUE if no solver can allocate its arrays
+     */
+    public static long estimateSolveBytes(int pointCount, int downSamplingStep, long heapBudget) {
+        int numConstraints = 3 * ((pointCount + downSamplingStep - 1) / downSamplingStep);
+        long bytes = RBFSolver.select(numConstraints).estimateMemory(numConstraints);
+        if (bytes > heapBudget * HEAP_SAFETY) {
+            bytes = MixedPrecisionSolver.estimateMemory(numConstraints);
+        }
+        if (bytes == Long.MAX_VALUE) return bytes;
+        return bytes + (long) pointCount * CLOUD_BYTES_PER_POINT;
+    }
+
+    /**
+     * Start a new peak heap measurement, see peakHeap.
+     */
+    static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return sum of the peak usages of the heap pools since the last reset
+     */
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Result of planning. Apply it to a reconstructor before computeWeights.
+     */
+    public static class Plan {
+
+        public boolean isFeasible() {
+            return m_bFeasible;
+        }
+
+        /**
+         * @return why the plan was chosen, or why nothing fits
+         */
+        public String getReason() {
+            return m_sReason;
+        }
+
+        public int getDownSamplingStep() {
+            return m_iDownSamplingStep;
+        }
+
+        public int getGridResolution() {
+            return m_iGridResolution;
+        }
+
+        public int getNumConstraints() {
+            return m_iNumConstraints;
+        }
+
+        public String getSolverName() {
+            return m_iOption == OPTION_MIXED ? "mixed precision" : createSolver().getName();
+        }
+
+        public long getEstimatedBytes() {
+            return m_lBytes;
+        }
+
+        public double getEstimatedSeconds() {
+            return m_dSeconds;
+        }
+
+        /**
+         * Set step, solver and precision on the reconstructor.
+         * @throws IllegalStateException if the plan is not feasible
+         */
+        public void apply(RBFReconstructor rbf) {
+            if (!m_bFeasible) {
+                throw new IllegalStateException("Reconstruction refused: " + m_sReason);
+            }
+            rbf.setDownSamplingStep(m_iDownSamplingStep);
+            rbf.setMixedPrecision(m_iOption == OPTION_MIXED);
+            rbf.setSolver(m_iOption == OPTION_MIXED ? null : createSolver());
+        }
+
+        private RBFSolver createSolver() {
+            return m_iOption == OPTION_LU ? new DenseLUSolver() : new SaddlePointSolver();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: step %d (%d constraints), grid %d^3, %s, ~%d MB, ~%.1f s (%s)",
+                    m_bFeasible ? "plan" : "refused", m_iDownSamplingStep, m_iNumConstraints, m_iGridResolution,
+                    getSolverName(), m_lBytes >> 20, m_dSeconds, m_sReason);
+        }
+
+        private boolean m_bFeasible;
+
+        private String m_sReason;
+
+        private int m_iDownSamplingStep;
+
+        private int m_iGridResolution;
+
+        private int m_iNumConstraints;
+
+        private int m_iOption;
+
+        private long m_lBytes;
+
+        private double m_dSeconds;
+    }
+
+    /**
+     * Seconds per elementary operation of each stage.
+     */
+    public static class CostModel {
+
+        public CostModel(double assemblyPerEntry, double choleskyPerFlop, double luPerFlop,
+                         double mixedPerFlop, double evalPerCenter) {
+            m_dAssemblyPerEntry = assemblyPerEntry;
+            m_dCholeskyPerFlop = choleskyPerFlop;
+            m_dLuPerFlop = luPerFlop;
+            m_dMixedPerFlop = mixedPerFlop;
+            m_dEvalPerCenter = evalPerCenter;
+        }
+
+        /**
+         * @return predicted assembly and saddle point solve time of N constraints
+         */
+        public double estimateSolveSeconds(int numConstraints) {
+            double n = numConstraints;
+            return m_dAssemblyPerEntry * n * n / 2 + m_dCholeskyPerFlop * n * n * n / 3;
+        }
+
+        /**
+         * @return predicted Marching Cubes time of an r^3 grid over a field of N centers
+         */
+        public double estimateMeshSeconds(int numConstraints, int gridResolution) {
+            double r = gridResolution;
+            return m_dEvalPerCenter * numConstraints * (8 * r * r * r + 100 * r * r);
+        }
+
+        /**
+         * Measure the model on this machine once per JVM, takes about a second.
+         */
+        public static synchronized CostModel calibrated() {
+            if (s_Calibrated == null) {
+                s_Calibrated = calibrate();
+            }
+            return s_Calibrated;
+        }
+
+        private static CostModel calibrate() {
+            long start = System.currentTimeMillis();
+            int N = CALIBRATION_SIZE;
+            Random random = new Random(7);
+            double[] coords = new double[N * 3];
+            double[] polyP = new double[N * 4];
+            double[] rhs = new double[N];
+            for (int i = 0; i < N; i++) {
+                // surface, outside and inside points of a sphere, like generateConstraints
+                double z = random.nextDouble() * 2 - 1, t = random.nextDouble() * 2 * Math.PI;
+                double rr = 1.0 + ((i % 3) == 0 ? 0.0 : (i % 3) == 1 ? 0.02 : -0.02);
+                double s = Math.sqrt(1 - z * z);
+                coords[i * 3] = rr * s * Math.cos(t);
+                coords[i * 3 + 1] = rr * s * Math.sin(t);
+                coords[i * 3 + 2] = rr * z;
+                polyP[i * 4] = 1.0;
+                System.arraycopy(coords, i * 3, polyP, i * 4 + 1, 3);
+                rhs[i] = rr - 1.0;
+            }
+            double n = N;
+            double flops = n * n * n / 3;
+
+            // first round warms up the JIT, the second is measured
+            double assembly = 0, cholesky = 0, lu = 0, mixed = 0;
+            for (int round = 0; round < 2; round++) {
+                long t0 = System.nanoTime();
+                DMatrixRMaj matA = assemble(coords, N);
+                assembly = (System.nanoTime() - t0) * 1e-9 / (n * n / 2);
+
+                t0 = System.nanoTime();
+                new SaddlePointSolver().solve(matA, polyP, rhs);
+                cholesky = (System.nanoTime() - t0) * 1e-9 / flops;
+
+                matA = assemble(coords, N);
+                t0 = System.nanoTime();
+                new DenseLUSolver().solve(matA, polyP, rhs);
+                lu = (System.nanoTime() - t0) * 1e-9 / flops;
+
+                t0 = System.nanoTime();
+                try {
+                    new MixedPrecisionSolver(r -> r).solve(coords, polyP, rhs, 0.0);
+                    mixed = ((System.nanoTime() - t0) * 1e-9 - assembly * n * n / 2) / flops;
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (IllegalStateException e) {
+                    // would fall back to the double solve after the float attempt
+                    mixed = cholesky * 2;
+                }
+                mixed = Math.max(mixed, cholesky * 0.25);
+            }
+
+            // field evaluation through the real RBFReconstructor data layout
+            PointBuffer centers = new PointBuffer(N);
+            for (int i = 0; i < N; i++) {
+                centers.set(i, 0, coords[i * 3]);
+                centers.set(i, 1, coords[i * 3 + 1]);
+                centers.set(i, 2, coords[i * 3 + 2]);
+            }
+            double eval = 0;
+            for (int round = 0; round < 3; round++) {
+                long t0 = System.nanoTime();
+                double sink = 0;
+                for (int k = 0; k < EVAL_SAMPLES; k++) {
+                    sink += evaluate(centers, rhs, random.nextDouble(), random.nextDouble(), random.nextDouble());
+                }
+                eval = (System.nanoTime() - t0) * 1e-9 / ((double) EVAL_SAMPLES * N);
+                s_dSink = sink;
+            }
+
+            CostModel model = new CostModel(assembly, cholesky, lu, mixed, eval);
+            System.out.println("Cost model calibrated in " + (System.currentTimeMillis() - start) + "ms: " + model);
+            return model;
+        }
+
+        /**
+         * Same loop as RBFReconstructor.evaluate, in its own method so it is compiled like it.
+         */
+        private static double evaluate(PointBuffer centers, double[] weights, double x, double y, double z) {
+            double sum = 0.0;
+            for (int i = 0; i < weights.length; i++) {
+                double dx = x - centers.get(i, 0), dy = y - centers.get(i, 1), dz = z - centers.get(i, 2);
+                sum += weights[i] * Math.sqrt(dx * dx + dy * dy + dz * dz);
+            }
+            return sum;
+        }
+
+        private static DMatrixRMaj assemble(double[] coords, int N) {
+            DMatrixRMaj matA = new DMatrixRMaj(N, N);
+            double[] a = matA.data;
+            IntStream.range(0, N).parallel().forEach(i -> {
+                for (int j = 0; j <= i; j++) {
+                    double dx = coords[i * 3] - coords[j * 3];
+                    double dy = coords[i * 3 + 1] - coords[j * 3 + 1];
+                    double dz = coords[i * 3 + 2] - coords[j * 3 + 2];
+                    a[i * N + j] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                }
+            });
+            return matA;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("assembly %.2fns/entry, Cholesky %.3fns/flop, LU %.3fns/flop, mixed %.3fns/flop, "
+                            + "evaluate %.2fns/center", m_dAssemblyPerEntry * 1e9, m_dCholeskyPerFlop * 1e9,
+                    m_dLuPerFlop * 1e9, m_dMixedPerFlop * 1e9, m_dEvalPerCenter * 1e9);
+        }
+
+        private final double m_dAssemblyPerEntry;
+
+        private final double m_dCholeskyPerFlop;
+
+        private final double m_dLuPerFlop;
+
+        private final double m_dMixedPerFlop;
+
+        private final double m_dEvalPerCenter;
+
+        private static CostModel s_Calibrated;
+
+        // keeps the timed evaluation loop from being optimized away
+        private static volatile double s_dSink;
+
+        // large enough for the O(N^3) part to dominate, small enough to take about a second
+        private static final int CALIBRATION_SIZE = 900;
+
+        private static final int EVAL_SAMPLES = 2000;
+    }
+
+    private long m_lHeapBudget = 0;
+
+    private double m_dTimeBudget = Double.POSITIVE_INFINITY;
+
+    private int m_iTargetStep = 1;
+
+    private int m_iTargetGrid = 128;
+
+    private int m_iMaxStep = 256;
+
+    private int m_iMinGrid = 32;
+
+    private CostModel m_CostModel;
+
+    private static final int OPTION_SADDLE = 0;
+
+    private static final int OPTION_MIXED = 1;
+
+    private static final int OPTION_LU = 2;
+
+    private static final int NUM_OPTIONS = 3;
+
+    // plans may use this much of the heap budget, the rest is headroom for the GC
+    static final double HEAP_SAFETY = 0.85;
+
+    // xyz + normals as PointBuffer doubles, plus three constraints per point
+    private static final long CLOUD_BYTES_PER_POINT = 48 + 3 * 32;
+
+    // Marching Cubes emits about 17 soup vertices per r^2, 48 bytes each plus render buffers
+    private static final double MESH_BYTES_PER_CELL_AREA = 17 * 80;
+
+    public static void main(String[] args) {
+        ReconstructionPlanner planner = new ReconstructionPlanner();
+        planner.setQualityTarget(1, 128);
+        int[] pointCounts = {5002, 50_000, 500_000};
+        for (int points : pointCounts) {
+            System.out.println(points + " points, free heap: " + planner.plan(points));
+        }
+        planner.setHeapBudget(256L << 20);
+        planner.setTimeBudget(60.0);
+        for (int points : pointCounts) {
+            System.out.println(points + " points, 256 MB / 60 s: " + planner.plan(points));
+        }
+        planner.setQualityLimits(4, 64);
+        System.out.println("500000 points, step <= 4: " + planner.plan(500_000));
+    }
+}
@@ -0,0 +1,503 @@
+package com.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server keeping solved fields warm between calls of external tools.
+ *
+ * GET /reconstruct?resource=bunny.xyz&step=2             solve (or load) the weights, JSON summary
+ * GET /evaluate?resource=bunny.xyz&step=2&points=x,y,z;.. field values, JSON; POST the points as body for many
+ * GET /mesh?resource=bunny.xyz&step=2&grid=128            binary STL of the optimized mesh
+ *
+ * Solved fields (immutable RBFField snapshots) live in an LRU bounded by an estimate of their retained memory.
+ * Identical requests arriving while one is being computed wait for that computation
+ * instead of starting their own. Solves of different keys share the heap left by the
+ * cache: each one reserves its ReconstructionPlanner estimate before it starts and waits
+ * while the others hold too much. Meshes are streamed to the client as STL, never copied
+ * into one array. Binds to the loopback address only.
+ */
+public class ReconstructionServer {
+
+    /**
+     * @param port loopback port, 0 picks a free one
+     * @param cacheBudgetBytes memory the warm fields may retain
+     */
+    public ReconstructionServer(int port, long cacheBudgetBytes) throws IOException {
+        if (cacheBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Cache budget must be positive: " + cacheBudgetBytes);
+        }
+        m_lCacheBudget = cacheBudgetBytes;
+        long solveHeap = (long) ((Runtime.getRuntime().maxMemory() - cacheBudgetBytes) * ReconstructionPlanner.HEAP_SAFETY);
+        if (solveHeap < 1 << 20) {
+            throw new IllegalArgumentException("Cache budget leaves no heap for solving: " + cacheBudgetBytes);
+        }
+        m_iSolveMegabytes = (int) Math.min(Integer.MAX_VALUE, solveHeap >> 20);
+        m_SolvePermits = new Semaphore(m_iSolveMegabytes, true);
+        m_Server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        // threads mostly wait on coalesced computations, so the pool grows with the clients
+        AtomicInteger threadIndex = new AtomicInteger();
+        m_Executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "server-" + threadIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        m_Server.setExecutor(m_Executor);
+        m_Server.createContext("/reconstruct", handler(this::handleReconstruct));
+        m_Server.createContext("/evaluate", handler(this::handleEvaluate));
+        m_Server.createContext("/mesh", handler(this::handleMesh));
+    }
+
+    public void start() {
+        m_Server.start();
+        System.out.println("Reconstruction server listening on http://localhost:" + getPort());
+    }
+
+    /**
+     * Stop accepting requests, waiting at most delaySeconds for running exchanges.
+     */
+    public void stop(int delaySeconds) {
+        m_Server.stop(delaySeconds);
+        m_Executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return m_Server.getAddress().getPort();
+    }
+
+    /**
+     * The solved field for a resource and down sampling step: warm from the LRU,
+     * joined from a running computation, or computed on the calling thread.
+     */
+    RBFField getField(String resourceName, int downSamplingStep) {
+        String key = resourceName + "|" + downSamplingStep;
+        CompletableFuture<RBFField> future;
+        boolean owner = false;
+        synchronized (m_Warm) {
+            WarmEntry entry = m_Warm.get(key);
+            if (entry == null) {
+                entry = new WarmEntry(new CompletableFuture<>());
+                m_Warm.put(key, entry);
+                owner = true;
+            }
+            future = entry.m_Future;
+        }
+        if (owner) {
+            m_iMisses.incrementAndGet();
+            try {
+                RBFField field = solve(key, resourceName, downSamplingStep);
+                future.complete(field);
+                synchronized (m_Warm) {
+                    WarmEntry entry = m_Warm.get(key);
+                    if (entry != null && entry.m_Future == future) {
+                        entry.m_lBytes = field.getMemoryBytes() + ENTRY_OVERHEAD_BYTES;
+                        m_lCachedBytes += entry.m_lBytes;
+                        evict(key);
+                    }
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                // failures are not cached, the next request tries again
+                synchronized (m_Warm) {
+                    WarmEntry entry = m_Warm.get(key);
+                    if (entry != null && entry.m_Future == future) {
+                        m_Warm.remove(key);
+                    }
+                }
+            }
+        } else {
+            m_iHits.incrementAndGet();
+        }
+        return join(future);
+    }
+
+    /**
+     * Solve on the calling thread once the heap estimate of the solve is free. A solve
+     * larger than the whole solve heap runs alone and lets RBFReconstructor refuse it.
+     */
+    private RBFField solve(String key, String resourceName, int downSamplingStep) {
+        int pointCount = VertexReader3D.countPoints(resourceName);
+        if (pointCount < 0) {
+            throw new IllegalArgumentException("Resource not found: " + resourceName);
+        }
+        long bytes = ReconstructionPlanner.estimateSolveBytes(pointCount, downSamplingStep,
+                (long) m_iSolveMegabytes << 20);
+        int permits = (int) Math.max(1, Math.min(m_iSolveMegabytes, (bytes >> 20) + 1));
+        if (!m_SolvePermits.tryAcquire(permits)) {
+            System.out.println("Server: " + key + " waits for " + permits + " MB of solve heap");
+            try {
+                m_SolvePermits.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to solve " + key, e);
+            }
+        }
+        try {
+            RBFReconstructor rbf = new RBFReconstructor();
+            rbf.setDownSamplingStep(downSamplingStep);
+            rbf.computeWeights(resourceName);
+            // only the immutable snapshot is kept, the solver state is garbage
+            RBFField field = rbf.getField();
+            if (field == null) {
+                throw new IllegalStateException("Could not solve " + resourceName + " at step " + downSamplingStep);
+            }
+            return field;
+        } finally {
+            m_SolvePermits.release(permits);
+        }
+    }
+
+    /**
+     * Drop least recently used solved entries until the budget holds, keeping the newest.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, WarmEntry>> it = m_Warm.entrySet().iterator();
+        while (m_lCachedBytes > m_lCacheBudget && it.hasNext()) {
+            Map.Entry<String, WarmEntry> eldest = it.next();
+            // running computations hold no bytes yet, and the new entry must survive its own insertion
+            if (!eldest.getValue().m_Future.isDone() || eldest.getKey().equals(keep)) continue;
+            m_lCachedBytes -= eldest.getValue().m_lBytes;
+            it.remove();
+            System.out.println("Server: evicted " + eldest.getKey());
+        }
+    }
+
+    private void handleReconstruct(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String resourceName = resourceParam(params);
+        int step = intParam(params, "step", 1);
+        long start = System.nanoTime();
+        RBFField field = getField(resourceName, step);
+        String json = String.format("{\"resource\":\"%s\",\"step\":%d,\"constraints\":%d,\"weightsHash\":\"%016x\",\"millis\":%.1f}",
+                resourceName, step, field.getNumCenters(), field.getWeightsHash(), (System.nanoTime() - start) * 1e-6);
+        respond(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleEvaluate(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String resourceName = resourceParam(params);
+        int step = intParam(params, "step", 1);
+        String points = params.get("points");
+        if (points == null) {
+            points = new String(readBody(exchange), StandardCharsets.UTF_8);
+        }
+        String[] tokens = points.trim().split("[\\s,;]+");
+        if (tokens.length < 3 || tokens.length % 3 != 0) {
+            throw new IllegalArgumentException("Expected x,y,z triples, got " + (tokens[0].isEmpty() ? 0 : tokens.length) + " numbers.");
+        }
+        double[] coords = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            try {
+                coords[i] = Double.parseDouble(tokens[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + tokens[i]);
+            }
+        }
+
+        // evaluated concurrently by all request threads, the snapshot is immutable
+        RBFField field = getField(resourceName, step);
+        StringBuilder json = new StringBuilder(coords.length * 8 + 16).append("{\"values\":[");
+        for (int i = 0; i < coords.length; i += 3) {
+            if (i > 0) json.append(',');
+            json.append(field.evaluate(coords[i], coords[i + 1], coords[i + 2]));
+        }
+        json.append("]}");
+        respond(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleMesh(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String resourceName = resourceParam(params);
+        int step = intParam(params, "step", 1);
+        int grid = intParam(params, "grid", 64);
+        if (grid < 2 || grid > MAX_GRID) {
+            throw new IllegalArgumentException("Grid resolution must be in [2, " + MAX_GRID + "]: " + grid);
+        }
+
+        String key = resourceName + "|" + step + "|" + grid;
+        CompletableFuture<MeshBuffers> future = new CompletableFuture<>();
+        CompletableFuture<MeshBuffers> running = m_MeshesInFlight.putIfAbsent(key, future);
+        MeshBuffers mesh;
+        if (running != null) {
+            m_iHits.incrementAndGet();
+            mesh = join(running);
+        } else {
+            try {
+                RBFField field = getField(resourceName, step);
+                // repeats are served from the mesh cache on disk
+                mesh = ReconstructionService.mesh(field, resourceName, grid, null);
+                future.complete(mesh);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                m_MeshesInFlight.remove(key, future);
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "model/stl");
+        exchange.sendResponseHeaders(200, stlSize(mesh));
+        try (OutputStream out = exchange.getResponseBody()) {
+            writeStl(mesh, out);
+        }
+    }
+
+    /**
+     * @return bytes of the binary STL of a mesh
+     */
+    static long stlSize(MeshBuffers mesh) {
+        return STL_HEADER_SIZE + STL_TRIANGLE_SIZE * (long) triangleCount(mesh);
+    }
+
+    private static int triangleCount(MeshBuffers mesh) {
+        IntBuffer indices = mesh.getIndices();
+        return indices != null ? indices.remaining() / 3 : mesh.getVertexCount() / 3;
+    }
+
+    /**
+     * Stream the binary STL of a mesh, indexed or not, facet normals from the vertex normals.
+     * Only STL_CHUNK_TRIANGLES triangles are buffered at a time.
+     */
+    static void writeStl(MeshBuffers mesh, OutputStream stream) throws IOException {
+        FloatBuffer pos = mesh.getVertices();
+        FloatBuffer nrm = mesh.getNormals();
+        IntBuffer indices = mesh.getIndices();
+        int triangleCount = triangleCount(mesh);
+
+        ByteBuffer out = ByteBuffer.allocate(STL_CHUNK_TRIANGLES * STL_TRIANGLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        out.put("RBF Marching Cubes mesh".getBytes(StandardCharsets.US_ASCII));
+        out.position(80);
+        out.putInt(triangleCount);
+        int ip = indices != null ? indices.position() : 0;
+        int pp = pos.position();
+        int np = nrm.position();
+        for (int t = 0; t < triangleCount; t++) {
+            if (out.remaining() < STL_TRIANGLE_SIZE) {
+                stream.write(out.array(), 0, out.position());
+                out.clear();
+            }
+            float nx = 0, ny = 0, nz = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices != null ? indices.get(ip + 3 * t + k) : 3 * t + k;
+                nx += nrm.get(np + 3 * v);
+                ny += nrm.get(np + 3 * v + 1);
+                nz += nrm.get(np + 3 * v + 2);
+            }
+            float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len > 1e-12f) {
+                nx /= len; ny /= len; nz /= len;
+            }
+            out.putFloat(nx).putFloat(ny).putFloat(nz);
+            for (int k = 0; k < 3; k++) {
+                int v = indices != null ? indices.get(ip + 3 * t + k) : 3 * t + k;
+                out.putFloat(pos.get(pp + 3 * v)).putFloat(pos.get(pp + 3 * v + 1)).putFloat(pos.get(pp + 3 * v + 2));
+            }
+            out.putShort((short) 0);
+        }
+        stream.write(out.array(), 0, out.position());
+    }
+
+    private interface Endpoint {
+        void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    /**
+     * Parses the query and maps failures to status codes: 400 for bad parameters, 500 otherwise.
+     */
+    private HttpHandler handler(Endpoint endpoint) {
+        return exchange -> {
+            try {
+                m_iRequests.incrementAndGet();
+                endpoint.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                respondError(exchange, 400, e.getMessage());
+            } catch (Throwable e) {
+                e.printStackTrace();
+                respondError(exchange, 500, String.valueOf(e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static String resourceParam(Map<String, String> params) {
+        String resourceName = params.get("resource");
+        // only point clouds on the classpath, never paths
+        if (resourceName == null || !resourceName.endsWith(".xyz") || resourceName.contains("/")
+                || resourceName.contains("\\") || resourceName.contains("\"")) {
+            throw new IllegalArgumentException("Missing or invalid resource: " + resourceName);
+        }
+        return resourceName;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 1) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not an integer: " + value);
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                body.write(chunk, 0, n);
+                if (body.size() > MAX_BODY_BYTES) {
+                    throw new IllegalArgumentException("Request body larger than " + MAX_BODY_BYTES + " bytes.");
+                }
+            }
+            return body.toByteArray();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String message) {
+        String json = "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+        try {
+            respond(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // the client is gone or the headers were already sent
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public int getRequestCount() {
+        return m_iRequests.get();
+    }
+
+    /**
+     * @return requests answered by a warm or running computation
+     */
+    public int getHitCount() {
+        return m_iHits.get();
+    }
+
+    public int getMissCount() {
+        return m_iMisses.get();
+    }
+
+    public long getCachedBytes() {
+        synchronized (m_Warm) {
+            return m_lCachedBytes;
+        }
+    }
+
+    private static class WarmEntry {
+        WarmEntry(CompletableFuture<RBFField> future) {
+            m_Future = future;
+        }
+
+        private final CompletableFuture<RBFField> m_Future;
+
+        // 0 until the computation finished
+        private long m_lBytes = 0;
+    }
+
+    private final HttpServer m_Server;
+
+    private final ExecutorService m_Executor;
+
+    private final long m_lCacheBudget;
+
+    // "resource|step" -> solved or running field, access ordered: eldest first
+    private final LinkedHashMap<String, WarmEntry> m_Warm = new LinkedHashMap<>(16, 0.75f, true);
+
+    // guarded by m_Warm
+    private long m_lCachedBytes = 0;
+
+    // "resource|step|grid" -> mesh being computed
+    private final ConcurrentHashMap<String, CompletableFuture<MeshBuffers>> m_MeshesInFlight = new ConcurrentHashMap<>();
+
+    // one permit per MB of the heap left for solving, see solve
+    private final Semaphore m_SolvePermits;
+
+    private final int m_iSolveMegabytes;
+
+    private final AtomicInteger m_iRequests = new AtomicInteger();
+
+    private final AtomicInteger m_iHits = new AtomicInteger();
+
+    private final AtomicInteger m_iMisses = new AtomicInteger();
+
+    private static final long ENTRY_OVERHEAD_BYTES = 1024;
+
+    private static final int MAX_GRID = 512;
+
+    private static final int MAX_BODY_BYTES = 64 << 20;
+
+    // 80 byte title and uint32 triangle count
+    private static final int STL_HEADER_SIZE = 84;
+
+    // normal, three vertices, attribute byte count
+    private static final int STL_TRIANGLE_SIZE = 50;
+
+    private static final int STL_CHUNK_TRIANGLES = 4096;
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8642;
+        // a quarter of the heap for warm fields, the rest for solving new ones
+        ReconstructionServer server = new ReconstructionServer(port, Runtime.getRuntime().maxMemory() / 4);
+        server.start();
+    }
+}
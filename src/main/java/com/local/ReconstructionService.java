@@ -0,0 +1,219 @@
+package com.local;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs point cloud loading, RBF solving and Marching Cubes on background threads,
+ * so the GLFW thread only has to poll for finished buffers and upload them.
+ */
+public class ReconstructionService {
+
+    public ReconstructionService() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param numThreads number of worker threads (jobs running at the same time)
+     */
+    public ReconstructionService(int numThreads) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        m_Executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "reconstruction-" + threadIndex.getAndIncrement());
+            // never keep the JVM alive after the window is closed
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Load a point cloud resource and convert it into render buffers.
+     * @param resourceName .xyz resource name
+     * @param listener progress callback, may be null
+     */
+    public ReconstructionJob<MeshBuffers> submitLoad(String resourceName, ProgressListener listener) {
+        return new ReconstructionJob<>("load " + resourceName, () -> {
+            report(listener, "load", 0.0);
+            var cloudData = VertexReader3D.readPointCloudData(resourceName);
+            ReconstructionJob.checkCancelled();
+            report(listener, "load", 1.0);
+            return MeshBuffers.fromPointBuffers(cloudData.get(0), null);
+        }, m_Executor);
+    }
+
+    /**
+     * Open the level of detail octree of a point cloud resource, building it on first use.
+     * @param resourceName .xyz resource name
+     * @param listener progress callback, may be null
+     */
+    public ReconstructionJob<PointOctree> submitLoadOctree(String resourceName, ProgressListener listener) {
+        return new ReconstructionJob<>("load " + resourceName, () -> {
+            report(listener, "load", 0.0);
+            PointOctree octree = PointOctree.loadOrBuild(resourceName);
+            report(listener, "load", 1.0);
+            return octree;
+        }, m_Executor);
+    }
+
+    /**
+     * Load, solve and mesh a point cloud resource.
+     * @param resourceName .xyz resource name
+     * @param downSamplingStep RBF down sampling step
+     * @param gridResolution number of Marching Cubes cells along each axis
+     * @param listener progress callback, may be null
+     */
+    public ReconstructionJob<MeshBuffers> submitReconstruct(String resourceName, int downSamplingStep,
+                                                            int gridResolution, ProgressListener listener) {
+        return new ReconstructionJob<>("reconstruct " + resourceName,
+                () -> reconstruct(resourceName, downSamplingStep, gridResolution, null, listener), m_Executor);
+    }
+
+    /**
+     * Plan step, grid and solver from the point count and the planner's budgets, then
+     * reconstruct. Fails with an IllegalStateException before any large allocation if
+     * nothing fits.
+     * @param planner budgets and quality target
+     */
+    public ReconstructionJob<MeshBuffers> submitPlannedReconstruct(String resourceName, ReconstructionPlanner planner,
+                                                                   ProgressListener listener) {
+        return new ReconstructionJob<>("reconstruct " + resourceName, () -> {
+            int pointCount = VertexReader3D.countPoints(resourceName);
+            if (pointCount <= 0) {
+                throw new IllegalArgumentException("Cannot read point cloud: " + resourceName);
+            }
+            ReconstructionPlanner.Plan plan = planner.plan(pointCount);
+            System.out.println(plan);
+            if (!plan.isFeasible()) {
+                throw new IllegalStateException("Reconstruction refused: " + plan.getReason());
+            }
+            return reconstruct(resourceName, plan.getDownSamplingStep(), plan.getGridResolution(), plan, listener);
+        }, m_Executor);
+    }
+
+    /**
+     * Reconstruct within a latency budget that starts now, including the time the job
+     * waits for a worker. Returns the finest level finished in time, see AnytimeReconstructor.
+     * @param budgetMillis latency budget of the request
+     * @param token additional cancellation, may be null
+     */
+    public ReconstructionJob<AnytimeReconstructor.Result> submitAnytimeReconstruct(String resourceName, int gridResolution,
+                                                                                  long budgetMillis, CancellationToken token,
+                                                                                  ProgressListener listener) {
+        CancellationToken deadline = CancellationToken.withTimeout(budgetMillis, token);
+        return new ReconstructionJob<>("reconstruct " + resourceName, () -> {
+            AnytimeReconstructor anytime = new AnytimeReconstructor();
+            anytime.setQualityTarget(1, gridResolution);
+            anytime.setProgressListener(listener);
+            return anytime.reconstruct(resourceName, deadline);
+        }, m_Executor);
+    }
+
+    /**
+     * Like submitReconstruct, but also quantizes the mesh for upload on the worker thread.
+     */
+    public ReconstructionJob<QuantizedMesh> submitReconstructQuantized(String resourceName, int downSamplingStep,
+                                                                       int gridResolution, ProgressListener listener) {
+        return new ReconstructionJob<>("reconstruct " + resourceName, () -> {
+            MeshBuffers mesh = reconstruct(resourceName, downSamplingStep, gridResolution, null, listener);
+            ReconstructionJob.checkCancelled();
+            return QuantizedMesh.fromMeshBuffers(mesh);
+        }, m_Executor);
+    }
+
+    /**
+     * Solve, then mesh.
+     * @param plan solver choice of the planner, may be null
+     */
+    private MeshBuffers reconstruct(String resourceName, int downSamplingStep, int gridResolution,
+                                    ReconstructionPlanner.Plan plan, ProgressListener listener) {
+        report(listener, "load", 0.0);
+        RBFReconstructor rbf = new RBFReconstructor();
+        if (plan != null) {
+            plan.apply(rbf);
+        }
+        rbf.setDownSamplingStep(downSamplingStep);
+        rbf.setProgressListener(listener);
+
+        // repeat launches find the mesh by the stamp of the weights file, before the point
+        // cloud is parsed or the weights are read
+        Path cachePath = stampedCachePath(rbf, resourceName, gridResolution);
+        MeshBuffers cached = cachePath != null ? MeshCache.load(cachePath) : null;
+        if (cached != null) {
+            report(listener, "mesh", 1.0);
+            return cached;
+        }
+
+        rbf.computeWeights(resourceName);
+        ReconstructionJob.checkCancelled();
+        RBFField field = rbf.getField();
+        if (field == null) {
+            throw new IllegalStateException("Could not solve " + resourceName + " at step " + downSamplingStep);
+        }
+        // the weights file was just written or validated, stamp it again
+        cachePath = stampedCachePath(rbf, resourceName, gridResolution);
+        if (cachePath == null) {
+            return mesh(field, resourceName, gridResolution, listener);
+        }
+        return mesh(new MarchingCubesGenerator(field), cachePath, gridResolution, listener);
+    }
+
+    /**
+     * @return mesh cache file keyed by the weights file of rbf, null if there is none yet
+     */
+    private static Path stampedCachePath(RBFReconstructor rbf, String resourceName, int gridResolution) {
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(rbf);
+        String key = MeshCache.buildKey(rbf.getWeightsCachePath(resourceName), gridResolution, gridResolution,
+                gridResolution, mc.getMinCoord(), mc.getMaxCoord(), mc.getIsoLevel());
+        return key != null ? MeshCache.getCacheFilePath(resourceName, key) : null;
+    }
+
+    /**
+     * Mesh and optimize a solved field, or map the cached result of an earlier run.
+     * @param resourceName point cloud the field was solved from, names the cache file
+     */
+    static MeshBuffers mesh(RBFField field, String resourceName, int gridResolution, ProgressListener listener) {
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(field);
+
+        // repeat launches map the cached mesh instead of running Marching Cubes again
+        String key = MeshCache.buildKey(field.getWeightsHash(), gridResolution, gridResolution, gridResolution,
+                mc.getMinCoord(), mc.getMaxCoord(), mc.getIsoLevel());
+        return mesh(mc, MeshCache.getCacheFilePath(resourceName, key), gridResolution, listener);
+    }
+
+    private static MeshBuffers mesh(MarchingCubesGenerator mc, Path cachePath, int gridResolution,
+                                    ProgressListener listener) {
+        MeshBuffers cached = MeshCache.load(cachePath);
+        if (cached != null) {
+            report(listener, "mesh", 1.0);
+            return cached;
+        }
+
+        mc.setProgressListener(listener);
+        mc.generateMesh(gridResolution, gridResolution, gridResolution);
+        ReconstructionJob.checkCancelled();
+
+        // indexed and in vertex cache order, so the cache stores the optimized mesh
+        MeshBuffers mesh = MeshPostProcessor.optimize(MeshBuffers.fromPointBuffers(mc.getVertices(), mc.getNormals()));
+        if (mesh.getVertexCount() > 0) {
+            MeshCache.save(cachePath, mesh);
+        }
+        return mesh;
+    }
+
+    /**
+     * Stop accepting jobs and interrupt the running ones.
+     */
+    public void shutdown() {
+        m_Executor.shutdownNow();
+    }
+
+    private static void report(ProgressListener listener, String stage, double fraction) {
+        if (listener != null) {
+            listener.onProgress(stage, fraction);
+        }
+    }
+
+    private final ExecutorService m_Executor;
+}
@@ -0,0 +1,567 @@
+package com.local;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end performance and accuracy regression suite: runs the whole pipeline (load,
+ * solve, Marching Cubes, evaluation at the input samples) on the bundled models and on
+ * synthetic tori of growing size, under several step, grid and solver settings.
+ *
+ * Per case it records wall time per phase, peak heap, bytes allocated by all threads and
+ * their rate, triangle count and the fitting error |f(p)| at every input point. The report
+ * is written as JSON and compared with a stored baseline; a metric beyond its threshold
+ * (see THRESHOLDS) is a regression and makes the process exit with status 1, as does a
+ * metric that could not be measured and was reported as negative.
+ *
+ * Timings only compare across runs on the same machine and heap size; the report records
+ * both and a mismatch with the baseline is printed as a warning.
+ *
+ * usage: RegressionSuite [--quick] [--report FILE] [--baseline FILE] [--update-baseline]
+ */
+public class RegressionSuite {
+
+    /**
+     * One pipeline run: a bundled resource or a synthetic torus of some size.
+     */
+    static final class Case {
+
+        Case(String resource, int syntheticPoints, int step, int grid, String solver) {
+            m_sResource = resource;
+            m_iSyntheticPoints = syntheticPoints;
+            m_iStep = step;
+            m_iGrid = grid;
+            m_sSolver = solver;
+        }
+
+        String name() {
+            String model = m_sResource != null ? m_sResource.replace(".xyz", "") : "torus" + m_iSyntheticPoints;
+            return model + "-s" + m_iStep + "-g" + m_iGrid + "-" + m_sSolver;
+        }
+
+        // resource name, null for a synthetic torus
+        final String m_sResource;
+
+        final int m_iSyntheticPoints;
+
+        final int m_iStep;
+
+        final int m_iGrid;
+
+        // auto, lu, blocked, saddle or mixed
+        final String m_sSolver;
+    }
+
+    /**
+     * Allowed growth of a metric over the baseline: current > baseline * factor + slack
+     * is a regression. Two-sided metrics, e.g. the triangle count, may neither grow nor
+     * shrink by more than factor relative: |current - baseline| > |baseline| * factor + slack.
+     */
+    private static final class Threshold {
+
+        Threshold(double factor, double slack, boolean twoSided) {
+            m_dFactor = factor;
+            m_dSlack = slack;
+            m_bTwoSided = twoSided;
+        }
+
+        boolean exceeded(double current, double baseline) {
+            if (m_bTwoSided) {
+                return Math.abs(current - baseline) > m_dFactor * Math.abs(baseline) + m_dSlack;
+            }
+            return current > baseline * m_dFactor + m_dSlack;
+        }
+
+        final double m_dFactor;
+
+        final double m_dSlack;
+
+        final boolean m_bTwoSided;
+    }
+
+    public RegressionSuite(List<Case> cases) {
+        m_Cases = new ArrayList<>(cases);
+    }
+
+    /**
+     * Bundled models at the default settings, every solver on one model and synthetic tori
+     * from 10k to 160k points at a fixed constraint count, so load time scales alone.
+     */
+    public static List<Case> defaultCases() {
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("bunny.xyz", 0, 3, 64, "auto"));
+        cases.add(new Case("armadillo.xyz", 0, 4, 64, "auto"));
+        cases.add(new Case("2torus.xyz", 0, 3, 64, "auto"));
+        cases.add(new Case("bunny.xyz", 0, 6, 64, "lu"));
+        cases.add(new Case("bunny.xyz", 0, 6, 64, "saddle"));
+        cases.add(new Case("bunny.xyz", 0, 6, 64, "blocked"));
+        cases.add(new Case("bunny.xyz", 0, 6, 64, "mixed"));
+        cases.add(new Case("bunny.xyz", 0, 6, 96, "auto"));
+        cases.add(new Case(null, 10_000, 8, 48, "auto"));
+        cases.add(new Case(null, 40_000, 32, 48, "auto"));
+        cases.add(new Case(null, 160_000, 128, 48, "auto"));
+        return cases;
+    }
+
+    /**
+     * A subset running in well under a minute, for a check before every commit.
+     */
+    public static List<Case> quickCases() {
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("bunny.xyz", 0, 6, 48, "auto"));
+        cases.add(new Case("2torus.xyz", 0, 8, 48, "mixed"));
+        cases.add(new Case(null, 10_000, 16, 32, "auto"));
+        return cases;
+    }
+
+    /**
+     * Run all cases, after one small unrecorded case that warms up the JIT.
+     * @return one metrics map per case, in case order
+     */
+    public List<Map<String, Object>> run() {
+        CASE_POOL.submit(() -> runCase(new Case(null, 2_000, 4, 24, "auto"))).join();
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Case c : m_Cases) {
+            System.out.println("=== " + c.name());
+            results.add(CASE_POOL.submit(() -> runCase(c)).join());
+        }
+        return results;
+    }
+
+    /**
+     * Metrics that could not be measured, reported as negative values.
+     * @return one message per such metric, empty if all cases are valid
+     */
+    @SuppressWarnings("unchecked")
+    static List<String> invalidMetrics(List<?> cases) {
+        List<String> invalid = new ArrayList<>();
+        for (Object o : cases) {
+            Map<String, Object> c = (Map<String, Object>) o;
+            for (Map.Entry<String, Object> e : c.entrySet()) {
+                if (e.getValue() instanceof Number && ((Number) e.getValue()).doubleValue() < 0.0) {
+                    invalid.add(c.get("name") + " " + e.getKey() + ": " + e.getValue() + " (not measured)");
+                }
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Runs on a worker of CASE_POOL, so its parallel streams run there as well.
+     */
+    private static Map<String, Object> runCase(Case c) {
+        System.gc();
+        ReconstructionPlanner.resetPeakHeap();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long startedBefore = threads.getTotalStartedThreadCount();
+        Map<Long, Long> allocatedBefore = threadAllocations();
+        long start = System.nanoTime();
+
+        ArrayList<PointBuffer> cloud = c.m_sResource != null
+                ? VertexReader3D.readPointCloudData(c.m_sResource)
+                : syntheticTorus(c.m_iSyntheticPoints);
+        if (cloud.isEmpty()) {
+            throw new IllegalStateException("Cannot read " + c.m_sResource);
+        }
+        long loaded = System.nanoTime();
+
+        RBFReconstructor reconstructor = new RBFReconstructor();
+        reconstructor.setDownSamplingStep(c.m_iStep);
+        switch (c.m_sSolver) {
+            case "auto": break;
+            case "lu": reconstructor.setSolver(new DenseLUSolver()); break;
+            case "blocked": reconstructor.setSolver(new BlockedLUSolver()); break;
+            case "saddle": reconstructor.setSolver(new SaddlePointSolver()); break;
+            case "mixed": reconstructor.setMixedPrecision(true); break;
+            default: throw new IllegalArgumentException("Unknown solver: " + c.m_sSolver);
+        }
+        reconstructor.computeWeights(cloud);
+        RBFField field = reconstructor.getField();
+        if (field == null) {
+            throw new IllegalStateException("Solve failed for " + c.name());
+        }
+        long solved = System.nanoTime();
+
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(field);
+        mc.generateMesh(c.m_iGrid, c.m_iGrid, c.m_iGrid);
+        long meshed = System.nanoTime();
+
+        // fitting error at every input sample, not only the down sampled constraints
+        PointBuffer points = cloud.get(0);
+        double sumSquares = 0.0, maxError = 0.0;
+        for (int i = 0; i < points.size(); i++) {
+            double e = Math.abs(field.evaluate(points.get(i, 0), points.get(i, 1), points.get(i, 2)));
+            sumSquares += e * e;
+            maxError = Math.max(maxError, e);
+        }
+        long evaluated = System.nanoTime();
+        long allocated = allocatedSince(allocatedBefore, startedBefore);
+        double seconds = (evaluated - start) * 1e-9;
+
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", c.name());
+        m.put("model", c.m_sResource != null ? c.m_sResource : "synthetic torus");
+        m.put("points", points.size());
+        m.put("step", c.m_iStep);
+        m.put("grid", c.m_iGrid);
+        m.put("solver", c.m_sSolver);
+        m.put("constraints", reconstructor.getNumConstraints());
+        m.put("loadMillis", (loaded - start) * 1e-6);
+        m.put("solveMillis", (solved - loaded) * 1e-6);
+        m.put("meshMillis", (meshed - solved) * 1e-6);
+        m.put("evaluateMillis", (evaluated - meshed) * 1e-6);
+        m.put("totalMillis", seconds * 1e3);
+        m.put("peakHeapBytes", ReconstructionPlanner.peakHeap());
+        m.put("allocatedBytes", allocated);
+        m.put("allocationMBPerSecond", allocated / (1024.0 * 1024.0) / seconds);
+        m.put("triangles", mc.getVertices().size() / 3);
+        m.put("rmsError", Math.sqrt(sumSquares / points.size()));
+        m.put("maxError", maxError);
+        return m;
+    }
+
+    /**
+     * Bytes allocated so far by each live thread, by thread id.
+     * @return null if the JVM has no per thread allocation counters
+     */
+    private static Map<Long, Long> threadAllocations() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocations = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) allocations.put(ids[i], bytes[i]);
+        }
+        return allocations;
+    }
+
+    /**
+     * Bytes allocated since a threadAllocations snapshot by the threads alive then and
+     * those started since. The counter of a thread is gone once it exits, which the
+     * CASE_POOL workers never do during a case; if any other thread exited, the sum would
+     * be too small.
+     * @return -1 if a thread exited in between or there are no counters
+     */
+    private static long allocatedSince(Map<Long, Long> before, long startedBefore) {
+        Map<Long, Long> now = threadAllocations();
+        if (before == null || now == null || !now.keySet().containsAll(before.keySet())) return -1;
+        long sum = 0;
+        int started = 0;
+        for (Map.Entry<Long, Long> e : now.entrySet()) {
+            Long previous = before.get(e.getKey());
+            if (previous == null) started++;
+            sum += e.getValue() - (previous != null ? previous : 0L);
+        }
+        // threads that started and exited within the case are in neither snapshot
+        if (ManagementFactory.getThreadMXBean().getTotalStartedThreadCount() - startedBefore != started) return -1;
+        return sum;
+    }
+
+    /**
+     * Torus with radii 0.6 and 0.25 and exact normals, sampled at random with a fixed seed;
+     * already inside the normalized range, so no normalization is needed.
+     */
+    static ArrayList<PointBuffer> syntheticTorus(int numPoints) {
+        Random random = new Random(numPoints);
+        PointBuffer vertices = new PointBuffer(numPoints);
+        PointBuffer normals = new PointBuffer(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            double u = 2.0 * Math.PI * random.nextDouble();
+            double v = 2.0 * Math.PI * random.nextDouble();
+            double nx = Math.cos(u) * Math.cos(v), ny = Math.sin(u) * Math.cos(v), nz = Math.sin(v);
+            vertices.set(i, 0, TORUS_MAJOR * Math.cos(u) + TORUS_MINOR * nx);
+            vertices.set(i, 1, TORUS_MAJOR * Math.sin(u) + TORUS_MINOR * ny);
+            vertices.set(i, 2, TORUS_MINOR * nz);
+            normals.set(i, 0, nx);
+            normals.set(i, 1, ny);
+            normals.set(i, 2, nz);
+        }
+        ArrayList<PointBuffer> cloud = new ArrayList<>();
+        cloud.add(vertices);
+        cloud.add(normals);
+        return cloud;
+    }
+
+    /**
+     * Compare a report with a baseline, case by case and metric by metric.
+     * @return regression messages, empty if every metric is within its threshold
+     */
+    @SuppressWarnings("unchecked")
+    static List<String> compare(Map<String, Object> report, Map<String, Object> baseline) {
+        List<String> regressions = new ArrayList<>();
+        Map<String, Object> env = (Map<String, Object>) report.get("environment");
+        Map<String, Object> baseEnv = (Map<String, Object>) baseline.get("environment");
+        if (baseEnv != null && !env.equals(baseEnv)) {
+            System.out.println("Warning: baseline was recorded on " + baseEnv + ", this run is on " + env
+                    + "; timings may not compare.");
+        }
+        Map<String, Map<String, Object>> baseCases = new LinkedHashMap<>();
+        for (Object o : (List<Object>) baseline.get("cases")) {
+            Map<String, Object> c = (Map<String, Object>) o;
+            baseCases.put((String) c.get("name"), c);
+        }
+        for (Object o : (List<Object>) report.get("cases")) {
+            Map<String, Object> c = (Map<String, Object>) o;
+            Map<String, Object> base = baseCases.get((String) c.get("name"));
+            if (base == null) {
+                System.out.println(c.get("name") + ": not in the baseline");
+                continue;
+            }
+            for (Map.Entry<String, Threshold> t : THRESHOLDS.entrySet()) {
+                Object cur = c.get(t.getKey());
+                Object ref = base.get(t.getKey());
+                if (!(cur instanceof Number) || !(ref instanceof Number)) continue;
+                double current = ((Number) cur).doubleValue();
+                double reference = ((Number) ref).doubleValue();
+                String line = String.format(Locale.ROOT, "%s %s: %.6g (baseline %.6g, %+.1f%%)", c.get("name"), t.getKey(),
+                        current, reference, reference != 0.0 ? 100.0 * (current - reference) / reference : 0.0);
+                if (t.getValue().exceeded(current, reference)) {
+                    regressions.add(line);
+                    System.out.println("REGRESSION " + line);
+                } else {
+                    System.out.println("ok         " + line);
+                }
+            }
+        }
+        return regressions;
+    }
+
+    static Map<String, Object> environment() {
+        Map<String, Object> env = new LinkedHashMap<>();
+        env.put("java", System.getProperty("java.version"));
+        env.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        env.put("cores", Runtime.getRuntime().availableProcessors());
+        env.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        return env;
+    }
+
+    /**
+     * Write maps, lists, strings and numbers as indented JSON, one case object per line.
+     */
+    static String toJson(Object value, int indent) {
+        StringBuilder out = new StringBuilder();
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            boolean nested = map.values().stream().anyMatch(v -> v instanceof Map || v instanceof List);
+            out.append('{');
+            int i = 0;
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                if (i++ > 0) out.append(nested ? "," : ", ");
+                if (nested) out.append('\n').append(" ".repeat(indent + 2));
+                out.append(quote(e.getKey().toString())).append(": ").append(toJson(e.getValue(), indent + 2));
+            }
+            if (nested) out.append('\n').append(" ".repeat(indent));
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            int i = 0;
+            for (Object v : (List<?>) value) {
+                if (i++ > 0) out.append(',');
+                out.append('\n').append(" ".repeat(indent + 2)).append(toJson(v, indent + 2));
+            }
+            out.append('\n').append(" ".repeat(indent)).append(']');
+        } else if (value instanceof String) {
+            out.append(quote((String) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            out.append(Double.isFinite(d) ? String.format(Locale.ROOT, "%.6g", d) : "null");
+        } else {
+            out.append(value);
+        }
+        return out.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Minimal JSON reader for reports: objects become LinkedHashMaps, arrays Lists,
+     * numbers Doubles.
+     */
+    static Object parseJson(String text) {
+        int[] pos = {0};
+        Object value = parseValue(text, pos);
+        skipSpace(text, pos);
+        if (pos[0] != text.length()) {
+            throw new IllegalArgumentException("Trailing characters at " + pos[0]);
+        }
+        return value;
+    }
+
+    private static Object parseValue(String s, int[] pos) {
+        skipSpace(s, pos);
+        if (pos[0] >= s.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+        char ch = s.charAt(pos[0]);
+        if (ch == '{') {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos[0]++;
+            skipSpace(s, pos);
+            if (s.charAt(pos[0]) == '}') { pos[0]++; return map; }
+            while (true) {
+                skipSpace(s, pos);
+                String key = parseString(s, pos);
+                skipSpace(s, pos);
+                expect(s, pos, ':');
+                map.put(key, parseValue(s, pos));
+                skipSpace(s, pos);
+                if (s.charAt(pos[0]) == ',') { pos[0]++; continue; }
+                expect(s, pos, '}');
+                return map;
+            }
+        }
+        if (ch == '[') {
+            List<Object> list = new ArrayList<>();
+            pos[0]++;
+            skipSpace(s, pos);
+            if (s.charAt(pos[0]) == ']') { pos[0]++; return list; }
+            while (true) {
+                list.add(parseValue(s, pos));
+                skipSpace(s, pos);
+                if (s.charAt(pos[0]) == ',') { pos[0]++; continue; }
+                expect(s, pos, ']');
+                return list;
+            }
+        }
+        if (ch == '"') return parseString(s, pos);
+        for (String literal : new String[] {"true", "false", "null"}) {
+            if (s.startsWith(literal, pos[0])) {
+                pos[0] += literal.length();
+                return literal.equals("null") ? null : Boolean.valueOf(literal);
+            }
+        }
+        int start = pos[0];
+        while (pos[0] < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos[0])) >= 0) pos[0]++;
+        if (start == pos[0]) throw new IllegalArgumentException("Unexpected '" + ch + "' at " + start);
+        return Double.parseDouble(s.substring(start, pos[0]));
+    }
+
+    private static String parseString(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder out = new StringBuilder();
+        while (s.charAt(pos[0]) != '"') {
+            char ch = s.charAt(pos[0]++);
+            if (ch == '\\') {
+                char esc = s.charAt(pos[0]++);
+                switch (esc) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'u': out.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16)); pos[0] += 4; break;
+                    default: out.append(esc);
+                }
+            } else {
+                out.append(ch);
+            }
+        }
+        pos[0]++;
+        return out.toString();
+    }
+
+    private static void skipSpace(String s, int[] pos) {
+        while (pos[0] < s.length() && Character.isWhitespace(s.charAt(pos[0]))) pos[0]++;
+    }
+
+    private static void expect(String s, int[] pos, char ch) {
+        if (pos[0] >= s.length() || s.charAt(pos[0]) != ch) {
+            throw new IllegalArgumentException("Expected '" + ch + "' at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private final List<Case> m_Cases;
+
+    // runs the cases; its workers never retire, so their allocation counters survive the case
+    private static final ForkJoinPool CASE_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false, 0, 0x7fff, 1, null, 1, TimeUnit.DAYS);
+
+    private static final double TORUS_MAJOR = 0.6;
+
+    private static final double TORUS_MINOR = 0.25;
+
+    // allowed growth per metric, see Threshold
+    private static final Map<String, Threshold> THRESHOLDS = new LinkedHashMap<>();
+    static {
+        THRESHOLDS.put("loadMillis", new Threshold(1.5, 100.0, false));
+        THRESHOLDS.put("solveMillis", new Threshold(1.3, 250.0, false));
+        THRESHOLDS.put("meshMillis", new Threshold(1.3, 250.0, false));
+        THRESHOLDS.put("evaluateMillis", new Threshold(1.5, 100.0, false));
+        THRESHOLDS.put("totalMillis", new Threshold(1.25, 500.0, false));
+        THRESHOLDS.put("peakHeapBytes", new Threshold(1.25, 32.0 * 1024 * 1024, false));
+        THRESHOLDS.put("allocatedBytes", new Threshold(1.25, 32.0 * 1024 * 1024, false));
+        THRESHOLDS.put("constraints", new Threshold(0.0, 0.0, true));
+        THRESHOLDS.put("triangles", new Threshold(0.02, 0.0, true));
+        THRESHOLDS.put("rmsError", new Threshold(1.5, 1e-9, false));
+        THRESHOLDS.put("maxError", new Threshold(1.5, 1e-9, false));
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean quick = false;
+        boolean updateBaseline = false;
+        Path report = Path.of("regression-report.json");
+        Path baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick": quick = true; break;
+                case "--update-baseline": updateBaseline = true; break;
+                case "--report": report = Path.of(args[++i]); break;
+                case "--baseline": baseline = Path.of(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (baseline == null) {
+            baseline = Path.of(quick ? "regression-baseline-quick.json" : "regression-baseline.json");
+        }
+
+        RegressionSuite suite = new RegressionSuite(quick ? quickCases() : defaultCases());
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("environment", environment());
+        List<Map<String, Object>> cases = suite.run();
+        result.put("cases", cases);
+        String json = toJson(result, 0) + "\n";
+        Files.writeString(report, json, StandardCharsets.UTF_8);
+        System.out.println("Report written to " + report);
+
+        List<String> invalid = invalidMetrics(cases);
+        if (!invalid.isEmpty()) {
+            invalid.forEach(line -> System.out.println("FAILED     " + line));
+            System.out.println(invalid.size() + " metric(s) could not be measured, baseline not compared or updated");
+            System.exit(1);
+        }
+
+        if (updateBaseline) {
+            Files.writeString(baseline, json, StandardCharsets.UTF_8);
+            System.out.println("Baseline updated: " + baseline);
+            return;
+        }
+        if (!Files.exists(baseline)) {
+            System.out.println("No baseline at " + baseline + ", run with --update-baseline to store one.");
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stored = (Map<String, Object>) parseJson(Files.readString(baseline, StandardCharsets.UTF_8));
+        // compare the report as read back, so both sides went through the same number formatting
+        @SuppressWarnings("unchecked")
+        Map<String, Object> current = (Map<String, Object>) parseJson(json);
+        List<String> regressions = compare(current, stored);
+        if (!regressions.isEmpty()) {
+            System.out.println(regressions.size() + " regression(s) against " + baseline);
+            System.exit(1);
+        }
+        System.out.println("No regressions against " + baseline);
+    }
+}
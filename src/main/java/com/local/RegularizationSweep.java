@@ -0,0 +1,169 @@
+package com.local;
+
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.factory.DecompositionFactory_DDRM;
+import org.ejml.interfaces.decomposition.EigenDecomposition_F64;
+
+/**
+ * Smoothing parameter sweep for the RBF saddle point system that factorizes only once.
+ *
+ * The system is projected onto the null space of P^T as in {@link SaddlePointSolver}, and
+ * the reduced matrix S = -(Q2^T A Q2) is eigendecomposed, S = V diag(s) V^T. Smoothing
+ * with lambda replaces A by A - lambda I (phi(r) = r is conditionally negative definite, so
+ * this adds lambda I to the positive kernel -r), which turns S into S + lambda I with the
+ * same eigenvectors. For every lambda
+ *
+ *      y = -V diag(1 / (s_k + lambda)) V^T g2
+ *
+ * costs O(N^2) for the weights and O(N) for the GCV score, since ||w|| = ||y||.
+ *
+ * The eigendecomposition itself is several times slower than one Cholesky solve and keeps
+ * V (N x N) alive, so the sweep pays off from a handful of lambda values on.
+ */
+public class RegularizationSweep {
+
+    /**
+     * Project and decompose the unregularized system. A is overwritten.
+     * @param matA N x N kernel matrix, only the lower triangle (j <= i) needs to be filled
+     * @param polyP polynomial block, row-major N x 4
+     * @param rhs right-hand side f, length N (not modified)
+     * @throws IllegalStateException if P is rank deficient or the decomposition fails
+     */
+    public RegularizationSweep(DMatrixRMaj matA, double[] polyP, double[] rhs) {
+        int N = matA.numRows;
+        int n = N - SaddlePointSolver.NUM_POLY;
+        int offset = SaddlePointSolver.NUM_POLY;
+        Thread caller = Thread.currentThread();
+
+        SaddlePointSolver.Projection proj = SaddlePointSolver.project(matA, polyP, rhs);
+        m_Projection = proj.detach();
+        ReconstructionJob.checkCancelled(caller);
+
+        // full symmetric copy of S = -(Q2^T A Q2)
+        double[] a = matA.data;
+        DMatrixRMaj matS = new DMatrixRMaj(n, n);
+        double[] s = matS.data;
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int row = (offset + i) * N + offset;
+            for (int j = 0; j <= i; j++) {
+                double v = -a[row + j];
+                s[i * n + j] = v;
+                s[j * n + i] = v;
+            }
+        });
+
+        System.out.println("Eigendecomposition of the projected matrix, size " + n + "...");
+        long start = System.currentTimeMillis();
+        EigenDecomposition_F64<DMatrixRMaj> eig = DecompositionFactory_DDRM.eig(n, true, true);
+        if (!eig.decompose(matS)) {
+            throw new IllegalStateException("Eigendecomposition of the projected matrix failed.");
+        }
+        System.out.println("Eigendecomposition finished in " + (System.currentTimeMillis() - start) + "ms");
+        ReconstructionJob.checkCancelled(caller);
+
+        // eigenvectors as rows of m_V, and z = V^T (-g2)
+        double[] negG2 = m_Projection.negatedReducedRhs();
+        m_iN = N;
+        m_dEigenvalues = new double[n];
+        m_V = new double[n * n];
+        m_dZ = new double[n];
+        for (int k = 0; k < n; k++) {
+            m_dEigenvalues[k] = eig.getEigenvalue(k).getReal();
+            DMatrixRMaj vk = eig.getEigenVector(k);
+            System.arraycopy(vk.data, 0, m_V, k * n, n);
+            double dot = 0.0;
+            for (int i = 0; i < n; i++) {
+                dot += vk.data[i] * negG2[i];
+            }
+            m_dZ[k] = dot;
+        }
+    }
+
+    /**
+     * Weights of the smoothed fit.
+     * @param lambda smoothing parameter, 0 interpolates the constraints exactly
+     * @return solution [w; c], length N + 4
+     */
+    public double[] solve(double lambda) {
+        int n = m_dZ.length;
+        double[] t = coefficients(lambda);
+
+        // y = V t, V stored by rows of eigenvectors
+        double[] y = new double[n];
+        for (int k = 0; k < n; k++) {
+            double tk = t[k];
+            if (tk == 0.0) continue;
+            int row = k * n;
+            for (int i = 0; i < n; i++) {
+                y[i] += m_V[row + i] * tk;
+            }
+        }
+        return m_Projection.expand(y);
+    }
+
+    /**
+     * Generalized cross validation score N ||f - s||^2 / tr(I - H)^2. The residual at the
+     * constraints is -lambda w and tr(I - H) = lambda sum 1 / (s_k + lambda), so lambda
+     * cancels and the score stays finite at lambda = 0.
+     */
+    public double gcv(double lambda) {
+        double[] t = coefficients(lambda);
+        double yy = 0.0;
+        double trace = 0.0;
+        for (int k = 0; k < t.length; k++) {
+            yy += t[k] * t[k];
+            trace += 1.0 / (m_dEigenvalues[k] + lambda);
+        }
+        return m_iN * yy / (trace * trace);
+    }
+
+    /**
+     * @return number of constraints N
+     */
+    public int getSize() {
+        return m_iN;
+    }
+
+    /**
+     * @return smallest eigenvalue of the projected matrix, a useful scale for choosing lambda
+     */
+    public double getMinEigenvalue() {
+        double min = Double.POSITIVE_INFINITY;
+        for (double s : m_dEigenvalues) {
+            min = Math.min(min, s);
+        }
+        return min;
+    }
+
+    /**
+     * t_k = z_k / (s_k + lambda), coefficients of y in the eigenvector basis
+     */
+    private double[] coefficients(double lambda) {
+        if (lambda < 0.0) {
+            throw new IllegalArgumentException("Smoothing must be non-negative: " + lambda);
+        }
+        int n = m_dZ.length;
+        double[] t = new double[n];
+        for (int k = 0; k < n; k++) {
+            double d = m_dEigenvalues[k] + lambda;
+            if (!(d > 0.0)) {
+                throw new IllegalStateException("Projected matrix is not definite for lambda " + lambda + ".");
+            }
+            t[k] = m_dZ[k] / d;
+        }
+        return t;
+    }
+
+    private final SaddlePointSolver.Projection m_Projection;
+
+    private final int m_iN;
+
+    private final double[] m_dEigenvalues;
+
+    // eigenvectors, row k is eigenvector k
+    private final double[] m_V;
+
+    private final double[] m_dZ;
+}
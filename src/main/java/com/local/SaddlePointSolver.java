@@ -0,0 +1,388 @@
+package com.local;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * In-place solver for the RBF saddle point system
+ *
+ *      | A    P | |w|   |f|
+ *      | P^T  0 | |c| = |0|
+ *
+ * using the null space method. P (N x 4) is factored as P = QR with four Householder
+ * reflectors. Since w = Q2 y satisfies P^T w = 0, the system reduces to
+ * (Q2^T A Q2) y = Q2^T f, and c follows from the first four rows.
+ *
+ * For phi(r) = r with a linear polynomial, A is conditionally negative definite, so
+ * -(Q2^T A Q2) is symmetric positive definite and is factored with a blocked parallel
+ * Cholesky. Only the lower triangle of A is read or written, all work happens inside
+ * the N x N array of A, and no (N+4) x (N+4) matrix or copy of it is ever formed.
+ */
+public class SaddlePointSolver implements RBFSolver {
+
+    /**
+     * Solve the saddle point system. A is overwritten.
+     * @param matA N x N kernel matrix, only the lower triangle (j <= i) needs to be filled
+     * @param polyP polynomial block, row-major N x 4
+     * @param rhs right-hand side f, length N (not modified)
+     * @return solution [w; c], length N + 4
+     * @throws IllegalStateException if P is rank deficient or the projected matrix is not definite
+     */
+    @Override
+    public double[] solve(DMatrixRMaj matA, double[] polyP, double[] rhs) {
+        int N = matA.numRows;
+        double[] a = matA.data;
+        Thread caller = Thread.currentThread();
+
+        Projection proj = project(matA, polyP, rhs);
+        ReconstructionJob.checkCancelled(caller);
+
+        // S = -(Q2^T A Q2) = L L^T, trailing block of the array
+        IntStream.range(NUM_POLY, N).parallel().forEach(i -> {
+            int row = i * N;
+            for (int j = NUM_POLY; j <= i; j++) {
+                a[row + j] = -a[row + j];
+            }
+        });
+        choleskyLowerInPlace(a, N, NUM_POLY, caller);
+
+        // S y = -g2
+        double[] y = proj.negatedReducedRhs();
+        solveLowerInPlace(a, N, NUM_POLY, y);
+
+        return proj.expand(y);
+    }
+
+    /**
+     * Project the system onto the null space of P^T, in place: afterwards the trailing
+     * (N-4) x (N-4) block of A holds Q2^T A Q2 and columns 0..3 hold the coupling block.
+     * @throws IllegalStateException if P is rank deficient
+     */
+    static Projection project(DMatrixRMaj matA, double[] polyP, double[] rhs) {
+        int N = matA.numRows;
+        if (N <= NUM_POLY) {
+            throw new IllegalArgumentException("Need more than " + NUM_POLY + " constraints.");
+        }
+        double[] a = matA.data;
+
+        // Householder QR of P
+        double[] p = polyP.clone();
+        double[][] vs = new double[NUM_POLY][];
+        double[] taus = new double[NUM_POLY];
+        double[][] R = new double[NUM_POLY][NUM_POLY];
+        householderQR(p, N, vs, taus, R);
+
+        // A <- Q^T A Q and g <- Q^T f
+        double[] g = rhs.clone();
+        double[] work = new double[N];
+        for (int c = 0; c < NUM_POLY; c++) {
+            applyReflectorBothSides(a, N, vs[c], taus[c], work);
+            applyReflector(g, vs[c], taus[c], c);
+        }
+        return new Projection(a, N, N, vs, taus, R, g);
+    }
+
+    /**
+     * Householder data of a projected system, used to map a reduced solution y back to [w; c].
+     */
+    static class Projection {
+
+        Projection(double[] coupling, int stride, int N, double[][] vs, double[] taus, double[][] R, double[] g) {
+            m_Coupling = coupling;
+            m_iStride = stride;
+            m_iN = N;
+            m_Vs = vs;
+            m_Taus = taus;
+            m_R = R;
+            m_G = g;
+        }
+
+        /**
+         * Copy the coupling block out of A, so A can be released or overwritten.
+         */
+        Projection detach() {
+            int n = m_iN - NUM_POLY;
+            double[] coupling = new double[m_iN * NUM_POLY];
+            for (int k = 0; k < n; k++) {
+                System.arraycopy(m_Coupling, (NUM_POLY + k) * m_iStride, coupling, (NUM_POLY + k) * NUM_POLY, NUM_POLY);
+            }
+            return new Projection(coupling, NUM_POLY, m_iN, m_Vs, m_Taus, m_R, m_G);
+        }
+
+        /**
+         * @return -Q2^T f, right-hand side of the reduced system S y = -Q2^T f
+         */
+        double[] negatedReducedRhs() {
+            int n = m_iN - NUM_POLY;
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                y[i] = -m_G[NUM_POLY + i];
+            }
+            return y;
+        }
+
+        /**
+         * Expand a reduced solution into [w; c] using the coupling block (columns 0..3 of A).
+         */
+        double[] expand(double[] y) {
+            int N = m_iN;
+            int n = N - NUM_POLY;
+
+            // w = Q [0; y]
+            double[] x = new double[N + NUM_POLY];
+            System.arraycopy(y, 0, x, NUM_POLY, n);
+            for (int c = NUM_POLY - 1; c >= 0; c--) {
+                applyReflector(x, m_Vs[c], m_Taus[c], c);
+            }
+
+            // R c = g1 - (Q1^T A Q2) y
+            double[] h = new double[NUM_POLY];
+            System.arraycopy(m_G, 0, h, 0, NUM_POLY);
+            for (int k = 0; k < n; k++) {
+                int row = (NUM_POLY + k) * m_iStride;
+                double yk = y[k];
+                for (int r = 0; r < NUM_POLY; r++) {
+                    h[r] -= m_Coupling[row + r] * yk;
+                }
+            }
+            for (int r = NUM_POLY - 1; r >= 0; r--) {
+                double sum = h[r];
+                for (int k = r + 1; k < NUM_POLY; k++) {
+                    sum -= m_R[r][k] * x[N + k];
+                }
+                x[N + r] = sum / m_R[r][r];
+            }
+            return x;
+        }
+
+        // rows 4.. hold Q2^T A Q1 in their first four entries
+        private final double[] m_Coupling;
+
+        private final int m_iStride;
+
+        private final int m_iN;
+
+        private final double[][] m_Vs;
+
+        private final double[] m_Taus;
+
+        private final double[][] m_R;
+
+        private final double[] m_G;
+    }
+
+    @Override
+    public String getName() {
+        return "saddle point Cholesky";
+    }
+
+    /**
+     * Works in place on A, everything else is O(N).
+     */
+    @Override
+    public long estimateMemory(int numConstraints) {
+        if (numConstraints > MAX_DENSE_ORDER) return Long.MAX_VALUE;
+        return 8L * numConstraints * numConstraints + 8L * 16 * numConstraints;
+    }
+
+    /**
+     * Householder QR of the row-major N x 4 matrix p (overwritten).
+     * Reflector c is H_c = I - tau_c v_c v_c^T with v_c zero above row c.
+     */
+    static void householderQR(double[] p, int N, double[][] vs, double[] taus, double[][] R) {
+        for (int c = 0; c < NUM_POLY; c++) {
+            double norm = 0.0;
+            for (int i = c; i < N; i++) {
+                norm += p[i * NUM_POLY + c] * p[i * NUM_POLY + c];
+            }
+            norm = Math.sqrt(norm);
+            if (norm < 1e-12) {
+                throw new IllegalStateException("Polynomial block is rank deficient (degenerate point set).");
+            }
+
+            double x0 = p[c * NUM_POLY + c];
+            double alpha = x0 > 0 ? -norm : norm;
+
+            double[] v = new double[N];
+            for (int i = c; i < N; i++) {
+                v[i] = p[i * NUM_POLY + c];
+            }
+            v[c] -= alpha;
+            double vv = 0.0;
+            for (int i = c; i < N; i++) {
+                vv += v[i] * v[i];
+            }
+            double tau = 2.0 / vv;
+
+            // apply to the remaining columns
+            for (int k = c + 1; k < NUM_POLY; k++) {
+                double dot = 0.0;
+                for (int i = c; i < N; i++) {
+                    dot += v[i] * p[i * NUM_POLY + k];
+                }
+                dot *= tau;
+                for (int i = c; i < N; i++) {
+                    p[i * NUM_POLY + k] -= dot * v[i];
+                }
+            }
+
+            R[c][c] = alpha;
+            for (int k = c + 1; k < NUM_POLY; k++) {
+                R[c][k] = p[c * NUM_POLY + k];
+            }
+            vs[c] = v;
+            taus[c] = tau;
+        }
+    }
+
+    /**
+     * x <- H x for a reflector that is zero above row start
+     */
+    static void applyReflector(double[] x, double[] v, double tau, int start) {
+        int N = v.length;
+        double dot = 0.0;
+        for (int i = start; i < N; i++) {
+            dot += v[i] * x[i];
+        }
+        dot *= tau;
+        for (int i = start; i < N; i++) {
+            x[i] -= dot * v[i];
+        }
+    }
+
+    /**
+     * A <- H A H on the lower triangle, using the symmetric rank-2 form
+     * A - v u^T - u v^T with p = tau A v, u = p - (tau/2)(v^T p) v.
+     */
+    private static void applyReflectorBothSides(double[] a, int N, double[] v, double tau, double[] work) {
+        // p = tau * A v, A symmetric with lower storage
+        double[] pv = work;
+        Arrays.fill(pv, 0.0);
+        for (int i = 0; i < N; i++) {
+            int row = i * N;
+            double vi = v[i];
+            double sum = 0.0;
+            for (int j = 0; j < i; j++) {
+                double aij = a[row + j];
+                sum += aij * v[j];
+                pv[j] += aij * vi;
+            }
+            pv[i] += sum + a[row + i] * vi;
+        }
+        double vp = 0.0;
+        for (int i = 0; i < N; i++) {
+            pv[i] *= tau;
+            vp += v[i] * pv[i];
+        }
+        double K = 0.5 * tau * vp;
+        double[] u = new double[N];
+        for (int i = 0; i < N; i++) {
+            u[i] = pv[i] - K * v[i];
+        }
+
+        // rows above start have v = 0, but u is dense, so every row is updated
+        IntStream.range(0, N).parallel().forEach(i -> {
+            int row = i * N;
+            double vi = v[i];
+            double ui = u[i];
+            for (int j = 0; j <= i; j++) {
+                a[row + j] -= vi * u[j] + ui * v[j];
+            }
+        });
+    }
+
+    /**
+     * Right-looking blocked Cholesky of the trailing block a[offset:, offset:] (lower, row stride N).
+     * Panel solves and trailing updates are distributed over rows on the common ForkJoinPool.
+     */
+    static void choleskyLowerInPlace(double[] a, int N, int offset, Thread caller) {
+        int n = N - offset;
+        for (int kb = 0; kb < n; kb += BLOCK_SIZE) {
+            ReconstructionJob.checkCancelled(caller);
+            int kEnd = Math.min(kb + BLOCK_SIZE, n);
+
+            // diagonal block
+            for (int k = kb; k < kEnd; k++) {
+                int rowK = (offset + k) * N + offset;
+                double s = a[rowK + k];
+                for (int q = kb; q < k; q++) {
+                    s -= a[rowK + q] * a[rowK + q];
+                }
+                if (!(s > 0.0)) {
+                    throw new IllegalStateException("Projected matrix is not definite at pivot " + k + ".");
+                }
+                double lkk = Math.sqrt(s);
+                a[rowK + k] = lkk;
+                for (int i = k + 1; i < kEnd; i++) {
+                    int rowI = (offset + i) * N + offset;
+                    double t = a[rowI + k];
+                    for (int q = kb; q < k; q++) {
+                        t -= a[rowI + q] * a[rowK + q];
+                    }
+                    a[rowI + k] = t / lkk;
+                }
+            }
+            if (kEnd == n) break;
+
+            final int kbF = kb, kEndF = kEnd;
+            // panel below the diagonal block
+            IntStream.range(kEnd, n).parallel().forEach(i -> {
+                int rowI = (offset + i) * N + offset;
+                for (int k = kbF; k < kEndF; k++) {
+                    int rowK = (offset + k) * N + offset;
+                    double t = a[rowI + k];
+                    for (int q = kbF; q < k; q++) {
+                        t -= a[rowI + q] * a[rowK + q];
+                    }
+                    a[rowI + k] = t / a[rowK + k];
+                }
+            });
+
+            // trailing update, both operands are contiguous row segments
+            IntStream.range(kEnd, n).parallel().forEach(i -> {
+                int rowI = (offset + i) * N + offset;
+                for (int j = kEndF; j <= i; j++) {
+                    int rowJ = (offset + j) * N + offset;
+                    double t = 0.0;
+                    for (int q = kbF; q < kEndF; q++) {
+                        t += a[rowI + q] * a[rowJ + q];
+                    }
+                    a[rowI + j] -= t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Solve L L^T y = b in place, L stored in a[offset:, offset:]
+     */
+    static void solveLowerInPlace(double[] a, int N, int offset, double[] b) {
+        int n = b.length;
+        // L z = b
+        for (int i = 0; i < n; i++) {
+            int rowI = (offset + i) * N + offset;
+            double t = b[i];
+            for (int k = 0; k < i; k++) {
+                t -= a[rowI + k] * b[k];
+            }
+            b[i] = t / a[rowI + i];
+        }
+        // L^T y = z, column oriented so L is read along rows
+        for (int i = n - 1; i >= 0; i--) {
+            int rowI = (offset + i) * N + offset;
+            b[i] /= a[rowI + i];
+            double yi = b[i];
+            for (int k = 0; k < i; k++) {
+                b[k] -= a[rowI + k] * yi;
+            }
+        }
+    }
+
+    // number of polynomial terms: 1, x, y, z
+    static final int NUM_POLY = 4;
+
+    // column block width of the Cholesky factorization
+    private static final int BLOCK_SIZE = 64;
+}
@@ -0,0 +1,31 @@
+package com.local;
+
+/**
+ * A scalar field that can be polygonized by {@link MarchingCubesGenerator}.
+ * Implementations must allow concurrent calls to evaluate.
+ */
+@FunctionalInterface
+public interface ScalarField {
+
+    /**
+     * @return field value at (x, y, z)
+     */
+    double evaluate(double x, double y, double z);
+
+    /**
+     * Field value and gradient in one call. The default takes central differences;
+     * fields with a closed form gradient should override it.
+     * @param gradient receives d/dx, d/dy, d/dz
+     * @return field value at (x, y, z)
+     */
+    default double evaluateWithGradient(double x, double y, double z, double[] gradient) {
+        double h = GRADIENT_DELTA;
+        gradient[0] = (evaluate(x + h, y, z) - evaluate(x - h, y, z)) / (2 * h);
+        gradient[1] = (evaluate(x, y + h, z) - evaluate(x, y - h, z)) / (2 * h);
+        gradient[2] = (evaluate(x, y, z + h) - evaluate(x, y, z - h)) / (2 * h);
+        return evaluate(x, y, z);
+    }
+
+    // central difference step of the default gradient, fields live in about [-1, 1]
+    double GRADIENT_DELTA = 1e-5;
+}
@@ -0,0 +1,318 @@
+package com.local;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Reconstruction of a time-varying point cloud given as one file per frame, where each
+ * frame differs little from the one before.
+ *
+ * Three things carry over from frame to frame:
+ * - the solve: with the same number of constraints, refinement starts from the previous
+ *   frame's weights on the previous frame's float factorization (RBFReconstructor.setWarmStart),
+ *   so a frame costs a few O(N^2) refinement steps instead of an O(N^3) factorization;
+ * - the grid: the mesh of the first frame is built with generateMeshIncremental and later
+ *   frames go through MarchingCubesGenerator.updateField, which re-samples only the blocks
+ *   where the field moved by more than the incremental tolerance;
+ * - the I/O: frame k + 1 is read and parsed on a loader thread while frame k is solved and meshed.
+ *
+ * All frames are normalized with the transform of the first frame, so the meshes share one
+ * coordinate frame and points that did not move keep identical coordinates, which lets
+ * RBFField.Delta cancel their centres.
+ */
+public class SequenceReconstructor {
+
+    /**
+     * Receives the mesh of every frame, in frame order, on the thread calling reconstruct.
+     */
+    public interface FrameListener {
+        /**
+         * @param mesh triangle soup of the frame, a copy that stays valid after the call
+         */
+        void onFrame(int frame, Path file, MeshBuffers mesh);
+    }
+
+    public void setDownSamplingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Down sampling step must be positive: " + step);
+        }
+        m_iDownSamplingStep = step;
+    }
+
+    public void setSmoothing(double lambda) {
+        if (lambda < 0.0) {
+            throw new IllegalArgumentException("Smoothing must be non-negative: " + lambda);
+        }
+        m_dSmoothing = lambda;
+    }
+
+    /**
+     * reuse the previous frame's factorization and weights (default true), false solves every frame from scratch
+     */
+    public void setWarmStart(boolean warmStart) {
+        m_bWarmStart = warmStart;
+    }
+
+    /**
+     * update the previous frame's grid where the field changed (default true), false meshes every frame from scratch
+     */
+    public void setIncrementalMeshing(boolean incremental) {
+        m_bIncrementalMeshing = incremental;
+    }
+
+    /**
+     * @param cells see MarchingCubesGenerator.setIncrementalTolerance (default 0.1)
+     */
+    public void setIncrementalTolerance(double cells) {
+        if (!(cells >= 0.0)) {
+            throw new IllegalArgumentException("Tolerance must not be negative: " + cells);
+        }
+        m_dIncrementalTolerance = cells;
+    }
+
+    /**
+     * read the next frame while the current one is reconstructed (default true)
+     */
+    public void setPrefetch(boolean prefetch) {
+        m_bPrefetch = prefetch;
+    }
+
+    /**
+     * Reconstruct all frames in order.
+     * @param gridResolution cubes along each axis of the Marching Cubes grid
+     * @return number of frames reconstructed
+     */
+    public int reconstruct(List<Path> frames, int gridResolution, FrameListener listener) throws IOException {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("Sequence has no frames.");
+        }
+        m_lLoadWaitMillis = 0;
+        m_lSolveMillis = 0;
+        m_lMeshMillis = 0;
+        m_iWarmFrames = 0;
+        m_dTransform = null;
+
+        RBFReconstructor rbf = new RBFReconstructor();
+        rbf.setDownSamplingStep(m_iDownSamplingStep);
+        rbf.setSmoothing(m_dSmoothing);
+        rbf.setWarmStart(m_bWarmStart);
+        MarchingCubesGenerator mc = null;
+
+        ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "sequence-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Future<ArrayList<PointBuffer>> next = null;
+            for (int k = 0; k < frames.size(); k++) {
+                Path file = frames.get(k);
+                long start = System.currentTimeMillis();
+                if (next == null) {
+                    next = loader.submit(() -> readFrame(file));
+                }
+                ArrayList<PointBuffer> cloud = await(next, file);
+                next = null;
+                if (m_bPrefetch && k + 1 < frames.size()) {
+                    Path nextFile = frames.get(k + 1);
+                    next = loader.submit(() -> readFrame(nextFile));
+                }
+                long loaded = System.currentTimeMillis();
+                m_lLoadWaitMillis += loaded - start;
+
+                rbf.computeWeights(cloud);
+                RBFField field = rbf.getField();
+                if (field == null) {
+                    throw new IllegalStateException("Solve failed for frame " + k + ": " + file);
+                }
+                if (rbf.isLastSolveWarm()) m_iWarmFrames++;
+                long solved = System.currentTimeMillis();
+                m_lSolveMillis += solved - loaded;
+
+                if (mc == null || !m_bIncrementalMeshing) {
+                    mc = new MarchingCubesGenerator(field);
+                    mc.setIncrementalTolerance(m_dIncrementalTolerance);
+                    if (m_bIncrementalMeshing) {
+                        mc.generateMeshIncremental(gridResolution, gridResolution, gridResolution);
+                    } else {
+                        mc.generateMesh(gridResolution, gridResolution, gridResolution);
+                    }
+                } else {
+                    mc.updateField(field);
+                }
+                MeshBuffers mesh = MeshBuffers.fromPointBuffers(mc.getVertices(), mc.getNormals());
+                long meshed = System.currentTimeMillis();
+                m_lMeshMillis += meshed - solved;
+
+                System.out.printf("Frame %d: %d points, load wait %d ms, solve %d ms%s, mesh %d ms, %d triangles%n",
+                        k, cloud.get(0).size(), loaded - start, solved - loaded, rbf.isLastSolveWarm() ? " (warm)" : "",
+                        meshed - solved, mesh.getVertexCount() / 3);
+                if (listener != null) {
+                    listener.onFrame(k, file, mesh);
+                }
+            }
+        } finally {
+            loader.shutdownNow();
+        }
+        return frames.size();
+    }
+
+    /**
+     * Runs on the loader thread, which reads the frames in order; the first frame fixes the
+     * normalization of the sequence.
+     */
+    private ArrayList<PointBuffer> readFrame(Path file) throws IOException {
+        if (m_dTransform == null) {
+            ArrayList<PointBuffer> cloud = VertexReader3D.readPointCloudData(file, null);
+            PointBuffer vertices = cloud.get(0);
+            if (vertices.size() == 0) {
+                throw new IllegalArgumentException("Point cloud is empty: " + file);
+            }
+            double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+            double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int i = 0; i < vertices.size(); i++) {
+                for (int c = 0; c < 3; c++) {
+                    double v = vertices.get(i, c);
+                    if (v < min[c]) min[c] = v;
+                    if (v > max[c]) max[c] = v;
+                }
+            }
+            double[] transform = VertexReader3D.normalization(min, max);
+            VertexReader3D.applyNormalization(vertices, transform);
+            m_dTransform = transform;
+            return cloud;
+        }
+        return VertexReader3D.readPointCloudData(file, m_dTransform);
+    }
+
+    private static ArrayList<PointBuffer> await(Future<ArrayList<PointBuffer>> frame, Path file) throws IOException {
+        try {
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Reading " + file + " failed", cause);
+        }
+    }
+
+    /**
+     * @return milliseconds the last reconstruct waited for frames to be read
+     */
+    public long getLoadWaitMillis() {
+        return m_lLoadWaitMillis;
+    }
+
+    public long getSolveMillis() {
+        return m_lSolveMillis;
+    }
+
+    public long getMeshMillis() {
+        return m_lMeshMillis;
+    }
+
+    /**
+     * @return frames of the last reconstruct solved on the previous frame's factorization
+     */
+    public int getWarmFrames() {
+        return m_iWarmFrames;
+    }
+
+    /**
+     * Write a demo sequence: bunny.xyz with a bump sliding over its surface, the same points
+     * in every frame so the constraint count stays fixed.
+     */
+    private static List<Path> writeDemoSequence(Path directory, int frameCount) throws IOException {
+        var cloud = VertexReader3D.readPointCloudData("bunny.xyz");
+        PointBuffer vertices = cloud.get(0);
+        PointBuffer normals = cloud.get(1);
+        Files.createDirectories(directory);
+        List<Path> frames = new ArrayList<>();
+        for (int f = 0; f < frameCount; f++) {
+            // bump centre travels along x through the middle of the cloud
+            double cx = -0.5 + f * (1.0 / Math.max(1, frameCount - 1));
+            Path file = directory.resolve(String.format("frame_%04d.xyz", f));
+            try (BufferedWriter out = Files.newBufferedWriter(file)) {
+                for (int i = 0; i < vertices.size(); i++) {
+                    double x = vertices.get(i, 0), y = vertices.get(i, 1), z = vertices.get(i, 2);
+                    double dx = x - cx, dy = y, dz = z - 0.3;
+                    double d = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                    double h = d < DEMO_BUMP_RADIUS ? DEMO_BUMP_HEIGHT * Math.pow(1.0 - d / DEMO_BUMP_RADIUS, 2) : 0.0;
+                    out.write((x + h * normals.get(i, 0)) + " " + (y + h * normals.get(i, 1)) + " " + (z + h * normals.get(i, 2))
+                            + " " + normals.get(i, 0) + " " + normals.get(i, 1) + " " + normals.get(i, 2));
+                    out.newLine();
+                }
+            }
+            frames.add(file);
+        }
+        return frames;
+    }
+
+    // normalization of the first frame, applied to all frames
+    private volatile double[] m_dTransform;
+
+    private int m_iDownSamplingStep = 1;
+
+    private double m_dSmoothing = 0.0;
+
+    private boolean m_bWarmStart = true;
+
+    private boolean m_bIncrementalMeshing = true;
+
+    private double m_dIncrementalTolerance = 0.1;
+
+    private boolean m_bPrefetch = true;
+
+    // statistics of the last reconstruct
+    private long m_lLoadWaitMillis;
+
+    private long m_lSolveMillis;
+
+    private long m_lMeshMillis;
+
+    private int m_iWarmFrames;
+
+    private static final double DEMO_BUMP_RADIUS = 0.25;
+
+    private static final double DEMO_BUMP_HEIGHT = 0.05;
+
+    /**
+     * args: directory of frame_*.xyz files (a bunny demo sequence is written if missing),
+     * grid resolution, down sampling step
+     */
+    public static void main(String[] args) throws IOException {
+        Path directory = Path.of(args.length > 0 ? args[0] : "sequence");
+        int grid = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int step = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        List<Path> frames;
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                frames = files.filter(p -> p.getFileName().toString().endsWith(".xyz")).sorted().toList();
+            }
+        } else {
+            frames = writeDemoSequence(directory, 8);
+        }
+
+        SequenceReconstructor reconstructor = new SequenceReconstructor();
+        reconstructor.setDownSamplingStep(step);
+        long start = System.currentTimeMillis();
+        reconstructor.reconstruct(frames, grid, (frame, file, mesh) -> { });
+        long total = System.currentTimeMillis() - start;
+        System.out.printf("%d frames in %d ms (%.2f frames/s): load wait %d ms, solve %d ms (%d warm), mesh %d ms%n",
+                frames.size(), total, 1000.0 * frames.size() / total, reconstructor.getLoadWaitMillis(),
+                reconstructor.getSolveMillis(), reconstructor.getWarmFrames(), reconstructor.getMeshMillis());
+    }
+}
@@ -0,0 +1,468 @@
+package com.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Sparse narrow band sampling of a scalar field on a regular grid (VDB-like, two levels).
+ *
+ * The grid nodes are grouped into 8x8x8 leaf blocks. Only blocks near the zero level set
+ * get a leaf holding 512 float samples and a 512 bit mask of the nodes inside the band.
+ * All other blocks store a single tile value, which keeps the sign of the field.
+ * Node lookups are O(1): block table -> leaf index -> value.
+ *
+ * All data lives in primitive buffers, so a grid loaded from file is memory-mapped
+ * instead of being copied onto the heap. Leaves are stored in regions of LEAVES_PER_REGION
+ * leaves, each its own buffer, so neither the heap arrays nor the mappings are limited to
+ * 2 GB.
+ */
+public class SparseFieldGrid implements ScalarField {
+
+    private SparseFieldGrid(int[] nodeCounts, double[] minCoords, double[] steps, double bandWidth, int leafCount,
+                            IntBuffer blockToLeaf, FloatBuffer tileValues, LongBuffer[] leafMasks, FloatBuffer[] leafValues) {
+        m_NodeCounts = nodeCounts;
+        m_MinCoords = minCoords;
+        m_Steps = steps;
+        m_dBandWidth = bandWidth;
+        m_BlockCounts = new int[3];
+        for (int a = 0; a < 3; a++) {
+            m_BlockCounts[a] = (nodeCounts[a] + LEAF_DIM - 1) / LEAF_DIM;
+        }
+        m_BlockToLeaf = blockToLeaf;
+        m_TileValues = tileValues;
+        m_LeafMasks = leafMasks;
+        m_LeafValues = leafValues;
+        m_iLeafCount = leafCount;
+    }
+
+    /**
+     * Sample a field into a narrow band grid. Block classification and leaf filling run in parallel.
+     * @param field source field, e.g. a solved RBFReconstructor
+     * @param cubeNumX Number of cubes along X axis
+     * @param cubeNumY Number of cubes along Y axis
+     * @param cubeNumZ Number of cubes along Z axis
+     * @param minCoord lower bound of the grid on every axis
+     * @param maxCoord upper bound of the grid on every axis
+     * @param bandWidth half width of the stored band, in field units
+     */
+    public static SparseFieldGrid build(ScalarField field, int cubeNumX, int cubeNumY, int cubeNumZ,
+                                        double minCoord, double maxCoord, double bandWidth) {
+        int[] nodeCounts = {cubeNumX + 1, cubeNumY + 1, cubeNumZ + 1};
+        double[] minCoords = {minCoord, minCoord, minCoord};
+        double[] steps = {
+            (maxCoord - minCoord) / cubeNumX,
+            (maxCoord - minCoord) / cubeNumY,
+            (maxCoord - minCoord) / cubeNumZ
+        };
+
+        int bx = (nodeCounts[0] + LEAF_DIM - 1) / LEAF_DIM;
+        int by = (nodeCounts[1] + LEAF_DIM - 1) / LEAF_DIM;
+        int bz = (nodeCounts[2] + LEAF_DIM - 1) / LEAF_DIM;
+        int numBlocks = bx * by * bz;
+
+        System.out.println("SparseFieldGrid: " + cubeNumX + "x" + cubeNumY + "x" + cubeNumZ
+                + " cells, " + numBlocks + " blocks, band " + bandWidth);
+        long start = System.currentTimeMillis();
+
+        // 1. coarse pass: value and gradient at each block center decide which blocks touch the band
+        double halfDiagonal = 0.5 * LEAF_DIM * Math.sqrt(steps[0]*steps[0] + steps[1]*steps[1] + steps[2]*steps[2]);
+        float[] tileValues = new float[numBlocks];
+        boolean[] nearBand = new boolean[numBlocks];
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            int bi = b % bx;
+            int bj = (b / bx) % by;
+            int bk = b / (bx * by);
+            double cx = minCoords[0] + (bi * LEAF_DIM + 0.5 * (LEAF_DIM - 1)) * steps[0];
+            double cy = minCoords[1] + (bj * LEAF_DIM + 0.5 * (LEAF_DIM - 1)) * steps[1];
+            double cz = minCoords[2] + (bk * LEAF_DIM + 0.5 * (LEAF_DIM - 1)) * steps[2];
+            double val = field.evaluate(cx, cy, cz);
+            tileValues[b] = (float) val;
+
+            // first order bound of the field variation inside the block
+            double h = 0.5 * steps[0];
+            double gx = (field.evaluate(cx + h, cy, cz) - field.evaluate(cx - h, cy, cz)) / (2 * h);
+            double gy = (field.evaluate(cx, cy + h, cz) - field.evaluate(cx, cy - h, cz)) / (2 * h);
+            double gz = (field.evaluate(cx, cy, cz + h) - field.evaluate(cx, cy, cz - h)) / (2 * h);
+            double gradLen = Math.sqrt(gx*gx + gy*gy + gz*gz);
+            nearBand[b] = Math.abs(val) - gradLen * halfDiagonal <= bandWidth;
+        });
+
+        // dilate by one block, the linear estimate can miss curved parts of the band
+        int[] blockToLeaf = new int[numBlocks];
+        int numLeaves = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            int bi = b % bx;
+            int bj = (b / bx) % by;
+            int bk = b / (bx * by);
+            boolean active = false;
+            for (int dk = -1; dk <= 1 && !active; dk++) {
+                for (int dj = -1; dj <= 1 && !active; dj++) {
+                    for (int di = -1; di <= 1 && !active; di++) {
+                        int ni = bi + di, nj = bj + dj, nk = bk + dk;
+                        if (ni < 0 || nj < 0 || nk < 0 || ni >= bx || nj >= by || nk >= bz) continue;
+                        active = nearBand[(nk * by + nj) * bx + ni];
+                    }
+                }
+            }
+            blockToLeaf[b] = active ? numLeaves++ : -1;
+        }
+
+        // cubes of a leaf read nodes of its +x, +y and +z neighbours, allocate those too so every
+        // corner is a real sample and not the tile value of the next block
+        boolean[] widened = new boolean[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            if (blockToLeaf[b] >= 0) continue;
+            int bi = b % bx;
+            int bj = (b / bx) % by;
+            int bk = b / (bx * by);
+            for (int d = 1; d < 8 && !widened[b]; d++) {
+                int ni = bi - (d & 1), nj = bj - ((d >> 1) & 1), nk = bk - (d >> 2);
+                if (ni < 0 || nj < 0 || nk < 0) continue;
+                int n = (nk * by + nj) * bx + ni;
+                widened[b] = blockToLeaf[n] >= 0;
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            if (widened[b]) {
+                blockToLeaf[b] = numLeaves++;
+            }
+        }
+
+        // 2. fill the allocated leaves in parallel
+        int[] leafToBlock = new int[numLeaves];
+        for (int b = 0; b < numBlocks; b++) {
+            if (blockToLeaf[b] >= 0) {
+                leafToBlock[blockToLeaf[b]] = b;
+            }
+        }
+        int numRegions = (numLeaves + LEAVES_PER_REGION - 1) / LEAVES_PER_REGION;
+        float[][] leafValues = new float[numRegions][];
+        long[][] leafMasks = new long[numRegions][];
+        for (int r = 0; r < numRegions; r++) {
+            int leaves = Math.min(LEAVES_PER_REGION, numLeaves - r * LEAVES_PER_REGION);
+            leafValues[r] = new float[leaves * LEAF_SIZE];
+            leafMasks[r] = new long[leaves * MASK_WORDS];
+        }
+        IntStream.range(0, numLeaves).parallel().forEach(leaf -> {
+            int b = leafToBlock[leaf];
+            float[] values = leafValues[leaf / LEAVES_PER_REGION];
+            long[] masks = leafMasks[leaf / LEAVES_PER_REGION];
+            int inRegion = leaf % LEAVES_PER_REGION;
+            int i0 = (b % bx) * LEAF_DIM;
+            int j0 = ((b / bx) % by) * LEAF_DIM;
+            int k0 = (b / (bx * by)) * LEAF_DIM;
+            for (int lk = 0; lk < LEAF_DIM; lk++) {
+                int k = Math.min(k0 + lk, nodeCounts[2] - 1);
+                double z = minCoords[2] + k * steps[2];
+                for (int lj = 0; lj < LEAF_DIM; lj++) {
+                    int j = Math.min(j0 + lj, nodeCounts[1] - 1);
+                    double y = minCoords[1] + j * steps[1];
+                    for (int li = 0; li < LEAF_DIM; li++) {
+                        int i = Math.min(i0 + li, nodeCounts[0] - 1);
+                        double x = minCoords[0] + i * steps[0];
+
+                        // nodes past the grid end (partial blocks) are never read, skip the evaluation
+                        if (i != i0 + li || j != j0 + lj || k != k0 + lk) continue;
+
+                        int local = (lk * LEAF_DIM + lj) * LEAF_DIM + li;
+                        double val = field.evaluate(x, y, z);
+                        values[inRegion * LEAF_SIZE + local] = (float) val;
+                        if (Math.abs(val) <= bandWidth) {
+                            masks[inRegion * MASK_WORDS + (local >>> 6)] |= 1L << (local & 63);
+                        }
+                    }
+                }
+            }
+        });
+
+        System.out.println("SparseFieldGrid: " + numLeaves + " of " + numBlocks + " blocks allocated, time: "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        FloatBuffer[] valueBuffers = new FloatBuffer[numRegions];
+        LongBuffer[] maskBuffers = new LongBuffer[numRegions];
+        for (int r = 0; r < numRegions; r++) {
+            valueBuffers[r] = FloatBuffer.wrap(leafValues[r]);
+            maskBuffers[r] = LongBuffer.wrap(leafMasks[r]);
+        }
+        return new SparseFieldGrid(nodeCounts, minCoords, steps, bandWidth, numLeaves, IntBuffer.wrap(blockToLeaf),
+                FloatBuffer.wrap(tileValues), maskBuffers, valueBuffers);
+    }
+
+    /**
+     * @param axis 0=x, 1=y, 2=z
+     * @return number of grid nodes along the axis (cubes + 1)
+     */
+    public int getNodeCount(int axis) {
+        return m_NodeCounts[axis];
+    }
+
+    /**
+     * @return world coordinate of node index idx along the axis
+     */
+    public double getNodeCoord(int axis, int idx) {
+        return m_MinCoords[axis] + idx * m_Steps[axis];
+    }
+
+    public double getBandWidth() {
+        return m_dBandWidth;
+    }
+
+    public int getBlockCount() {
+        return m_BlockCounts[0] * m_BlockCounts[1] * m_BlockCounts[2];
+    }
+
+    public int getLeafCount() {
+        return m_iLeafCount;
+    }
+
+    public boolean isBlockAllocated(int block) {
+        return m_BlockToLeaf.get(block) >= 0;
+    }
+
+    /**
+     * @return node index (i, j, k) of the first node of the block
+     */
+    public int[] getBlockOrigin(int block) {
+        int bx = m_BlockCounts[0];
+        int by = m_BlockCounts[1];
+        return new int[]{(block % bx) * LEAF_DIM, ((block / bx) % by) * LEAF_DIM, (block / (bx * by)) * LEAF_DIM};
+    }
+
+    /**
+     * @return true if the node lies in an allocated leaf block, i.e. it holds a real sample
+     */
+    public boolean isNodeSampled(int i, int j, int k) {
+        int block = ((k / LEAF_DIM) * m_BlockCounts[1] + (j / LEAF_DIM)) * m_BlockCounts[0] + (i / LEAF_DIM);
+        return m_BlockToLeaf.get(block) >= 0;
+    }
+
+    /**
+     * O(1) lookup of a node value. Nodes in unallocated blocks return the block's tile value.
+     */
+    public double getNodeValue(int i, int j, int k) {
+        int block = ((k / LEAF_DIM) * m_BlockCounts[1] + (j / LEAF_DIM)) * m_BlockCounts[0] + (i / LEAF_DIM);
+        int leaf = m_BlockToLeaf.get(block);
+        if (leaf < 0) {
+            return m_TileValues.get(block);
+        }
+        int local = ((k % LEAF_DIM) * LEAF_DIM + (j % LEAF_DIM)) * LEAF_DIM + (i % LEAF_DIM);
+        return m_LeafValues[leaf / LEAVES_PER_REGION].get((leaf % LEAVES_PER_REGION) * LEAF_SIZE + local);
+    }
+
+    /**
+     * @return true if the node was sampled and lies within the band
+     */
+    public boolean isInBand(int i, int j, int k) {
+        int block = ((k / LEAF_DIM) * m_BlockCounts[1] + (j / LEAF_DIM)) * m_BlockCounts[0] + (i / LEAF_DIM);
+        int leaf = m_BlockToLeaf.get(block);
+        if (leaf < 0) {
+            return false;
+        }
+        int local = ((k % LEAF_DIM) * LEAF_DIM + (j % LEAF_DIM)) * LEAF_DIM + (i % LEAF_DIM);
+        long word = m_LeafMasks[leaf / LEAVES_PER_REGION].get((leaf % LEAVES_PER_REGION) * MASK_WORDS + (local >>> 6));
+        return (word & (1L << (local & 63))) != 0;
+    }
+
+    /**
+     * Trilinear interpolation of the node values, positions outside the grid are clamped.
+     */
+    @Override
+    public double evaluate(double x, double y, double z) {
+        double fx = clamp((x - m_MinCoords[0]) / m_Steps[0], m_NodeCounts[0] - 1);
+        double fy = clamp((y - m_MinCoords[1]) / m_Steps[1], m_NodeCounts[1] - 1);
+        double fz = clamp((z - m_MinCoords[2]) / m_Steps[2], m_NodeCounts[2] - 1);
+
+        int i = Math.min((int) fx, m_NodeCounts[0] - 2);
+        int j = Math.min((int) fy, m_NodeCounts[1] - 2);
+        int k = Math.min((int) fz, m_NodeCounts[2] - 2);
+        double tx = fx - i, ty = fy - j, tz = fz - k;
+
+        double c00 = lerp(getNodeValue(i, j, k), getNodeValue(i + 1, j, k), tx);
+        double c10 = lerp(getNodeValue(i, j + 1, k), getNodeValue(i + 1, j + 1, k), tx);
+        double c01 = lerp(getNodeValue(i, j, k + 1), getNodeValue(i + 1, j, k + 1), tx);
+        double c11 = lerp(getNodeValue(i, j + 1, k + 1), getNodeValue(i + 1, j + 1, k + 1), tx);
+
+        return lerp(lerp(c00, c10, ty), lerp(c01, c11, ty), tz);
+    }
+
+    private static double clamp(double val, double max) {
+        return val < 0.0 ? 0.0 : (val > max ? max : val);
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + t * (b - a);
+    }
+
+    /**
+     * Save the grid in a compact binary layout that {@link #load(Path)} maps directly.
+     */
+    public void save(Path filePath) throws IOException {
+        if (filePath.getParent() != null && !Files.exists(filePath.getParent())) {
+            Files.createDirectories(filePath.getParent());
+        }
+
+        int numBlocks = getBlockCount();
+        long fileSize = HEADER_SIZE + 4L * numBlocks + 4L * numBlocks
+                + 8L * m_iLeafCount * MASK_WORDS + 4L * m_iLeafCount * LEAF_SIZE;
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // one mapping per section and leaf region, each well below 2 GB
+            ByteBuffer out = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 8L * numBlocks);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            for (int a = 0; a < 3; a++) out.putInt(m_NodeCounts[a]);
+            out.putInt(m_iLeafCount);
+            for (int a = 0; a < 3; a++) out.putDouble(m_MinCoords[a]);
+            for (int a = 0; a < 3; a++) out.putDouble(m_Steps[a]);
+            out.putDouble(m_dBandWidth);
+            for (int b = 0; b < numBlocks; b++) out.putInt(m_BlockToLeaf.get(b));
+            for (int b = 0; b < numBlocks; b++) out.putFloat(m_TileValues.get(b));
+            ((MappedByteBuffer) out).force();
+
+            long offset = HEADER_SIZE + 8L * numBlocks;
+            for (LongBuffer masks : m_LeafMasks) {
+                ByteBuffer region = map(channel, FileChannel.MapMode.READ_WRITE, offset, 8L * masks.capacity());
+                region.asLongBuffer().put(masks.duplicate().clear());
+                ((MappedByteBuffer) region).force();
+                offset += 8L * masks.capacity();
+            }
+            for (FloatBuffer values : m_LeafValues) {
+                ByteBuffer region = map(channel, FileChannel.MapMode.READ_WRITE, offset, 4L * values.capacity());
+                region.asFloatBuffer().put(values.duplicate().clear());
+                ((MappedByteBuffer) region).force();
+                offset += 4L * values.capacity();
+            }
+        }
+        System.out.println("SparseFieldGrid saved: " + filePath.toAbsolutePath() + " (" + fileSize + " bytes)");
+    }
+
+    /**
+     * Memory-map a grid written by {@link #save(Path)}. Lookups read straight from the mapped file.
+     */
+    public static SparseFieldGrid load(Path filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer in = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a sparse field grid file: " + filePath);
+            }
+            int[] nodeCounts = {in.getInt(), in.getInt(), in.getInt()};
+            int numLeaves = in.getInt();
+            double[] minCoords = {in.getDouble(), in.getDouble(), in.getDouble()};
+            double[] steps = {in.getDouble(), in.getDouble(), in.getDouble()};
+            double bandWidth = in.getDouble();
+
+            int numBlocks = 1;
+            for (int a = 0; a < 3; a++) {
+                numBlocks *= (nodeCounts[a] + LEAF_DIM - 1) / LEAF_DIM;
+            }
+
+            long offset = HEADER_SIZE;
+            IntBuffer blockToLeaf = map(channel, FileChannel.MapMode.READ_ONLY, offset, 4L * numBlocks).asIntBuffer();
+            offset += 4L * numBlocks;
+            FloatBuffer tileValues = map(channel, FileChannel.MapMode.READ_ONLY, offset, 4L * numBlocks).asFloatBuffer();
+            offset += 4L * numBlocks;
+
+            int numRegions = (numLeaves + LEAVES_PER_REGION - 1) / LEAVES_PER_REGION;
+            LongBuffer[] leafMasks = new LongBuffer[numRegions];
+            FloatBuffer[] leafValues = new FloatBuffer[numRegions];
+            for (int r = 0; r < numRegions; r++) {
+                long leaves = Math.min(LEAVES_PER_REGION, numLeaves - r * LEAVES_PER_REGION);
+                leafMasks[r] = map(channel, FileChannel.MapMode.READ_ONLY, offset, 8L * MASK_WORDS * leaves).asLongBuffer();
+                offset += 8L * MASK_WORDS * leaves;
+            }
+            for (int r = 0; r < numRegions; r++) {
+                long leaves = Math.min(LEAVES_PER_REGION, numLeaves - r * LEAVES_PER_REGION);
+                leafValues[r] = map(channel, FileChannel.MapMode.READ_ONLY, offset, 4L * LEAF_SIZE * leaves).asFloatBuffer();
+                offset += 4L * LEAF_SIZE * leaves;
+            }
+            if (offset > channel.size()) {
+                throw new IOException("Truncated sparse field grid file: " + filePath);
+            }
+
+            System.out.println("SparseFieldGrid mapped: " + filePath.toAbsolutePath() + ", leaves: " + numLeaves);
+            return new SparseFieldGrid(nodeCounts, minCoords, steps, bandWidth, numLeaves,
+                    blockToLeaf, tileValues, leafMasks, leafValues);
+        }
+    }
+
+    /**
+     * Map length bytes at a long file offset, little endian. The mapping stays valid after the
+     * channel is closed.
+     */
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Sparse field grid section of " + length + " bytes cannot be mapped at once.");
+        }
+        return channel.map(mode, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // nodes per leaf block along each axis
+    public static final int LEAF_DIM = 8;
+
+    public static final int LEAF_SIZE = LEAF_DIM * LEAF_DIM * LEAF_DIM;
+
+    // 512 bit band mask per leaf
+    private static final int MASK_WORDS = LEAF_SIZE / 64;
+
+    // leaves per value / mask buffer, 512 MB of values
+    private static final int LEAVES_PER_REGION = 1 << 18;
+
+    private static final int MAGIC = 0x53464731; // "SFG1"
+
+    // 2: leaves widened by one block on the +x, +y, +z side
+    private static final int VERSION = 2;
+
+    // magic, version, 3 node counts, leaf count, 3 min coords, 3 steps, band width
+    private static final int HEADER_SIZE = 4 * 6 + 8 * 7;
+
+    private final int[] m_NodeCounts;
+
+    private final int[] m_BlockCounts;
+
+    private final double[] m_MinCoords;
+
+    private final double[] m_Steps;
+
+    private final double m_dBandWidth;
+
+    private final int m_iLeafCount;
+
+    // leaf index per block, -1 for tile-only blocks
+    private final IntBuffer m_BlockToLeaf;
+
+    private final FloatBuffer m_TileValues;
+
+    // per region of LEAVES_PER_REGION leaves
+    private final LongBuffer[] m_LeafMasks;
+
+    private final FloatBuffer[] m_LeafValues;
+
+    public static void main(String[] args) throws IOException {
+        RBFReconstructor rbf = new RBFReconstructor();
+        rbf.setDownSamplingStep(3);
+        rbf.computeWeights("bunny.xyz");
+
+        // sample once, then re-mesh from the grid at several iso-levels
+        SparseFieldGrid grid = SparseFieldGrid.build(rbf, 128, 128, 128, -1.1, 1.1, 0.05);
+        Path gridPath = Path.of("RBF_Cache", "bunny.xyz.sparsegrid");
+        grid.save(gridPath);
+
+        SparseFieldGrid mapped = SparseFieldGrid.load(gridPath);
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(mapped);
+        for (double iso : new double[]{-0.02, 0.0, 0.02}) {
+            mc.setIsoLevel(iso);
+            mc.generateMesh(mapped);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.local;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Batched ray queries against the zero level of an RBFField, without a mesh.
+ *
+ * Rays are clipped to the bounding box and marched by sphere tracing. At every evaluated
+ * point, the second order bound of RBFField.evaluateWithTaylorBound, derived from the weights,
+ * certifies a segment ahead of it and one behind it on which the field keeps its sign, so
+ * no crossing is ever skipped; the global Lipschitz bound is the fallback. Steps are
+ * over-relaxed by a factor below 2 and checked afterwards: if the certified segments of two
+ * consecutive points do not meet, the gap might hide a pair of crossings and the ray falls
+ * back to the plain step. A step whose end point has the opposite sign brackets a crossing,
+ * which is then located by bisection, the bracket shrinking by the certified segments
+ * around each midpoint.
+ *
+ * Rays are processed in packets of PACKET_SIZE; the field is evaluated for all live rays of
+ * a packet in one pass over the centres, and packets run in parallel.
+ */
+public class SphereTracer {
+
+    public SphereTracer(RBFField field) {
+        m_Field = field;
+    }
+
+    /**
+     * set the box rays are clipped to, on all three axes (default [-1.1, 1.1] as in MarchingCubesGenerator)
+     */
+    public void setBounds(double minCoord, double maxCoord) {
+        if (!(minCoord < maxCoord)) {
+            throw new IllegalArgumentException("Invalid bounds.");
+        }
+        m_dMinCoord = minCoord;
+        m_dMaxCoord = maxCoord;
+    }
+
+    /**
+     * @param tolerance distance along the ray to which crossings are located, also the
+     *                  field value accepted as a hit (default 1e-6)
+     */
+    public void setHitTolerance(double tolerance) {
+        if (!(tolerance > 0.0)) {
+            throw new IllegalArgumentException("Hit tolerance must be positive: " + tolerance);
+        }
+        m_dHitTolerance = tolerance;
+    }
+
+    /**
+     * @param steps field evaluations per ray before it is given up as a miss (default 256)
+     */
+    public void setMaxSteps(int steps) {
+        m_iMaxSteps = steps;
+    }
+
+    /**
+     * @param omega step scale in [1, 2) tried before falling back to the plain step (default 1.9)
+     */
+    public void setOverRelaxation(double omega) {
+        if (!(omega >= 1.0 && omega < 2.0)) {
+            throw new IllegalArgumentException("Over-relaxation must be in [1, 2): " + omega);
+        }
+        m_dOverRelaxation = omega;
+    }
+
+    /**
+     * Intersect count rays with the zero level of the field.
+     * @param origins x, y, z per ray
+     * @param directions x, y, z per ray, need not be unit length
+     * @param hits distance to the first crossing along the normalized direction per ray,
+     *             +infinity for a miss
+     * @param normals unit field gradient at the hit, 3 per ray, left untouched for misses;
+     *                may be null, otherwise costs one more field evaluation per hit
+     * @return number of hits
+     */
+    public int trace(double[] origins, double[] directions, int count, double[] hits, double[] normals) {
+        if (origins.length < 3 * count || directions.length < 3 * count || hits.length < count
+                || (normals != null && normals.length < 3 * count)) {
+            throw new IllegalArgumentException("Arrays too short for " + count + " rays.");
+        }
+        int packets = (count + PACKET_SIZE - 1) / PACKET_SIZE;
+        m_lEvaluations = IntStream.range(0, packets).parallel()
+                .mapToLong(p -> tracePacket(origins, directions, p * PACKET_SIZE,
+                        Math.min(count, (p + 1) * PACKET_SIZE), hits, normals))
+                .sum();
+        int hitCount = 0;
+        for (int r = 0; r < count; r++) {
+            if (hits[r] < Double.POSITIVE_INFINITY) hitCount++;
+        }
+        return hitCount;
+    }
+
+    /**
+     * @return field evaluations of the last trace call, summed over all rays
+     */
+    public long getLastEvaluations() {
+        return m_lEvaluations;
+    }
+
+    /**
+     * Advance rays [from, to) in lockstep, one field evaluation per live ray and round.
+     * @return number of field evaluations
+     */
+    private long tracePacket(double[] origins, double[] directions, int from, int to, double[] hits, double[] normals) {
+        int n = to - from;
+        double[] ox = new double[n], oy = new double[n], oz = new double[n];
+        double[] dx = new double[n], dy = new double[n], dz = new double[n];
+        double[] tExit = new double[n];
+        // point to evaluate, last accepted point with its value and certified length ahead
+        double[] tProbe = new double[n], tSafe = new double[n], vSafe = new double[n], sSafe = new double[n];
+        // crossing bracket, sign of vSafe at lo
+        double[] lo = new double[n], hi = new double[n];
+        double[] omega = new double[n];
+        int[] state = new int[n];
+        int[] steps = new int[n];
+
+        int live = 0;
+        for (int r = 0; r < n; r++) {
+            int ray = from + r;
+            hits[ray] = Double.POSITIVE_INFINITY;
+            state[r] = DONE;
+            ox[r] = origins[3 * ray]; oy[r] = origins[3 * ray + 1]; oz[r] = origins[3 * ray + 2];
+            double len = Math.sqrt(directions[3 * ray] * directions[3 * ray]
+                    + directions[3 * ray + 1] * directions[3 * ray + 1] + directions[3 * ray + 2] * directions[3 * ray + 2]);
+            if (!(len > 0.0)) continue;
+            dx[r] = directions[3 * ray] / len; dy[r] = directions[3 * ray + 1] / len; dz[r] = directions[3 * ray + 2] / len;
+            double[] range = clip(ox[r], oy[r], oz[r], dx[r], dy[r], dz[r]);
+            if (range == null) continue;
+            tProbe[r] = range[0];
+            tExit[r] = range[1];
+            omega[r] = m_dOverRelaxation;
+            state[r] = START;
+            live++;
+        }
+
+        double[] px = new double[n], py = new double[n], pz = new double[n];
+        double[] values = new double[n], gradients = new double[3 * n], bounds = new double[n];
+        int[] lane = new int[n];
+        long evaluations = 0;
+        double tol = m_dHitTolerance;
+        double lipschitz = m_Field.getLipschitzBound();
+        while (live > 0) {
+            int m = 0;
+            for (int r = 0; r < n; r++) {
+                if (state[r] == DONE) continue;
+                if (state[r] == BISECT) tProbe[r] = 0.5 * (lo[r] + hi[r]);
+                px[m] = ox[r] + tProbe[r] * dx[r]; py[m] = oy[r] + tProbe[r] * dy[r]; pz[m] = oz[r] + tProbe[r] * dz[r];
+                lane[m++] = r;
+            }
+            m_Field.evaluateWithTaylorBound(px, py, pz, m, values, gradients, bounds);
+            evaluations += m;
+
+            for (int q = 0; q < m; q++) {
+                int r = lane[q];
+                double t = tProbe[r];
+                double v = values[q];
+                double slope = gradients[3 * q] * dx[r] + gradients[3 * q + 1] * dy[r] + gradients[3 * q + 2] * dz[r];
+                double ahead = certified(v, slope, bounds[q], lipschitz);
+                double behind = certified(v, -slope, bounds[q], lipschitz);
+                boolean sameSign = (v > 0.0) == (vSafe[r] > 0.0);
+                boolean hit = false;
+                steps[r]++;
+                if (Math.abs(v) <= tol) {
+                    hit = true;
+                } else if (state[r] == START) {
+                    tSafe[r] = t; vSafe[r] = v; sSafe[r] = ahead;
+                    state[r] = MARCH;
+                } else if (state[r] == BISECT) {
+                    // shrink the bracket by the certified lengths around the midpoint
+                    if (sameSign) lo[r] = Math.min(hi[r], t + ahead); else hi[r] = Math.max(lo[r], t - behind);
+                    hit = hi[r] - lo[r] <= tol;
+                } else if (!sameSign) {
+                    // the step jumped over a crossing, it lies between the two certified segments
+                    lo[r] = tSafe[r] + sSafe[r];
+                    hi[r] = Math.max(lo[r], t - behind);
+                    state[r] = BISECT;
+                    hit = hi[r] - lo[r] <= tol;
+                } else if (t - tSafe[r] > sSafe[r] + behind) {
+                    // the over-relaxed step left a gap that might hide two crossings, redo it plain
+                    omega[r] = 1.0;
+                } else {
+                    tSafe[r] = t; vSafe[r] = v; sSafe[r] = ahead;
+                    omega[r] = m_dOverRelaxation;
+                }
+
+                if (hit) {
+                    hits[from + r] = state[r] == BISECT ? 0.5 * (lo[r] + hi[r]) : t;
+                    state[r] = DONE;
+                    live--;
+                } else if (steps[r] >= m_iMaxSteps) {
+                    state[r] = DONE;
+                    live--;
+                } else if (state[r] == MARCH) {
+                    if (tSafe[r] + sSafe[r] >= tExit[r]) {
+                        // certified up to the box, no crossing on this ray
+                        state[r] = DONE;
+                        live--;
+                    } else {
+                        tProbe[r] = Math.min(tSafe[r] + omega[r] * sSafe[r], tExit[r]);
+                    }
+                }
+            }
+        }
+
+        if (normals != null) {
+            int m = 0;
+            for (int r = 0; r < n; r++) {
+                double t = hits[from + r];
+                if (t == Double.POSITIVE_INFINITY) continue;
+                px[m] = ox[r] + t * dx[r]; py[m] = oy[r] + t * dy[r]; pz[m] = oz[r] + t * dz[r];
+                lane[m++] = r;
+            }
+            m_Field.evaluateWithTaylorBound(px, py, pz, m, values, gradients, bounds);
+            evaluations += m;
+            for (int q = 0; q < m; q++) {
+                int ray = from + lane[q];
+                double gx = gradients[3 * q], gy = gradients[3 * q + 1], gz = gradients[3 * q + 2];
+                double g = Math.sqrt(gx*gx + gy*gy + gz*gz);
+                if (g > 0.0) {
+                    normals[3 * ray] = gx / g; normals[3 * ray + 1] = gy / g; normals[3 * ray + 2] = gz / g;
+                }
+            }
+        }
+        return evaluations;
+    }
+
+    /**
+     * Length s such that f keeps its sign on [0, s] along a direction with directional
+     * derivative slope: the smallest root of |v| + sign(v) slope s - a s^2, with
+     * a from evaluateWithTaylorBound, or |v| / lipschitz if that is longer.
+     */
+    private static double certified(double v, double slope, double a, double lipschitz) {
+        double value = Math.abs(v);
+        double rate = v > 0.0 ? slope : -slope;
+        double global = value / lipschitz;
+        if (!(a < Double.POSITIVE_INFINITY)) return global;
+        double root = Math.sqrt(rate * rate + 4.0 * a * value);
+        // the two forms avoid cancellation when moving towards resp. away from the zero level
+        double s = rate > 0.0 ? (a > 0.0 ? (rate + root) / (2.0 * a) : Double.POSITIVE_INFINITY) : 2.0 * value / (root - rate);
+        return Math.max(s, global);
+    }
+
+    /**
+     * @return entry and exit distance of the ray in the bounding box, null if it misses the box
+     */
+    private double[] clip(double ox, double oy, double oz, double dx, double dy, double dz) {
+        double tMin = 0.0, tMax = Double.POSITIVE_INFINITY;
+        double[] o = {ox, oy, oz};
+        double[] d = {dx, dy, dz};
+        for (int c = 0; c < 3; c++) {
+            if (d[c] == 0.0) {
+                if (o[c] < m_dMinCoord || o[c] > m_dMaxCoord) return null;
+                continue;
+            }
+            double t0 = (m_dMinCoord - o[c]) / d[c];
+            double t1 = (m_dMaxCoord - o[c]) / d[c];
+            tMin = Math.max(tMin, Math.min(t0, t1));
+            tMax = Math.min(tMax, Math.max(t0, t1));
+        }
+        return tMin <= tMax ? new double[] {tMin, tMax} : null;
+    }
+
+    private final RBFField m_Field;
+
+    private double m_dMinCoord = -1.1;
+
+    private double m_dMaxCoord = 1.1;
+
+    private double m_dHitTolerance = 1e-6;
+
+    private int m_iMaxSteps = 256;
+
+    private double m_dOverRelaxation = 1.9;
+
+    private volatile long m_lEvaluations;
+
+    // rays evaluated together in one pass over the centres
+    private static final int PACKET_SIZE = 16;
+
+    // ray states
+    private static final int START = 0, MARCH = 1, BISECT = 2, DONE = 3;
+
+    /**
+     * Cast an orthographic view of bunny.xyz along -z and report the ray throughput.
+     * args: image size, down sampling step
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int step = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        RBFReconstructor reconstructor = new RBFReconstructor();
+        reconstructor.setDownSamplingStep(step);
+        reconstructor.computeWeights("bunny.xyz");
+        SphereTracer tracer = new SphereTracer(reconstructor.getField());
+
+        int count = size * size;
+        double[] origins = new double[3 * count];
+        double[] directions = new double[3 * count];
+        Random random = new Random(1);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int r = i * size + j;
+                origins[3 * r] = -1.0 + 2.0 * (i + random.nextDouble()) / size;
+                origins[3 * r + 1] = -1.0 + 2.0 * (j + random.nextDouble()) / size;
+                origins[3 * r + 2] = 2.0;
+                directions[3 * r + 2] = -1.0;
+            }
+        }
+        double[] hits = new double[count];
+        double[] normals = new double[3 * count];
+        long start = System.nanoTime();
+        int hitCount = tracer.trace(origins, directions, count, hits, normals);
+        double seconds = (System.nanoTime() - start) * 1e-9;
+        System.out.printf("%d rays, %d hits in %.2f s: %.0f rays/s, %.1f field evaluations per ray%n",
+                count, hitCount, seconds, count / seconds, (double) tracer.getLastEvaluations() / count);
+    }
+}
@@ -0,0 +1,115 @@
+package com.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes streamed triangle batches into a binary STL file.
+ * The triangle count in the header is patched when the sink is closed.
+ */
+public class StlTriangleSink implements TriangleSink, Closeable {
+
+    public StlTriangleSink(Path filePath) throws IOException {
+        if (filePath.getParent() != null && !Files.exists(filePath.getParent())) {
+            Files.createDirectories(filePath.getParent());
+        }
+        m_Channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        // 80 byte header + triangle count placeholder
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] title = "RBF Marching Cubes mesh".getBytes();
+        header.put(title);
+        header.position(80);
+        header.putInt(0);
+        header.flip();
+        writeFully(header);
+
+        m_Buffer = ByteBuffer.allocateDirect(1024 * TRIANGLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void accept(float[] vertices, float[] normals, int triangleCount) throws IOException {
+        for (int t = 0; t < triangleCount; t++) {
+            if (m_Buffer.remaining() < TRIANGLE_SIZE) {
+                flush();
+            }
+            int base = t * 9;
+
+            // STL stores one facet normal, use the average of the vertex normals
+            float nx = normals[base] + normals[base + 3] + normals[base + 6];
+            float ny = normals[base + 1] + normals[base + 4] + normals[base + 7];
+            float nz = normals[base + 2] + normals[base + 5] + normals[base + 8];
+            float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len > 1e-12f) {
+                nx /= len; ny /= len; nz /= len;
+            }
+            m_Buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+
+            for (int i = 0; i < 9; i++) {
+                m_Buffer.putFloat(vertices[base + i]);
+            }
+            // attribute byte count
+            m_Buffer.putShort((short) 0);
+        }
+        m_lTriangleCount += triangleCount;
+    }
+
+    public long getTriangleCount() {
+        return m_lTriangleCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+
+        // STL stores the count as unsigned 32 bit
+        ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        count.putInt((int) m_lTriangleCount);
+        count.flip();
+        m_Channel.position(80);
+        writeFully(count);
+        m_Channel.close();
+    }
+
+    private void flush() throws IOException {
+        m_Buffer.flip();
+        writeFully(m_Buffer);
+        m_Buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            m_Channel.write(buffer);
+        }
+    }
+
+    private static final int HEADER_SIZE = 84;
+
+    // normal + 3 vertices (12 floats) + attribute short
+    private static final int TRIANGLE_SIZE = 50;
+
+    private final FileChannel m_Channel;
+
+    private final ByteBuffer m_Buffer;
+
+    private long m_lTriangleCount = 0;
+
+    public static void main(String[] args) throws IOException {
+        RBFReconstructor rbf = new RBFReconstructor();
+        rbf.setDownSamplingStep(3);
+        rbf.computeWeights("bunny.xyz");
+
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(rbf);
+        try (StlTriangleSink sink = new StlTriangleSink(Path.of("bunny_streamed.stl"))) {
+            mc.generateMeshStreaming(128, 128, 128, sink, 4096);
+            System.out.println("Triangles written: " + sink.getTriangleCount());
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package com.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Worker process of a TiledReconstructor: solves tiles and polygonizes them.
+ *
+ * Each tile takes two requests on the same connection. SOLVE fits the RBF to the tile's
+ * points and returns the field on the grid nodes the tile owns on its lower cut planes.
+ * MESH then runs Marching Cubes over the tile's core box with the boundary nodes replaced
+ * by the values of their owners, so neighbouring tiles see identical values on the shared
+ * planes and their surfaces meet without cracks. Solved fields are kept per connection.
+ *
+ * Protocol (big endian, one request / response pair at a time):
+ *   request:  MAGIC, type, tile id (int), then
+ *     SOLVE:  step, cells[3], owned nodes[3], min face flags[3] (int),
+ *             core min[3], core max[3], keep distance (double),
+ *             point count (int), x y z nx ny nz per point (double)
+ *     MESH:   per axis, lower then upper face: present (int), then
+ *             (cells[b] + 1) * (cells[c] + 1) node values (float, NaN keeps the own value)
+ *   response: MAGIC, tile id, status (int);
+ *     STATUS_ERROR:   message (UTF)
+ *     SOLVE:          per flagged axis owned[b] * owned[c] node values (float), millis (long)
+ *     MESH:           vertex count (int), positions, normals (float, triangle soup), millis (long)
+ * Axes b < c are the two axes other than the face axis; values are stored b-major.
+ * The coordinator closes the connection when it is done.
+ */
+public class TileWorker {
+
+    /**
+     * Fit the tile's points.
+     * @return the solved tile, with its owned lower face values
+     */
+    static SolvedTile solve(TileRequest request) {
+        long start = System.currentTimeMillis();
+        RBFReconstructor rbf = new RBFReconstructor();
+        if (request.m_Plan != null) {
+            request.m_Plan.apply(rbf);
+        } else {
+            rbf.setDownSamplingStep(request.m_iStep);
+        }
+        ArrayList<PointBuffer> cloud = new ArrayList<>();
+        cloud.add(request.m_Points);
+        cloud.add(request.m_Normals);
+        rbf.computeWeights(cloud);
+        RBFField field = rbf.getField();
+        if (field == null) {
+            throw new IllegalStateException("Tile " + request.m_iTileId + " could not be solved.");
+        }
+
+        SolvedTile tile = new SolvedTile();
+        tile.m_Request = request;
+        tile.m_Field = field;
+        tile.m_Occupied = new LongOpenHashSet();
+        for (int i = 0; i < request.m_Points.size(); i++) {
+            tile.m_Occupied.add(cellKey(request.m_Points.get(i, 0), request.m_Points.get(i, 1),
+                    request.m_Points.get(i, 2), request.m_dKeepDistance));
+        }
+        // the points are not needed for meshing
+        request.m_Points = null;
+        request.m_Normals = null;
+
+        double[] step = cellSteps(request);
+        for (int a = 0; a < 3; a++) {
+            if (!request.m_bMinFace[a]) continue;
+            int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+            float[] values = new float[request.m_iOwned[b] * request.m_iOwned[c]];
+            double[] p = new double[3];
+            p[a] = request.m_dMin[a];
+            for (int i = 0; i < request.m_iOwned[b]; i++) {
+                p[b] = request.m_dMin[b] + i * step[b];
+                for (int j = 0; j < request.m_iOwned[c]; j++) {
+                    p[c] = request.m_dMin[c] + j * step[c];
+                    values[i * request.m_iOwned[c] + j] = (float) field.evaluate(p[0], p[1], p[2]);
+                }
+            }
+            tile.m_fMinFaces[a] = values;
+        }
+        tile.m_lMillis = System.currentTimeMillis() - start;
+        return tile;
+    }
+
+    /**
+     * Polygonize the core box of a solved tile. Triangles farther than the keep distance from
+     * every point are dropped: a field fitted to part of a surface can have zero crossings in
+     * regions where the tile has no data.
+     * @param faces boundary node values per axis and side (lower, upper), null entries keep the own field
+     */
+    static TileResult mesh(SolvedTile tile, float[][][] faces) {
+        long start = System.currentTimeMillis();
+        TileRequest request = tile.m_Request;
+        MarchingCubesGenerator mc = new MarchingCubesGenerator(new BoundaryField(tile.m_Field, request, faces));
+        mc.setBounds(request.m_dMin, request.m_dMax);
+        mc.generateMesh(request.m_iCells[0], request.m_iCells[1], request.m_iCells[2]);
+
+        PointBuffer vertices = mc.getVertices();
+        PointBuffer normals = mc.getNormals();
+        double keep = request.m_dKeepDistance;
+        int count = vertices.size() - vertices.size() % 3;
+        float[] pos = new float[count * 3];
+        float[] nrm = new float[count * 3];
+        int kept = 0;
+        for (int t = 0; t < count; t += 3) {
+            double cx = 0, cy = 0, cz = 0;
+            for (int v = t; v < t + 3; v++) {
+                cx += vertices.get(v, 0); cy += vertices.get(v, 1); cz += vertices.get(v, 2);
+            }
+            if (!nearPoints(tile.m_Occupied, cx / 3, cy / 3, cz / 3, keep)) continue;
+            for (int v = t; v < t + 3; v++, kept++) {
+                for (int c = 0; c < 3; c++) {
+                    pos[kept * 3 + c] = (float) vertices.get(v, c);
+                    nrm[kept * 3 + c] = (float) normals.get(v, c);
+                }
+            }
+        }
+
+        TileResult result = new TileResult();
+        result.m_iTileId = request.m_iTileId;
+        result.m_iVertexCount = kept;
+        result.m_fPositions = kept == count ? pos : Arrays.copyOf(pos, kept * 3);
+        result.m_fNormals = kept == count ? nrm : Arrays.copyOf(nrm, kept * 3);
+        result.m_lMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private static double[] cellSteps(TileRequest request) {
+        double[] step = new double[3];
+        for (int a = 0; a < 3; a++) {
+            step[a] = (request.m_dMax[a] - request.m_dMin[a]) / request.m_iCells[a];
+        }
+        return step;
+    }
+
+    /**
+     * The tile's field, with the values of other tiles on the grid nodes of the core box boundary.
+     */
+    private static class BoundaryField implements ScalarField {
+
+        BoundaryField(ScalarField field, TileRequest request, float[][][] faces) {
+            m_Field = field;
+            m_Request = request;
+            m_Faces = faces;
+            m_dSteps = cellSteps(request);
+        }
+
+        @Override
+        public double evaluate(double x, double y, double z) {
+            double[] p = {x, y, z};
+            for (int a = 0; a < 3; a++) {
+                for (int side = 0; side < 2; side++) {
+                    float[] face = m_Faces[a][side];
+                    if (face == null) continue;
+                    double u = (p[a] - m_Request.m_dMin[a]) / m_dSteps[a];
+                    if (Math.abs(u - (side == 0 ? 0 : m_Request.m_iCells[a])) > NODE_TOLERANCE) continue;
+                    int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+                    double ub = (p[b] - m_Request.m_dMin[b]) / m_dSteps[b];
+                    double uc = (p[c] - m_Request.m_dMin[c]) / m_dSteps[c];
+                    int i = (int) Math.round(ub);
+                    int j = (int) Math.round(uc);
+                    // only grid nodes, not e.g. the finite difference samples of normals
+                    if (Math.abs(ub - i) > NODE_TOLERANCE || Math.abs(uc - j) > NODE_TOLERANCE) continue;
+                    if (i < 0 || j < 0 || i > m_Request.m_iCells[b] || j > m_Request.m_iCells[c]) continue;
+                    float value = face[i * (m_Request.m_iCells[c] + 1) + j];
+                    if (!Float.isNaN(value)) return value;
+                }
+            }
+            return m_Field.evaluate(x, y, z);
+        }
+
+        @Override
+        public double evaluateWithGradient(double x, double y, double z, double[] gradient) {
+            // normals come from the tile's own field
+            return m_Field.evaluateWithGradient(x, y, z, gradient);
+        }
+
+        private final ScalarField m_Field;
+
+        private final TileRequest m_Request;
+
+        private final float[][][] m_Faces;
+
+        private final double[] m_dSteps;
+    }
+
+    /**
+     * @return true if a point lies in the cell of (x, y, z) or one of its 26 neighbours
+     */
+    private static boolean nearPoints(LongOpenHashSet occupied, double x, double y, double z, double cellSize) {
+        long cx = (long) Math.floor(x / cellSize);
+        long cy = (long) Math.floor(y / cellSize);
+        long cz = (long) Math.floor(z / cellSize);
+        for (long dx = -1; dx <= 1; dx++) {
+            for (long dy = -1; dy <= 1; dy++) {
+                for (long dz = -1; dz <= 1; dz++) {
+                    if (occupied.contains(packCell(cx + dx, cy + dy, cz + dz))) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long cellKey(double x, double y, double z, double cellSize) {
+        return packCell((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize), (long) Math.floor(z / cellSize));
+    }
+
+    private static long packCell(long x, long y, long z) {
+        return ((x & 0x1FFFFF) << 42) | ((y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    /**
+     * Serve tile requests on a port until the process is killed. Prints the port first,
+     * so a coordinator that launched the process with port 0 can connect.
+     */
+    public static void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println(PORT_LINE_PREFIX + server.getLocalPort());
+            System.out.flush();
+            while (true) {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> handle(socket), "tile-connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+    }
+
+    private static void handle(Socket socket) {
+        Int2ObjectOpenHashMap<SolvedTile> solved = new Int2ObjectOpenHashMap<>();
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            while (true) {
+                int type;
+                int tileId;
+                try {
+                    checkMagic(in.readInt());
+                } catch (EOFException e) {
+                    // the coordinator is done
+                    return;
+                }
+                type = in.readInt();
+                tileId = in.readInt();
+                try {
+                    if (type == TYPE_SOLVE) {
+                        SolvedTile tile = solve(readSolveRequest(in, tileId));
+                        solved.put(tileId, tile);
+                        writeSolveResult(out, tile);
+                    } else if (type == TYPE_MESH) {
+                        SolvedTile tile = solved.get(tileId);
+                        float[][][] faces = readMeshRequest(in, tile);
+                        if (tile == null) {
+                            throw new IllegalStateException("Tile " + tileId + " was not solved on this connection.");
+                        }
+                        writeMeshResult(out, mesh(tile, faces));
+                        solved.remove(tileId);
+                    } else {
+                        throw new IOException("Unknown request type " + type);
+                    }
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    e.printStackTrace();
+                    writeError(out, tileId, e.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Tile connection failed: " + e.getMessage());
+        }
+    }
+
+    static void writeSolveRequest(DataOutputStream out, TileRequest request) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(TYPE_SOLVE);
+        out.writeInt(request.m_iTileId);
+        out.writeInt(request.m_iStep);
+        for (int a = 0; a < 3; a++) out.writeInt(request.m_iCells[a]);
+        for (int a = 0; a < 3; a++) out.writeInt(request.m_iOwned[a]);
+        for (int a = 0; a < 3; a++) out.writeInt(request.m_bMinFace[a] ? 1 : 0);
+        for (int a = 0; a < 3; a++) out.writeDouble(request.m_dMin[a]);
+        for (int a = 0; a < 3; a++) out.writeDouble(request.m_dMax[a]);
+        out.writeDouble(request.m_dKeepDistance);
+        int n = request.m_Points.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) out.writeDouble(request.m_Points.get(i, c));
+            for (int c = 0; c < 3; c++) out.writeDouble(request.m_Normals.get(i, c));
+        }
+    }
+
+    private static TileRequest readSolveRequest(DataInputStream in, int tileId) throws IOException {
+        TileRequest request = new TileRequest();
+        request.m_iTileId = tileId;
+        request.m_iStep = in.readInt();
+        for (int a = 0; a < 3; a++) request.m_iCells[a] = in.readInt();
+        for (int a = 0; a < 3; a++) request.m_iOwned[a] = in.readInt();
+        for (int a = 0; a < 3; a++) request.m_bMinFace[a] = in.readInt() != 0;
+        for (int a = 0; a < 3; a++) request.m_dMin[a] = in.readDouble();
+        for (int a = 0; a < 3; a++) request.m_dMax[a] = in.readDouble();
+        request.m_dKeepDistance = in.readDouble();
+        int n = in.readInt();
+        if (n < 0 || request.m_iStep < 1) {
+            throw new IOException("Invalid tile request: " + n + " points, step " + request.m_iStep);
+        }
+        request.m_Points = new PointBuffer(n);
+        request.m_Normals = new PointBuffer(n);
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) request.m_Points.set(i, c, in.readDouble());
+            for (int c = 0; c < 3; c++) request.m_Normals.set(i, c, in.readDouble());
+        }
+        return request;
+    }
+
+    private static void writeSolveResult(DataOutputStream out, SolvedTile tile) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(tile.m_Request.m_iTileId);
+        out.writeInt(STATUS_OK);
+        for (int a = 0; a < 3; a++) {
+            if (tile.m_fMinFaces[a] == null) continue;
+            for (float v : tile.m_fMinFaces[a]) out.writeFloat(v);
+        }
+        out.writeLong(tile.m_lMillis);
+    }
+
+    /**
+     * @return the owned lower face values of the tile, per axis, null where not flagged
+     */
+    static float[][] readSolveResult(DataInputStream in, TileRequest request) throws IOException {
+        readResponseHeader(in, request.m_iTileId);
+        float[][] faces = new float[3][];
+        for (int a = 0; a < 3; a++) {
+            if (!request.m_bMinFace[a]) continue;
+            int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+            faces[a] = new float[request.m_iOwned[b] * request.m_iOwned[c]];
+            for (int i = 0; i < faces[a].length; i++) faces[a][i] = in.readFloat();
+        }
+        in.readLong();
+        return faces;
+    }
+
+    /**
+     * @param faces per axis and side (lower, upper) the node values, or null
+     */
+    static void writeMeshRequest(DataOutputStream out, int tileId, float[][][] faces) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(TYPE_MESH);
+        out.writeInt(tileId);
+        for (int a = 0; a < 3; a++) {
+            for (int side = 0; side < 2; side++) {
+                float[] face = faces[a][side];
+                out.writeInt(face != null ? face.length : 0);
+                if (face == null) continue;
+                for (float v : face) out.writeFloat(v);
+            }
+        }
+    }
+
+    private static float[][][] readMeshRequest(DataInputStream in, SolvedTile tile) throws IOException {
+        float[][][] faces = new float[3][2][];
+        for (int a = 0; a < 3; a++) {
+            for (int side = 0; side < 2; side++) {
+                int length = in.readInt();
+                if (length == 0) continue;
+                if (tile != null) {
+                    int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+                    int expected = (tile.m_Request.m_iCells[b] + 1) * (tile.m_Request.m_iCells[c] + 1);
+                    if (length != expected) {
+                        throw new IOException("Face of " + length + " values, expected " + expected);
+                    }
+                }
+                faces[a][side] = new float[length];
+                for (int i = 0; i < length; i++) faces[a][side][i] = in.readFloat();
+            }
+        }
+        return faces;
+    }
+
+    private static void writeMeshResult(DataOutputStream out, TileResult result) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(result.m_iTileId);
+        out.writeInt(STATUS_OK);
+        out.writeInt(result.m_iVertexCount);
+        for (int i = 0; i < result.m_iVertexCount * 3; i++) out.writeFloat(result.m_fPositions[i]);
+        for (int i = 0; i < result.m_iVertexCount * 3; i++) out.writeFloat(result.m_fNormals[i]);
+        out.writeLong(result.m_lMillis);
+    }
+
+    static TileResult readMeshResult(DataInputStream in, int tileId) throws IOException {
+        readResponseHeader(in, tileId);
+        TileResult result = new TileResult();
+        result.m_iTileId = tileId;
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Invalid vertex count: " + n);
+        }
+        result.m_iVertexCount = n;
+        result.m_fPositions = new float[n * 3];
+        result.m_fNormals = new float[n * 3];
+        for (int i = 0; i < n * 3; i++) result.m_fPositions[i] = in.readFloat();
+        for (int i = 0; i < n * 3; i++) result.m_fNormals[i] = in.readFloat();
+        result.m_lMillis = in.readLong();
+        return result;
+    }
+
+    private static void writeError(DataOutputStream out, int tileId, String message) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(tileId);
+        out.writeInt(STATUS_ERROR);
+        out.writeUTF(String.valueOf(message));
+    }
+
+    /**
+     * @throws IllegalStateException if the worker reported an error for the tile
+     */
+    private static void readResponseHeader(DataInputStream in, int tileId) throws IOException {
+        checkMagic(in.readInt());
+        int id = in.readInt();
+        if (id != tileId) {
+            throw new IOException("Response for tile " + id + ", expected " + tileId);
+        }
+        if (in.readInt() != STATUS_OK) {
+            throw new IllegalStateException("Tile " + tileId + " failed on the worker: " + in.readUTF());
+        }
+    }
+
+    private static void checkMagic(int magic) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException(String.format("Not a tile protocol message (magic %08x).", magic));
+        }
+    }
+
+    /**
+     * One tile: its points including the overlap, and the core box to polygonize.
+     */
+    static class TileRequest {
+        int m_iTileId;
+
+        int m_iStep;
+
+        // Marching Cubes cells of the core box per axis
+        final int[] m_iCells = new int[3];
+
+        // grid nodes owned per axis: cells, plus the last node on the upper end of the grid
+        final int[] m_iOwned = new int[3];
+
+        // the lower face lies on a cut plane, its owned node values are returned by SOLVE
+        final boolean[] m_bMinFace = new boolean[3];
+
+        final double[] m_dMin = new double[3];
+
+        final double[] m_dMax = new double[3];
+
+        double m_dKeepDistance;
+
+        PointBuffer m_Points;
+
+        PointBuffer m_Normals;
+
+        // step, solver and precision for a tile solved in this process, overrides m_iStep
+        ReconstructionPlanner.Plan m_Plan;
+    }
+
+    /**
+     * Field of a tile between SOLVE and MESH.
+     */
+    static class SolvedTile {
+        TileRequest m_Request;
+
+        RBFField m_Field;
+
+        // cells of size keep distance containing points
+        LongOpenHashSet m_Occupied;
+
+        final float[][] m_fMinFaces = new float[3][];
+
+        long m_lMillis;
+    }
+
+    /**
+     * Triangle soup of one tile.
+     */
+    static class TileResult {
+        int m_iTileId;
+
+        int m_iVertexCount;
+
+        float[] m_fPositions;
+
+        float[] m_fNormals;
+
+        // mesh time on the worker
+        long m_lMillis;
+    }
+
+    // "TIL1"
+    static final int MAGIC = 0x54494C31;
+
+    static final String PORT_LINE_PREFIX = "TileWorker listening on port ";
+
+    private static final int TYPE_SOLVE = 1;
+
+    private static final int TYPE_MESH = 2;
+
+    private static final int STATUS_OK = 0;
+
+    private static final int STATUS_ERROR = 1;
+
+    // a corner is on a boundary node if it is this close to it, in cells
+    private static final double NODE_TOLERANCE = 1e-6;
+
+    public static void main(String[] args) throws IOException {
+        serve(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+    }
+}
@@ -0,0 +1,613 @@
+package com.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lwjgl.BufferUtils;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+/**
+ * Reconstructs a cloud too large for one JVM by splitting it into tiles solved by worker processes.
+ *
+ * The normalized cloud's grid range is cut into tilesPerAxis^3 boxes along cell boundaries of
+ * one global Marching Cubes grid. Every tile is solved from its own points plus an overlap
+ * margin, but only polygonizes its core box, so neighbouring tiles meet on shared grid planes.
+ * Tiles are handed out to the workers (TileWorker, over sockets) from one queue, and a tile
+ * whose worker dies is handed to another one. Vertices on the shared planes lie on the same
+ * grid edges in both tiles; stitching averages them per edge, then the soup is welded.
+ *
+ * Workers are given as host:port addresses, or launched as local processes for testing.
+ */
+public class TiledReconstructor {
+
+    /**
+     * @param workers host:port of running TileWorkers
+     */
+    public TiledReconstructor(List<InetSocketAddress> workers) {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("At least one worker is required.");
+        }
+        m_Workers = new ArrayList<>(workers);
+    }
+
+    /**
+     * Launch TileWorker processes on this machine with the classpath of this JVM.
+     * They are destroyed by shutdownLocalWorkers() or when this JVM exits.
+     * @param jvmArgs extra arguments of the worker JVMs, e.g. -Xmx2g
+     */
+    public static TiledReconstructor launchLocalWorkers(int count, String... jvmArgs) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.addAll(List.of(jvmArgs));
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(TileWorker.class.getName());
+                command.add("0");
+                Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                processes.add(process);
+                addresses.add(new InetSocketAddress("localhost", readWorkerPort(process, i)));
+            }
+        } catch (IOException e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+        TiledReconstructor reconstructor = new TiledReconstructor(addresses);
+        reconstructor.m_LocalProcesses.addAll(processes);
+        Runtime.getRuntime().addShutdownHook(new Thread(reconstructor::shutdownLocalWorkers));
+        return reconstructor;
+    }
+
+    /**
+     * Read the port line of a freshly started worker, then keep draining its output.
+     */
+    private static int readWorkerPort(Process process, int index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(TileWorker.PORT_LINE_PREFIX)) {
+                Thread drain = new Thread(() -> {
+                    try {
+                        // the solver logs are not interesting here, but a full pipe would block the worker
+                        while (reader.readLine() != null) { }
+                    } catch (IOException e) {
+                        // the process exited
+                    }
+                }, "tile-worker-" + index + "-output");
+                drain.setDaemon(true);
+                drain.start();
+                return Integer.parseInt(line.substring(TileWorker.PORT_LINE_PREFIX.length()).trim());
+            }
+        }
+        throw new IOException("Tile worker " + index + " exited before listening.");
+    }
+
+    public void shutdownLocalWorkers() {
+        for (Process process : m_LocalProcesses) {
+            process.destroy();
+        }
+        m_LocalProcesses.clear();
+    }
+
+    /**
+     * number of tiles along each axis (default 2)
+     */
+    public void setTilesPerAxis(int tilesPerAxis) {
+        if (tilesPerAxis < 1) {
+            throw new IllegalArgumentException("Tiles per axis must be positive: " + tilesPerAxis);
+        }
+        m_iTilesPerAxis = tilesPerAxis;
+    }
+
+    /**
+     * overlap margin around every tile, as a fraction of the tile width (default 0.15)
+     */
+    public void setOverlap(double overlap) {
+        if (overlap < 0.0) {
+            throw new IllegalArgumentException("Overlap must not be negative: " + overlap);
+        }
+        m_dOverlap = overlap;
+    }
+
+    public void setDownSamplingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Down sampling step must be positive: " + step);
+        }
+        m_iDownSamplingStep = step;
+    }
+
+    /**
+     * @param resourceName .xyz resource name
+     * @param gridResolution Marching Cubes cells along each axis of the whole grid
+     */
+    public MeshBuffers reconstruct(String resourceName, int gridResolution) throws IOException {
+        ArrayList<PointBuffer> cloud = VertexReader3D.readPointCloudData(resourceName);
+        if (cloud.isEmpty()) {
+            throw new IllegalArgumentException("Cannot read point cloud: " + resourceName);
+        }
+        return reconstruct(cloud, gridResolution);
+    }
+
+    /**
+     * @param cloudData normalized positions and normals, as returned by VertexReader3D
+     * @return welded, optimized mesh of all tiles
+     */
+    public MeshBuffers reconstruct(ArrayList<PointBuffer> cloudData, int gridResolution) throws IOException {
+        if (gridResolution < m_iTilesPerAxis) {
+            throw new IllegalArgumentException("Grid resolution " + gridResolution + " is smaller than the tile count.");
+        }
+        long start = System.currentTimeMillis();
+        double cell = (MAX_COORD - MIN_COORD) / gridResolution;
+        int[] cuts = new int[m_iTilesPerAxis + 1];
+        for (int t = 0; t <= m_iTilesPerAxis; t++) {
+            cuts[t] = (int) Math.round((double) gridResolution * t / m_iTilesPerAxis);
+        }
+
+        List<TileWorker.TileRequest> tiles = partition(cloudData.get(0), cloudData.get(1), cuts, cell);
+        System.out.println("Tiled: " + tiles.size() + " non-empty tiles of " + m_iTilesPerAxis + "^3, "
+                + m_Workers.size() + " workers");
+
+        TileWorker.TileResult[] results = dispatch(tiles, cuts);
+
+        MeshBuffers mesh = stitch(results, cuts, cell);
+        System.out.println("Tiled reconstruction finished in " + (System.currentTimeMillis() - start) + "ms");
+        return mesh;
+    }
+
+    /**
+     * Assign every point to all tiles whose core box, grown by the overlap, contains it.
+     */
+    private List<TileWorker.TileRequest> partition(PointBuffer points, PointBuffer normals, int[] cuts, double cell) {
+        int tpa = m_iTilesPerAxis;
+        int tileCount = tpa * tpa * tpa;
+        double[][] lo = new double[tileCount][3];
+        double[][] hi = new double[tileCount][3];
+        IntArrayList[] members = new IntArrayList[tileCount];
+        for (int t = 0; t < tileCount; t++) {
+            int[] idx = {t % tpa, (t / tpa) % tpa, t / (tpa * tpa)};
+            for (int a = 0; a < 3; a++) {
+                lo[t][a] = MIN_COORD + cuts[idx[a]] * cell;
+                hi[t][a] = MIN_COORD + cuts[idx[a] + 1] * cell;
+            }
+            members[t] = new IntArrayList();
+        }
+
+        int n = points.size();
+        for (int i = 0; i < n; i++) {
+            for (int t = 0; t < tileCount; t++) {
+                boolean inside = true;
+                for (int a = 0; a < 3 && inside; a++) {
+                    double margin = (hi[t][a] - lo[t][a]) * m_dOverlap;
+                    double v = points.get(i, a);
+                    inside = v >= lo[t][a] - margin && v <= hi[t][a] + margin;
+                }
+                if (inside) members[t].add(i);
+            }
+        }
+
+        List<TileWorker.TileRequest> tiles = new ArrayList<>();
+        for (int t = 0; t < tileCount; t++) {
+            // a tile without points has no surface near it
+            if (members[t].size() < MIN_TILE_POINTS) continue;
+            TileWorker.TileRequest request = new TileWorker.TileRequest();
+            request.m_iTileId = t;
+            request.m_iStep = m_iDownSamplingStep;
+            int[] idx = {t % tpa, (t / tpa) % tpa, t / (tpa * tpa)};
+            for (int a = 0; a < 3; a++) {
+                request.m_iCells[a] = cuts[idx[a] + 1] - cuts[idx[a]];
+                // nodes on an interior cut belong to the tile above it, the last node to the last tile
+                request.m_iOwned[a] = request.m_iCells[a] + (idx[a] == tpa - 1 ? 1 : 0);
+                request.m_bMinFace[a] = idx[a] > 0;
+                request.m_dMin[a] = lo[t][a];
+                request.m_dMax[a] = hi[t][a];
+            }
+            request.m_dKeepDistance = Math.max(KEEP_CELLS * cell, (hi[t][0] - lo[t][0]) * m_dOverlap * 0.5);
+            request.m_Points = new PointBuffer(members[t].size());
+            request.m_Normals = new PointBuffer(members[t].size());
+            for (int k = 0; k < members[t].size(); k++) {
+                int i = members[t].getInt(k);
+                for (int c = 0; c < 3; c++) {
+                    request.m_Points.set(k, c, points.get(i, c));
+                    request.m_Normals.set(k, c, normals.get(i, c));
+                }
+            }
+            tiles.add(request);
+        }
+        return tiles;
+    }
+
+    /**
+     * Solve all tiles, collect the owned node values of the cut planes, then mesh every tile
+     * with the values of its whole boundary taken from those planes.
+     */
+    private TileWorker.TileResult[] dispatch(List<TileWorker.TileRequest> tiles, int[] cuts) throws IOException {
+        List<WorkerConnection> connections = new ArrayList<>();
+        for (InetSocketAddress address : m_Workers) {
+            try {
+                connections.add(new WorkerConnection(address));
+            } catch (IOException e) {
+                System.err.println("Tiled: cannot connect to worker " + address + ": " + e.getMessage());
+            }
+        }
+        try {
+            int nodes = cuts[cuts.length - 1] + 1;
+            // [axis][cut] -> node values over the two other axes, b-major, NaN where no tile owns the node
+            float[][][] planes = new float[3][cuts.length][];
+            for (int a = 0; a < 3; a++) {
+                for (int t = 1; t < cuts.length - 1; t++) {
+                    planes[a][t] = new float[nodes * nodes];
+                    Arrays.fill(planes[a][t], Float.NaN);
+                }
+            }
+            WorkerConnection[] solvedBy = new WorkerConnection[m_iTilesPerAxis * m_iTilesPerAxis * m_iTilesPerAxis];
+
+            // phase 1: solve, tiles taken from a shared queue as workers become free
+            ConcurrentLinkedQueue<TileWorker.TileRequest> queue = new ConcurrentLinkedQueue<>(tiles);
+            while (!queue.isEmpty()) {
+                runOnLiveConnections(connections, connection -> {
+                    TileWorker.TileRequest tile;
+                    while ((tile = queue.poll()) != null) {
+                        try {
+                            float[][] faces = connection.solve(tile);
+                            storeFaces(planes, faces, tile, cuts, nodes);
+                            solvedBy[tile.m_iTileId] = connection;
+                        } catch (IOException e) {
+                            queue.add(tile);
+                            throw e;
+                        }
+                    }
+                });
+            }
+
+            // phase 2: mesh on the worker holding the field; tiles of lost workers are solved again elsewhere
+            TileWorker.TileResult[] results = new TileWorker.TileResult[tiles.size()];
+            ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < tiles.size(); i++) pending.add(i);
+            while (!pending.isEmpty()) {
+                List<Integer> round = new ArrayList<>(pending);
+                pending.clear();
+                // fixed before the threads start, so every tile has exactly one connection: the one
+                // holding its field, or for tiles of lost workers a live connection in turn
+                List<WorkerConnection> live = new ArrayList<>();
+                for (WorkerConnection c : connections) if (c.m_bAlive) live.add(c);
+                if (live.isEmpty()) {
+                    throw new IllegalStateException("No tile worker is reachable.");
+                }
+                WorkerConnection[] assigned = new WorkerConnection[round.size()];
+                int orphans = 0;
+                for (int k = 0; k < round.size(); k++) {
+                    WorkerConnection owner = solvedBy[tiles.get(round.get(k)).m_iTileId];
+                    assigned[k] = owner != null && owner.m_bAlive ? owner : live.get(orphans++ % live.size());
+                }
+                runOnLiveConnections(connections, connection -> {
+                    for (int k = 0; k < round.size(); k++) {
+                        if (assigned[k] != connection) continue;
+                        int slot = round.get(k);
+                        TileWorker.TileRequest tile = tiles.get(slot);
+                        try {
+                            if (solvedBy[tile.m_iTileId] != connection) {
+                                // the faces of the first solve stay authoritative
+                                connection.solve(tile);
+                                solvedBy[tile.m_iTileId] = connection;
+                            }
+                            results[slot] = connection.mesh(tile.m_iTileId, boundaryFaces(planes, tile, cuts, nodes));
+                            System.out.println("Tiled: tile " + tile.m_iTileId + " meshed on " + connection.m_Address
+                                    + " in " + results[slot].m_lMillis + "ms, " + results[slot].m_iVertexCount / 3 + " triangles");
+                        } catch (IOException e) {
+                            for (int rest = k; rest < round.size(); rest++) {
+                                if (assigned[rest] == connection && results[round.get(rest)] == null) pending.add(round.get(rest));
+                            }
+                            throw e;
+                        }
+                    }
+                });
+            }
+            for (int slot = 0; slot < results.length; slot++) {
+                if (results[slot] == null) {
+                    throw new IllegalStateException("Tile " + tiles.get(slot).m_iTileId + " was not meshed by any worker.");
+                }
+            }
+            return results;
+        } finally {
+            for (WorkerConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private interface ConnectionTask {
+        void run(WorkerConnection connection) throws IOException;
+    }
+
+    /**
+     * Run a task on one thread per live connection. A connection failing with an I/O error
+     * is dropped; an error reported by a worker fails the reconstruction.
+     */
+    private static void runOnLiveConnections(List<WorkerConnection> connections, ConnectionTask task) {
+        RuntimeException[] failure = new RuntimeException[1];
+        List<Thread> threads = new ArrayList<>();
+        for (WorkerConnection connection : connections) {
+            if (!connection.m_bAlive) continue;
+            Thread thread = new Thread(() -> {
+                try {
+                    task.run(connection);
+                } catch (IOException e) {
+                    System.err.println("Tiled: worker " + connection.m_Address + " failed: " + e);
+                    connection.close();
+                } catch (RuntimeException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) failure[0] = e;
+                    }
+                }
+            }, "tile-dispatch-" + connection.m_Address);
+            threads.add(thread);
+            thread.start();
+        }
+        if (threads.isEmpty()) {
+            throw new IllegalStateException("No tile worker is reachable.");
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for tile workers.", e);
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static int[] tileNodeOrigin(TileWorker.TileRequest tile, int[] cuts, int tilesPerAxis) {
+        int t = tile.m_iTileId;
+        int[] idx = {t % tilesPerAxis, (t / tilesPerAxis) % tilesPerAxis, t / (tilesPerAxis * tilesPerAxis)};
+        return new int[]{cuts[idx[0]], cuts[idx[1]], cuts[idx[2]]};
+    }
+
+    private void storeFaces(float[][][] planes, float[][] faces, TileWorker.TileRequest tile, int[] cuts, int nodes) {
+        int[] origin = tileNodeOrigin(tile, cuts, m_iTilesPerAxis);
+        for (int a = 0; a < 3; a++) {
+            if (faces[a] == null) continue;
+            int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+            float[] plane = planes[a][cutIndex(cuts, origin[a])];
+            for (int i = 0; i < tile.m_iOwned[b]; i++) {
+                for (int j = 0; j < tile.m_iOwned[c]; j++) {
+                    plane[(origin[b] + i) * nodes + origin[c] + j] = faces[a][i * tile.m_iOwned[c] + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return per axis and side the node values of the tile's boundary on cut planes
+     */
+    private float[][][] boundaryFaces(float[][][] planes, TileWorker.TileRequest tile, int[] cuts, int nodes) {
+        int[] origin = tileNodeOrigin(tile, cuts, m_iTilesPerAxis);
+        float[][][] faces = new float[3][2][];
+        for (int a = 0; a < 3; a++) {
+            int b = a == 0 ? 1 : 0, c = a == 2 ? 1 : 2;
+            for (int side = 0; side < 2; side++) {
+                int cut = cutIndex(cuts, origin[a] + side * tile.m_iCells[a]);
+                if (cut <= 0 || cut >= cuts.length - 1) continue;
+                float[] plane = planes[a][cut];
+                float[] face = new float[(tile.m_iCells[b] + 1) * (tile.m_iCells[c] + 1)];
+                for (int i = 0; i <= tile.m_iCells[b]; i++) {
+                    for (int j = 0; j <= tile.m_iCells[c]; j++) {
+                        face[i * (tile.m_iCells[c] + 1) + j] = plane[(origin[b] + i) * nodes + origin[c] + j];
+                    }
+                }
+                faces[a][side] = face;
+            }
+        }
+        return faces;
+    }
+
+    private static int cutIndex(int[] cuts, int node) {
+        return Arrays.binarySearch(cuts, node);
+    }
+
+    /**
+     * One connection to a worker, kept for both phases because the worker holds the solved fields.
+     */
+    private static class WorkerConnection {
+
+        WorkerConnection(InetSocketAddress address) throws IOException {
+            m_Address = address;
+            m_Socket = new Socket();
+            try {
+                m_Socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                m_Out = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream(), 1 << 16));
+                m_In = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream(), 1 << 16));
+            } catch (IOException e) {
+                m_Socket.close();
+                throw e;
+            }
+        }
+
+        float[][] solve(TileWorker.TileRequest tile) throws IOException {
+            TileWorker.writeSolveRequest(m_Out, tile);
+            m_Out.flush();
+            return TileWorker.readSolveResult(m_In, tile);
+        }
+
+        TileWorker.TileResult mesh(int tileId, float[][][] faces) throws IOException {
+            TileWorker.writeMeshRequest(m_Out, tileId, faces);
+            m_Out.flush();
+            return TileWorker.readMeshResult(m_In, tileId);
+        }
+
+        void close() {
+            m_bAlive = false;
+            try {
+                m_Socket.close();
+            } catch (IOException e) {
+                // already broken
+            }
+        }
+
+        private final InetSocketAddress m_Address;
+
+        private final Socket m_Socket;
+
+        private final DataOutputStream m_Out;
+
+        private final DataInputStream m_In;
+
+        private volatile boolean m_bAlive = true;
+    }
+
+    /**
+     * Average the vertices on shared tile planes per grid edge, then weld the soup.
+     */
+    private MeshBuffers stitch(TileWorker.TileResult[] results, int[] cuts, double cell) {
+        int total = 0;
+        for (TileWorker.TileResult r : results) total += r.m_iVertexCount;
+        float[] pos = new float[total * 3];
+        float[] nrm = new float[total * 3];
+        int offset = 0;
+        int[] tileOf = new int[total];
+        for (TileWorker.TileResult r : results) {
+            Arrays.fill(tileOf, offset, offset + r.m_iVertexCount, r.m_iTileId);
+            System.arraycopy(r.m_fPositions, 0, pos, offset * 3, r.m_iVertexCount * 3);
+            System.arraycopy(r.m_fNormals, 0, nrm, offset * 3, r.m_iVertexCount * 3);
+            offset += r.m_iVertexCount;
+        }
+
+        boolean[] isCut = new boolean[cuts[cuts.length - 1] + 1];
+        for (int t = 1; t < cuts.length - 1; t++) {
+            isCut[cuts[t]] = true;
+        }
+
+        // edge key -> slot of the running sums: position, normal, count, first tile, seen in another tile
+        Long2IntOpenHashMap slots = new Long2IntOpenHashMap();
+        slots.defaultReturnValue(-1);
+        ArrayList<double[]> sums = new ArrayList<>();
+        long[] keys = new long[total];
+        for (int v = 0; v < total; v++) {
+            keys[v] = -1;
+            long key = 0;
+            boolean onCut = false;
+            for (int a = 0; a < 3; a++) {
+                double u = (pos[v * 3 + a] - MIN_COORD) / cell;
+                long node = Math.round(u);
+                boolean onNode = Math.abs(u - node) < ON_PLANE_CELLS;
+                if (onNode && node > 0 && node < isCut.length && isCut[(int) node]) onCut = true;
+                // even codes for grid planes, odd codes for the edge between two planes
+                long code = onNode ? 2 * node : 2 * (long) Math.floor(u) + 1;
+                key = (key << 21) | (code & 0x1FFFFF);
+            }
+            if (!onCut) continue;
+            keys[v] = key;
+            int s = slots.get(key);
+            if (s < 0) {
+                s = sums.size();
+                slots.put(key, s);
+                double[] sum = new double[9];
+                sum[7] = tileOf[v];
+                sums.add(sum);
+            }
+            double[] sum = sums.get(s);
+            if (sum[7] != tileOf[v]) sum[8] = 1;
+            for (int c = 0; c < 3; c++) {
+                sum[c] += pos[v * 3 + c];
+                sum[3 + c] += nrm[v * 3 + c];
+            }
+            sum[6]++;
+        }
+
+        int unmatched = 0;
+        for (double[] sum : sums) {
+            if (sum[8] == 0) unmatched++;
+        }
+        for (int v = 0; v < total; v++) {
+            if (keys[v] < 0) continue;
+            double[] sum = sums.get(slots.get(keys[v]));
+            double len = Math.sqrt(sum[3] * sum[3] + sum[4] * sum[4] + sum[5] * sum[5]);
+            for (int c = 0; c < 3; c++) {
+                pos[v * 3 + c] = (float) (sum[c] / sum[6]);
+                if (len > 1e-12) nrm[v * 3 + c] = (float) (sum[3 + c] / len);
+            }
+        }
+        System.out.println("Tiled: stitched " + (sums.size() - unmatched) + " boundary vertices, "
+                + unmatched + " without a partner");
+        m_iUnmatchedBoundaryVertices = unmatched;
+
+        FloatBuffer posBuffer = BufferUtils.createFloatBuffer(total * 3);
+        posBuffer.put(pos).flip();
+        FloatBuffer nrmBuffer = BufferUtils.createFloatBuffer(total * 3);
+        nrmBuffer.put(nrm).flip();
+        return MeshPostProcessor.optimize(new MeshBuffers(posBuffer, nrmBuffer, total));
+    }
+
+    /**
+     * @return boundary vertices of the last reconstruction found in only one tile,
+     * each one is the end of a crack where the tiles disagree about the surface
+     */
+    public int getUnmatchedBoundaryVertices() {
+        return m_iUnmatchedBoundaryVertices;
+    }
+
+    private final List<InetSocketAddress> m_Workers;
+
+    private final List<Process> m_LocalProcesses = new ArrayList<>();
+
+    private int m_iTilesPerAxis = 2;
+
+    private double m_dOverlap = 0.15;
+
+    private int m_iDownSamplingStep = 1;
+
+    private int m_iUnmatchedBoundaryVertices = 0;
+
+    // grid range of MarchingCubesGenerator for normalized clouds
+    private static final double MIN_COORD = -1.1;
+
+    private static final double MAX_COORD = 1.1;
+
+    // fewer points cannot describe a surface patch
+    private static final int MIN_TILE_POINTS = 16;
+
+    // triangles are kept up to this many cells away from the tile's points, at least
+    private static final double KEEP_CELLS = 2.0;
+
+    // tolerance of a vertex coordinate on a grid plane, in cells
+    private static final double ON_PLANE_CELLS = 1e-3;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    public static void main(String[] args) throws IOException {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        TiledReconstructor tiled = launchLocalWorkers(workers, "-Xmx1g");
+        try {
+            tiled.setTilesPerAxis(2);
+            tiled.setDownSamplingStep(4);
+            MeshBuffers mesh = tiled.reconstruct("bunny.xyz", 64);
+            System.out.println("Tiled mesh: " + mesh.getVertexCount() + " vertices, "
+                    + mesh.getIndices().remaining() / 3 + " triangles, "
+                    + tiled.getUnmatchedBoundaryVertices() + " unmatched boundary vertices");
+        } finally {
+            tiled.shutdownLocalWorkers();
+        }
+    }
+}
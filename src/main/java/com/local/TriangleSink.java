@@ -0,0 +1,19 @@
+package com.local;
+
+import java.io.IOException;
+
+/**
+ * Receiver of triangle batches from {@link MarchingCubesGenerator#generateMeshStreaming}.
+ * The arrays are reused by the generator after the call returns, so a sink must copy
+ * or write out whatever it wants to keep.
+ */
+@FunctionalInterface
+public interface TriangleSink {
+
+    /**
+     * @param vertices vertex positions, 9 floats per triangle (x0, y0, z0, x1, ...)
+     * @param normals vertex normals, same layout as vertices
+     * @param triangleCount number of valid triangles at the start of the arrays
+     */
+    void accept(float[] vertices, float[] normals, int triangleCount) throws IOException;
+}
@@ -4,30 +4,30 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 
 public class VertexReader3D {
     
+    /**
+     * Read "x y z nx ny nz" or "x y z" lines. If any line has no normal, normals are
+     * estimated for the whole cloud with NormalEstimator.
+     */
     public static ArrayList<PointBuffer> readPointCloudData(String resourceName) {
+        return readPointCloudData(resourceName, true);
+    }
+
+    /**
+     * @param estimateNormals false to skip the normal estimation of xyz-only clouds when only
+     *                        positions are needed, missing normals are then left at 0
+     */
+    public static ArrayList<PointBuffer> readPointCloudData(String resourceName, boolean estimateNormals) {
         var resultList = new ArrayList<PointBuffer>();
         
-        int numPoints = 0;
-        InputStream isCount = VertexReader3D.class.getClassLoader().getResourceAsStream(resourceName);
-        if (isCount == null) {
-            System.err.println("Error: File not found - " + resourceName);
-            return resultList;
-        }
-
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(isCount))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    numPoints++;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        int numPoints = countPoints(resourceName);
+        if (numPoints < 0) {
             return resultList;
         }
         System.out.println("Detected " + numPoints + " points. Allocating memory...");
@@ -42,99 +42,215 @@ public class VertexReader3D {
 
         
         InputStream isParse = VertexReader3D.class.getClassLoader().getResourceAsStream(resourceName);
+        boolean missingNormals = false;
 
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(isParse))) {
-            String line;
-            int i = 0;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-
-                StringTokenizer st = new StringTokenizer(line);
-                
-                // 确保数据完整 (x, y, z, nx, ny, nz)
-                if (st.countTokens() >= 6) {
-                    // 解析坐标
-                    double x = Double.parseDouble(st.nextToken());
-                    double y = Double.parseDouble(st.nextToken());
-                    double z = Double.parseDouble(st.nextToken());
-                    vertexBuffer.set(i, 0, x);
-                    vertexBuffer.set(i, 1, y);
-                    vertexBuffer.set(i, 2, z);
-
-                    // 解析法向量
-                    double nx = Double.parseDouble(st.nextToken());
-                    double ny = Double.parseDouble(st.nextToken());
-                    double nz = Double.parseDouble(st.nextToken());
-                    normalBuffer.set(i, 0, nx);
-                    normalBuffer.set(i, 1, ny);
-                    normalBuffer.set(i, 2, nz);
-
-                    i++;
-                }
-            }
+            missingNormals = parse(reader, vertexBuffer, normalBuffer);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         normalizeVertices(vertexBuffer);
-        normalizeNormals(normalBuffer);
+        if (missingNormals && !estimateNormals) {
+            System.out.println("Point cloud has no normals, skipping estimation.");
+        } else if (missingNormals) {
+            System.out.println("Point cloud has no normals, estimating them...");
+            resultList.set(1, NormalEstimator.estimateNormals(vertexBuffer, NormalEstimator.DEFAULT_K));
+        } else {
+            normalizeNormals(normalBuffer);
+        }
 
         return resultList;
     }
 
-    public static void normalizeVertices(PointBuffer vertices) {
-        int n = vertices.size();
-        if (n == 0) return;
+    /**
+     * Read "x y z nx ny nz" or "x y z" lines of a file and normalize them with a given
+     * transform instead of the cloud's own box, e.g. the one of the first frame of a
+     * sequence, so that all frames share one coordinate frame and points that did not move
+     * keep bit-identical coordinates. Missing normals are estimated as in readPointCloudData.
+     * @param transform centerX, centerY, centerZ, scale as returned by normalization,
+     *                  null to keep the coordinates of the file
+     */
+    public static ArrayList<PointBuffer> readPointCloudData(Path file, double[] transform) throws IOException {
+        int numPoints = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    numPoints++;
+                }
+            }
+        }
 
-        //  compute bounding box
-        double minX = 0.0, maxX = 0.0;
-        double minY = 0.0, maxY = 0.0;
-        double minZ = 0.0, maxZ = 0.0;
+        PointBuffer vertexBuffer = new PointBuffer(numPoints);
+        PointBuffer normalBuffer = new PointBuffer(numPoints);
+        boolean missingNormals;
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            missingNormals = parse(reader, vertexBuffer, normalBuffer);
+        }
+        if (transform != null) {
+            applyNormalization(vertexBuffer, transform);
+        }
 
-        for (int i = 0; i < n; i++) {
-            double x = vertices.get(i, 0);
-            double y = vertices.get(i, 1);
-            double z = vertices.get(i, 2);
+        var resultList = new ArrayList<PointBuffer>();
+        resultList.add(vertexBuffer);
+        resultList.add(missingNormals ? NormalEstimator.estimateNormals(vertexBuffer, NormalEstimator.DEFAULT_K) : normalBuffer);
+        if (!missingNormals) {
+            normalizeNormals(normalBuffer);
+        }
+        return resultList;
+    }
 
-            if (x<minX) minX = x;
-            if (x>maxX) maxX = x;
-            if (y<minY) minY = y; 
-            if (y>maxY) maxY = y;
-            if (z<minZ) minZ = z;
-            if (z>maxZ) maxZ = z;
+    /**
+     * Read the points of a PointArchive inside a box, decompressing only the chunks that
+     * intersect it, and normalize them as readPointCloudData(Path, double[]) does. Normals
+     * are estimated if the archive has none.
+     * @param boxMin lower corner in archive coordinates, null together with boxMax for the whole cloud
+     * @param transform centerX, centerY, centerZ, scale as returned by normalization,
+     *                  null to keep the coordinates of the archive
+     */
+    public static ArrayList<PointBuffer> readPointArchive(Path file, double[] boxMin, double[] boxMax,
+                                                          double[] transform) throws IOException {
+        PointArchive archive = PointArchive.open(file);
+        ArrayList<PointBuffer> resultList;
+        try {
+            resultList = archive.read(boxMin, boxMax);
+            System.out.println("Archive: " + resultList.get(0).size() + " points from " + archive.getLastChunksRead()
+                    + " of " + archive.getChunkCount() + " chunks");
+        } finally {
+            archive.close();
         }
+        if (transform != null) {
+            applyNormalization(resultList.get(0), transform);
+        }
+        if (!archive.hasNormals()) {
+            resultList.set(1, NormalEstimator.estimateNormals(resultList.get(0), NormalEstimator.DEFAULT_K));
+        }
+        return resultList;
+    }
 
-        // compute center and scale
-        double centerX = (minX+maxX)/2.0;
-        double centerY = (minY+maxY)/2.0;
-        double centerZ = (minZ+maxZ)/2.0;
+    /**
+     * Parse point lines into the buffers, which hold one entry per non-empty line.
+     * @return true if any line had no normal
+     */
+    private static boolean parse(BufferedReader reader, PointBuffer vertexBuffer, PointBuffer normalBuffer) throws IOException {
+        boolean missingNormals = false;
+        String line;
+        int i = 0;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
 
-        double width = maxX-minX;
-        double height = maxY-minY;
-        double depth = maxZ-minZ;
+            StringTokenizer st = new StringTokenizer(line);
+            
+            // 确保数据完整 (x, y, z, nx, ny, nz)
+            if (st.countTokens() >= 6) {
+                // 解析坐标
+                double x = Double.parseDouble(st.nextToken());
+                double y = Double.parseDouble(st.nextToken());
+                double z = Double.parseDouble(st.nextToken());
+                vertexBuffer.set(i, 0, x);
+                vertexBuffer.set(i, 1, y);
+                vertexBuffer.set(i, 2, z);
 
-        // finding the maximum span
-        double maxSpan = Math.max(width, Math.max(height, depth));
+                // 解析法向量
+                double nx = Double.parseDouble(st.nextToken());
+                double ny = Double.parseDouble(st.nextToken());
+                double nz = Double.parseDouble(st.nextToken());
+                normalBuffer.set(i, 0, nx);
+                normalBuffer.set(i, 1, ny);
+                normalBuffer.set(i, 2, nz);
 
-        // mapping to the range [-1.0, 1.0]
-        double scale = 2.0 / maxSpan;
+                i++;
+            } else if (st.countTokens() >= 3) {
+                // position only
+                vertexBuffer.set(i, 0, Double.parseDouble(st.nextToken()));
+                vertexBuffer.set(i, 1, Double.parseDouble(st.nextToken()));
+                vertexBuffer.set(i, 2, Double.parseDouble(st.nextToken()));
+                missingNormals = true;
 
-        // normalize vertices
-        for (int i = 0; i < n; i++) {
-            double oldX = vertices.get(i, 0);
-            double oldY = vertices.get(i, 1);
-            double oldZ = vertices.get(i, 2);
+                i++;
+            }
+        }
+        return missingNormals;
+    }
 
-            vertices.set(i, 0, (oldX - centerX) * scale);
-            vertices.set(i, 1, (oldY - centerY) * scale);
-            vertices.set(i, 2, (oldZ - centerZ) * scale);
+    /**
+     * Count the non-empty lines of a resource without parsing them.
+     * @return number of points, -1 if the resource cannot be read
+     */
+    public static int countPoints(String resourceName) {
+        InputStream isCount = VertexReader3D.class.getClassLoader().getResourceAsStream(resourceName);
+        if (isCount == null) {
+            System.err.println("Error: File not found - " + resourceName);
+            return -1;
         }
-        
+
+        int numPoints = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(isCount))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    numPoints++;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return numPoints;
+    }
+
+    public static void normalizeVertices(PointBuffer vertices) {
+        int n = vertices.size();
+        if (n == 0) return;
+
+        //  compute bounding box
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) {
+                double v = vertices.get(i, c);
+                if (v < min[c]) min[c] = v;
+                if (v > max[c]) max[c] = v;
+            }
+        }
+
+        double[] transform = normalization(min, max);
+        double centerX = transform[0];
+        double centerY = transform[1];
+        double centerZ = transform[2];
+        double scale = transform[3];
+        applyNormalization(vertices, transform);
+
         System.out.printf("Vertices Normalization done. Scale: %.4f, Center: (%.2f, %.2f, %.2f)\n", 
                           scale, centerX, centerY, centerZ);
     }
 
+    /**
+     * Map every vertex to (v - center) * scale.
+     * @param transform centerX, centerY, centerZ, scale as returned by normalization
+     */
+    public static void applyNormalization(PointBuffer vertices, double[] transform) {
+        for (int i = 0; i < vertices.size(); i++) {
+            for (int c = 0; c < 3; c++) {
+                vertices.set(i, c, (vertices.get(i, c) - transform[c]) * transform[3]);
+            }
+        }
+    }
+
+    /**
+     * Center and scale that map a bounding box into [-1.0, 1.0] along its longest side.
+     * @return centerX, centerY, centerZ, scale
+     */
+    public static double[] normalization(double[] min, double[] max) {
+        // finding the maximum span
+        double maxSpan = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        // a single point has no extent, only move it to the origin
+        double scale = maxSpan > 0.0 ? 2.0 / maxSpan : 1.0;
+        return new double[] {(min[0] + max[0]) / 2.0, (min[1] + max[1]) / 2.0, (min[2] + max[2]) / 2.0, scale};
+    }
+
     public static void normalizeNormals(PointBuffer normals) {
         int n = normals.size();
         for (int i = 0; i < n; i++) {
@@ -1,17 +1,30 @@
 #version 330 core
 
 
+// snorm16 position relative to the mesh bounds, see QuantizedMesh
 layout (location = 0) in vec3 vPosition;
-layout (location = 1) in vec3 vNormal;
+// octahedral snorm16 normal
+layout (location = 1) in vec2 vNormalOct;
 
 uniform float angle;
+uniform vec3 positionScale;
+uniform vec3 positionOffset;
 
 out vec3 position;
 out vec3 normal;
 
+vec3 decodeOctahedral(vec2 e) {
+    vec3 n = vec3(e.xy, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0) {
+        n.xy = (1.0 - abs(n.yx)) * vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);
+    }
+    return normalize(n);
+}
+
 void main() {
     float scale = 0.8;
-    vec3 pos = vPosition * scale;
+    vec3 pos = (vPosition * positionScale + positionOffset) * scale;
+    vec3 vNormal = decodeOctahedral(vNormalOct);
 
     // float angle = 1.0 * 3.14159;
     float s = sin(angle);